@@ -0,0 +1,281 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Controle de admissão de uploads do Peer: um número fixo de vagas (slots) de upload e uma fila limitada de Peers aguardando vaga.
+ *
+ * Um Peer que encontra todas as vagas ocupadas entra na fila e recebe a espera estimada, calculada a partir da duração média dos
+ * uploads recentes e da sua posição na fila, para voltar a pedir depois desse tempo. Quando uma vaga é liberada ela fica reservada
+ * ao próximo Peer da fila por um tempo limitado, de modo que quem esperou não perca a vaga para quem acabou de chegar.
+ *
+ * A escolha do próximo Peer da fila segue a política configurada: ordem de chegada, partilha justa (quem recebeu menos bytes deste
+ * Peer primeiro) ou olho por olho (quem mais enviou bytes a este Peer primeiro, com uma a cada QUANTIDADE_ESCOLHAS_POR_DESBLOQUEIO
+ * vagas concedida por ordem de chegada, para que Peers novos também tenham chance de começar a trocar arquivos).
+ *
+ * @author Maik Henrique
+ */
+public class AgendadorUploads {
+
+    public enum Politica {
+        ORDEM_CHEGADA, PARTILHA_JUSTA, OLHO_POR_OLHO
+    }
+
+    private static final long DURACAO_INICIAL_UPLOAD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double PESO_DURACAO_RECENTE = 0.2;
+    private static final long TEMPO_MINIMO_RETORNO_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int QUANTIDADE_ESCOLHAS_POR_DESBLOQUEIO = 4;
+
+    private final int quantidadeSlots;
+    private final int tamanhoMaximoFila;
+    private final Politica politica;
+    private final ToLongFunction<String> bytesRecebidosDoPeer;
+
+    private final LinkedHashMap<String, Espera> fila;
+    private final Map<String, Long> bytesEnviadosAoPeer;
+    private int slotsOcupados;
+    private double duracaoMediaUploadNanos;
+    private int escolhasDesdeDesbloqueio;
+
+    /**
+     * @param quantidadeSlots número de uploads simultâneos.
+     * @param tamanhoMaximoFila número máximo de Peers aguardando vaga.
+     * @param politica critério de escolha do próximo Peer da fila.
+     * @param bytesRecebidosDoPeer bytes que este Peer já baixou de cada Peer remoto, usado pela política olho por olho.
+     */
+    public AgendadorUploads(int quantidadeSlots, int tamanhoMaximoFila, Politica politica, ToLongFunction<String> bytesRecebidosDoPeer) {
+        this.quantidadeSlots = Math.max(1, quantidadeSlots);
+        this.tamanhoMaximoFila = tamanhoMaximoFila;
+        this.politica = politica;
+        this.bytesRecebidosDoPeer = bytesRecebidosDoPeer;
+        this.fila = new LinkedHashMap<>();
+        this.bytesEnviadosAoPeer = new HashMap<>();
+        this.duracaoMediaUploadNanos = DURACAO_INICIAL_UPLOAD_NANOS;
+    }
+
+    /**
+     * Solicita uma vaga de upload para o Peer.
+     *
+     * @param peer identificação do Peer que solicita o upload.
+     * @return admissão com a reserva da vaga, ou recusada com a espera estimada até uma nova tentativa.
+     */
+    public synchronized Admissao solicitar(String peer) {
+        long agora = System.nanoTime();
+        removerEsperasExpiradas(agora);
+
+        Espera espera = fila.get(peer);
+        if (espera != null && espera.isVagaReservada) {
+            fila.remove(peer);
+            return Admissao.aceita(new Reserva(peer, agora));
+        }
+
+        // vagas livres só existem quando nenhum Peer da fila está sem vaga reservada, pois toda vaga liberada passa ao próximo da fila
+        if (espera == null && slotsOcupados < quantidadeSlots) {
+            slotsOcupados++;
+            return Admissao.aceita(new Reserva(peer, agora));
+        }
+
+        if (espera == null) {
+            if (fila.size() >= tamanhoMaximoFila) {
+                return Admissao.recusada(estimarEsperaMilissegundos(fila.size()));
+            }
+            espera = new Espera(agora);
+            fila.put(peer, espera);
+        }
+
+        long esperaEstimada = estimarEsperaMilissegundos(posicaoNaFila(peer));
+        espera.prazoRetorno = agora + prazoRetornoNanos(esperaEstimada);
+        return Admissao.recusada(esperaEstimada);
+    }
+
+    /**
+     * Libera a vaga ao fim do upload, reservando-a ao próximo Peer da fila caso exista algum aguardando.
+     *
+     * @param reserva reserva obtida na admissão.
+     * @param bytesEnviados bytes efetivamente enviados durante a reserva.
+     */
+    public synchronized void liberar(Reserva reserva, long bytesEnviados) {
+        if (reserva.isLiberada) {
+            return;
+        }
+        reserva.isLiberada = true;
+
+        long agora = System.nanoTime();
+        duracaoMediaUploadNanos += PESO_DURACAO_RECENTE * ((agora - reserva.instanteAdmissao) - duracaoMediaUploadNanos);
+        bytesEnviadosAoPeer.merge(reserva.peer, bytesEnviados, Long::sum);
+
+        removerEsperasExpiradas(agora);
+        if (!reservarVagaParaProximo(agora)) {
+            slotsOcupados--;
+        }
+    }
+
+    public synchronized int getSlotsOcupados() {
+        return slotsOcupados;
+    }
+
+    public synchronized int getTamanhoFila() {
+        return fila.size();
+    }
+
+    /**
+     * @return ocupação dos slots em porcentagem, contando os Peers na fila, de modo que passa de 100 quando há Peers aguardando.
+     */
+    public synchronized int getCarga() {
+        return (slotsOcupados + fila.size()) * 100 / quantidadeSlots;
+    }
+
+    /**
+     * Remove da fila os Peers que não voltaram a tempo. Se a vaga reservada a um deles expirar, ela passa para o próximo da fila.
+     */
+    private void removerEsperasExpiradas(long agora) {
+        int vagasDevolvidas = 0;
+        Iterator<Espera> esperas = fila.values().iterator();
+
+        while (esperas.hasNext()) {
+            Espera espera = esperas.next();
+            if (agora - espera.prazoRetorno > 0) {
+                esperas.remove();
+                if (espera.isVagaReservada) {
+                    vagasDevolvidas++;
+                }
+            }
+        }
+
+        for (; vagasDevolvidas > 0; vagasDevolvidas--) {
+            if (!reservarVagaParaProximo(agora)) {
+                slotsOcupados--;
+            }
+        }
+    }
+
+    private boolean reservarVagaParaProximo(long agora) {
+        String proximo = escolherProximo();
+        if (proximo == null) {
+            return false;
+        }
+
+        Espera espera = fila.get(proximo);
+        espera.isVagaReservada = true;
+        espera.prazoRetorno = Math.max(espera.prazoRetorno, agora + TEMPO_MINIMO_RETORNO_NANOS);
+        return true;
+    }
+
+    private String escolherProximo() {
+        boolean isDesbloqueioOtimista = politica == Politica.OLHO_POR_OLHO && ++escolhasDesdeDesbloqueio >= QUANTIDADE_ESCOLHAS_POR_DESBLOQUEIO;
+        if (isDesbloqueioOtimista) {
+            escolhasDesdeDesbloqueio = 0;
+        }
+
+        String escolhido = null;
+        long melhorPrioridade = Long.MIN_VALUE;
+
+        for (Map.Entry<String, Espera> entrada : fila.entrySet()) {
+            if (entrada.getValue().isVagaReservada) {
+                continue;
+            }
+            if (politica == Politica.ORDEM_CHEGADA || isDesbloqueioOtimista) {
+                return entrada.getKey();
+            }
+
+            long prioridade = prioridade(entrada.getKey());
+            if (escolhido == null || prioridade > melhorPrioridade) {
+                escolhido = entrada.getKey();
+                melhorPrioridade = prioridade;
+            }
+        }
+        return escolhido;
+    }
+
+    private long prioridade(String peer) {
+        if (politica == Politica.PARTILHA_JUSTA) {
+            return -bytesEnviadosAoPeer.getOrDefault(peer, 0L);
+        }
+        return bytesRecebidosDoPeer.applyAsLong(peer);
+    }
+
+    private int posicaoNaFila(String peer) {
+        int posicao = 0;
+        for (String aguardando : fila.keySet()) {
+            if (aguardando.equals(peer)) {
+                return posicao;
+            }
+            posicao++;
+        }
+        return posicao;
+    }
+
+    /**
+     * Cada rodada de vagas libera quantidadeSlots Peers da fila, e cada rodada dura em média um upload.
+     */
+    private long estimarEsperaMilissegundos(int posicaoNaFila) {
+        long rodadas = posicaoNaFila / quantidadeSlots + 1;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis((long) (duracaoMediaUploadNanos * rodadas)));
+    }
+
+    private static long prazoRetornoNanos(long esperaEstimadaMilissegundos) {
+        return Math.max(TEMPO_MINIMO_RETORNO_NANOS, 2 * TimeUnit.MILLISECONDS.toNanos(esperaEstimadaMilissegundos));
+    }
+
+    /**
+     * Peer aguardando vaga e o prazo para que volte a pedir, após o qual perde a posição na fila.
+     */
+    private static class Espera {
+        private long prazoRetorno;
+        private boolean isVagaReservada;
+
+        Espera(long agora) {
+            this.prazoRetorno = agora + TEMPO_MINIMO_RETORNO_NANOS;
+        }
+    }
+
+    /**
+     * Vaga de upload concedida a um Peer, que deve ser liberada uma única vez ao fim do upload.
+     */
+    public static class Reserva {
+        private final String peer;
+        private final long instanteAdmissao;
+        private boolean isLiberada;
+
+        Reserva(String peer, long instanteAdmissao) {
+            this.peer = peer;
+            this.instanteAdmissao = instanteAdmissao;
+        }
+    }
+
+    /**
+     * Resultado de uma solicitação de vaga.
+     */
+    public static class Admissao {
+        private final Reserva reserva;
+        private final long esperaEstimadaMilissegundos;
+
+        private Admissao(Reserva reserva, long esperaEstimadaMilissegundos) {
+            this.reserva = reserva;
+            this.esperaEstimadaMilissegundos = esperaEstimadaMilissegundos;
+        }
+
+        static Admissao aceita(Reserva reserva) {
+            return new Admissao(reserva, 0);
+        }
+
+        static Admissao recusada(long esperaEstimadaMilissegundos) {
+            return new Admissao(null, esperaEstimadaMilissegundos);
+        }
+
+        public boolean isAceita() {
+            return reserva != null;
+        }
+
+        public Reserva getReserva() {
+            return reserva;
+        }
+
+        public long getEsperaEstimadaMilissegundos() {
+            return esperaEstimadaMilissegundos;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Anel de hashing consistente que reparte os nomes de arquivos entre os servidores (shards) de um grupo de rastreadores. Cada
+ * shard ocupa várias posições no anel (nós virtuais), e um arquivo pertence ao shard da primeira posição a partir do hash do seu
+ * nome, de modo que a carga fica equilibrada e incluir ou remover um shard move somente os arquivos das suas posições.
+ *
+ * O hash é calculado sobre os bytes UTF-8 dos nomes (FNV-1a de 64 bits seguido de uma mistura final), e não depende da JVM,
+ * para que servidores e peers calculem o mesmo anel a partir da mesma lista de shards. O anel é imutável.
+ *
+ * Um shard replicado é descrito pelos endereços dos seus membros separados por SEPARADOR_MEMBROS, o primário inicial primeiro, e
+ * ocupa no anel as posições do primeiro membro, de modo que incluir ou remover réplicas não move arquivos entre os shards.
+ *
+ * @author Maik Henrique
+ */
+public final class AnelShards {
+
+    public static final int NOS_VIRTUAIS_PADRAO = 160;
+    public static final String SEPARADOR_MEMBROS = "|";
+
+    private static final long BASE_FNV = 0xcbf29ce484222325L;
+    private static final long PRIMO_FNV = 0x100000001b3L;
+
+    private final List<String> shards;
+    private final int nosVirtuais;
+    private final long[] posicoes;
+    private final int[] donos;
+
+    /**
+     * @param shards endereços dos servidores no formato host:porta, ou os membros de cada shard replicado, sem repetições.
+     * @param nosVirtuais quantidade de posições de cada shard no anel.
+     */
+    public AnelShards(List<String> shards, int nosVirtuais) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("O anel precisa de ao menos um shard");
+        }
+
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.nosVirtuais = Math.max(1, nosVirtuais);
+
+        long[] posicoesNaoOrdenadas = new long[shards.size() * this.nosVirtuais];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int no = 0; no < this.nosVirtuais; no++) {
+                posicoesNaoOrdenadas[shard * this.nosVirtuais + no] = hash(getMembros(shards.get(shard)).get(0) + "#" + no);
+            }
+        }
+
+        Integer[] ordem = new Integer[posicoesNaoOrdenadas.length];
+        for (int i = 0; i < ordem.length; i++) {
+            ordem[i] = i;
+        }
+        Arrays.sort(ordem, (a, b) -> {
+            int comparacao = Long.compareUnsigned(posicoesNaoOrdenadas[a], posicoesNaoOrdenadas[b]);
+            return comparacao != 0 ? comparacao : Integer.compare(a, b);
+        });
+
+        this.posicoes = new long[ordem.length];
+        this.donos = new int[ordem.length];
+        for (int i = 0; i < ordem.length; i++) {
+            posicoes[i] = posicoesNaoOrdenadas[ordem[i]];
+            donos[i] = ordem[i] / this.nosVirtuais;
+        }
+    }
+
+    /**
+     * @param shards endereços dos servidores separados por vírgula, como na propriedade p2p.servidor.shards.
+     * @return anel com NOS_VIRTUAIS_PADRAO posições por shard.
+     */
+    public static AnelShards deLista(String shards) {
+        List<String> enderecos = new ArrayList<>();
+        for (String endereco : shards.split(",")) {
+            if (!endereco.trim().isEmpty() && !enderecos.contains(endereco.trim())) {
+                enderecos.add(endereco.trim());
+            }
+        }
+        return new AnelShards(enderecos, NOS_VIRTUAIS_PADRAO);
+    }
+
+    /**
+     * @param arquivo nome do arquivo.
+     * @return endereço do shard responsável pelo arquivo.
+     */
+    public String getShard(String arquivo) {
+        long posicao = hash(arquivo);
+        int inicio = 0;
+        int fim = posicoes.length;
+
+        while (inicio < fim) {
+            int meio = (inicio + fim) >>> 1;
+            if (Long.compareUnsigned(posicoes[meio], posicao) < 0) {
+                inicio = meio + 1;
+            } else {
+                fim = meio;
+            }
+        }
+        return shards.get(donos[inicio == posicoes.length ? 0 : inicio]);
+    }
+
+    /**
+     * @param arquivos nomes dos arquivos.
+     * @return arquivos de cada shard, na ordem em que foram informados.
+     */
+    public Map<String, List<String>> agruparPorShard(Collection<String> arquivos) {
+        Map<String, List<String>> arquivosPorShard = new LinkedHashMap<>();
+        for (String arquivo : arquivos) {
+            arquivosPorShard.computeIfAbsent(getShard(arquivo), shard -> new ArrayList<>()).add(arquivo);
+        }
+        return arquivosPorShard;
+    }
+
+    /**
+     * @param shard shard do anel.
+     * @return endereços host:porta dos membros do shard, somente um caso ele não seja replicado.
+     */
+    public static List<String> getMembros(String shard) {
+        List<String> membros = new ArrayList<>();
+        for (String membro : shard.split(Pattern.quote(SEPARADOR_MEMBROS))) {
+            if (!membro.trim().isEmpty()) {
+                membros.add(membro.trim());
+            }
+        }
+        return membros.isEmpty() ? Collections.singletonList(shard) : membros;
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public int getNosVirtuais() {
+        return nosVirtuais;
+    }
+
+    public int getQuantidadeShards() {
+        return shards.size();
+    }
+
+    /**
+     * @return hash de 64 bits dos bytes UTF-8 da chave, igual em qualquer JVM.
+     */
+    static long hash(String chave) {
+        long hash = BASE_FNV;
+        for (byte b : chave.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= PRIMO_FNV;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [shards=%s, nós virtuais=%d]", getClass().getSimpleName(), shards, nosVirtuais);
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balde de tokens (token bucket) que limita a taxa média de bytes transferidos, permitindo rajadas de até CAPACIDADE_RAJADA
+ * da taxa configurada.
+ *
+ * Os bytes são registrados depois de transferidos, o que pode deixar o saldo negativo: quem registrou deve então esperar o tempo
+ * informado antes da próxima transferência, até que o saldo volte a zero. Assim escritas parciais, comuns em sockets não
+ * bloqueantes, são contabilizadas com exatidão. A taxa pode ser alterada a qualquer momento, e taxa zero desativa o limite.
+ *
+ * @author Maik Henrique
+ */
+public class BaldeTokens {
+
+    /**
+     * Tempo de transferência à taxa configurada que o balde acumula quando ocioso.
+     */
+    private static final long CAPACIDADE_RAJADA_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Relogio relogio;
+    private volatile long bytesPorSegundo;
+    private double saldo;
+    private long ultimaReposicao;
+
+    /**
+     * @param relogio fonte de tempo do balde.
+     * @param bytesPorSegundo taxa limite, ou zero para não limitar.
+     */
+    public BaldeTokens(Relogio relogio, long bytesPorSegundo) {
+        this.relogio = relogio;
+        this.bytesPorSegundo = Math.max(0, bytesPorSegundo);
+        this.ultimaReposicao = relogio.nanoTime();
+        this.saldo = capacidade(this.bytesPorSegundo);
+    }
+
+    public long getBytesPorSegundo() {
+        return bytesPorSegundo;
+    }
+
+    public boolean isLimitado() {
+        return bytesPorSegundo > 0;
+    }
+
+    /**
+     * @param bytesPorSegundo nova taxa limite, ou zero para não limitar. O saldo acumulado é mantido dentro da nova capacidade.
+     */
+    public synchronized void setBytesPorSegundo(long bytesPorSegundo) {
+        repor(relogio.nanoTime());
+        this.bytesPorSegundo = Math.max(0, bytesPorSegundo);
+        this.saldo = Math.min(saldo, capacidade(this.bytesPorSegundo));
+    }
+
+    /**
+     * Desconta bytes já transferidos do saldo.
+     *
+     * @param bytes quantidade de bytes transferidos.
+     * @return tempo em nanossegundos a esperar antes da próxima transferência, zero caso o saldo não esteja negativo.
+     */
+    public synchronized long registrar(long bytes) {
+        long taxa = bytesPorSegundo;
+        if (taxa == 0) {
+            return 0;
+        }
+
+        repor(relogio.nanoTime());
+        saldo -= bytes;
+        return saldo >= 0 ? 0 : (long) Math.ceil(-saldo * TimeUnit.SECONDS.toNanos(1) / taxa);
+    }
+
+    private void repor(long agora) {
+        long taxa = bytesPorSegundo;
+        long decorrido = agora - ultimaReposicao;
+        ultimaReposicao = agora;
+
+        if (taxa > 0 && decorrido > 0) {
+            saldo = Math.min(capacidade(taxa), saldo + (double) decorrido * taxa / TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private static double capacidade(long bytesPorSegundo) {
+        return (double) bytesPorSegundo * CAPACIDADE_RAJADA_NANOS / TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manifesto em memória dos vídeos compartilhados pelo Peer (nome, tamanho, data de modificação e hashes das peças), mantido
+ * atualizado por um WatchService sobre a pasta. A pasta é varrida por completo somente ao iniciar o monitoramento e quando o
+ * sistema operacional descarta eventos (OVERFLOW); nos demais casos somente os arquivos dos eventos são consultados.
+ *
+ * Os eventos são agrupados até que a pasta fique TEMPO_AGRUPAMENTO sem novos eventos, ou no máximo por dez vezes esse tempo
+ * enquanto eventos continuam chegando, e as alterações do grupo são entregues ao ouvinte em uma única chamada. Um vídeo só é
+ * publicado depois que seu tamanho e sua data de modificação ficam inalterados por TEMPO_AGRUPAMENTO; vídeos ainda crescendo, como
+ * durante a cópia de um vídeo grande, permanecem pendentes para o grupo seguinte. Vídeos com download em andamento (com arquivo de
+ * progresso) não fazem parte do manifesto, e passam a fazer quando o arquivo de progresso é removido ao fim do download.
+ *
+ * Os hashes das peças são obtidos na primeira consulta de cada vídeo e descartados quando o tamanho ou a data de modificação mudam.
+ *
+ * @author Maik Henrique
+ */
+public class BibliotecaVideos implements AutoCloseable {
+
+    public static final String EXTENSAO_VIDEO = ".mp4";
+
+    /**
+     * Recebe as alterações do manifesto, na thread de monitoramento.
+     */
+    public interface OuvinteBiblioteca {
+        void alterada(Set<String> adicionados, Set<String> removidos);
+    }
+
+    private final Path pasta;
+    private final long tempoAgrupamento;
+    private final OuvinteBiblioteca ouvinte;
+    private final Map<String, Entrada> manifesto;
+
+    private WatchService observador;
+    private Thread monitor;
+    private volatile boolean isMonitorando;
+
+    private final AtomicLong eventos = new AtomicLong();
+    private final AtomicLong grupos = new AtomicLong();
+    private final AtomicLong arquivosConsultados = new AtomicLong();
+    private final AtomicLong varredurasCompletas = new AtomicLong();
+
+    /**
+     * @param pasta pasta com os vídeos compartilhados.
+     * @param tempoAgrupamento tempo sem eventos, em milissegundos, após o qual as alterações são entregues ao ouvinte.
+     * @param ouvinte recebe os vídeos adicionados e removidos após o início do monitoramento.
+     */
+    public BibliotecaVideos(File pasta, long tempoAgrupamento, OuvinteBiblioteca ouvinte) {
+        this.pasta = pasta.toPath();
+        this.tempoAgrupamento = Math.max(1, tempoAgrupamento);
+        this.ouvinte = ouvinte;
+        this.manifesto = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Varre a pasta e passa a monitorá-la, caso ainda não esteja sendo monitorada. O monitoramento é registrado antes da varredura,
+     * de modo que nenhuma alteração feita durante ela seja perdida.
+     *
+     * @return nomes dos vídeos do manifesto.
+     * @throws IOException caso a pasta não possa ser monitorada.
+     */
+    public synchronized List<String> iniciar() throws IOException {
+        if (!isMonitorando) {
+            parar();
+            this.observador = pasta.getFileSystem().newWatchService();
+            try {
+                pasta.register(observador, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+                varrer();
+            } catch (IOException e) {
+                observador.close();
+                throw e;
+            }
+
+            this.isMonitorando = true;
+            this.monitor = new Thread(this::monitorar, "biblioteca-videos");
+            this.monitor.setDaemon(true);
+            this.monitor.start();
+        }
+        return getNomes();
+    }
+
+    /**
+     * Encerra o monitoramento, descartando as alterações ainda não entregues. O manifesto é mantido até o próximo início.
+     */
+    public synchronized void parar() {
+        if (observador == null) {
+            return;
+        }
+
+        isMonitorando = false;
+        try {
+            observador.close();
+            monitor.join();
+        } catch (IOException e) {
+            System.err.println("Não foi possível encerrar o monitoramento da pasta: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        observador = null;
+    }
+
+    @Override
+    public void close() {
+        parar();
+    }
+
+    public boolean isMonitorando() {
+        return isMonitorando;
+    }
+
+    /**
+     * @return nomes dos vídeos do manifesto, sem consultar a pasta.
+     */
+    public List<String> getNomes() {
+        return new ArrayList<>(manifesto.keySet());
+    }
+
+    public int getQuantidadeVideos() {
+        return manifesto.size();
+    }
+
+    /**
+     * Obtém os metadados do vídeo, guardados no manifesto enquanto o tamanho e a data de modificação do vídeo não mudarem. Vídeos fora
+     * do manifesto, ou alterados desde o último evento, recorrem ao arquivo auxiliar de hashes (MetadadosArquivo.obter).
+     *
+     * @param video arquivo de vídeo da pasta.
+     * @param tamanhoPeca tamanho das peças.
+     * @return metadados do vídeo.
+     * @throws IOException caso o vídeo não possa ser lido.
+     */
+    public MetadadosArquivo getMetadados(File video, int tamanhoPeca) throws IOException {
+        Entrada entrada = manifesto.get(video.getName());
+        if (entrada == null || entrada.tamanho != video.length() || entrada.modificacao != video.lastModified()) {
+            return MetadadosArquivo.obter(video, tamanhoPeca);
+        }
+
+        MetadadosArquivo metadados = entrada.metadados;
+        if (metadados == null || metadados.getTamanhoPeca() != tamanhoPeca) {
+            metadados = MetadadosArquivo.obter(video, tamanhoPeca);
+            entrada.metadados = metadados;
+        }
+        return metadados;
+    }
+
+    private void monitorar() {
+        Map<String, Pendente> pendentes = new HashMap<>();
+        long primeiroEvento = 0;
+        long ultimoEvento = 0;
+
+        try {
+            while (isMonitorando) {
+                long agora = System.currentTimeMillis();
+                boolean isAguardandoGrupo = !pendentes.isEmpty();
+                long espera = Math.min(ultimoEvento + tempoAgrupamento, primeiroEvento + tempoAgrupamento * 10) - agora;
+
+                if (isAguardandoGrupo && espera <= 0) {
+                    entregar(consultarEstaveis(pendentes, agora));
+                    // vídeos ainda crescendo são consultados novamente após mais um TEMPO_AGRUPAMENTO
+                    primeiroEvento = agora;
+                    ultimoEvento = agora;
+                    continue;
+                }
+
+                WatchKey chave = isAguardandoGrupo ? observador.poll(espera, TimeUnit.MILLISECONDS) : observador.take();
+                if (chave == null) {
+                    continue;
+                }
+
+                long instanteEventos = System.currentTimeMillis();
+                for (WatchEvent<?> evento : chave.pollEvents()) {
+                    eventos.incrementAndGet();
+                    if (evento.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // eventos descartados: todos os vídeos da pasta e do manifesto passam a ser consultados
+                        Set<String> videos = new HashSet<>(listarVideos().keySet());
+                        videos.addAll(manifesto.keySet());
+                        videos.forEach(video -> pendentes.computeIfAbsent(video, v -> new Pendente()).ultimoEvento = instanteEventos);
+                    } else {
+                        String video = getNomeVideo(evento.context().toString());
+                        if (video != null) {
+                            pendentes.computeIfAbsent(video, v -> new Pendente()).ultimoEvento = instanteEventos;
+                        }
+                    }
+                }
+                if (!chave.reset()) {
+                    System.err.println("A pasta " + pasta + " deixou de ser acessível, monitoramento encerrado.");
+                    isMonitorando = false;
+                }
+
+                if (!isAguardandoGrupo) {
+                    primeiroEvento = instanteEventos;
+                }
+                ultimoEvento = instanteEventos;
+            }
+        } catch (ClosedWatchServiceException e) {
+            // monitoramento encerrado por parar()
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Falha ao varrer a pasta " + pasta + ", monitoramento encerrado: " + e.getMessage());
+            isMonitorando = false;
+        }
+    }
+
+    private void entregar(Alteracoes alteracoes) {
+        grupos.incrementAndGet();
+        if (alteracoes.adicionados.isEmpty() && alteracoes.removidos.isEmpty()) {
+            return;
+        }
+
+        try {
+            ouvinte.alterada(alteracoes.adicionados, alteracoes.removidos);
+        } catch (RuntimeException e) {
+            System.err.println("Falha ao tratar as alterações da pasta: " + e);
+        }
+    }
+
+    /**
+     * @return nome do vídeo a que o arquivo se refere, o próprio vídeo ou o seu arquivo de progresso, ou nulo caso não se refira a um vídeo.
+     */
+    private static String getNomeVideo(String arquivo) {
+        if (arquivo.endsWith(EXTENSAO_VIDEO)) {
+            return arquivo;
+        }
+        if (arquivo.endsWith(EXTENSAO_VIDEO + ProgressoDownload.EXTENSAO)) {
+            return arquivo.substring(0, arquivo.length() - ProgressoDownload.EXTENSAO.length());
+        }
+        return null;
+    }
+
+    /**
+     * Atualiza o manifesto com os vídeos pendentes cujo tamanho e data de modificação estão inalterados há TEMPO_AGRUPAMENTO, e com
+     * os que deixaram de existir, removendo-os dos pendentes. Os demais continuam pendentes com a nova observação.
+     *
+     * @return vídeos adicionados e removidos.
+     */
+    private Alteracoes consultarEstaveis(Map<String, Pendente> pendentes, long agora) throws IOException {
+        Alteracoes alteracoes = new Alteracoes();
+
+        for (Iterator<Map.Entry<String, Pendente>> iterador = pendentes.entrySet().iterator(); iterador.hasNext(); ) {
+            Map.Entry<String, Pendente> pendente = iterador.next();
+            String video = pendente.getKey();
+            arquivosConsultados.incrementAndGet();
+            BasicFileAttributes atributos = null;
+            if (!Files.exists(pasta.resolve(video + ProgressoDownload.EXTENSAO))) {
+                atributos = lerAtributos(pasta.resolve(video));
+            }
+
+            if (atributos == null || pendente.getValue().isEstavel(atributos, agora, tempoAgrupamento)) {
+                atualizar(video, atributos, alteracoes);
+                iterador.remove();
+            }
+        }
+        return alteracoes;
+    }
+
+    /**
+     * Atualiza o manifesto a partir de todos os vídeos da pasta, mantendo os hashes já obtidos dos vídeos inalterados.
+     *
+     * @return vídeos adicionados e removidos.
+     */
+    private Alteracoes varrer() throws IOException {
+        Alteracoes alteracoes = new Alteracoes();
+        Map<String, BasicFileAttributes> videos = listarVideos();
+
+        for (String video : new ArrayList<>(manifesto.keySet())) {
+            if (!videos.containsKey(video)) {
+                atualizar(video, null, alteracoes);
+            }
+        }
+        videos.forEach((video, atributos) -> atualizar(video, atributos, alteracoes));
+        return alteracoes;
+    }
+
+    /**
+     * @return atributos de todos os vídeos da pasta, exceto os com download em andamento.
+     */
+    private Map<String, BasicFileAttributes> listarVideos() throws IOException {
+        varredurasCompletas.incrementAndGet();
+        Set<String> arquivos = new HashSet<>();
+        Map<String, BasicFileAttributes> videos = new HashMap<>();
+
+        try (DirectoryStream<Path> conteudo = Files.newDirectoryStream(pasta)) {
+            for (Path arquivo : conteudo) {
+                String nome = arquivo.getFileName().toString();
+                arquivos.add(nome);
+                if (nome.endsWith(EXTENSAO_VIDEO)) {
+                    BasicFileAttributes atributos = lerAtributos(arquivo);
+                    if (atributos != null) {
+                        videos.put(nome, atributos);
+                    }
+                }
+            }
+        }
+
+        videos.keySet().removeIf(video -> arquivos.contains(video + ProgressoDownload.EXTENSAO));
+        return videos;
+    }
+
+    /**
+     * @param atributos atributos atuais do vídeo, ou nulo caso ele não deva fazer parte do manifesto.
+     */
+    private void atualizar(String video, BasicFileAttributes atributos, Alteracoes alteracoes) {
+        if (atributos == null) {
+            if (manifesto.remove(video) != null) {
+                alteracoes.removidos.add(video);
+            }
+            return;
+        }
+
+        long modificacao = atributos.lastModifiedTime().toMillis();
+        Entrada anterior = manifesto.get(video);
+        if (anterior == null || anterior.tamanho != atributos.size() || anterior.modificacao != modificacao) {
+            manifesto.put(video, new Entrada(atributos.size(), modificacao));
+            if (anterior == null) {
+                alteracoes.adicionados.add(video);
+            }
+        }
+    }
+
+    private static BasicFileAttributes lerAtributos(Path arquivo) throws IOException {
+        try {
+            BasicFileAttributes atributos = Files.readAttributes(arquivo, BasicFileAttributes.class);
+            return atributos.isRegularFile() ? atributos : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [vídeos=%d, monitorando=%b, eventos=%d, grupos=%d, arquivos consultados=%d, varreduras completas=%d]",
+            getClass().getSimpleName(), manifesto.size(), isMonitorando, eventos.get(), grupos.get(), arquivosConsultados.get(),
+            varredurasCompletas.get());
+    }
+
+    /**
+     * Vídeos adicionados e removidos do manifesto por um grupo de eventos.
+     */
+    private static class Alteracoes {
+        private final Set<String> adicionados = new LinkedHashSet<>();
+        private final Set<String> removidos = new LinkedHashSet<>();
+    }
+
+    /**
+     * Vídeo com eventos ainda não publicados, com o último tamanho e data de modificação observados.
+     */
+    private static class Pendente {
+        private long ultimoEvento;
+        private boolean isObservado;
+        private long tamanho;
+        private long modificacao;
+        private long inalteradoDesde;
+
+        /**
+         * Registra os atributos atuais do vídeo. Na primeira observação o vídeo é considerado inalterado desde o seu último evento.
+         *
+         * @return true se o vídeo está inalterado, sem eventos, há pelo menos o tempo de agrupamento.
+         */
+        boolean isEstavel(BasicFileAttributes atributos, long agora, long tempoAgrupamento) {
+            long modificacaoAtual = atributos.lastModifiedTime().toMillis();
+            if (!isObservado || tamanho != atributos.size() || modificacao != modificacaoAtual) {
+                inalteradoDesde = isObservado ? agora : ultimoEvento;
+                isObservado = true;
+                tamanho = atributos.size();
+                modificacao = modificacaoAtual;
+            }
+            return agora - Math.max(inalteradoDesde, ultimoEvento) >= tempoAgrupamento;
+        }
+    }
+
+    /**
+     * Vídeo do manifesto, com os hashes das peças obtidos na primeira consulta.
+     */
+    private static class Entrada {
+        private final long tamanho;
+        private final long modificacao;
+        private volatile MetadadosArquivo metadados;
+
+        Entrada(long tamanho, long modificacao) {
+            this.tamanho = tamanho;
+            this.modificacao = modificacao;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache das respostas SEARCH_OK já serializadas, por arquivo e por formato de mensagem, de modo que buscas repetidas pelo mesmo
+ * arquivo não copiem o conjunto de peers do índice, não o ordenem nem serializem a resposta novamente. Respostas divididas em
+ * vários datagramas são guardadas com todas as suas partes.
+ *
+ * As entradas são divididas em segmentos pelo nome do arquivo, cada um com a sua trava e expulsão LRU, limitados juntos a um total
+ * de bytes. Uma entrada é removida sempre que o PeerFileIndex notifica uma alteração nos peers do arquivo. Para que uma busca
+ * concorrente com a alteração não guarde no cache uma resposta montada antes dela, cada segmento possui um carimbo incrementado a
+ * cada invalidação: a resposta só é guardada se o carimbo não mudou desde antes da consulta ao índice.
+ *
+ * Além das alterações do índice, o servidor invalida os arquivos de um peer quando a faixa de carga informada por ele muda, já que
+ * a ordem dos peers nas respostas depende dela.
+ *
+ * @author Maik Henrique
+ */
+public class CacheRespostasBusca implements PeerFileIndex.OuvinteIndice {
+
+    private static final int QUANTIDADE_SEGMENTOS = 16;
+
+    /**
+     * Estimativa do espaço ocupado por uma entrada além dos bytes das respostas.
+     */
+    private static final int CUSTO_FIXO_ENTRADA = 96;
+
+    private final Segmento[] segmentos;
+    private final LongAdder acertos;
+    private final LongAdder falhas;
+    private final LongAdder invalidacoes;
+    private final LongAdder expulsoes;
+
+    /**
+     * Monta as partes da resposta SEARCH_OK de um arquivo a partir do índice.
+     */
+    public interface MontadorResposta {
+        List<Mensagem> montar(String arquivo, Mensagem.Formato formato) throws IOException;
+    }
+
+    /**
+     * @param tamanhoMaximoBytes espaço total ocupado pelas respostas guardadas.
+     */
+    public CacheRespostasBusca(long tamanhoMaximoBytes) {
+        this.segmentos = new Segmento[QUANTIDADE_SEGMENTOS];
+        for (int i = 0; i < QUANTIDADE_SEGMENTOS; i++) {
+            segmentos[i] = new Segmento(Math.max(1, tamanhoMaximoBytes / QUANTIDADE_SEGMENTOS));
+        }
+        this.acertos = new LongAdder();
+        this.falhas = new LongAdder();
+        this.invalidacoes = new LongAdder();
+        this.expulsoes = new LongAdder();
+    }
+
+    /**
+     * Obtém as partes serializadas da resposta SEARCH_OK para o arquivo, montando-as a partir do índice em caso de falha.
+     *
+     * @param arquivo arquivo buscado.
+     * @param formato formato da resposta.
+     * @param montador monta as partes da resposta.
+     * @return bytes de cada parte da resposta, que não devem ser alterados pelo chamador.
+     * @throws IOException caso a resposta não possa ser serializada.
+     */
+    public List<byte[]> obter(String arquivo, Mensagem.Formato formato, MontadorResposta montador) throws IOException {
+        Segmento segmento = segmento(arquivo);
+        long carimbo;
+
+        synchronized (segmento) {
+            Entrada entrada = segmento.entradas.get(arquivo);
+            List<byte[]> resposta = entrada == null ? null : entrada.respostas.get(formato.ordinal());
+
+            if (resposta != null) {
+                acertos.increment();
+                return resposta;
+            }
+            carimbo = segmento.carimbo;
+        }
+
+        falhas.increment();
+        List<byte[]> resposta = new ArrayList<>();
+        for (Mensagem parte : montador.montar(arquivo, formato)) {
+            resposta.add(Mensagem.serializar(parte, formato));
+        }
+
+        synchronized (segmento) {
+            if (segmento.carimbo == carimbo) {
+                segmento.guardar(arquivo, formato, resposta);
+            }
+        }
+        return resposta;
+    }
+
+    @Override
+    public void arquivoAlterado(String arquivo) {
+        Segmento segmento = segmento(arquivo);
+
+        synchronized (segmento) {
+            segmento.carimbo++;
+            Entrada removida = segmento.entradas.remove(arquivo);
+            if (removida != null) {
+                segmento.bytesOcupados -= removida.tamanho;
+                invalidacoes.increment();
+            }
+        }
+    }
+
+    public long getAcertos() {
+        return acertos.sum();
+    }
+
+    public long getFalhas() {
+        return falhas.sum();
+    }
+
+    public long getInvalidacoes() {
+        return invalidacoes.sum();
+    }
+
+    public long getExpulsoes() {
+        return expulsoes.sum();
+    }
+
+    /**
+     * @return fração das buscas respondidas pelo cache, entre 0 e 1.
+     */
+    public double getTaxaAcerto() {
+        long acertos = getAcertos();
+        long total = acertos + getFalhas();
+        return total == 0 ? 0 : (double) acertos / total;
+    }
+
+    public long getBytesOcupados() {
+        long total = 0;
+        for (Segmento segmento : segmentos) {
+            synchronized (segmento) {
+                total += segmento.bytesOcupados;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [acertos=%d, falhas=%d, taxa de acerto=%.1f%%, invalidações=%d, expulsões=%d, bytes=%d]",
+            getClass().getSimpleName(), getAcertos(), getFalhas(), getTaxaAcerto() * 100, getInvalidacoes(), getExpulsoes(), getBytesOcupados());
+    }
+
+    private Segmento segmento(String arquivo) {
+        int hash = arquivo.hashCode();
+        return segmentos[(hash ^ (hash >>> 16)) & (QUANTIDADE_SEGMENTOS - 1)];
+    }
+
+    /**
+     * Respostas de um arquivo, uma por formato de mensagem.
+     */
+    private static class Entrada {
+        private final List<List<byte[]>> respostas = new ArrayList<>();
+        private long tamanho;
+
+        Entrada() {
+            for (int i = 0; i < Mensagem.Formato.values().length; i++) {
+                respostas.add(null);
+            }
+        }
+    }
+
+    /**
+     * Parte do cache com a sua própria trava, mantendo as entradas em ordem de acesso para a expulsão LRU.
+     */
+    private class Segmento {
+        private final long tamanhoMaximoBytes;
+        private final LinkedHashMap<String, Entrada> entradas;
+        private long bytesOcupados;
+        private long carimbo;
+
+        Segmento(long tamanhoMaximoBytes) {
+            this.tamanhoMaximoBytes = tamanhoMaximoBytes;
+            this.entradas = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        void guardar(String arquivo, Mensagem.Formato formato, List<byte[]> resposta) {
+            Entrada entrada = entradas.get(arquivo);
+            List<byte[]> anterior = entrada == null ? null : entrada.respostas.get(formato.ordinal());
+            long acrescimo = tamanho(resposta) - (anterior == null ? 0 : tamanho(anterior));
+
+            if (entrada == null) {
+                acrescimo += CUSTO_FIXO_ENTRADA + 2L * arquivo.length();
+                if (acrescimo > tamanhoMaximoBytes) {
+                    return;
+                }
+                entrada = new Entrada();
+                entradas.put(arquivo, entrada);
+            }
+
+            entrada.respostas.set(formato.ordinal(), resposta);
+            entrada.tamanho += acrescimo;
+            bytesOcupados += acrescimo;
+            expulsarExcedente(entrada);
+        }
+
+        private long tamanho(List<byte[]> partes) {
+            long tamanho = 0;
+            for (byte[] parte : partes) {
+                tamanho += parte.length;
+            }
+            return tamanho;
+        }
+
+        private void expulsarExcedente(Entrada protegida) {
+            Iterator<Map.Entry<String, Entrada>> maisAntigas = entradas.entrySet().iterator();
+
+            while (bytesOcupados > tamanhoMaximoBytes && maisAntigas.hasNext()) {
+                Entrada entrada = maisAntigas.next().getValue();
+                if (entrada != protegida) {
+                    maisAntigas.remove();
+                    bytesOcupados -= entrada.tamanho;
+                    expulsoes.increment();
+                }
+            }
+        }
+    }
+}
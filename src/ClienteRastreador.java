@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Cliente UDP do servidor (rastreador), com um único socket para todas as requisições do Peer. Cada requisição recebe um
+ * id_requisicao, repetido pelo servidor nas respostas, de modo que várias requisições podem estar em andamento ao mesmo tempo e uma
+ * resposta atrasada nunca é tomada pela resposta de outra requisição.
+ *
+ * As respostas são lidas por uma thread dedicada e entregues por CompletableFuture. Requisições sem resposta são retransmitidas
+ * com tempo de espera estimado a partir do RTT medido (como no TCP, RFC 6298), dobrado a cada retransmissão. Somente respostas
+ * de requisições não retransmitidas são usadas na estimativa (algoritmo de Karn). Datagramas de outras origens que não o servidor e
+ * partes fora do intervalo informado pela primeira parte (1 a total_partes) são descartados.
+ *
+ * @author Maik Henrique
+ */
+public class ClienteRastreador implements AutoCloseable {
+
+    public static final int NUMERO_MAXIMO_TENTATIVAS = 5;
+
+    private static final long RTO_INICIAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long RTO_MINIMO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long RTO_MAXIMO_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final InetSocketAddress enderecoServidor;
+    private final DatagramSocket socket;
+    private final Map<Long, Pendente> pendentes;
+    private final AtomicLong proximoId;
+    private final ScheduledExecutorService agendadorRetransmissoes;
+    private final Thread leitor;
+    private volatile Consumer<Mensagem> ouvinteNaoSolicitadas;
+
+    private long rttSuavizadoNanos;
+    private long variacaoRttNanos;
+    private long rtoNanos;
+
+    /**
+     * @param endereco endereço do servidor.
+     * @param porta porta do servidor.
+     * @throws SocketException caso o socket não possa ser aberto.
+     */
+    public ClienteRastreador(String endereco, int porta) throws SocketException {
+        this.enderecoServidor = new InetSocketAddress(endereco, porta);
+        this.socket = new DatagramSocket();
+        this.socket.setReceiveBufferSize(Mensagem.TAMANHO_BUFFER_RECEPCAO_UDP);
+        this.pendentes = new ConcurrentHashMap<>();
+        this.proximoId = new AtomicLong(System.nanoTime() & Long.MAX_VALUE);
+        this.agendadorRetransmissoes = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "retransmissoes-rastreador");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.rtoNanos = RTO_INICIAL_NANOS;
+
+        this.leitor = new Thread(this::lerRespostas, "cliente-rastreador");
+        this.leitor.setDaemon(true);
+        this.leitor.start();
+    }
+
+    /**
+     * @param ouvinte recebe as mensagens do servidor que não respondem a uma requisição em andamento, como ALIVE_NEGADO.
+     */
+    public void setOuvinteNaoSolicitadas(Consumer<Mensagem> ouvinte) {
+        this.ouvinteNaoSolicitadas = ouvinte;
+    }
+
+    /**
+     * Envia uma requisição que possui uma única resposta.
+     *
+     * @param requisicao mensagem de requisição, à qual é acrescentado o id_requisicao.
+     * @return resposta do servidor, concluída com SocketTimeoutException caso não haja resposta após todas as tentativas.
+     */
+    public CompletableFuture<Mensagem> enviar(Mensagem requisicao) {
+        return enviarComPartes(requisicao, false).thenApply(partes -> partes.get(0));
+    }
+
+    /**
+     * Envia uma requisição cuja resposta pode ser dividida em várias partes (parte e total_partes). As partes recebidas são mantidas
+     * entre as retransmissões, e a requisição é retransmitida enquanto faltar alguma.
+     *
+     * @param requisicao mensagem de requisição, à qual é acrescentado o id_requisicao.
+     * @param isParcialAceita se a primeira parte sozinha já é uma resposta útil, concluindo com as partes recebidas quando as demais
+     * não chegam no tempo de espera, sem retransmitir.
+     * @return partes da resposta em ordem.
+     */
+    public CompletableFuture<List<Mensagem>> enviarComPartes(Mensagem requisicao, boolean isParcialAceita) {
+        return enviarComPartes(requisicao, isParcialAceita, NUMERO_MAXIMO_TENTATIVAS);
+    }
+
+    /**
+     * Equivalente a enviarComPartes com um limite de tentativas próprio, menor quando há outros servidores a tentar em seguida.
+     *
+     * @param maximoTentativas quantidade de transmissões antes de concluir com SocketTimeoutException.
+     */
+    public CompletableFuture<List<Mensagem>> enviarComPartes(Mensagem requisicao, boolean isParcialAceita, int maximoTentativas) {
+        long id = proximoId.getAndIncrement();
+        requisicao.adicionarMensagem("id_requisicao", id);
+        Pendente pendente = new Pendente(id, requisicao, isParcialAceita, Math.max(1, maximoTentativas));
+
+        try {
+            pendente.bytes = Mensagem.serializar(requisicao, Mensagem.FORMATO_PADRAO);
+        } catch (IOException e) {
+            pendente.futuro.completeExceptionally(e);
+            return pendente.futuro;
+        }
+
+        pendentes.put(id, pendente);
+        transmitir(pendente);
+        return pendente.futuro;
+    }
+
+    /**
+     * Envia uma mensagem sem resposta esperada, como os sinais de vida.
+     */
+    public void enviarSemResposta(Mensagem mensagem) throws IOException {
+        byte[] bytes = Mensagem.serializar(mensagem, Mensagem.FORMATO_PADRAO);
+        socket.send(new DatagramPacket(bytes, bytes.length, enderecoServidor));
+    }
+
+    /**
+     * @return tempo de espera atual pela primeira resposta de uma requisição, em milissegundos.
+     */
+    public synchronized long getRtoMilissegundos() {
+        return TimeUnit.NANOSECONDS.toMillis(rtoNanos);
+    }
+
+    /**
+     * @return RTT suavizado medido com o servidor em milissegundos, ou zero caso ainda não medido.
+     */
+    public synchronized double getRttMilissegundos() {
+        return rttSuavizadoNanos / 1_000_000.0;
+    }
+
+    public int getQuantidadePendentes() {
+        return pendentes.size();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        agendadorRetransmissoes.shutdownNow();
+        for (Pendente pendente : pendentes.values()) {
+            pendente.futuro.completeExceptionally(new SocketException("Cliente do servidor encerrado"));
+        }
+        pendentes.clear();
+    }
+
+    private void transmitir(Pendente pendente) {
+        long espera;
+
+        synchronized (pendente) {
+            if (pendente.futuro.isDone()) {
+                return;
+            }
+            pendente.tentativas++;
+            pendente.instanteEnvio = System.nanoTime();
+            espera = Math.min(RTO_MAXIMO_NANOS, getRtoNanos() << (pendente.tentativas - 1));
+            pendente.retransmissao = agendadorRetransmissoes.schedule(() -> expirar(pendente), espera, TimeUnit.NANOSECONDS);
+        }
+
+        try {
+            socket.send(new DatagramPacket(pendente.bytes, pendente.bytes.length, enderecoServidor));
+        } catch (IOException e) {
+            // tratado como um datagrama perdido, sendo retransmitido ao expirar o tempo de espera
+        }
+    }
+
+    /**
+     * Chamado quando o tempo de espera de uma transmissão expira sem que a resposta tenha sido recebida por completo.
+     */
+    private void expirar(Pendente pendente) {
+        synchronized (pendente) {
+            if (pendente.futuro.isDone()) {
+                return;
+            }
+            if (pendente.isParcialAceita && pendente.partes.containsKey(1)) {
+                concluir(pendente);
+                return;
+            }
+            if (pendente.tentativas >= pendente.maximoTentativas) {
+                pendentes.remove(pendente.id);
+                pendente.futuro.completeExceptionally(new SocketTimeoutException(String.format("Sem resposta do servidor para %s após %d tentativas",
+                    pendente.requisicao.getTitulo(), pendente.tentativas)));
+                return;
+            }
+        }
+        transmitir(pendente);
+    }
+
+    private void lerRespostas() {
+        byte[] bytesRecebidos = new byte[Mensagem.TAMANHO_MAXIMO_DATAGRAMA];
+        DatagramPacket pacote = new DatagramPacket(bytesRecebidos, bytesRecebidos.length);
+
+        while (!socket.isClosed()) {
+            try {
+                pacote.setLength(bytesRecebidos.length);
+                socket.receive(pacote);
+                // o socket não é conectado, então qualquer origem pode enviar datagramas a ele
+                if (!enderecoServidor.equals(pacote.getSocketAddress())) {
+                    continue;
+                }
+                receber(Mensagem.desserializar(pacote.getData(), pacote.getOffset(), pacote.getLength()));
+            } catch (IOException | ClassNotFoundException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("Resposta inválida do servidor descartada: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void receber(Mensagem resposta) {
+        Object id = resposta.getMensagens().get("id_requisicao");
+        Pendente pendente = id instanceof Long ? pendentes.get(id) : null;
+
+        if (pendente == null) {
+            Consumer<Mensagem> ouvinte = this.ouvinteNaoSolicitadas;
+            if (ouvinte != null && id == null) {
+                ouvinte.accept(resposta);
+            }
+            return;
+        }
+
+        synchronized (pendente) {
+            if (pendente.futuro.isDone()) {
+                return;
+            }
+            Object numeroParte = resposta.getMensagens().get("parte");
+            Object totalPartes = resposta.getMensagens().get("total_partes");
+            int parte = numeroParte instanceof Integer ? (Integer) numeroParte : 1;
+            int total = totalPartes instanceof Integer ? (Integer) totalPartes : 1;
+
+            // uma parte fora do intervalo, ou com outro total, nunca completaria a resposta ou a completaria com partes misturadas
+            if (parte < 1 || parte > total || (pendente.totalPartes != 0 && pendente.totalPartes != total)) {
+                System.err.println(String.format("Parte %d de %d inválida para a requisição %s, descartada.", parte, total,
+                    pendente.requisicao.getTitulo()));
+                return;
+            }
+            if (pendente.partes.isEmpty() && pendente.tentativas == 1) {
+                amostrarRtt(System.nanoTime() - pendente.instanteEnvio);
+            }
+            pendente.totalPartes = total;
+            pendente.partes.put(parte, resposta);
+
+            if (pendente.partes.size() >= total) {
+                concluir(pendente);
+            }
+        }
+    }
+
+    /**
+     * Deve ser chamado com a trava da requisição adquirida.
+     */
+    private void concluir(Pendente pendente) {
+        pendentes.remove(pendente.id);
+        if (pendente.retransmissao != null) {
+            pendente.retransmissao.cancel(false);
+        }
+        pendente.futuro.complete(Collections.unmodifiableList(new ArrayList<>(pendente.partes.values())));
+    }
+
+    private synchronized long getRtoNanos() {
+        return rtoNanos;
+    }
+
+    /**
+     * Atualiza o RTT suavizado, a sua variação e o tempo de espera como no TCP: RTO = SRTT + 4 * RTTVAR.
+     */
+    private synchronized void amostrarRtt(long rttNanos) {
+        if (rttSuavizadoNanos == 0) {
+            rttSuavizadoNanos = rttNanos;
+            variacaoRttNanos = rttNanos / 2;
+        } else {
+            variacaoRttNanos = (3 * variacaoRttNanos + Math.abs(rttSuavizadoNanos - rttNanos)) / 4;
+            rttSuavizadoNanos = (7 * rttSuavizadoNanos + rttNanos) / 8;
+        }
+        rtoNanos = Math.max(RTO_MINIMO_NANOS, Math.min(RTO_MAXIMO_NANOS, rttSuavizadoNanos + 4 * variacaoRttNanos));
+    }
+
+    /**
+     * Requisição em andamento, com as partes da resposta já recebidas.
+     */
+    private static class Pendente {
+        private final long id;
+        private final Mensagem requisicao;
+        private final boolean isParcialAceita;
+        private final int maximoTentativas;
+        private final Map<Integer, Mensagem> partes;
+        private final CompletableFuture<List<Mensagem>> futuro;
+        private byte[] bytes;
+
+        /**
+         * Total de partes informado pela primeira parte recebida, ou zero antes dela.
+         */
+        private int totalPartes;
+        private int tentativas;
+        private long instanteEnvio;
+        private ScheduledFuture<?> retransmissao;
+
+        Pendente(long id, Mensagem requisicao, boolean isParcialAceita, int maximoTentativas) {
+            this.id = id;
+            this.requisicao = requisicao;
+            this.isParcialAceita = isParcialAceita;
+            this.maximoTentativas = maximoTentativas;
+            this.partes = new TreeMap<>();
+            this.futuro = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,474 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Codec binário compacto para instâncias de Mensagem, usado no lugar da serialização Java.
+ *
+ * O formato é versionado e prefixado pelo tamanho: [mágico 1B][versão 1B][tamanho do corpo 4B][corpo].
+ * O corpo é composto pelo título e pelos campos, em que títulos e chaves conhecidas são codificados como um único byte
+ * e cada chave conhecida possui um tipo fixo, dispensando a marcação do tipo do valor. Chaves desconhecidas são
+ * codificadas com o nome por extenso e uma marcação de tipo.
+ *
+ * As tabelas de títulos e chaves somente podem crescer ao final, de modo que versões antigas continuem válidas. Conjuntos são
+ * decodificados preservando a ordem em que foram escritos, como a ordem de prioridade dos peers de uma resposta SEARCH_OK.
+ *
+ * @author Maik Henrique
+ */
+public final class CodecMensagem {
+
+    public static final byte MAGICO = (byte) 0x9E;
+    public static final byte VERSAO = 1;
+    public static final int TAMANHO_CABECALHO = 6;
+
+    /**
+     * Maior corpo aceito na decodificação, bem acima da maior mensagem legítima (os hashes das peças de um vídeo de dezenas de GB),
+     * para que um cabeçalho forjado não faça o receptor alocar gigabytes antes de ler o corpo.
+     */
+    public static final int TAMANHO_MAXIMO_CORPO = 64 * 1024 * 1024;
+
+    private static final int TAMANHO_INICIAL_BUFFER = 8 * 1024;
+    private static final int CODIGO_POR_EXTENSO = 0;
+
+    private static final byte TIPO_NULO = 0;
+    private static final byte TIPO_STRING = 1;
+    private static final byte TIPO_INTEIRO = 2;
+    private static final byte TIPO_LONGO = 3;
+    private static final byte TIPO_BOOLEANO = 4;
+    private static final byte TIPO_BYTES = 5;
+    private static final byte TIPO_LISTA_STRINGS = 6;
+    private static final byte TIPO_CONJUNTO_STRINGS = 7;
+    private static final byte TIPO_MAPA_CONJUNTOS_STRINGS = 8;
+
+    private static final String[] TITULOS = {
+        null, "JOIN", "JOIN_OK", "SEARCH", "SEARCH_OK", "LEAVE", "LEAVE_OK", "UPDATE", "UPDATE_OK",
+        "ALIVE", "ALIVE_OK", "DOWNLOAD", "DOWNLOAD_NEGADO", "INFO_ARQUIVO", "INFO_ARQUIVO_OK",
+        "DOWNLOAD_OK", "SEARCH_LOTE", "SEARCH_LOTE_OK", "UPDATE_LOTE", "UPDATE_LOTE_OK",
+        "ALIVE_NEGADO", "SHARD_MAP", "SHARD_MAP_OK", "NAO_PRIMARIO", "DELTA", "DELTA_OK", "RESYNC"
+    };
+
+    private static final String[] CHAVES = {
+        null, "endereco", "arquivos", "arquivo", "arquivo_requistado", "lista_peers", "arquivo_solicitado",
+        "inicio", "tamanho", "tamanho_peca", "hashes_pecas", "peca", "manter_conexao", "espera_estimada",
+        "parte", "total_partes", "resultados", "carga", "id_requisicao", "shards", "nos_virtuais",
+        "versao", "adicionados", "removidos", "completo"
+    };
+
+    private static final byte[] TIPOS_CHAVES = {
+        TIPO_NULO, TIPO_STRING, TIPO_LISTA_STRINGS, TIPO_STRING, TIPO_STRING, TIPO_CONJUNTO_STRINGS, TIPO_STRING,
+        TIPO_LONGO, TIPO_LONGO, TIPO_INTEIRO, TIPO_BYTES, TIPO_INTEIRO, TIPO_BOOLEANO, TIPO_LONGO,
+        TIPO_INTEIRO, TIPO_INTEIRO, TIPO_MAPA_CONJUNTOS_STRINGS, TIPO_INTEIRO, TIPO_LONGO, TIPO_LISTA_STRINGS, TIPO_INTEIRO,
+        TIPO_LONGO, TIPO_LISTA_STRINGS, TIPO_LISTA_STRINGS, TIPO_BOOLEANO
+    };
+
+    private static final Map<String, Integer> CODIGOS_TITULOS = indexar(TITULOS);
+    private static final Map<String, Integer> CODIGOS_CHAVES = indexar(CHAVES);
+
+    private static final ThreadLocal<ByteBuffer> BUFFER_CODIFICACAO = ThreadLocal.withInitial(() -> ByteBuffer.allocate(TAMANHO_INICIAL_BUFFER));
+
+    private CodecMensagem() {
+    }
+
+    private static Map<String, Integer> indexar(String[] tabela) {
+        Map<String, Integer> codigos = new HashMap<>();
+        for (int codigo = 1; codigo < tabela.length; codigo++) {
+            codigos.put(tabela[codigo], codigo);
+        }
+        return codigos;
+    }
+
+    /**
+     * Codifica a mensagem no buffer de destino a partir da sua posição atual, deixando a posição logo após a mensagem.
+     *
+     * @param mensagem mensagem a ser codificada.
+     * @param destino buffer reutilizável onde a mensagem será escrita.
+     * @throws IOException caso a mensagem possua valores não suportados pelo formato binário.
+     * @throws BufferOverflowException caso o buffer não tenha espaço suficiente.
+     */
+    public static void codificar(Mensagem mensagem, ByteBuffer destino) throws IOException {
+        int inicio = destino.position();
+        destino.put(MAGICO);
+        destino.put(VERSAO);
+        destino.putInt(0);
+
+        escreverCodigoOuTexto(destino, CODIGOS_TITULOS, mensagem.getTitulo());
+
+        Map<String, Object> mensagens = mensagem.getMensagens();
+        escreverVarInt(destino, mensagens.size());
+
+        for (Map.Entry<String, Object> campo : mensagens.entrySet()) {
+            escreverCampo(destino, campo.getKey(), campo.getValue());
+        }
+
+        destino.putInt(inicio + 2, destino.position() - inicio - TAMANHO_CABECALHO);
+    }
+
+    /**
+     * Copia uma mensagem já codificada para o buffer de destino acrescentando um campo, sem decodificá-la. Usado para incluir
+     * dados de cada requisição, como o id_requisicao, em respostas guardadas já codificadas.
+     *
+     * @param codificada bytes de uma mensagem codificada, sem o campo.
+     * @param chave chave do campo acrescentado.
+     * @param valor valor do campo acrescentado.
+     * @param destino buffer onde a mensagem com o campo será escrita, a partir da sua posição atual.
+     * @throws IOException caso a mensagem seja inválida ou o valor não seja suportado pelo formato binário.
+     * @throws BufferOverflowException caso o buffer não tenha espaço suficiente.
+     */
+    public static void acrescentarCampo(byte[] codificada, String chave, Object valor, ByteBuffer destino) throws IOException {
+        try {
+            ByteBuffer origem = ByteBuffer.wrap(codificada);
+            lerTamanhoCorpo(origem);
+            lerCodigoOuTexto(origem, TITULOS);
+            int fimTitulo = origem.position();
+            int quantidadeCampos = lerQuantidade(origem, 1);
+
+            int inicio = destino.position();
+            destino.put(codificada, 0, fimTitulo);
+            escreverVarInt(destino, quantidadeCampos + 1);
+            destino.put(codificada, origem.position(), codificada.length - origem.position());
+            escreverCampo(destino, chave, valor);
+            destino.putInt(inicio + 2, destino.position() - inicio - TAMANHO_CABECALHO);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Mensagem binária malformada", e);
+        }
+    }
+
+    private static void escreverCampo(ByteBuffer destino, String chave, Object valor) throws IOException {
+        Integer codigoChave = CODIGOS_CHAVES.get(chave);
+
+        if (codigoChave != null && isCompativel(TIPOS_CHAVES[codigoChave], valor)) {
+            destino.put(codigoChave.byteValue());
+            escreverValor(destino, TIPOS_CHAVES[codigoChave], valor);
+        } else {
+            byte tipo = tipoDe(valor);
+            destino.put((byte) CODIGO_POR_EXTENSO);
+            escreverString(destino, chave);
+            destino.put(tipo);
+            escreverValor(destino, tipo, valor);
+        }
+    }
+
+    /**
+     * Codifica a mensagem em um array de bytes, usando um buffer reutilizável por thread que cresce conforme necessário.
+     *
+     * @param mensagem mensagem a ser codificada.
+     * @return bytes da mensagem codificada.
+     * @throws IOException caso a mensagem possua valores não suportados pelo formato binário.
+     */
+    public static byte[] codificar(Mensagem mensagem) throws IOException {
+        ByteBuffer buffer = BUFFER_CODIFICACAO.get();
+
+        while (true) {
+            buffer.clear();
+            try {
+                codificar(mensagem, buffer);
+                buffer.flip();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                return bytes;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                BUFFER_CODIFICACAO.set(buffer);
+            }
+        }
+    }
+
+    /**
+     * Decodifica uma mensagem a partir da posição atual do buffer, deixando a posição logo após a mensagem.
+     *
+     * @param origem buffer contendo ao menos uma mensagem completa.
+     * @return mensagem decodificada.
+     * @throws IOException caso os bytes não correspondam a uma mensagem válida.
+     */
+    public static Mensagem decodificar(ByteBuffer origem) throws IOException {
+        try {
+            int tamanhoCorpo = lerTamanhoCorpo(origem);
+
+            if (origem.remaining() < tamanhoCorpo) {
+                throw new IOException("Mensagem truncada, esperava " + tamanhoCorpo + " bytes e recebeu " + origem.remaining());
+            }
+
+            int fim = origem.position() + tamanhoCorpo;
+            Mensagem mensagem = new Mensagem(lerCodigoOuTexto(origem, TITULOS));
+            int quantidadeCampos = lerQuantidade(origem, 1);
+
+            for (int i = 0; i < quantidadeCampos; i++) {
+                int codigoChave = origem.get() & 0xFF;
+
+                if (codigoChave == CODIGO_POR_EXTENSO) {
+                    String chave = lerString(origem);
+                    mensagem.adicionarMensagem(chave, lerValor(origem, origem.get()));
+                } else if (codigoChave < CHAVES.length) {
+                    mensagem.adicionarMensagem(CHAVES[codigoChave], lerValor(origem, TIPOS_CHAVES[codigoChave]));
+                } else {
+                    throw new IOException("Chave desconhecida: " + codigoChave);
+                }
+            }
+
+            if (origem.position() != fim) {
+                throw new IOException("Tamanho declarado não corresponde ao corpo da mensagem");
+            }
+            return mensagem;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Mensagem binária malformada", e);
+        }
+    }
+
+    /**
+     * Lê e valida o cabeçalho da mensagem, devolvendo o tamanho do corpo que o segue.
+     *
+     * @param origem buffer posicionado no início do cabeçalho.
+     * @return tamanho do corpo em bytes.
+     * @throws IOException caso o cabeçalho seja inválido ou de uma versão não suportada.
+     */
+    public static int lerTamanhoCorpo(ByteBuffer origem) throws IOException {
+        if (origem.remaining() < TAMANHO_CABECALHO) {
+            throw new IOException("Cabeçalho incompleto");
+        }
+
+        if (origem.get() != MAGICO) {
+            throw new IOException("Bytes não correspondem a uma mensagem binária");
+        }
+
+        byte versao = origem.get();
+        if (versao != VERSAO) {
+            throw new IOException("Versão do formato não suportada: " + versao);
+        }
+
+        int tamanhoCorpo = origem.getInt();
+        if (tamanhoCorpo < 0 || tamanhoCorpo > TAMANHO_MAXIMO_CORPO) {
+            throw new IOException("Tamanho de corpo inválido: " + tamanhoCorpo);
+        }
+        return tamanhoCorpo;
+    }
+
+    private static boolean isCompativel(byte tipo, Object valor) {
+        return valor == null || tipoDe(valor) == tipo;
+    }
+
+    private static byte tipoDe(Object valor) {
+        if (valor == null) {
+            return TIPO_NULO;
+        } else if (valor instanceof String) {
+            return TIPO_STRING;
+        } else if (valor instanceof Integer) {
+            return TIPO_INTEIRO;
+        } else if (valor instanceof Long) {
+            return TIPO_LONGO;
+        } else if (valor instanceof Boolean) {
+            return TIPO_BOOLEANO;
+        } else if (valor instanceof byte[]) {
+            return TIPO_BYTES;
+        } else if (valor instanceof List<?> && isColecaoDeStrings((List<?>) valor)) {
+            return TIPO_LISTA_STRINGS;
+        } else if (valor instanceof Set<?> && isColecaoDeStrings((Set<?>) valor)) {
+            return TIPO_CONJUNTO_STRINGS;
+        } else if (valor instanceof Map<?, ?> && isMapaDeConjuntosDeStrings((Map<?, ?>) valor)) {
+            return TIPO_MAPA_CONJUNTOS_STRINGS;
+        }
+        return -1;
+    }
+
+    private static boolean isMapaDeConjuntosDeStrings(Map<?, ?> mapa) {
+        for (Map.Entry<?, ?> entrada : mapa.entrySet()) {
+            if (!(entrada.getKey() instanceof String) || !(entrada.getValue() instanceof Set<?>) || !isColecaoDeStrings((Set<?>) entrada.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isColecaoDeStrings(Collection<?> colecao) {
+        for (Object item : colecao) {
+            if (!(item instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void escreverValor(ByteBuffer destino, byte tipo, Object valor) throws IOException {
+        if (tipo == TIPO_NULO) {
+            return;
+        }
+
+        if (valor == null) {
+            destino.put((byte) 0);
+            return;
+        }
+        destino.put((byte) 1);
+
+        switch (tipo) {
+            case TIPO_STRING:
+                escreverString(destino, (String) valor);
+                break;
+            case TIPO_INTEIRO:
+                destino.putInt((Integer) valor);
+                break;
+            case TIPO_LONGO:
+                destino.putLong((Long) valor);
+                break;
+            case TIPO_BOOLEANO:
+                destino.put((byte) ((Boolean) valor ? 1 : 0));
+                break;
+            case TIPO_BYTES:
+                byte[] bytes = (byte[]) valor;
+                escreverVarInt(destino, bytes.length);
+                destino.put(bytes);
+                break;
+            case TIPO_LISTA_STRINGS:
+            case TIPO_CONJUNTO_STRINGS:
+                Collection<String> colecao = (Collection<String>) valor;
+                escreverVarInt(destino, colecao.size());
+                for (String item : colecao) {
+                    escreverString(destino, item);
+                }
+                break;
+            case TIPO_MAPA_CONJUNTOS_STRINGS:
+                Map<String, Set<String>> mapa = (Map<String, Set<String>>) valor;
+                escreverVarInt(destino, mapa.size());
+                for (Map.Entry<String, Set<String>> entrada : mapa.entrySet()) {
+                    escreverString(destino, entrada.getKey());
+                    escreverValor(destino, TIPO_CONJUNTO_STRINGS, entrada.getValue());
+                }
+                break;
+            default:
+                throw new IOException("Tipo não suportado pelo formato binário: " + valor.getClass().getName());
+        }
+    }
+
+    private static Object lerValor(ByteBuffer origem, byte tipo) throws IOException {
+        if (tipo == TIPO_NULO || origem.get() == 0) {
+            return null;
+        }
+
+        switch (tipo) {
+            case TIPO_STRING:
+                return lerString(origem);
+            case TIPO_INTEIRO:
+                return origem.getInt();
+            case TIPO_LONGO:
+                return origem.getLong();
+            case TIPO_BOOLEANO:
+                return origem.get() != 0;
+            case TIPO_BYTES:
+                byte[] bytes = new byte[lerQuantidade(origem, 1)];
+                origem.get(bytes);
+                return bytes;
+            case TIPO_LISTA_STRINGS:
+                int tamanhoLista = lerQuantidade(origem, 1);
+                List<String> lista = new ArrayList<>(tamanhoLista);
+                for (int i = 0; i < tamanhoLista; i++) {
+                    lista.add(lerString(origem));
+                }
+                return lista;
+            case TIPO_CONJUNTO_STRINGS:
+                int tamanhoConjunto = lerQuantidade(origem, 1);
+                Set<String> conjunto = new LinkedHashSet<>(tamanhoConjunto * 2);
+                for (int i = 0; i < tamanhoConjunto; i++) {
+                    conjunto.add(lerString(origem));
+                }
+                return conjunto;
+            case TIPO_MAPA_CONJUNTOS_STRINGS:
+                int tamanhoMapa = lerQuantidade(origem, 2);
+                Map<String, Object> mapa = new LinkedHashMap<>(tamanhoMapa * 2);
+                for (int i = 0; i < tamanhoMapa; i++) {
+                    mapa.put(lerString(origem), lerValor(origem, TIPO_CONJUNTO_STRINGS));
+                }
+                return mapa;
+            default:
+                throw new IOException("Tipo desconhecido: " + tipo);
+        }
+    }
+
+    private static void escreverCodigoOuTexto(ByteBuffer destino, Map<String, Integer> codigos, String texto) {
+        Integer codigo = codigos.get(texto);
+        if (codigo != null) {
+            destino.put(codigo.byteValue());
+        } else {
+            destino.put((byte) CODIGO_POR_EXTENSO);
+            escreverString(destino, texto);
+        }
+    }
+
+    private static String lerCodigoOuTexto(ByteBuffer origem, String[] tabela) throws IOException {
+        int codigo = origem.get() & 0xFF;
+        if (codigo == CODIGO_POR_EXTENSO) {
+            return lerString(origem);
+        }
+        if (codigo >= tabela.length) {
+            throw new IOException("Título desconhecido: " + codigo);
+        }
+        return tabela[codigo];
+    }
+
+    private static void escreverString(ByteBuffer destino, String texto) {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        escreverVarInt(destino, bytes.length);
+        destino.put(bytes);
+    }
+
+    private static String lerString(ByteBuffer origem) {
+        int tamanho = lerVarInt(origem);
+        if (tamanho > origem.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        String texto;
+        if (origem.hasArray()) {
+            texto = new String(origem.array(), origem.arrayOffset() + origem.position(), tamanho, StandardCharsets.UTF_8);
+            origem.position(origem.position() + tamanho);
+        } else {
+            byte[] bytes = new byte[tamanho];
+            origem.get(bytes);
+            texto = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return texto;
+    }
+
+    private static void escreverVarInt(ByteBuffer destino, int valor) {
+        while ((valor & ~0x7F) != 0) {
+            destino.put((byte) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        destino.put((byte) valor);
+    }
+
+    /**
+     * Lê a quantidade de itens de uma coleção, ou de bytes de um array, rejeitando quantidades que não caberiam nos bytes restantes da
+     * mensagem, já que cada item ocupa ao menos tamanhoMinimoItem bytes. Assim as alocações nunca superam o tamanho da mensagem recebida.
+     */
+    private static int lerQuantidade(ByteBuffer origem, int tamanhoMinimoItem) {
+        int quantidade = lerVarInt(origem);
+        if ((long) quantidade * tamanhoMinimoItem > origem.remaining()) {
+            throw new IllegalArgumentException("Quantidade declarada maior que a mensagem: " + quantidade);
+        }
+        return quantidade;
+    }
+
+    private static int lerVarInt(ByteBuffer origem) {
+        int valor = 0;
+        for (int deslocamento = 0; deslocamento < 32; deslocamento += 7) {
+            byte b = origem.get();
+            valor |= (b & 0x7F) << deslocamento;
+            if ((b & 0x80) == 0) {
+                if (valor < 0) {
+                    throw new IllegalArgumentException("VarInt negativo");
+                }
+                return valor;
+            }
+        }
+        throw new IllegalArgumentException("VarInt muito longo");
+    }
+}
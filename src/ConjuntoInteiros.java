@@ -0,0 +1,168 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Conjunto de inteiros não negativos com endereçamento aberto (sondagem linear), armazenando os valores em um array primitivo
+ * sem boxing. Não é thread-safe, cabendo ao chamador a sincronização.
+ *
+ * @author Maik Henrique
+ */
+public final class ConjuntoInteiros {
+
+    private static final int VAZIO = -1;
+    private static final int CAPACIDADE_MINIMA = 4;
+
+    private int[] tabela;
+    private int tamanho;
+
+    public ConjuntoInteiros() {
+        this(CAPACIDADE_MINIMA);
+    }
+
+    public ConjuntoInteiros(int quantidadeEsperada) {
+        this.tabela = novaTabela(capacidadePara(quantidadeEsperada));
+    }
+
+    private static int capacidadePara(int quantidade) {
+        int capacidade = CAPACIDADE_MINIMA;
+        while (capacidade * 3 < quantidade * 4) {
+            capacidade <<= 1;
+        }
+        return capacidade;
+    }
+
+    private static int[] novaTabela(int capacidade) {
+        int[] novaTabela = new int[capacidade];
+        Arrays.fill(novaTabela, VAZIO);
+        return novaTabela;
+    }
+
+    private static int posicaoInicial(int valor, int mascara) {
+        int misturado = valor * 0x9E3779B9;
+        return (misturado ^ (misturado >>> 16)) & mascara;
+    }
+
+    /**
+     * @param valor inteiro não negativo.
+     * @return true se o valor ainda não estava no conjunto.
+     */
+    public boolean adicionar(int valor) {
+        if (valor < 0) {
+            throw new IllegalArgumentException("Somente valores não negativos são suportados: " + valor);
+        }
+
+        if ((tamanho + 1) * 4 > tabela.length * 3) {
+            redimensionar(tabela.length << 1);
+        }
+
+        int mascara = tabela.length - 1;
+        int posicao = posicaoInicial(valor, mascara);
+
+        while (tabela[posicao] != VAZIO) {
+            if (tabela[posicao] == valor) {
+                return false;
+            }
+            posicao = (posicao + 1) & mascara;
+        }
+
+        tabela[posicao] = valor;
+        tamanho++;
+        return true;
+    }
+
+    /**
+     * Remove o valor deslocando para trás os elementos seguintes da mesma sequência de sondagem, dispensando marcadores de remoção.
+     *
+     * @param valor valor a ser removido.
+     * @return true se o valor estava no conjunto.
+     */
+    public boolean remover(int valor) {
+        int mascara = tabela.length - 1;
+        int posicao = localizar(valor);
+
+        if (posicao == VAZIO) {
+            return false;
+        }
+
+        int proxima = posicao;
+        while (true) {
+            proxima = (proxima + 1) & mascara;
+            int candidato = tabela[proxima];
+
+            if (candidato == VAZIO) {
+                break;
+            }
+
+            int inicialCandidato = posicaoInicial(candidato, mascara);
+            boolean isForaDoIntervalo = posicao <= proxima
+                ? (inicialCandidato <= posicao || inicialCandidato > proxima)
+                : (inicialCandidato <= posicao && inicialCandidato > proxima);
+
+            if (isForaDoIntervalo) {
+                tabela[posicao] = candidato;
+                posicao = proxima;
+            }
+        }
+
+        tabela[posicao] = VAZIO;
+        tamanho--;
+        return true;
+    }
+
+    public boolean contem(int valor) {
+        return valor >= 0 && localizar(valor) != VAZIO;
+    }
+
+    private int localizar(int valor) {
+        int mascara = tabela.length - 1;
+        int posicao = posicaoInicial(valor, mascara);
+
+        while (tabela[posicao] != VAZIO) {
+            if (tabela[posicao] == valor) {
+                return posicao;
+            }
+            posicao = (posicao + 1) & mascara;
+        }
+        return VAZIO;
+    }
+
+    private void redimensionar(int novaCapacidade) {
+        int[] antiga = tabela;
+        tabela = novaTabela(novaCapacidade);
+        tamanho = 0;
+
+        for (int valor : antiga) {
+            if (valor != VAZIO) {
+                adicionar(valor);
+            }
+        }
+    }
+
+    public int tamanho() {
+        return tamanho;
+    }
+
+    public boolean isVazio() {
+        return tamanho == 0;
+    }
+
+    public void paraCada(IntConsumer consumidor) {
+        for (int valor : tabela) {
+            if (valor != VAZIO) {
+                consumidor.accept(valor);
+            }
+        }
+    }
+
+    public int[] toArray() {
+        int[] valores = new int[tamanho];
+        int i = 0;
+
+        for (int valor : tabela) {
+            if (valor != VAZIO) {
+                valores[i++] = valor;
+            }
+        }
+        return valores;
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Camada responsável por decidir em qual thread cada requisição recebida pelo servidor será tratada.
+ * Possui três modos: um pool limitado de threads de plataforma com política de contrapressão, uma thread virtual por requisição
+ * e o tratamento na própria thread de recebimento.
+ *
+ * @author Maik Henrique
+ */
+public abstract class DespachanteRequisicoes implements AutoCloseable {
+
+    public enum Modo {
+        POOL_LIMITADO, VIRTUAL, INLINE
+    }
+
+    /**
+     * Define o que fazer com requisições que chegam quando a fila do pool está cheia.
+     * DESCARTAR ignora a requisição, contando com a retransmissão do cliente, enquanto EXECUTAR_NO_CHAMADOR
+     * trata a requisição na thread de recebimento, desacelerando a leitura do socket.
+     */
+    public enum PoliticaContrapressao {
+        DESCARTAR, EXECUTAR_NO_CHAMADOR
+    }
+
+    protected final AtomicLong rejeicoes = new AtomicLong();
+    protected final AtomicInteger emAndamento = new AtomicInteger();
+
+    /**
+     * Submete a tarefa para execução.
+     *
+     * @param tarefa tratamento da requisição.
+     * @return true se a tarefa foi aceita e false se foi descartada pela política de contrapressão.
+     */
+    public abstract boolean despachar(Runnable tarefa);
+
+    /**
+     * @return quantidade de requisições aguardando uma thread livre.
+     */
+    public abstract int getProfundidadeFila();
+
+    /**
+     * @return total de requisições descartadas ou executadas no chamador por falta de capacidade.
+     */
+    public long getRejeicoes() {
+        return rejeicoes.get();
+    }
+
+    /**
+     * @return quantidade de requisições sendo tratadas no momento.
+     */
+    public int getEmAndamento() {
+        return emAndamento.get();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    protected Runnable contabilizar(Runnable tarefa) {
+        return () -> {
+            emAndamento.incrementAndGet();
+            try {
+                tarefa.run();
+            } finally {
+                emAndamento.decrementAndGet();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [fila=%d, em andamento=%d, rejeições=%d]", getClass().getSimpleName(), getProfundidadeFila(), getEmAndamento(), getRejeicoes());
+    }
+
+    /**
+     * Constrói o despachante a partir das propriedades de sistema p2p.despachante (POOL_LIMITADO, VIRTUAL ou INLINE),
+     * p2p.despachante.threads, p2p.despachante.fila e p2p.despachante.politica. Por padrão as requisições são tratadas
+     * no próprio laço de eventos, já que o servidor mantém um laço por núcleo.
+     */
+    public static DespachanteRequisicoes criarPorPropriedades() {
+        Modo modo = Modo.valueOf(System.getProperty("p2p.despachante", Modo.INLINE.name()).toUpperCase());
+        int threads = Integer.getInteger("p2p.despachante.threads", Runtime.getRuntime().availableProcessors());
+        int capacidadeFila = Integer.getInteger("p2p.despachante.fila", 1024);
+        PoliticaContrapressao politica = PoliticaContrapressao.valueOf(System.getProperty("p2p.despachante.politica", PoliticaContrapressao.DESCARTAR.name()).toUpperCase());
+
+        return criar(modo, threads, capacidadeFila, politica);
+    }
+
+    public static DespachanteRequisicoes criar(Modo modo, int threads, int capacidadeFila, PoliticaContrapressao politica) {
+        switch (modo) {
+            case INLINE:
+                return new Inline();
+            case VIRTUAL:
+                ExecutorService executorVirtual = criarExecutorVirtual();
+                if (executorVirtual != null) {
+                    return new PorExecutor(executorVirtual);
+                }
+                System.err.println("Threads virtuais indisponíveis nesta JVM, usando pool limitado.");
+                return new PoolLimitado(threads, capacidadeFila, politica);
+            case POOL_LIMITADO:
+            default:
+                return new PoolLimitado(threads, capacidadeFila, politica);
+        }
+    }
+
+    /**
+     * Obtém por reflexão o executor de threads virtuais, disponível a partir do Java 21, de modo que o código continue
+     * compilando em versões anteriores.
+     */
+    private static ExecutorService criarExecutorVirtual() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Trata cada requisição na própria thread de recebimento.
+     */
+    static class Inline extends DespachanteRequisicoes {
+        @Override
+        public boolean despachar(Runnable tarefa) {
+            contabilizar(tarefa).run();
+            return true;
+        }
+
+        @Override
+        public int getProfundidadeFila() {
+            return 0;
+        }
+    }
+
+    /**
+     * Delega cada requisição a um executor sem fila própria, como o de uma thread virtual por tarefa.
+     */
+    static class PorExecutor extends DespachanteRequisicoes {
+        private final ExecutorService executor;
+
+        PorExecutor(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public boolean despachar(Runnable tarefa) {
+            try {
+                executor.execute(contabilizar(tarefa));
+                return true;
+            } catch (RejectedExecutionException e) {
+                rejeicoes.incrementAndGet();
+                return false;
+            }
+        }
+
+        @Override
+        public int getProfundidadeFila() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Pool de tamanho fixo com fila limitada, aplicando a política de contrapressão quando a fila enche.
+     */
+    static class PoolLimitado extends DespachanteRequisicoes {
+        private final ThreadPoolExecutor executor;
+        private final PoliticaContrapressao politica;
+
+        PoolLimitado(int threads, int capacidadeFila, PoliticaContrapressao politica) {
+            AtomicInteger contadorThreads = new AtomicInteger();
+            this.politica = politica;
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacidadeFila), tarefa -> {
+                Thread thread = new Thread(tarefa, "requisicao-cliente-" + contadorThreads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        @Override
+        public boolean despachar(Runnable tarefa) {
+            Runnable tarefaContabilizada = contabilizar(tarefa);
+
+            try {
+                executor.execute(tarefaContabilizada);
+                return true;
+            } catch (RejectedExecutionException e) {
+                rejeicoes.incrementAndGet();
+
+                if (politica == PoliticaContrapressao.EXECUTAR_NO_CHAMADOR && !executor.isShutdown()) {
+                    tarefaContabilizada.run();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public int getProfundidadeFila() {
+            return executor.getQueue().size();
+        }
+
+        @Override
+        public void close() {
+            executor.shutdown();
+        }
+    }
+}
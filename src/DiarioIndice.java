@@ -0,0 +1,771 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Diário (write-ahead log) das alterações do índice peer -> arquivos do servidor, permitindo que o índice seja reconstruído após
+ * reiniciar o servidor. Cada alteração de um peer (JOIN, UPDATE, DELTA, LEAVE e expiração) é acrescentada a um segmento mapeado em memória,
+ * sem chamadas de sistema, e uma thread dedicada grava em disco (force) de uma só vez tudo o que foi acrescentado desde a última
+ * gravação (group commit). As requisições aguardam a gravação antes de serem confirmadas ao peer, de modo que uma alteração
+ * confirmada nunca é perdida.
+ *
+ * Quando os segmentos desde o último instantâneo excedem o limite de compactação, um novo segmento é iniciado e o índice é escrito
+ * em um instantâneo binário, que substitui todos os segmentos anteriores. O instantâneo é feito sem bloquear as alterações: como
+ * definir e remover os arquivos de um peer substituem o estado anterior e adicionar ou remover um arquivo são idempotentes,
+ * reaplicar os segmentos posteriores sobre um instantâneo que já contenha parte deles resulta no mesmo índice.
+ *
+ * Na pasta do diário ficam os arquivos instantaneo-N.bin, com o índice anterior ao segmento N, e diario-N.log, com as alterações em
+ * ordem. Os registros de um segmento têm o formato [tamanho 4B][CRC32 4B][tipo 1B][peer][dados], com cada nome escrito como
+ * [tamanho 4B][UTF-8], e o fim do segmento é marcado por um tamanho zero. Um registro incompleto ou corrompido, escrito durante uma
+ * queda do servidor, encerra a leitura do seu segmento, já que nunca foi confirmado.
+ *
+ * @author Maik Henrique
+ */
+public class DiarioIndice implements PeerFileIndex.RegistroMutacoes, AutoCloseable {
+
+    /**
+     * Prefixo da pasta padrão, seguido da porta do servidor para que servidores na mesma máquina não compartilhem o diário.
+     */
+    public static final String PASTA_PADRAO = "estado-servidor-";
+
+    private static final int MAGICO_SEGMENTO = 0x44494152;
+    private static final int MAGICO_INSTANTANEO = 0x494E5354;
+    private static final int TAMANHO_CABECALHO_SEGMENTO = 4;
+    private static final int TAMANHO_CABECALHO_REGISTRO = 8;
+    private static final int TAMANHO_BUFFER_INSTANTANEO = 1024 * 1024;
+
+    private static final byte DEFINIR_ARQUIVOS = 1;
+    private static final byte ADICIONAR_ARQUIVO = 2;
+    private static final byte REMOVER_PEER = 3;
+    private static final byte REMOVER_ARQUIVO = 4;
+
+    private static final byte PEER_INSTANTANEO = 1;
+    private static final byte FIM_INSTANTANEO = 0;
+
+    private static final String PREFIXO_SEGMENTO = "diario-";
+    private static final String EXTENSAO_SEGMENTO = ".log";
+    private static final String PREFIXO_INSTANTANEO = "instantaneo-";
+    private static final String EXTENSAO_INSTANTANEO = ".bin";
+    private static final String EXTENSAO_TEMPORARIO = ".tmp";
+
+    private static final ThreadLocal<ByteBuffer> BUFFER_REGISTRO = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    private final File pasta;
+    private final PeerFileIndex indice;
+    private final int tamanhoSegmento;
+    private final long limiteCompactacao;
+    private final boolean isSincrono;
+    private final Thread gravador;
+    private final ExecutorService compactador;
+
+    private final ReentrantLock trava;
+    private final Condition haRegistros;
+    private final Condition houveGravacao;
+    private MappedByteBuffer segmentoAtual;
+    private long numeroSegmentoAtual;
+    private final List<MappedByteBuffer> segmentosNaoGravados;
+    private long bytesEscritos;
+    private long bytesGravados;
+    private long bytesDesdeInstantaneo;
+    private boolean isCompactando;
+    private boolean isFechado;
+    private IOException falha;
+
+    private final LongAdder registros;
+    private final LongAdder gravacoes;
+    private final LongAdder compactacoes;
+    private final Recuperacao recuperacao;
+
+    /**
+     * Abre o diário de acordo com as propriedades p2p.servidor.diario.pasta (estado-servidor-porta por padrão, vazia desativa),
+     * p2p.servidor.diario.segmento.bytes (64 MiB por padrão), p2p.servidor.diario.compactacao.bytes (256 MiB por padrão) e
+     * p2p.servidor.diario.sincrono (true por padrão; false confirma as requisições sem aguardar a gravação, podendo perder as
+     * últimas alterações em uma queda do sistema operacional).
+     *
+     * @param indice índice vazio a ser reconstruído e registrado.
+     * @param porta porta do servidor, que compõe o nome da pasta padrão.
+     * @return diário aberto, ou nulo caso esteja desativado.
+     * @throws IOException caso o estado anterior não possa ser lido ou o diário não possa ser escrito.
+     */
+    public static DiarioIndice abrirPorPropriedades(PeerFileIndex indice, int porta) throws IOException {
+        String pasta = System.getProperty("p2p.servidor.diario.pasta", PASTA_PADRAO + porta);
+        if (pasta.trim().isEmpty()) {
+            return null;
+        }
+
+        return abrir(new File(pasta), indice, Integer.getInteger("p2p.servidor.diario.segmento.bytes", 64 * 1024 * 1024),
+            Long.getLong("p2p.servidor.diario.compactacao.bytes", 256L * 1024 * 1024),
+            Boolean.parseBoolean(System.getProperty("p2p.servidor.diario.sincrono", "true")));
+    }
+
+    /**
+     * Reconstrói o índice a partir do último instantâneo e dos segmentos posteriores, e passa a registrar as suas alterações em
+     * um novo segmento.
+     *
+     * @param pasta pasta do diário, criada caso não exista.
+     * @param indice índice vazio a ser reconstruído e registrado.
+     * @param tamanhoSegmento tamanho de cada segmento mapeado em memória.
+     * @param limiteCompactacao bytes escritos nos segmentos a partir dos quais um novo instantâneo é feito.
+     * @param isSincrono se aguardarGravacao aguarda de fato a gravação em disco.
+     * @return diário aberto.
+     * @throws IOException caso o estado anterior não possa ser lido ou o diário não possa ser escrito.
+     */
+    public static DiarioIndice abrir(File pasta, PeerFileIndex indice, int tamanhoSegmento, long limiteCompactacao, boolean isSincrono)
+        throws IOException {
+        if (!pasta.isDirectory() && !pasta.mkdirs()) {
+            throw new IOException("Não foi possível criar a pasta do diário " + pasta);
+        }
+
+        Recuperacao recuperacao = recuperar(pasta, indice);
+        DiarioIndice diario = new DiarioIndice(pasta, indice, tamanhoSegmento, limiteCompactacao, isSincrono, recuperacao);
+        indice.adicionarRegistroMutacoes(diario);
+        return diario;
+    }
+
+    private DiarioIndice(File pasta, PeerFileIndex indice, int tamanhoSegmento, long limiteCompactacao, boolean isSincrono,
+        Recuperacao recuperacao) throws IOException {
+        this.pasta = pasta;
+        this.indice = indice;
+        this.tamanhoSegmento = Math.max(TAMANHO_CABECALHO_SEGMENTO + 1024, tamanhoSegmento);
+        this.limiteCompactacao = limiteCompactacao;
+        this.isSincrono = isSincrono;
+        this.trava = new ReentrantLock();
+        this.haRegistros = trava.newCondition();
+        this.houveGravacao = trava.newCondition();
+        this.segmentosNaoGravados = new ArrayList<>();
+        this.registros = new LongAdder();
+        this.gravacoes = new LongAdder();
+        this.compactacoes = new LongAdder();
+        this.recuperacao = recuperacao;
+
+        this.numeroSegmentoAtual = recuperacao.proximoSegmento;
+        this.segmentoAtual = abrirSegmento(numeroSegmentoAtual, this.tamanhoSegmento);
+        this.bytesDesdeInstantaneo = recuperacao.bytesReaplicados;
+
+        this.compactador = Executors.newSingleThreadExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "compactacao-diario");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.gravador = new Thread(this::gravarContinuamente, "gravacao-diario");
+        this.gravador.setDaemon(true);
+        this.gravador.start();
+
+        trava.lock();
+        try {
+            agendarCompactacaoSeNecessario();
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    @Override
+    public void arquivosDefinidos(String peer, Collection<String> arquivos) {
+        ByteBuffer registro = iniciarRegistro(DEFINIR_ARQUIVOS, peer);
+        registro = escreverInteiro(registro, arquivos.size());
+        for (String arquivo : arquivos) {
+            registro = escreverNome(registro, arquivo);
+        }
+        acrescentar(registro);
+    }
+
+    @Override
+    public void arquivoAdicionado(String peer, String arquivo) {
+        acrescentar(escreverNome(iniciarRegistro(ADICIONAR_ARQUIVO, peer), arquivo));
+    }
+
+    @Override
+    public void arquivoRemovido(String peer, String arquivo) {
+        acrescentar(escreverNome(iniciarRegistro(REMOVER_ARQUIVO, peer), arquivo));
+    }
+
+    @Override
+    public void peerRemovido(String peer) {
+        acrescentar(iniciarRegistro(REMOVER_PEER, peer));
+    }
+
+    /**
+     * Aguarda que todas as alterações já registradas estejam gravadas em disco. Com o diário não síncrono, retorna imediatamente.
+     *
+     * @throws IOException caso o diário não possa ser gravado.
+     */
+    public void aguardarGravacao() throws IOException {
+        trava.lock();
+        try {
+            long alvo = bytesEscritos;
+
+            while (isSincrono && bytesGravados < alvo && falha == null) {
+                houveGravacao.await();
+            }
+            if (falha != null) {
+                throw new IOException("Falha ao gravar o diário do índice", falha);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrompido enquanto aguardava a gravação do diário");
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    public long getRegistros() {
+        return registros.sum();
+    }
+
+    public long getGravacoes() {
+        return gravacoes.sum();
+    }
+
+    public long getCompactacoes() {
+        return compactacoes.sum();
+    }
+
+    /**
+     * @return quantidade de peers reconstruídos ao abrir o diário.
+     */
+    public int getPeersRecuperados() {
+        return recuperacao.peers;
+    }
+
+    /**
+     * @return tempo gasto para reconstruir o índice ao abrir o diário, em milissegundos.
+     */
+    public long getTempoRecuperacaoMilissegundos() {
+        return TimeUnit.NANOSECONDS.toMillis(recuperacao.duracaoNanos);
+    }
+
+    @Override
+    public String toString() {
+        long gravacoes = getGravacoes();
+        return String.format("%s [registros=%d, gravações=%d (%.1f registros por gravação), compactações=%d, recuperação=%s]",
+            getClass().getSimpleName(), getRegistros(), gravacoes, gravacoes == 0 ? 0 : (double) getRegistros() / gravacoes,
+            getCompactacoes(), recuperacao);
+    }
+
+    /**
+     * Deixa de registrar as alterações do índice e aguarda a gravação das já registradas e a compactação em andamento. Caso a thread
+     * seja interrompida durante a espera, o fechamento retorna sem aguardar e a interrupção é restaurada.
+     */
+    @Override
+    public void close() {
+        indice.removerRegistroMutacoes(this);
+
+        trava.lock();
+        try {
+            isFechado = true;
+            haRegistros.signalAll();
+        } finally {
+            trava.unlock();
+        }
+
+        compactador.shutdown();
+        try {
+            gravador.join();
+            compactador.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copia o registro para o segmento atual, iniciando um novo segmento quando ele não cabe. Uma falha é guardada e informada às
+     * requisições que aguardam a gravação, já que o índice já foi alterado.
+     */
+    private void acrescentar(ByteBuffer registro) {
+        registro.flip();
+        int tamanho = registro.remaining();
+        CRC32 crc = new CRC32();
+        crc.update(registro.array(), TAMANHO_CABECALHO_REGISTRO, tamanho - TAMANHO_CABECALHO_REGISTRO);
+        registro.putInt(0, tamanho - TAMANHO_CABECALHO_REGISTRO);
+        registro.putInt(4, (int) crc.getValue());
+
+        trava.lock();
+        try {
+            if (isFechado || falha != null) {
+                return;
+            }
+
+            if (segmentoAtual.remaining() < tamanho) {
+                iniciarSegmento(tamanho);
+            }
+            segmentoAtual.put(registro);
+            bytesEscritos += tamanho;
+            bytesDesdeInstantaneo += tamanho;
+            registros.increment();
+            haRegistros.signal();
+            agendarCompactacaoSeNecessario();
+        } catch (IOException e) {
+            registrarFalha(e);
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    /**
+     * Deve ser chamado com a trava adquirida. O segmento anterior continua mapeado até ser gravado pela thread de gravação.
+     */
+    private void iniciarSegmento(int tamanhoMinimo) throws IOException {
+        MappedByteBuffer novoSegmento = abrirSegmento(numeroSegmentoAtual + 1, Math.max(tamanhoSegmento, TAMANHO_CABECALHO_SEGMENTO + tamanhoMinimo));
+        segmentosNaoGravados.add(segmentoAtual);
+        segmentoAtual = novoSegmento;
+        numeroSegmentoAtual++;
+    }
+
+    private MappedByteBuffer abrirSegmento(long numero, int tamanho) throws IOException {
+        File arquivo = new File(pasta, nomeArquivo(PREFIXO_SEGMENTO, numero, EXTENSAO_SEGMENTO));
+
+        try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer segmento = canal.map(FileChannel.MapMode.READ_WRITE, 0, tamanho);
+            segmento.putInt(MAGICO_SEGMENTO);
+            segmento.force();
+            sincronizarPasta(pasta);
+            return segmento;
+        }
+    }
+
+    /**
+     * Deve ser chamado com a trava adquirida.
+     */
+    private void agendarCompactacaoSeNecessario() {
+        if (!isCompactando && !isFechado && bytesDesdeInstantaneo >= limiteCompactacao) {
+            isCompactando = true;
+            compactador.execute(this::compactar);
+        }
+    }
+
+    private void registrarFalha(IOException e) {
+        if (falha == null) {
+            falha = e;
+            System.err.println("O diário do índice deixou de ser gravado: " + e.getMessage());
+        }
+        houveGravacao.signalAll();
+    }
+
+    /**
+     * Laço da thread de gravação: grava em disco, com uma única chamada por segmento, todos os registros acrescentados enquanto
+     * a gravação anterior estava em andamento.
+     */
+    private void gravarContinuamente() {
+        while (true) {
+            List<MappedByteBuffer> segmentos;
+            long alvo;
+
+            trava.lock();
+            try {
+                while (!isFechado && bytesEscritos == bytesGravados) {
+                    haRegistros.awaitUninterruptibly();
+                }
+                if (bytesEscritos == bytesGravados) {
+                    return;
+                }
+
+                alvo = bytesEscritos;
+                segmentos = new ArrayList<>(segmentosNaoGravados);
+                segmentos.add(segmentoAtual);
+                segmentosNaoGravados.clear();
+            } finally {
+                trava.unlock();
+            }
+
+            IOException falhaGravacao = null;
+            try {
+                segmentos.forEach(MappedByteBuffer::force);
+            } catch (RuntimeException e) {
+                falhaGravacao = new IOException("Não foi possível gravar o diário do índice", e);
+            }
+
+            trava.lock();
+            try {
+                if (falhaGravacao != null) {
+                    registrarFalha(falhaGravacao);
+                    bytesGravados = bytesEscritos;
+                    continue;
+                }
+                bytesGravados = alvo;
+                gravacoes.increment();
+                houveGravacao.signalAll();
+            } finally {
+                trava.unlock();
+            }
+        }
+    }
+
+    /**
+     * Inicia um novo segmento e escreve o índice em um instantâneo que substitui os segmentos anteriores a ele. O instantâneo é
+     * escrito em um arquivo temporário e renomeado atomicamente, de modo que uma queda durante a compactação mantém o estado anterior.
+     */
+    private void compactar() {
+        long primeiroSegmentoPosterior;
+
+        trava.lock();
+        try {
+            if (falha != null || isFechado) {
+                isCompactando = false;
+                return;
+            }
+            iniciarSegmento(0);
+            primeiroSegmentoPosterior = numeroSegmentoAtual;
+            bytesDesdeInstantaneo = 0;
+        } catch (IOException e) {
+            registrarFalha(e);
+            isCompactando = false;
+            return;
+        } finally {
+            trava.unlock();
+        }
+
+        try {
+            escreverInstantaneo(primeiroSegmentoPosterior);
+            removerArquivosAnteriores(pasta, primeiroSegmentoPosterior);
+            compactacoes.increment();
+        } catch (IOException e) {
+            System.err.println("Não foi possível compactar o diário do índice: " + e.getMessage());
+        } finally {
+            trava.lock();
+            try {
+                isCompactando = false;
+            } finally {
+                trava.unlock();
+            }
+        }
+    }
+
+    private void escreverInstantaneo(long numero) throws IOException {
+        File arquivo = new File(pasta, nomeArquivo(PREFIXO_INSTANTANEO, numero, EXTENSAO_INSTANTANEO));
+        File temporario = new File(pasta, arquivo.getName() + EXTENSAO_TEMPORARIO);
+
+        try (FileOutputStream saidaArquivo = new FileOutputStream(temporario)) {
+            CheckedOutputStream saidaVerificada = new CheckedOutputStream(saidaArquivo, new CRC32());
+            DataOutputStream saida = new DataOutputStream(new BufferedOutputStream(saidaVerificada, TAMANHO_BUFFER_INSTANTANEO));
+            IOException[] falhaEscrita = new IOException[1];
+
+            saida.writeInt(MAGICO_INSTANTANEO);
+            saida.writeLong(numero);
+            indice.paraCadaPeer((peer, arquivos) -> {
+                if (falhaEscrita[0] != null) {
+                    return;
+                }
+                try {
+                    saida.writeByte(PEER_INSTANTANEO);
+                    escreverNome(saida, peer);
+                    saida.writeInt(arquivos.size());
+                    for (String arquivoPeer : arquivos) {
+                        escreverNome(saida, arquivoPeer);
+                    }
+                } catch (IOException e) {
+                    falhaEscrita[0] = e;
+                }
+            });
+            if (falhaEscrita[0] != null) {
+                throw falhaEscrita[0];
+            }
+            saida.writeByte(FIM_INSTANTANEO);
+            saida.flush();
+
+            new DataOutputStream(saidaArquivo).writeInt((int) saidaVerificada.getChecksum().getValue());
+            saidaArquivo.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporario.toPath());
+            throw e;
+        }
+
+        Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        sincronizarPasta(pasta);
+    }
+
+    /**
+     * Carrega o último instantâneo e reaplica em ordem os segmentos posteriores a ele, removendo os arquivos que ele substitui.
+     */
+    private static Recuperacao recuperar(File pasta, PeerFileIndex indice) throws IOException {
+        long inicio = System.nanoTime();
+        TreeMap<Long, File> segmentos = listar(pasta, PREFIXO_SEGMENTO, EXTENSAO_SEGMENTO);
+        TreeMap<Long, File> instantaneos = listar(pasta, PREFIXO_INSTANTANEO, EXTENSAO_INSTANTANEO);
+        Recuperacao recuperacao = new Recuperacao();
+
+        long primeiroSegmento = 0;
+        if (!instantaneos.isEmpty()) {
+            primeiroSegmento = instantaneos.lastKey();
+            carregarInstantaneo(instantaneos.lastEntry().getValue(), primeiroSegmento, indice);
+        }
+        removerArquivosAnteriores(pasta, primeiroSegmento);
+
+        recuperacao.proximoSegmento = primeiroSegmento;
+        for (Map.Entry<Long, File> segmento : segmentos.tailMap(primeiroSegmento).entrySet()) {
+            recuperacao.proximoSegmento = segmento.getKey() + 1;
+            if (reaplicarSegmento(segmento.getValue(), indice, recuperacao) == 0) {
+                Files.deleteIfExists(segmento.getValue().toPath());
+            }
+        }
+
+        recuperacao.peers = indice.getQuantidadePeers();
+        recuperacao.duracaoNanos = System.nanoTime() - inicio;
+        return recuperacao;
+    }
+
+    /**
+     * Verifica o CRC do instantâneo antes de carregá-lo, de modo que um instantâneo corrompido nunca seja carregado pela metade.
+     */
+    private static void carregarInstantaneo(File arquivo, long numero, PeerFileIndex indice) throws IOException {
+        verificarInstantaneo(arquivo);
+
+        try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(new FileInputStream(arquivo), TAMANHO_BUFFER_INSTANTANEO))) {
+            byte[] bufferNome = new byte[4096];
+
+            if (entrada.readInt() != MAGICO_INSTANTANEO || entrada.readLong() != numero) {
+                throw new IOException("Instantâneo do índice inválido: " + arquivo);
+            }
+
+            while (entrada.readByte() == PEER_INSTANTANEO) {
+                String peer = lerNome(entrada, bufferNome);
+                int quantidadeArquivos = entrada.readInt();
+                List<String> arquivos = new ArrayList<>(quantidadeArquivos);
+
+                for (int i = 0; i < quantidadeArquivos; i++) {
+                    arquivos.add(lerNome(entrada, bufferNome));
+                }
+                indice.definirArquivosPeer(peer, arquivos);
+            }
+        }
+    }
+
+    private static void verificarInstantaneo(File arquivo) throws IOException {
+        try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ)) {
+            long tamanhoConteudo = canal.size() - 4;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(TAMANHO_BUFFER_INSTANTANEO);
+            CRC32 crc = new CRC32();
+            long posicao = 0;
+
+            while (posicao < tamanhoConteudo) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), tamanhoConteudo - posicao));
+                int lidos = canal.read(buffer, posicao);
+                if (lidos < 0) {
+                    break;
+                }
+                buffer.flip();
+                crc.update(buffer);
+                posicao += lidos;
+            }
+
+            buffer.clear();
+            buffer.limit(4);
+            if (tamanhoConteudo < 0 || canal.read(buffer, tamanhoConteudo) != 4 || buffer.getInt(0) != (int) crc.getValue()) {
+                throw new IOException("Instantâneo do índice corrompido: " + arquivo);
+            }
+        }
+    }
+
+    /**
+     * @return quantidade de registros reaplicados, sendo zero em segmentos iniciados e nunca usados, que podem ser removidos.
+     */
+    private static int reaplicarSegmento(File arquivo, PeerFileIndex indice, Recuperacao recuperacao) throws IOException {
+        MappedByteBuffer segmento;
+        try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ)) {
+            segmento = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+        }
+
+        if (segmento.remaining() < TAMANHO_CABECALHO_SEGMENTO || segmento.getInt() != MAGICO_SEGMENTO) {
+            return 0;
+        }
+
+        CRC32 crc = new CRC32();
+        int reaplicados = 0;
+        while (segmento.remaining() >= TAMANHO_CABECALHO_REGISTRO) {
+            int tamanho = segmento.getInt();
+            int crcRegistro = segmento.getInt();
+            if (tamanho <= 0 || tamanho > segmento.remaining()) {
+                break;
+            }
+
+            ByteBuffer registro = segmento.slice();
+            registro.limit(tamanho);
+            crc.reset();
+            crc.update(registro.duplicate());
+            if ((int) crc.getValue() != crcRegistro) {
+                recuperacao.registrosDescartados++;
+                break;
+            }
+
+            reaplicarRegistro(registro, indice);
+            segmento.position(segmento.position() + tamanho);
+            reaplicados++;
+            recuperacao.registrosReaplicados++;
+            recuperacao.bytesReaplicados += TAMANHO_CABECALHO_REGISTRO + tamanho;
+        }
+        return reaplicados;
+    }
+
+    private static void reaplicarRegistro(ByteBuffer registro, PeerFileIndex indice) throws IOException {
+        byte tipo = registro.get();
+        String peer = lerNome(registro);
+
+        switch (tipo) {
+            case DEFINIR_ARQUIVOS:
+                int quantidadeArquivos = registro.getInt();
+                List<String> arquivos = new ArrayList<>(quantidadeArquivos);
+                for (int i = 0; i < quantidadeArquivos; i++) {
+                    arquivos.add(lerNome(registro));
+                }
+                indice.definirArquivosPeer(peer, arquivos);
+                break;
+            case ADICIONAR_ARQUIVO:
+                indice.adicionarArquivo(peer, lerNome(registro));
+                break;
+            case REMOVER_PEER:
+                indice.removerPeer(peer);
+                break;
+            case REMOVER_ARQUIVO:
+                indice.removerArquivo(peer, lerNome(registro));
+                break;
+            default:
+                throw new IOException("Tipo de registro do diário desconhecido: " + tipo);
+        }
+    }
+
+    private static TreeMap<Long, File> listar(File pasta, String prefixo, String extensao) {
+        TreeMap<Long, File> arquivos = new TreeMap<>();
+        File[] conteudo = pasta.listFiles();
+
+        for (File arquivo : conteudo == null ? new File[0] : conteudo) {
+            String nome = arquivo.getName();
+            if (nome.startsWith(prefixo) && nome.endsWith(extensao)) {
+                try {
+                    arquivos.put(Long.parseLong(nome.substring(prefixo.length(), nome.length() - extensao.length())), arquivo);
+                } catch (NumberFormatException e) {
+                    // arquivo com o mesmo prefixo que não pertence ao diário
+                }
+            }
+        }
+        return arquivos;
+    }
+
+    /**
+     * Remove os segmentos e instantâneos substituídos pelo instantâneo do segmento informado, além de instantâneos temporários
+     * deixados por uma compactação interrompida.
+     */
+    private static void removerArquivosAnteriores(File pasta, long numero) throws IOException {
+        List<File> substituidos = new ArrayList<>(listar(pasta, PREFIXO_SEGMENTO, EXTENSAO_SEGMENTO).headMap(numero).values());
+        substituidos.addAll(listar(pasta, PREFIXO_INSTANTANEO, EXTENSAO_INSTANTANEO).headMap(numero).values());
+        substituidos.addAll(listar(pasta, PREFIXO_INSTANTANEO, EXTENSAO_INSTANTANEO + EXTENSAO_TEMPORARIO).headMap(numero).values());
+
+        for (File arquivo : substituidos) {
+            Files.deleteIfExists(arquivo.toPath());
+        }
+    }
+
+    /**
+     * Grava a entrada da pasta, para que arquivos criados ou renomeados sobrevivam a uma queda do sistema. Nem todos os sistemas
+     * permitem abrir uma pasta, caso em que a gravação é ignorada.
+     */
+    private static void sincronizarPasta(File pasta) {
+        try (FileChannel canal = FileChannel.open(pasta.toPath(), StandardOpenOption.READ)) {
+            canal.force(true);
+        } catch (IOException e) {
+            // sem suporte a gravar pastas
+        }
+    }
+
+    private static String nomeArquivo(String prefixo, long numero, String extensao) {
+        return String.format("%s%016d%s", prefixo, numero, extensao);
+    }
+
+    private static ByteBuffer iniciarRegistro(byte tipo, String peer) {
+        ByteBuffer registro = BUFFER_REGISTRO.get();
+        registro.clear();
+        registro.position(TAMANHO_CABECALHO_REGISTRO);
+        registro.put(tipo);
+        return escreverNome(registro, peer);
+    }
+
+    private static ByteBuffer escreverNome(ByteBuffer registro, String nome) {
+        byte[] bytes = nome.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer destino = garantirEspaco(registro, 4 + bytes.length);
+        destino.putInt(bytes.length);
+        destino.put(bytes);
+        return destino;
+    }
+
+    private static ByteBuffer escreverInteiro(ByteBuffer registro, int valor) {
+        ByteBuffer destino = garantirEspaco(registro, 4);
+        destino.putInt(valor);
+        return destino;
+    }
+
+    /**
+     * @return o próprio buffer, ou um buffer maior com o mesmo conteúdo que passa a ser o buffer da thread.
+     */
+    private static ByteBuffer garantirEspaco(ByteBuffer registro, int tamanho) {
+        if (registro.remaining() >= tamanho) {
+            return registro;
+        }
+
+        ByteBuffer maior = ByteBuffer.allocate(Math.max(registro.capacity() * 2, registro.position() + tamanho));
+        registro.flip();
+        maior.put(registro);
+        BUFFER_REGISTRO.set(maior);
+        return maior;
+    }
+
+    private static void escreverNome(DataOutputStream saida, String nome) throws IOException {
+        byte[] bytes = nome.getBytes(StandardCharsets.UTF_8);
+        saida.writeInt(bytes.length);
+        saida.write(bytes);
+    }
+
+    private static String lerNome(DataInputStream entrada, byte[] buffer) throws IOException {
+        int tamanho = entrada.readInt();
+        byte[] bytes = tamanho <= buffer.length ? buffer : new byte[tamanho];
+        entrada.readFully(bytes, 0, tamanho);
+        return new String(bytes, 0, tamanho, StandardCharsets.UTF_8);
+    }
+
+    private static String lerNome(ByteBuffer registro) {
+        byte[] bytes = new byte[registro.getInt()];
+        registro.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Resultado da reconstrução do índice ao abrir o diário.
+     */
+    private static class Recuperacao {
+        private long proximoSegmento;
+        private long registrosReaplicados;
+        private long registrosDescartados;
+        private long bytesReaplicados;
+        private int peers;
+        private long duracaoNanos;
+
+        @Override
+        public String toString() {
+            return String.format("%d peers em %d ms, %d registros reaplicados, %d descartados", peers,
+                TimeUnit.NANOSECONDS.toMillis(duracaoNanos), registrosReaplicados, registrosDescartados);
+        }
+    }
+}
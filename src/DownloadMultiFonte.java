@@ -0,0 +1,678 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Download de um arquivo dividido em peças de tamanho fixo, buscadas de forma concorrente nos peers que possuem o arquivo.
+ *
+ * No máximo MAXIMO_FONTES_ATIVAS peers, os primeiros em ordem de prioridade, são usados ao mesmo tempo, e quando um deles desiste
+ * o próximo da lista assume a sua thread. Cada fonte ativa é atendida por uma thread que retira a próxima peça pendente de uma fila
+ * compartilhada, de modo que peers mais rápidos naturalmente baixam mais peças. Peças negadas ou com falha voltam para a fila e são
+ * reatribuídas, e quando a fila se esvazia as threads ociosas também buscam peças ainda em andamento em peers lentos, valendo a
+ * primeira cópia concluída. Somente o peer que retirou a peça da fila a devolve em caso de falha, de modo que uma cópia duplicada
+ * negada não interrompa a original.
+ *
+ * Cada peça recebida é verificada contra o hash SHA-256 informado pelo peer em um pool separado, sem bloquear as leituras da rede,
+ * e somente peças íntegras são escritas na sua posição do arquivo via FileChannel posicional. As peças concluídas são registradas
+ * em um arquivo de progresso (ProgressoDownload), de modo que um download interrompido seja retomado sem baixar novamente o que
+ * já está em disco. Conexões que caem no meio de uma peça são retomadas a partir do último byte recebido.
+ *
+ * As conexões com os peers são obtidas de um PoolConexoesPeers e mantidas abertas entre peças, e cada thread envia as requisições
+ * de várias peças de uma vez (pipelining) antes de ler as respostas, evitando um round-trip ocioso entre uma peça e a seguinte.
+ *
+ * @author Maik Henrique
+ */
+public class DownloadMultiFonte {
+
+    /**
+     * Tamanho padrão das peças, 1 MiB.
+     */
+    public static final int TAMANHO_PECA = 1024 * 1024;
+
+    /**
+     * Quantidade máxima de peers dos quais as peças são buscadas ao mesmo tempo, definida pela propriedade p2p.download.fontes.
+     */
+    private static final int MAXIMO_FONTES_ATIVAS = Math.max(1, Integer.getInteger("p2p.download.fontes", 8));
+
+    private static final int TENTATIVAS_SEM_SUCESSO_POR_PEER = 4;
+    private static final int TEMPO_ESPERA_NEGACAO_SEGUNDOS = 5;
+
+    /**
+     * Limite da espera sugerida pelo peer (espera_estimada) ao negar um download por estar sem vagas de upload.
+     */
+    private static final long TEMPO_MAXIMO_ESPERA_FILA_MILISSEGUNDOS = TimeUnit.SECONDS.toMillis(30);
+    private static final int TEMPO_ESPERA_VERIFICACAO_MILISSEGUNDOS = 50;
+    private static final int PROFUNDIDADE_PIPELINE = 4;
+    private static final int THREADS_VERIFICACAO = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int PECAS_AGUARDANDO_VERIFICACAO_POR_THREAD = 2;
+
+    private static final int PECA_PENDENTE = 0;
+    private static final int PECA_VERIFICANDO = 1;
+    private static final int PECA_CONCLUIDA = 2;
+
+    /**
+     * Estados a partir deste indicam a peça em andamento, somado o identificador do TrabalhadorPeer que a retirou da fila.
+     */
+    private static final int PECA_EM_ANDAMENTO = 3;
+
+    private static final int AGUARDAR_VERIFICACAO = -2;
+    private static final int DOWNLOAD_NEGADO = -1;
+
+    private final String arquivo;
+    private final File destino;
+    private final MetadadosArquivo metadados;
+    private final long tamanhoArquivo;
+    private final int tamanhoPeca;
+    private final int quantidadePecas;
+    private final List<String> peers;
+    private final int quantidadeFontesAtivas;
+    private final PoolConexoesPeers poolConexoes;
+    private final LimitadorBanda limitadorDownload;
+
+    private final ConcurrentLinkedQueue<String> fontesReserva;
+    private final ConcurrentLinkedDeque<Integer> pecasPendentes;
+    private final AtomicIntegerArray estadoPecas;
+    private final AtomicInteger pecasConcluidas;
+    private final AtomicInteger trabalhadoresCriados;
+    private final PoolBuffers poolBuffersPecas;
+    private final Semaphore vagasVerificacao;
+    private ProgressoDownload progresso;
+    private FileChannel canalDestino;
+    private ExecutorService verificadores;
+    private BaldeTokens baldeTransferencia;
+
+    /**
+     * @param arquivo nome do arquivo a ser solicitado aos peers.
+     * @param destino arquivo local onde as peças serão escritas.
+     * @param metadados tamanho do arquivo e hashes das peças informados pelos peers.
+     * @param peers endereços dos peers que possuem o arquivo, em ordem de prioridade.
+     * @param poolConexoes pool de conexões mantidas abertas com os peers.
+     * @param limitadorDownload limites de banda de download, com este download sendo uma única transferência.
+     */
+    public DownloadMultiFonte(String arquivo, File destino, MetadadosArquivo metadados, List<String> peers, PoolConexoesPeers poolConexoes,
+        LimitadorBanda limitadorDownload) {
+        this.arquivo = arquivo;
+        this.destino = destino;
+        this.metadados = metadados;
+        this.tamanhoArquivo = metadados.getTamanhoArquivo();
+        this.tamanhoPeca = metadados.getTamanhoPeca();
+        this.quantidadePecas = metadados.getQuantidadePecas();
+        this.peers = new ArrayList<>(peers);
+        this.quantidadeFontesAtivas = Math.min(MAXIMO_FONTES_ATIVAS, this.peers.size());
+        this.poolConexoes = poolConexoes;
+        this.limitadorDownload = limitadorDownload;
+        this.fontesReserva = new ConcurrentLinkedQueue<>(this.peers.subList(quantidadeFontesAtivas, this.peers.size()));
+        this.pecasPendentes = new ConcurrentLinkedDeque<>();
+        this.estadoPecas = new AtomicIntegerArray(quantidadePecas);
+        this.pecasConcluidas = new AtomicInteger();
+        this.trabalhadoresCriados = new AtomicInteger();
+
+        int pecasAguardandoVerificacao = THREADS_VERIFICACAO * PECAS_AGUARDANDO_VERIFICACAO_POR_THREAD;
+        this.poolBuffersPecas = new PoolBuffers(pecasAguardandoVerificacao + quantidadeFontesAtivas, tamanhoPeca);
+        this.vagasVerificacao = new Semaphore(pecasAguardandoVerificacao);
+    }
+
+    /**
+     * Consulta os peers, em ordem, até que um deles informe o tamanho do arquivo e os hashes das suas peças.
+     *
+     * @param arquivo nome do arquivo.
+     * @param peers endereços dos peers que possuem o arquivo.
+     * @param poolConexoes pool de conexões mantidas abertas com os peers, reaproveitadas em seguida pelo download.
+     * @return metadados do arquivo ou nulo caso nenhum peer responda.
+     */
+    public static MetadadosArquivo consultarMetadados(String arquivo, List<String> peers, PoolConexoesPeers poolConexoes) {
+        for (String peer : peers) {
+            PoolConexoesPeers.Conexao conexao = null;
+
+            try {
+                conexao = poolConexoes.obter(peer);
+
+                Mensagem requisicaoInfo = new Mensagem("INFO_ARQUIVO");
+                requisicaoInfo.adicionarMensagem("arquivo_solicitado", arquivo);
+                requisicaoInfo.adicionarMensagem("manter_conexao", true);
+                Mensagem.enviarMensagemTCP(conexao.getSaida(), requisicaoInfo);
+
+                Mensagem resposta = Mensagem.receberMensagemTCP(conexao.getEntrada());
+                if (resposta == null) {
+                    conexao.invalidar();
+                } else if (resposta.getTitulo().equals("INFO_ARQUIVO_OK")) {
+                    Map<String, Object> mensagens = resposta.getMensagens();
+                    Object tamanho = mensagens.get("tamanho");
+                    Object hashesPecas = mensagens.get("hashes_pecas");
+
+                    if (isMetadadosValidos(tamanho, mensagens.get("tamanho_peca"), hashesPecas)) {
+                        return new MetadadosArquivo((Long) tamanho, TAMANHO_PECA, (byte[]) hashesPecas);
+                    }
+                    System.out.println(String.format("Peer %s informou metadados inválidos para o arquivo %s (tamanho %s, peça de %s bytes).",
+                        peer, arquivo, tamanho, mensagens.get("tamanho_peca")));
+                    continue;
+                }
+            } catch (IOException | RuntimeException e) {
+                if (conexao != null) {
+                    conexao.invalidar();
+                }
+            } finally {
+                if (conexao != null) {
+                    poolConexoes.devolver(conexao);
+                }
+            }
+            System.out.println(String.format("Peer %s não informou os metadados do arquivo %s.", peer, arquivo));
+        }
+        return null;
+    }
+
+    /**
+     * Os buffers das peças e o servidor de arquivos assumem o tamanho de peça fixo, então metadados com outro tamanho de peça,
+     * tamanho negativo ou quantidade de hashes que não corresponda à quantidade de peças são recusados antes de qualquer alocação.
+     */
+    private static boolean isMetadadosValidos(Object tamanho, Object tamanhoPeca, Object hashesPecas) {
+        if (!(tamanho instanceof Long) || !Integer.valueOf(TAMANHO_PECA).equals(tamanhoPeca) || !(hashesPecas instanceof byte[])) {
+            return false;
+        }
+
+        long tamanhoArquivo = (Long) tamanho;
+        if (tamanhoArquivo < 0) {
+            return false;
+        }
+        long quantidadePecas = tamanhoArquivo / TAMANHO_PECA + (tamanhoArquivo % TAMANHO_PECA == 0 ? 0 : 1);
+        return ((byte[]) hashesPecas).length == quantidadePecas * MetadadosArquivo.TAMANHO_HASH;
+    }
+
+    /**
+     * Executa o download, bloqueando até que todas as peças sejam concluídas e verificadas ou todos os peers desistam.
+     *
+     * @return true se todas as peças foram baixadas e verificadas.
+     * @throws IOException caso não seja possível escrever no arquivo de destino.
+     * @throws InterruptedException caso a thread seja interrompida durante a espera.
+     */
+    public boolean executar() throws IOException, InterruptedException {
+        long inicio = System.nanoTime();
+        this.progresso = ProgressoDownload.abrir(destino, tamanhoArquivo, tamanhoPeca, quantidadePecas);
+        this.baldeTransferencia = limitadorDownload.novaTransferencia();
+        ExecutorService executor = null;
+
+        try (FileChannel canal = abrirDestino()) {
+            this.canalDestino = canal;
+            this.verificadores = Executors.newFixedThreadPool(THREADS_VERIFICACAO);
+            carregarPecasPendentes();
+            executor = Executors.newFixedThreadPool(Math.max(1, quantidadeFontesAtivas));
+
+            for (String peer : peers.subList(0, quantidadeFontesAtivas)) {
+                executor.execute(() -> buscarPecas(peer));
+            }
+
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println(String.format("Download de %s: %d de %d peças concluídas.", arquivo, pecasConcluidas.get(), quantidadePecas));
+            }
+
+            verificadores.shutdown();
+            verificadores.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (IOException | InterruptedException e) {
+            // interrompe os trabalhadores e verificadores ainda em execução, para que não continuem o download abandonado
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (verificadores != null) {
+                verificadores.shutdownNow();
+            }
+            progresso.close();
+            throw e;
+        } finally {
+            limitadorDownload.encerrarTransferencia(baldeTransferencia);
+        }
+
+        boolean isConcluido = isDownloadConcluido();
+        if (!isConcluido) {
+            progresso.close();
+            System.out.println(String.format("Download de %s interrompido com %d de %d peças, será retomado na próxima tentativa.",
+                arquivo, pecasConcluidas.get(), quantidadePecas));
+        } else {
+            progresso.descartar();
+            MetadadosArquivo.salvar(destino, metadados);
+            double segundos = Math.max(System.nanoTime() - inicio, 1) / 1e9;
+            System.out.println(String.format("Download de %s concluído e verificado a partir de %d peers: %d bytes em %.3f s (%.2f MB/s)",
+                arquivo, peers.size(), tamanhoArquivo, segundos, tamanhoArquivo / segundos / (1024 * 1024)));
+        }
+        return isConcluido;
+    }
+
+    /**
+     * Abre o arquivo de destino sem descartar seu conteúdo quando o download está sendo retomado, já com o tamanho final do arquivo,
+     * de modo que as escritas posicionais das peças nunca precisem estender o arquivo.
+     */
+    private FileChannel abrirDestino() throws IOException {
+        FileChannel canal = progresso.isRetomado()
+            ? FileChannel.open(destino.toPath(), StandardOpenOption.WRITE)
+            : FileChannel.open(destino.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        if (canal.size() > tamanhoArquivo) {
+            canal.truncate(tamanhoArquivo);
+        } else if (canal.size() < tamanhoArquivo) {
+            canal.write(ByteBuffer.wrap(new byte[1]), tamanhoArquivo - 1);
+        }
+        return canal;
+    }
+
+    private void carregarPecasPendentes() {
+        for (int peca = 0; peca < quantidadePecas; peca++) {
+            if (progresso.isPecaConcluida(peca)) {
+                estadoPecas.set(peca, PECA_CONCLUIDA);
+                pecasConcluidas.incrementAndGet();
+            } else {
+                pecasPendentes.add(peca);
+            }
+        }
+
+        if (progresso.isRetomado()) {
+            System.out.println(String.format("Retomando download de %s com %d de %d peças já concluídas.", arquivo, pecasConcluidas.get(), quantidadePecas));
+        }
+    }
+
+    /**
+     * Busca peças na fonte informada e, cada vez que a fonte desiste, na próxima fonte reserva em ordem de prioridade.
+     */
+    private void buscarPecas(String fonte) {
+        while (fonte != null && new TrabalhadorPeer(fonte).buscarPecas()) {
+            fonte = fontesReserva.poll();
+            if (fonte != null) {
+                System.out.println(String.format("Peer %s assumiu o lugar de uma fonte que desistiu do download de %s.", fonte, arquivo));
+            }
+        }
+    }
+
+    private boolean isDownloadConcluido() {
+        return pecasConcluidas.get() == quantidadePecas;
+    }
+
+    /**
+     * Retira a próxima peça pendente. Com a fila vazia, escolhe uma peça ainda em andamento em outro peer para ser buscada em paralelo,
+     * como duplicata: ela continua pertencendo ao peer que a retirou da fila.
+     *
+     * @param estadoEmAndamento estado que identifica as peças em andamento do trabalhador.
+     * @return índice da peça, AGUARDAR_VERIFICACAO caso as peças restantes estejam em verificação ou -1 caso não haja mais peças a buscar.
+     */
+    private int proximaPeca(int estadoEmAndamento) {
+        int peca = proximaPecaPendente(estadoEmAndamento);
+        if (peca != -1) {
+            return peca;
+        }
+
+        boolean isAlgumaEmVerificacao = false;
+        int deslocamento = ThreadLocalRandom.current().nextInt(Math.max(1, quantidadePecas));
+        for (int i = 0; i < quantidadePecas; i++) {
+            int candidata = (deslocamento + i) % quantidadePecas;
+            int estado = estadoPecas.get(candidata);
+
+            if (estado == PECA_PENDENTE && estadoPecas.compareAndSet(candidata, PECA_PENDENTE, estadoEmAndamento)) {
+                return candidata;
+            }
+            if (estado >= PECA_EM_ANDAMENTO && estado != estadoEmAndamento) {
+                return candidata;
+            }
+            isAlgumaEmVerificacao |= estado == PECA_VERIFICANDO;
+        }
+        return isAlgumaEmVerificacao ? AGUARDAR_VERIFICACAO : -1;
+    }
+
+    /**
+     * @param estadoEmAndamento estado que identifica as peças em andamento do trabalhador.
+     * @return índice da próxima peça pendente da fila ou -1 caso a fila esteja vazia.
+     */
+    private int proximaPecaPendente(int estadoEmAndamento) {
+        Integer peca;
+        while ((peca = pecasPendentes.poll()) != null) {
+            if (estadoPecas.compareAndSet(peca, PECA_PENDENTE, estadoEmAndamento)) {
+                return peca;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Passa a peça recebida para verificação, caso nenhuma outra cópia dela já tenha sido recebida. Vale tanto a cópia do peer que
+     * retirou a peça da fila quanto a de uma duplicata, mesmo que a original já tenha sido devolvida à fila.
+     *
+     * @return true se a cópia deve ser verificada, ou false caso outra cópia já esteja em verificação ou concluída.
+     */
+    private boolean iniciarVerificacao(int peca) {
+        int estado;
+        while ((estado = estadoPecas.get(peca)) == PECA_PENDENTE || estado >= PECA_EM_ANDAMENTO) {
+            if (estadoPecas.compareAndSet(peca, estado, PECA_VERIFICANDO)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Devolve a peça à fila somente se ela continuar no estado informado, de modo que uma duplicata, cujo estado é o do peer que
+     * retirou a peça da fila, nunca a devolva.
+     */
+    private void devolverPeca(int peca, int estadoAtual) {
+        if (estadoPecas.compareAndSet(peca, estadoAtual, PECA_PENDENTE)) {
+            pecasPendentes.addFirst(peca);
+        }
+    }
+
+    private long inicioPeca(int peca) {
+        return (long) peca * tamanhoPeca;
+    }
+
+    private int tamanhoPeca(int peca) {
+        return (int) Math.min(tamanhoPeca, tamanhoArquivo - inicioPeca(peca));
+    }
+
+    /**
+     * Tarefa executada no pool de verificação: confere o hash da peça e, se íntegra, a escreve em disco e registra no progresso.
+     * Peças corrompidas voltam para a fila para serem buscadas novamente.
+     */
+    private void verificarEGravarPeca(int peca, byte[] conteudoPeca, TrabalhadorPeer origem) {
+        try {
+            int tamanho = tamanhoPeca(peca);
+
+            if (!metadados.verificarPeca(peca, conteudoPeca, tamanho)) {
+                origem.registrarPecaCorrompida();
+                devolverPeca(peca, PECA_VERIFICANDO);
+                System.out.println(String.format("Peça %d de %s recebida de %s falhou na verificação e será baixada novamente.", peca, arquivo, origem.peer));
+                return;
+            }
+
+            ByteBuffer conteudo = ByteBuffer.wrap(conteudoPeca, 0, tamanho);
+            long posicao = inicioPeca(peca);
+            while (conteudo.hasRemaining()) {
+                posicao += canalDestino.write(conteudo, posicao);
+            }
+
+            canalDestino.force(false);
+            progresso.marcarConcluida(peca);
+
+            if (estadoPecas.getAndSet(peca, PECA_CONCLUIDA) != PECA_CONCLUIDA) {
+                pecasConcluidas.incrementAndGet();
+            }
+        } catch (IOException e) {
+            devolverPeca(peca, PECA_VERIFICANDO);
+            System.out.println(String.format("Não foi possível gravar a peça %d de %s.", peca, arquivo));
+        } finally {
+            poolBuffersPecas.devolver(conteudoPeca);
+            vagasVerificacao.release();
+        }
+    }
+
+    /**
+     * Busca de peças em um único peer, executada por uma das threads das fontes ativas.
+     */
+    class TrabalhadorPeer {
+        private final String peer;
+        private final AtomicInteger pecasCorrompidas;
+        private final LimitadorBanda.Limite limite;
+        private final int estadoEmAndamento;
+
+        /**
+         * Espera informada pelo peer na última negação, ou zero caso ele não tenha informado.
+         */
+        private long esperaEstimadaMilissegundos;
+
+        TrabalhadorPeer(String peer) {
+            this.peer = peer;
+            this.pecasCorrompidas = new AtomicInteger();
+            this.limite = limitadorDownload.limitar(peer, baldeTransferencia);
+            this.estadoEmAndamento = PECA_EM_ANDAMENTO + trabalhadoresCriados.getAndIncrement();
+        }
+
+        void registrarPecaCorrompida() {
+            pecasCorrompidas.incrementAndGet();
+        }
+
+        /**
+         * Busca peças no peer até que o download seja concluído, não haja mais peças a buscar ou o peer falhe repetidamente.
+         *
+         * @return true caso o peer tenha sido abandonado por falhas ou peças corrompidas, e outra fonte deva assumir o seu lugar.
+         */
+        boolean buscarPecas() {
+            int tentativasSemSucesso = 0;
+            List<Integer> lote = new ArrayList<>(PROFUNDIDADE_PIPELINE);
+
+            while (!isDownloadConcluido() && tentativasSemSucesso < TENTATIVAS_SEM_SUCESSO_POR_PEER
+                && pecasCorrompidas.get() < TENTATIVAS_SEM_SUCESSO_POR_PEER && !Thread.currentThread().isInterrupted()) {
+                int peca = proximaPeca(estadoEmAndamento);
+
+                try {
+                    if (peca == -1) {
+                        return false;
+                    }
+                    if (peca == AGUARDAR_VERIFICACAO) {
+                        TimeUnit.MILLISECONDS.sleep(TEMPO_ESPERA_VERIFICACAO_MILISSEGUNDOS);
+                        continue;
+                    }
+
+                    lote.clear();
+                    lote.add(peca);
+                    while (lote.size() < PROFUNDIDADE_PIPELINE && (peca = proximaPecaPendente(estadoEmAndamento)) != -1) {
+                        lote.add(peca);
+                    }
+
+                    esperaEstimadaMilissegundos = 0;
+                    if (baixarLote(lote) > 0) {
+                        tentativasSemSucesso = 0;
+                        continue;
+                    }
+
+                    // negações com espera estimada significam que o peer nos colocou na fila de upload, e não contam como falha
+                    if (esperaEstimadaMilissegundos > 0) {
+                        TimeUnit.MILLISECONDS.sleep(Math.min(esperaEstimadaMilissegundos, TEMPO_MAXIMO_ESPERA_FILA_MILISSEGUNDOS));
+                        continue;
+                    }
+                    tentativasSemSucesso++;
+                    TimeUnit.SECONDS.sleep(TEMPO_ESPERA_NEGACAO_SEGUNDOS);
+                } catch (IOException e) {
+                    tentativasSemSucesso++;
+                    System.out.println(String.format("Falha ao baixar as peças %s de %s do peer %s.", lote, arquivo, peer));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !isDownloadConcluido() && !Thread.currentThread().isInterrupted();
+        }
+
+        /**
+         * Envia as requisições de todas as peças do lote em sequência por uma única conexão mantida aberta, e só então lê as
+         * respostas, na mesma ordem das requisições. Peças negadas ou cujas respostas não chegaram voltam para a fila.
+         *
+         * @return quantidade de peças do lote recebidas.
+         * @throws IOException caso a conexão falhe, invalidando as respostas restantes do lote.
+         * @throws InterruptedException caso a espera por uma vaga de verificação seja interrompida.
+         */
+        private int baixarLote(List<Integer> lote) throws IOException, InterruptedException {
+            PoolConexoesPeers.Conexao conexao = null;
+            int respondidas = 0;
+            int recebidas = 0;
+
+            try {
+                conexao = poolConexoes.obter(peer);
+                for (int peca : lote) {
+                    enviarRequisicaoPeca(conexao, inicioPeca(peca), tamanhoPeca(peca));
+                }
+
+                for (; respondidas < lote.size(); respondidas++) {
+                    int peca = lote.get(respondidas);
+                    if (!conexao.isValida()) {
+                        throw new IOException("Conexão com o peer " + peer + " encerrada durante o lote");
+                    }
+
+                    if (receberPeca(conexao, peca)) {
+                        recebidas++;
+                    } else {
+                        devolverPeca(peca, estadoEmAndamento);
+                        System.out.println(String.format("Peer %s negou a peça %d de %s.", peer, peca, arquivo));
+                    }
+                }
+                return recebidas;
+            } catch (IOException | InterruptedException e) {
+                if (conexao != null) {
+                    conexao.invalidar();
+                }
+                throw e;
+            } finally {
+                for (int i = respondidas; i < lote.size(); i++) {
+                    devolverPeca(lote.get(i), estadoEmAndamento);
+                }
+                if (conexao != null) {
+                    poolConexoes.devolver(conexao);
+                }
+            }
+        }
+
+        private void enviarRequisicaoPeca(PoolConexoesPeers.Conexao conexao, long inicio, int tamanho) {
+            Mensagem requisicaoPeca = new Mensagem("DOWNLOAD");
+            requisicaoPeca.adicionarMensagem("arquivo_solicitado", arquivo);
+            requisicaoPeca.adicionarMensagem("inicio", inicio);
+            requisicaoPeca.adicionarMensagem("tamanho", (long) tamanho);
+            requisicaoPeca.adicionarMensagem("manter_conexao", true);
+            if (poolConexoes.getEnderecoLocal() != null) {
+                requisicaoPeca.adicionarMensagem("endereco", poolConexoes.getEnderecoLocal());
+            }
+            Mensagem.enviarMensagemTCP(conexao.getSaida(), requisicaoPeca);
+        }
+
+        /**
+         * Lê a resposta da peça já requisitada na conexão e a entrega ao pool de verificação.
+         * Caso a conexão caia após parte da peça ter sido recebida, solicita em outra conexão somente o restante da peça.
+         *
+         * @return true se a peça foi recebida e false caso o peer tenha negado o download.
+         * @throws IOException caso a conexão falhe sem que nenhum byte novo seja recebido.
+         * @throws InterruptedException caso a espera por uma vaga de verificação seja interrompida.
+         */
+        private boolean receberPeca(PoolConexoesPeers.Conexao conexao, int peca) throws IOException, InterruptedException {
+            long inicio = inicioPeca(peca);
+            int tamanho = tamanhoPeca(peca);
+
+            vagasVerificacao.acquire();
+            byte[] bufferPeca = poolBuffersPecas.obter();
+            boolean isEntregueParaVerificacao = false;
+
+            try {
+                int bytesRecebidos = lerResposta(conexao, peca, inicio, bufferPeca, 0, tamanho);
+                if (bytesRecebidos == DOWNLOAD_NEGADO) {
+                    return false;
+                }
+
+                while (bytesRecebidos < tamanho) {
+                    int bytesLidos = baixarIntervalo(peca, bufferPeca, inicio + bytesRecebidos, bytesRecebidos, tamanho - bytesRecebidos);
+
+                    if (bytesLidos == DOWNLOAD_NEGADO) {
+                        return false;
+                    }
+                    if (bytesLidos == 0) {
+                        throw new IOException(String.format("Peça %d incompleta: %d de %d bytes", peca, bytesRecebidos, tamanho));
+                    }
+                    bytesRecebidos += bytesLidos;
+                }
+
+                if (iniciarVerificacao(peca)) {
+                    verificadores.execute(() -> verificarEGravarPeca(peca, bufferPeca, this));
+                    isEntregueParaVerificacao = true;
+                }
+                return true;
+            } finally {
+                if (!isEntregueParaVerificacao) {
+                    poolBuffersPecas.devolver(bufferPeca);
+                    vagasVerificacao.release();
+                }
+            }
+        }
+
+        /**
+         * Solicita um único intervalo de bytes ao peer, usado para completar uma peça cuja conexão caiu no meio da transferência.
+         *
+         * @return quantidade de bytes recebidos ou DOWNLOAD_NEGADO caso o peer tenha negado o download.
+         */
+        private int baixarIntervalo(int peca, byte[] bufferPeca, long inicio, int deslocamentoBuffer, int tamanho) throws IOException, InterruptedException {
+            PoolConexoesPeers.Conexao conexao = poolConexoes.obter(peer);
+
+            try {
+                enviarRequisicaoPeca(conexao, inicio, tamanho);
+                return lerResposta(conexao, peca, inicio, bufferPeca, deslocamentoBuffer, tamanho);
+            } catch (IOException | InterruptedException e) {
+                conexao.invalidar();
+                throw e;
+            } finally {
+                poolConexoes.devolver(conexao);
+            }
+        }
+
+        /**
+         * Lê o cabeçalho da resposta e, caso o download tenha sido aceito, exatamente os bytes anunciados para o buffer da peça a
+         * partir do deslocamento informado. Se a conexão cair no meio do conteúdo ela é invalidada e os bytes já lidos são mantidos.
+         * O conteúdo é lido em fatias respeitando o limite de banda de download.
+         *
+         * @return quantidade de bytes recebidos ou DOWNLOAD_NEGADO caso o peer tenha negado o download.
+         * @throws IOException caso a resposta seja inválida ou a conexão falhe antes do primeiro byte do conteúdo.
+         * @throws InterruptedException caso a espera pelo limite de banda seja interrompida.
+         */
+        private int lerResposta(PoolConexoesPeers.Conexao conexao, int peca, long inicio, byte[] bufferPeca, int deslocamentoBuffer, int tamanho)
+            throws IOException, InterruptedException {
+            InputStream entrada = conexao.getEntrada();
+            Mensagem resposta = Mensagem.receberMensagemTCP(entrada);
+
+            if (resposta == null) {
+                throw new IOException("Conexão encerrada antes do cabeçalho da resposta");
+            }
+            if (resposta.getTitulo().equals("DOWNLOAD_NEGADO")) {
+                Object esperaEstimada = resposta.getMensagens().get("espera_estimada");
+                if (esperaEstimada instanceof Long) {
+                    esperaEstimadaMilissegundos = Math.max(esperaEstimadaMilissegundos, (Long) esperaEstimada);
+                }
+                return DOWNLOAD_NEGADO;
+            }
+            validarCabecalho(resposta, peca, inicio, tamanho);
+
+            int bytesLidos = 0;
+            try {
+                int lidosAgora;
+                while (bytesLidos < tamanho
+                    && (lidosAgora = entrada.read(bufferPeca, deslocamentoBuffer + bytesLidos, (int) limite.fatia(tamanho - bytesLidos))) != -1) {
+                    bytesLidos += lidosAgora;
+                    limite.aguardar(lidosAgora);
+                }
+            } catch (IOException e) {
+                if (bytesLidos == 0) {
+                    throw e;
+                }
+            }
+
+            if (bytesLidos < tamanho) {
+                conexao.invalidar();
+            }
+            return bytesLidos;
+        }
+
+        /**
+         * O peer deve confirmar exatamente o intervalo solicitado, caso contrário os bytes seguintes não pertencem à peça esperada.
+         */
+        private void validarCabecalho(Mensagem resposta, int peca, long inicio, int tamanho) throws IOException {
+            Map<String, Object> campos = resposta.getMensagens();
+
+            if (!resposta.getTitulo().equals("DOWNLOAD_OK") || !Long.valueOf(inicio).equals(campos.get("inicio"))
+                || !Long.valueOf(tamanho).equals(campos.get("tamanho")) || !Integer.valueOf(peca).equals(campos.get("peca"))) {
+                throw new IOException(String.format("Cabeçalho inesperado para a peça %d de %s: %s", peca, arquivo, resposta));
+            }
+        }
+    }
+}
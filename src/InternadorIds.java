@@ -0,0 +1,137 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Associa nomes a identificadores inteiros densos, permitindo que as estruturas de índice guardem inteiros primitivos
+ * no lugar de Strings repetidas. Cada identificador pode carregar um valor associado.
+ *
+ * Os nomes e valores são guardados em segmentos de tamanho fixo que nunca são realocados, de modo que o crescimento da tabela
+ * não invalide escritas concorrentes. Identificadores liberados são reaproveitados. A sincronização entre o uso de um
+ * identificador e sua liberação é responsabilidade do chamador.
+ *
+ * @param <V> tipo do valor associado a cada identificador.
+ * @author Maik Henrique
+ */
+public final class InternadorIds<V> {
+
+    private static final int BITS_SEGMENTO = 12;
+    private static final int TAMANHO_SEGMENTO = 1 << BITS_SEGMENTO;
+    private static final int MASCARA_SEGMENTO = TAMANHO_SEGMENTO - 1;
+
+    private final Map<String, Integer> idsPorNome;
+    private volatile String[][] nomes;
+    private volatile Object[][] valores;
+
+    private int proximoId;
+    private int[] idsLivres;
+    private int quantidadeIdsLivres;
+
+    public InternadorIds() {
+        this.idsPorNome = new ConcurrentHashMap<>();
+        this.nomes = new String[0][];
+        this.valores = new Object[0][];
+        this.idsLivres = new int[16];
+    }
+
+    /**
+     * @param nome nome a ser internado.
+     * @return identificador existente para o nome ou um novo identificador.
+     */
+    public int internar(String nome) {
+        Integer id = idsPorNome.get(nome);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (this) {
+            id = idsPorNome.get(nome);
+            if (id != null) {
+                return id;
+            }
+
+            int novoId = quantidadeIdsLivres > 0 ? idsLivres[--quantidadeIdsLivres] : proximoId++;
+            garantirCapacidade(novoId);
+            nomes[novoId >>> BITS_SEGMENTO][novoId & MASCARA_SEGMENTO] = nome;
+            idsPorNome.put(nome, novoId);
+            return novoId;
+        }
+    }
+
+    /**
+     * @param nome nome buscado.
+     * @return identificador do nome ou -1 caso não esteja internado.
+     */
+    public int getId(String nome) {
+        Integer id = idsPorNome.get(nome);
+        return id == null ? -1 : id;
+    }
+
+    public String getNome(int id) {
+        return nomes[id >>> BITS_SEGMENTO][id & MASCARA_SEGMENTO];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getValor(int id) {
+        return (V) valores[id >>> BITS_SEGMENTO][id & MASCARA_SEGMENTO];
+    }
+
+    public void setValor(int id, V valor) {
+        valores[id >>> BITS_SEGMENTO][id & MASCARA_SEGMENTO] = valor;
+    }
+
+    /**
+     * Remove o nome e o valor associados ao identificador, que passa a poder ser reaproveitado.
+     *
+     * @param id identificador a ser liberado.
+     */
+    public synchronized void liberar(int id) {
+        String nome = getNome(id);
+        if (nome == null) {
+            return;
+        }
+
+        idsPorNome.remove(nome);
+        nomes[id >>> BITS_SEGMENTO][id & MASCARA_SEGMENTO] = null;
+        valores[id >>> BITS_SEGMENTO][id & MASCARA_SEGMENTO] = null;
+
+        if (quantidadeIdsLivres == idsLivres.length) {
+            int[] novosIdsLivres = new int[idsLivres.length * 2];
+            System.arraycopy(idsLivres, 0, novosIdsLivres, 0, quantidadeIdsLivres);
+            idsLivres = novosIdsLivres;
+        }
+        idsLivres[quantidadeIdsLivres++] = id;
+    }
+
+    public int getQuantidade() {
+        return idsPorNome.size();
+    }
+
+    /**
+     * @return visão dos nomes internados, que reflete as alterações concorrentes sem lançar ConcurrentModificationException.
+     */
+    public Set<String> getNomes() {
+        return Collections.unmodifiableSet(idsPorNome.keySet());
+    }
+
+    private void garantirCapacidade(int id) {
+        int segmento = id >>> BITS_SEGMENTO;
+        if (segmento < nomes.length) {
+            return;
+        }
+
+        String[][] novosNomes = new String[segmento + 1][];
+        Object[][] novosValores = new Object[segmento + 1][];
+        System.arraycopy(nomes, 0, novosNomes, 0, nomes.length);
+        System.arraycopy(valores, 0, novosValores, 0, valores.length);
+
+        for (int i = nomes.length; i <= segmento; i++) {
+            novosNomes[i] = new String[TAMANHO_SEGMENTO];
+            novosValores[i] = new Object[TAMANHO_SEGMENTO];
+        }
+
+        valores = novosValores;
+        nomes = novosNomes;
+    }
+}
@@ -0,0 +1,213 @@
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Janela de deduplicação das requisições recebidas pelo servidor, identificadas pelo endereço de origem e pelo id_requisicao.
+ * Quando o cliente retransmite uma requisição cuja resposta se perdeu, a requisição não é executada novamente: as respostas
+ * enviadas da primeira vez são reenviadas, sem nenhuma alteração no índice.
+ *
+ * As entradas são divididas em segmentos pela chave, cada um com a sua trava, e mantidas em ordem de chegada. São descartadas
+ * quando o segmento excede a sua capacidade ou quando passam da validade, que deve cobrir todas as retransmissões do cliente.
+ * Uma duplicata recebida enquanto a requisição original ainda é executada é ignorada, já que a resposta original será enviada.
+ *
+ * @author Maik Henrique
+ */
+public class JanelaDeduplicacao {
+
+    private static final int QUANTIDADE_SEGMENTOS = 16;
+
+    private final Relogio relogio;
+    private final long validadeNanos;
+    private final Segmento[] segmentos;
+    private final LongAdder novas;
+    private final LongAdder duplicadas;
+    private final LongAdder duplicadasEmAndamento;
+    private final LongAdder expulsoes;
+
+    /**
+     * @param relogio fonte de tempo da validade das entradas.
+     * @param capacidade quantidade máxima de requisições lembradas.
+     * @param validadeNanos tempo durante o qual uma requisição é lembrada.
+     */
+    public JanelaDeduplicacao(Relogio relogio, int capacidade, long validadeNanos) {
+        this.relogio = relogio;
+        this.validadeNanos = validadeNanos;
+        this.segmentos = new Segmento[QUANTIDADE_SEGMENTOS];
+        for (int i = 0; i < QUANTIDADE_SEGMENTOS; i++) {
+            segmentos[i] = new Segmento(Math.max(1, capacidade / QUANTIDADE_SEGMENTOS));
+        }
+        this.novas = new LongAdder();
+        this.duplicadas = new LongAdder();
+        this.duplicadasEmAndamento = new LongAdder();
+        this.expulsoes = new LongAdder();
+    }
+
+    /**
+     * Verifica se a requisição já foi recebida, registrando-a como em andamento caso seja nova. Requisições novas devem ser
+     * encerradas com concluir ou descartar.
+     *
+     * @param origem endereço de origem da requisição.
+     * @param idRequisicao id_requisicao da requisição.
+     * @return nulo caso a requisição seja nova; caso contrário, as respostas a reenviar, vazias se a original ainda está em andamento.
+     */
+    public List<byte[]> verificar(SocketAddress origem, long idRequisicao) {
+        ChaveRequisicao chave = new ChaveRequisicao(origem, idRequisicao);
+        Segmento segmento = segmento(chave);
+        long agora = relogio.nanoTime();
+
+        synchronized (segmento) {
+            segmento.expulsarExpiradas(agora);
+            Entrada entrada = segmento.entradas.get(chave);
+
+            if (entrada != null) {
+                if (entrada.respostas == null) {
+                    duplicadasEmAndamento.increment();
+                    return Collections.emptyList();
+                }
+                duplicadas.increment();
+                return entrada.respostas;
+            }
+
+            segmento.entradas.put(chave, new Entrada(agora));
+            segmento.expulsarExcedente();
+        }
+        novas.increment();
+        return null;
+    }
+
+    /**
+     * Guarda as respostas enviadas a uma requisição nova, para que sejam reenviadas às suas duplicatas.
+     */
+    public void concluir(SocketAddress origem, long idRequisicao, List<byte[]> respostas) {
+        ChaveRequisicao chave = new ChaveRequisicao(origem, idRequisicao);
+        Segmento segmento = segmento(chave);
+
+        synchronized (segmento) {
+            Entrada entrada = segmento.entradas.get(chave);
+            if (entrada != null) {
+                entrada.respostas = respostas;
+            }
+        }
+    }
+
+    /**
+     * Esquece uma requisição nova cuja execução falhou, de modo que a sua retransmissão seja executada.
+     */
+    public void descartar(SocketAddress origem, long idRequisicao) {
+        ChaveRequisicao chave = new ChaveRequisicao(origem, idRequisicao);
+        Segmento segmento = segmento(chave);
+
+        synchronized (segmento) {
+            segmento.entradas.remove(chave);
+        }
+    }
+
+    public long getNovas() {
+        return novas.sum();
+    }
+
+    public long getDuplicadas() {
+        return duplicadas.sum() + duplicadasEmAndamento.sum();
+    }
+
+    public long getDuplicadasEmAndamento() {
+        return duplicadasEmAndamento.sum();
+    }
+
+    public long getExpulsoes() {
+        return expulsoes.sum();
+    }
+
+    /**
+     * @return fração das requisições recebidas que eram duplicatas, entre 0 e 1.
+     */
+    public double getTaxaDuplicacao() {
+        long duplicadas = getDuplicadas();
+        long total = duplicadas + getNovas();
+        return total == 0 ? 0 : (double) duplicadas / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [novas=%d, duplicadas=%d (%d em andamento), taxa de duplicação=%.1f%%, expulsões=%d]",
+            getClass().getSimpleName(), getNovas(), getDuplicadas(), getDuplicadasEmAndamento(), getTaxaDuplicacao() * 100, getExpulsoes());
+    }
+
+    private Segmento segmento(ChaveRequisicao chave) {
+        int hash = chave.hashCode();
+        return segmentos[(hash ^ (hash >>> 16)) & (QUANTIDADE_SEGMENTOS - 1)];
+    }
+
+    private static class ChaveRequisicao {
+        private final SocketAddress origem;
+        private final long idRequisicao;
+
+        ChaveRequisicao(SocketAddress origem, long idRequisicao) {
+            this.origem = origem;
+            this.idRequisicao = idRequisicao;
+        }
+
+        @Override
+        public boolean equals(Object outro) {
+            if (!(outro instanceof ChaveRequisicao)) {
+                return false;
+            }
+            ChaveRequisicao chave = (ChaveRequisicao) outro;
+            return idRequisicao == chave.idRequisicao && origem.equals(chave.origem);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(origem, idRequisicao);
+        }
+    }
+
+    /**
+     * Requisição lembrada, com as respostas enviadas ou nulo enquanto está em andamento.
+     */
+    private static class Entrada {
+        private final long instanteRecebimento;
+        private volatile List<byte[]> respostas;
+
+        Entrada(long instanteRecebimento) {
+            this.instanteRecebimento = instanteRecebimento;
+        }
+    }
+
+    /**
+     * Parte da janela com a sua própria trava, mantendo as entradas em ordem de chegada.
+     */
+    private class Segmento {
+        private final int capacidade;
+        private final LinkedHashMap<ChaveRequisicao, Entrada> entradas;
+
+        Segmento(int capacidade) {
+            this.capacidade = capacidade;
+            this.entradas = new LinkedHashMap<>();
+        }
+
+        void expulsarExpiradas(long agora) {
+            Iterator<Entrada> maisAntigas = entradas.values().iterator();
+
+            while (maisAntigas.hasNext() && agora - maisAntigas.next().instanteRecebimento > validadeNanos) {
+                maisAntigas.remove();
+            }
+        }
+
+        void expulsarExcedente() {
+            Iterator<Map.Entry<ChaveRequisicao, Entrada>> maisAntigas = entradas.entrySet().iterator();
+
+            while (entradas.size() > capacidade && maisAntigas.hasNext()) {
+                maisAntigas.next();
+                maisAntigas.remove();
+                expulsoes.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limites de banda em três níveis para um sentido de transferência (upload ou download): global, por Peer remoto e por
+ * transferência. Cada nível é um BaldeTokens, e uma transferência só prossegue quando nenhum dos baldes envolvidos está com
+ * saldo negativo.
+ *
+ * As taxas podem ser alteradas durante a execução e passam a valer inclusive para os Peers e transferências já em andamento.
+ * Taxa zero desativa o nível correspondente.
+ *
+ * @author Maik Henrique
+ */
+public class LimitadorBanda {
+
+    /**
+     * Tempo de transferência à menor taxa envolvida que cada fatia representa, mantendo as rajadas pequenas mesmo com taxas baixas.
+     */
+    private static final long DURACAO_FATIA_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int TAMANHO_MINIMO_FATIA = 1024;
+    private static final int TAMANHO_MAXIMO_FATIA = 256 * 1024;
+
+    private final Relogio relogio;
+    private final BaldeTokens baldeGlobal;
+    private final Map<String, BaldeTokens> baldesPorPeer;
+    private final Set<BaldeTokens> baldesTransferencias;
+    private volatile long bytesPorSegundoPorPeer;
+    private volatile long bytesPorSegundoPorTransferencia;
+
+    /**
+     * @param relogio fonte de tempo dos baldes.
+     * @param bytesPorSegundoGlobal limite da soma de todas as transferências.
+     * @param bytesPorSegundoPorPeer limite das transferências com um mesmo Peer remoto.
+     * @param bytesPorSegundoPorTransferencia limite de cada transferência.
+     */
+    public LimitadorBanda(Relogio relogio, long bytesPorSegundoGlobal, long bytesPorSegundoPorPeer, long bytesPorSegundoPorTransferencia) {
+        this.relogio = relogio;
+        this.baldeGlobal = new BaldeTokens(relogio, bytesPorSegundoGlobal);
+        this.baldesPorPeer = new ConcurrentHashMap<>();
+        this.baldesTransferencias = ConcurrentHashMap.newKeySet();
+        this.bytesPorSegundoPorPeer = bytesPorSegundoPorPeer;
+        this.bytesPorSegundoPorTransferencia = bytesPorSegundoPorTransferencia;
+    }
+
+    /**
+     * @return limitador sem nenhum limite configurado.
+     */
+    public static LimitadorBanda semLimite() {
+        return new LimitadorBanda(Relogio.SISTEMA, 0, 0, 0);
+    }
+
+    public long getBytesPorSegundoGlobal() {
+        return baldeGlobal.getBytesPorSegundo();
+    }
+
+    public long getBytesPorSegundoPorPeer() {
+        return bytesPorSegundoPorPeer;
+    }
+
+    public long getBytesPorSegundoPorTransferencia() {
+        return bytesPorSegundoPorTransferencia;
+    }
+
+    public void setBytesPorSegundoGlobal(long bytesPorSegundo) {
+        baldeGlobal.setBytesPorSegundo(bytesPorSegundo);
+    }
+
+    public void setBytesPorSegundoPorPeer(long bytesPorSegundo) {
+        this.bytesPorSegundoPorPeer = bytesPorSegundo;
+        for (BaldeTokens balde : baldesPorPeer.values()) {
+            balde.setBytesPorSegundo(bytesPorSegundo);
+        }
+    }
+
+    public void setBytesPorSegundoPorTransferencia(long bytesPorSegundo) {
+        this.bytesPorSegundoPorTransferencia = bytesPorSegundo;
+        for (BaldeTokens balde : baldesTransferencias) {
+            balde.setBytesPorSegundo(bytesPorSegundo);
+        }
+    }
+
+    /**
+     * Inicia uma transferência com o seu próprio balde, que deve ser encerrada com Limite.encerrar.
+     *
+     * @param peer endereço do Peer remoto, ou nulo caso não seja conhecido.
+     * @return limite da transferência.
+     */
+    public Limite iniciarTransferencia(String peer) {
+        return limitar(peer, novaTransferencia());
+    }
+
+    /**
+     * Cria o balde de uma transferência feita com vários Peers ao mesmo tempo, como um download de múltiplas fontes, cujo
+     * limite de cada Peer é obtido pelo método limitar. Deve ser encerrado com encerrarTransferencia.
+     */
+    public BaldeTokens novaTransferencia() {
+        BaldeTokens balde = new BaldeTokens(relogio, bytesPorSegundoPorTransferencia);
+        baldesTransferencias.add(balde);
+        return balde;
+    }
+
+    public void encerrarTransferencia(BaldeTokens baldeTransferencia) {
+        baldesTransferencias.remove(baldeTransferencia);
+    }
+
+    /**
+     * @param peer endereço do Peer remoto, ou nulo caso não seja conhecido.
+     * @param baldeTransferencia balde criado por novaTransferencia.
+     * @return limite que combina os baldes global, do Peer e da transferência.
+     */
+    public Limite limitar(String peer, BaldeTokens baldeTransferencia) {
+        BaldeTokens baldePeer = peer == null ? null : baldesPorPeer.computeIfAbsent(peer, p -> new BaldeTokens(relogio, bytesPorSegundoPorPeer));
+        return new Limite(baldePeer, baldeTransferencia);
+    }
+
+    /**
+     * Combinação dos baldes envolvidos em uma transferência com um Peer.
+     */
+    public class Limite {
+        private final BaldeTokens baldePeer;
+        private final BaldeTokens baldeTransferencia;
+
+        private Limite(BaldeTokens baldePeer, BaldeTokens baldeTransferencia) {
+            this.baldePeer = baldePeer;
+            this.baldeTransferencia = baldeTransferencia;
+        }
+
+        public boolean isLimitado() {
+            return baldeGlobal.isLimitado() || (baldePeer != null && baldePeer.isLimitado()) || baldeTransferencia.isLimitado();
+        }
+
+        /**
+         * @param restante bytes que ainda faltam ser transferidos.
+         * @return quantidade de bytes a transferir de uma vez antes de registrá-los, sem restrição caso não haja limite.
+         */
+        public long fatia(long restante) {
+            long menorTaxa = menorTaxa(menorTaxa(menorTaxa(Long.MAX_VALUE, baldeGlobal), baldePeer), baldeTransferencia);
+            if (menorTaxa == Long.MAX_VALUE) {
+                return restante;
+            }
+            long fatia = menorTaxa * DURACAO_FATIA_NANOS / TimeUnit.SECONDS.toNanos(1);
+            return Math.min(restante, Math.max(TAMANHO_MINIMO_FATIA, Math.min(TAMANHO_MAXIMO_FATIA, fatia)));
+        }
+
+        /**
+         * Registra bytes transferidos em todos os baldes.
+         *
+         * @return tempo em nanossegundos a esperar antes da próxima transferência.
+         */
+        public long registrar(long bytes) {
+            long espera = baldeGlobal.registrar(bytes);
+            if (baldePeer != null) {
+                espera = Math.max(espera, baldePeer.registrar(bytes));
+            }
+            return Math.max(espera, baldeTransferencia.registrar(bytes));
+        }
+
+        /**
+         * Registra bytes transferidos e bloqueia a thread atual até que a próxima transferência seja permitida.
+         */
+        public void aguardar(long bytes) throws InterruptedException {
+            long espera = registrar(bytes);
+            if (espera > 0) {
+                relogio.dormir(espera);
+            }
+        }
+
+        /**
+         * Encerra a transferência iniciada por iniciarTransferencia.
+         */
+        public void encerrar() {
+            encerrarTransferencia(baldeTransferencia);
+        }
+
+        private long menorTaxa(long atual, BaldeTokens balde) {
+            return balde != null && balde.isLimitado() ? Math.min(atual, balde.getBytesPorSegundo()) : atual;
+        }
+    }
+}
@@ -1,18 +1,26 @@
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
  * Responsável pelo template de mensagens, sendo composto pelo título e um conjunto de mapeamentos chave-valor 
@@ -24,12 +32,51 @@ public class Mensagem implements Serializable {
 
     private static final long serialVersionUID = -3969352858203924755L;
 
+    /**
+     * Formatos suportados na serialização das mensagens. O formato binário é o padrão, enquanto a serialização Java
+     * é mantida como alternativa, sendo o formato detectado automaticamente no recebimento e espelhado nas respostas.
+     */
+    public enum Formato {
+        BINARIO, JAVA
+    }
+
+    /**
+     * Formato usado no envio de mensagens, podendo ser alterado pela propriedade de sistema p2p.formato.mensagem (BINARIO ou JAVA).
+     */
+    public static final Formato FORMATO_PADRAO = Formato.valueOf(System.getProperty("p2p.formato.mensagem", Formato.BINARIO.name()).toUpperCase());
+
+    /**
+     * Tamanho máximo de cada parte de uma mensagem dividida em vários datagramas, abaixo do MTU típico de 1500 bytes descontados
+     * os cabeçalhos IP e UDP, evitando a fragmentação IP.
+     */
+    public static final int TAMANHO_MAXIMO_PARTE = 1400;
+
+    /**
+     * Espaço reservado em cada parte para as chaves parte e total_partes, acrescentadas após a divisão, e para o id_requisicao
+     * acrescentado ao responder.
+     */
+    private static final int TAMANHO_NUMERACAO_PARTES = 160;
+
+    /**
+     * Maior carga útil de um datagrama UDP, usada no recebimento para que nenhuma mensagem seja truncada.
+     */
+    public static final int TAMANHO_MAXIMO_DATAGRAMA = 64 * 1024;
+
+    /**
+     * Buffer de recepção do socket de quem recebe respostas divididas em várias partes, que chegam em rajada.
+     */
+    public static final int TAMANHO_BUFFER_RECEPCAO_UDP = 1024 * 1024;
+
+    private static final byte PRIMEIRO_BYTE_SERIALIZACAO_JAVA = (byte) 0xAC;
+
     private final String titulo;
     private final Map<String, Object> mensagens;    
+    private transient Formato formatoOrigem;
 
     public Mensagem(String titulo) {
         this.titulo = titulo;
         this.mensagens = new HashMap<>();
+        this.formatoOrigem = FORMATO_PADRAO;
     }
 
     /**
@@ -51,15 +98,229 @@ public class Mensagem implements Serializable {
     }
 
     /**
-     * Utilitário para recebimento de mensagens TCP.
+     * @return formato em que a mensagem foi recebida, usado para responder ao remetente no mesmo formato.
+     */
+    public Formato getFormatoOrigem() {
+        return formatoOrigem == null ? Formato.JAVA : formatoOrigem;
+    }
+
+    private Mensagem comFormatoOrigem(Formato formato) {
+        this.formatoOrigem = formato;
+        return this;
+    }
+
+    /**
+     * Divide uma mensagem sobre uma lista de itens (como nomes de arquivos) em partes cuja serialização não excede o tamanho máximo,
+     * cada uma construída com um subconjunto contíguo dos itens e numerada pelas chaves parte (a partir de 1) e total_partes.
+     * Um item que sozinho exceda o tamanho máximo forma uma parte própria.
+     *
+     * @param itens itens a serem distribuídos entre as partes.
+     * @param construtor constrói a mensagem de uma parte a partir dos seus itens.
+     * @param formato formato em que as partes serão serializadas.
+     * @param tamanhoMaximo tamanho máximo de cada parte serializada.
+     * @return partes numeradas, ao menos uma mesmo que não haja itens.
+     * @throws IOException caso as partes não possam ser serializadas.
+     */
+    public static List<Mensagem> dividirEmPartes(List<String> itens, Function<List<String>, Mensagem> construtor, Formato formato,
+        int tamanhoMaximo) throws IOException {
+        List<Mensagem> partes = new ArrayList<>();
+        agruparEmPartes(itens, construtor, formato, tamanhoMaximo - TAMANHO_NUMERACAO_PARTES, partes);
+
+        for (int i = 0; i < partes.size(); i++) {
+            partes.get(i).adicionarMensagem("parte", i + 1);
+            partes.get(i).adicionarMensagem("total_partes", partes.size());
+        }
+        return partes;
+    }
+
+    private static void agruparEmPartes(List<String> itens, Function<List<String>, Mensagem> construtor, Formato formato, int tamanhoMaximo,
+        List<Mensagem> partes) throws IOException {
+        Mensagem parte = construtor.apply(itens);
+
+        if (itens.size() <= 1 || serializar(parte, formato).length <= tamanhoMaximo) {
+            partes.add(parte);
+            return;
+        }
+
+        int metade = itens.size() / 2;
+        agruparEmPartes(new ArrayList<>(itens.subList(0, metade)), construtor, formato, tamanhoMaximo, partes);
+        agruparEmPartes(new ArrayList<>(itens.subList(metade, itens.size())), construtor, formato, tamanhoMaximo, partes);
+    }
+
+    /**
+     * Serializa a mensagem no formato desejado. Caso a mensagem possua valores não suportados pelo formato binário,
+     * recorre à serialização Java.
+     * 
+     * @param mensagem mensagem a ser serializada.
+     * @param formato formato desejado.
+     * @return bytes da mensagem serializada.
+     * @throws IOException caso a serialização não seja possível.
+     */
+    public static byte[] serializar(Mensagem mensagem, Formato formato) throws IOException {
+        if (formato == Formato.BINARIO) {
+            try {
+                return CodecMensagem.codificar(mensagem);
+            } catch (IOException e) {
+                System.err.println("Mensagem não suportada pelo formato binário, usando serialização Java: " + e.getMessage());
+            }
+        }
+
+        ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(byteOutputStream));
+        objectOutputStream.writeObject(mensagem);
+        objectOutputStream.flush();
+        return byteOutputStream.toByteArray();
+    }
+
+    /**
+     * Serializa a mensagem diretamente no buffer de destino, a partir da sua posição atual. No formato binário não há cópias
+     * intermediárias, enquanto a serialização Java é gerada em memória e então copiada.
+     * 
+     * @param mensagem mensagem a ser serializada.
+     * @param formato formato desejado.
+     * @param destino buffer, possivelmente direto, onde a mensagem será escrita.
+     * @throws IOException caso a mensagem não caiba no buffer ou a serialização não seja possível.
+     */
+    public static void serializar(Mensagem mensagem, Formato formato, ByteBuffer destino) throws IOException {
+        int inicio = destino.position();
+
+        try {
+            if (formato == Formato.BINARIO) {
+                try {
+                    CodecMensagem.codificar(mensagem, destino);
+                    return;
+                } catch (IOException e) {
+                    destino.position(inicio);
+                }
+            }
+            destino.put(serializar(mensagem, Formato.JAVA));
+        } catch (BufferOverflowException e) {
+            destino.position(inicio);
+            throw new IOException("Mensagem excede o tamanho do buffer de " + (destino.limit() - inicio) + " bytes", e);
+        }
+    }
+
+    /**
+     * Escreve no buffer de destino uma mensagem já serializada acrescida de um campo. No formato binário o campo é acrescentado
+     * sem decodificar a mensagem, enquanto a serialização Java é desserializada e serializada novamente.
+     *
+     * @param serializada bytes da mensagem serializada.
+     * @param chave chave do campo acrescentado.
+     * @param valor valor do campo acrescentado.
+     * @param destino buffer, possivelmente direto, onde a mensagem será escrita.
+     * @throws IOException caso a mensagem não caiba no buffer ou seja inválida.
+     */
+    public static void serializarComCampo(byte[] serializada, String chave, Object valor, ByteBuffer destino) throws IOException {
+        int inicio = destino.position();
+
+        try {
+            if (serializada.length > 0 && serializada[0] == CodecMensagem.MAGICO) {
+                CodecMensagem.acrescentarCampo(serializada, chave, valor, destino);
+                return;
+            }
+
+            Mensagem mensagem = desserializar(serializada, 0, serializada.length);
+            mensagem.adicionarMensagem(chave, valor);
+            serializar(mensagem, Formato.JAVA, destino);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } catch (BufferOverflowException e) {
+            destino.position(inicio);
+            throw new IOException("Mensagem excede o tamanho do buffer de " + (destino.limit() - inicio) + " bytes", e);
+        }
+    }
+
+    /**
+     * Desserializa uma mensagem detectando automaticamente se foi gerada pelo formato binário ou pela serialização Java.
+     * 
+     * @param bytes bytes recebidos.
+     * @param offset posição inicial da mensagem.
+     * @param tamanho quantidade de bytes válidos.
+     * @return mensagem desserializada.
+     * @throws IOException caso os bytes não correspondam a uma mensagem válida.
+     * @throws ClassNotFoundException caso a serialização Java referencie classes desconhecidas.
+     */
+    public static Mensagem desserializar(byte[] bytes, int offset, int tamanho) throws IOException, ClassNotFoundException {
+        if (tamanho > 0 && bytes[offset] == CodecMensagem.MAGICO) {
+            return CodecMensagem.decodificar(ByteBuffer.wrap(bytes, offset, tamanho)).comFormatoOrigem(Formato.BINARIO);
+        }
+
+        try (ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, tamanho))) {
+            return ((Mensagem) objectStream.readObject()).comFormatoOrigem(Formato.JAVA);
+        }
+    }
+
+    /**
+     * Desserializa a próxima mensagem do buffer somente se todos os seus bytes já foram recebidos, usado por leitores não bloqueantes
+     * que recebem a mensagem em partes. A posição do buffer só avança quando uma mensagem completa é lida.
+     * 
+     * @param origem buffer em modo de leitura com os bytes recebidos.
+     * @return mensagem desserializada ou nulo caso a mensagem ainda esteja incompleta.
+     * @throws IOException caso os bytes não correspondam a uma mensagem válida.
+     */
+    public static Mensagem desserializarSeCompleta(ByteBuffer origem) throws IOException {
+        int inicio = origem.position();
+        int disponiveis = origem.remaining();
+        if (disponiveis == 0) {
+            return null;
+        }
+
+        if (origem.get(inicio) == CodecMensagem.MAGICO) {
+            if (disponiveis < CodecMensagem.TAMANHO_CABECALHO
+                || disponiveis < CodecMensagem.TAMANHO_CABECALHO + CodecMensagem.lerTamanhoCorpo(origem.duplicate())) {
+                return null;
+            }
+            return CodecMensagem.decodificar(origem).comFormatoOrigem(Formato.BINARIO);
+        }
+
+        byte[] bytes = new byte[disponiveis];
+        origem.duplicate().get(bytes);
+        ByteArrayInputStream byteInputStream = new ByteArrayInputStream(bytes);
+
+        try (ObjectInputStream objectStream = new ObjectInputStream(byteInputStream)) {
+            Mensagem mensagem = (Mensagem) objectStream.readObject();
+            origem.position(inicio + disponiveis - byteInputStream.available());
+            return mensagem.comFormatoOrigem(Formato.JAVA);
+        } catch (EOFException e) {
+            return null;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Bytes não correspondem a uma mensagem", e);
+        }
+    }
+
+    /**
+     * Utilitário para recebimento de mensagens TCP. Consome exatamente os bytes da mensagem, de modo que um conteúdo enviado logo
+     * após ela (como os bytes de um download) possa ser lido do mesmo stream.
      * 
      * @param inputStream stream de input da conexão TCP entre as partes.
-     * @return mensagem recebida
+     * @return mensagem recebida, ou nulo caso a conexão seja encerrada ou o tempo limite de leitura expire.
      */
     public static Mensagem receberMensagemTCP(InputStream inputStream) {
         try {
-            ObjectInputStream objectInputStream = new ObjectInputStream(new BufferedInputStream(inputStream));
-            return (Mensagem) objectInputStream.readObject();  
+            PushbackInputStream pushbackStream = new PushbackInputStream(inputStream, 1);
+            int primeiroByte = pushbackStream.read();
+            if (primeiroByte == -1) {
+                return null;
+            }
+            pushbackStream.unread(primeiroByte);
+
+            if ((byte) primeiroByte == PRIMEIRO_BYTE_SERIALIZACAO_JAVA) {
+                ObjectInputStream objectInputStream = new ObjectInputStream(pushbackStream);
+                return ((Mensagem) objectInputStream.readObject()).comFormatoOrigem(Formato.JAVA);
+            }
+
+            DataInputStream dataStream = new DataInputStream(pushbackStream);
+            byte[] cabecalho = new byte[CodecMensagem.TAMANHO_CABECALHO];
+            dataStream.readFully(cabecalho);
+            // lerTamanhoCorpo rejeita corpos acima de TAMANHO_MAXIMO_CORPO antes da alocação
+            int tamanhoCorpo = CodecMensagem.lerTamanhoCorpo(ByteBuffer.wrap(cabecalho));
+
+            byte[] mensagemCompleta = new byte[CodecMensagem.TAMANHO_CABECALHO + tamanhoCorpo];
+            System.arraycopy(cabecalho, 0, mensagemCompleta, 0, cabecalho.length);
+            dataStream.readFully(mensagemCompleta, cabecalho.length, tamanhoCorpo);
+            return desserializar(mensagemCompleta, 0, mensagemCompleta.length);
+        } catch (SocketTimeoutException e) {
+            return null;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -73,10 +334,20 @@ public class Mensagem implements Serializable {
      * @param mensagem mensagem a ser enviada para o outro extremo da conexão
      */
     public static void enviarMensagemTCP(OutputStream outputStream, Mensagem mensagem) {
+        enviarMensagemTCP(outputStream, mensagem, FORMATO_PADRAO);
+    }
+
+    /**
+     * Utilitário para envios de de mensagens TCP em um formato específico.
+     * 
+     * @param outputStream stream escrita da conexão TCP
+     * @param mensagem mensagem a ser enviada para o outro extremo da conexão
+     * @param formato formato de serialização da mensagem
+     */
+    public static void enviarMensagemTCP(OutputStream outputStream, Mensagem mensagem, Formato formato) {
         try {
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(outputStream));
-            objectOutputStream.writeObject(mensagem);
-            objectOutputStream.flush();
+            outputStream.write(serializar(mensagem, formato));
+            outputStream.flush();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -91,15 +362,23 @@ public class Mensagem implements Serializable {
      * @param socketUDP socket UDP utilitário para o envio.
      */
     public static void enviarMensagemUDP(Mensagem mensagem, String endereco, int porta, DatagramSocket socketUDP) {
+        enviarMensagemUDP(mensagem, endereco, porta, socketUDP, FORMATO_PADRAO);
+    }
+
+    /**
+     * Utilitário para o envio de mensagens UDP em um formato específico.
+     * 
+     * @param mensagem mensagem a ser enviada ao destinatário.
+     * @param endereco endereço IP do destinatário.
+     * @param porta porta do destinatário.
+     * @param socketUDP socket UDP utilitário para o envio.
+     * @param formato formato de serialização da mensagem.
+     */
+    public static void enviarMensagemUDP(Mensagem mensagem, String endereco, int porta, DatagramSocket socketUDP, Formato formato) {
         InetAddress enderecoDestinatarioInet;
         try {
             enderecoDestinatarioInet = InetAddress.getByName(endereco);
-            ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(byteOutputStream));
-            
-            objectOutputStream.writeObject(mensagem);
-            objectOutputStream.flush();
-            byte[] mensagemEmBytes = byteOutputStream.toByteArray();
+            byte[] mensagemEmBytes = serializar(mensagem, formato);
     
             DatagramPacket packet = new DatagramPacket(mensagemEmBytes, mensagemEmBytes.length, enderecoDestinatarioInet, porta);
             socketUDP.send(packet);
@@ -115,7 +394,7 @@ public class Mensagem implements Serializable {
      * @return devolve uma instância construída da mensagem recebida.
      */
     public static Mensagem receberMensagemUDP(DatagramSocket socketUDP) {
-        byte[] bytesRecebidos = new byte[8 * 1024];
+        byte[] bytesRecebidos = new byte[TAMANHO_MAXIMO_DATAGRAMA];
         DatagramPacket pacote = new DatagramPacket(bytesRecebidos, bytesRecebidos.length);
 
         try {
@@ -124,23 +403,13 @@ public class Mensagem implements Serializable {
             return null;
         }
         
-        try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(pacote.getData());
-            ObjectInputStream inputObject = new ObjectInputStream(new BufferedInputStream(byteArrayInputStream));) {            
-            return (Mensagem) inputObject.readObject();
+        try {
+            return desserializar(pacote.getData(), pacote.getOffset(), pacote.getLength());
         } catch (ClassNotFoundException | IOException e) {
             return null;
         }
     }
 
-    public static Mensagem deserializarBytes(byte[] bytes) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes);
-        ObjectInputStream objectStream = new ObjectInputStream(byteStream);
-        Mensagem mensagem =  (Mensagem) objectStream.readObject();
-        objectStream.close();
-        
-        return mensagem;
-    }
-
     @Override
     public String toString() {
         return "Mensagem [mensagens=" + mensagens + ", titulo=" + titulo + "]";
@@ -0,0 +1,182 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Metadados de um arquivo compartilhado: tamanho, tamanho das peças e o hash SHA-256 de cada peça.
+ *
+ * Os hashes são calculados uma única vez pelo Peer que compartilha o arquivo e guardados em um arquivo auxiliar ao lado do vídeo,
+ * sendo recalculados somente quando o tamanho ou a data de modificação do vídeo mudam. O formato é um cabeçalho
+ * [mágico 4B][tamanho 8B][modificação 8B][tamanho da peça 4B][quantidade de peças 4B] seguido de 32 bytes por peça.
+ *
+ * @author Maik Henrique
+ */
+public class MetadadosArquivo {
+
+    public static final String EXTENSAO = ".hashes";
+    public static final int TAMANHO_HASH = 32;
+
+    private static final int MAGICO = 0x48415348;
+    private static final int TAMANHO_CABECALHO = 28;
+    private static final String ALGORITMO_HASH = "SHA-256";
+
+    private final long tamanhoArquivo;
+    private final int tamanhoPeca;
+    private final byte[] hashesPecas;
+
+    public MetadadosArquivo(long tamanhoArquivo, int tamanhoPeca, byte[] hashesPecas) {
+        this.tamanhoArquivo = tamanhoArquivo;
+        this.tamanhoPeca = tamanhoPeca;
+        this.hashesPecas = hashesPecas;
+
+        if (hashesPecas.length != getQuantidadePecas() * TAMANHO_HASH) {
+            throw new IllegalArgumentException(String.format("Esperava %d hashes e recebeu %d bytes", getQuantidadePecas(), hashesPecas.length));
+        }
+    }
+
+    public long getTamanhoArquivo() {
+        return tamanhoArquivo;
+    }
+
+    public int getTamanhoPeca() {
+        return tamanhoPeca;
+    }
+
+    public int getQuantidadePecas() {
+        return quantidadePecas(tamanhoArquivo, tamanhoPeca);
+    }
+
+    /**
+     * @return hashes de todas as peças concatenados, na ordem das peças.
+     */
+    public byte[] getHashesPecas() {
+        return hashesPecas;
+    }
+
+    public static int quantidadePecas(long tamanhoArquivo, int tamanhoPeca) {
+        return (int) ((tamanhoArquivo + tamanhoPeca - 1) / tamanhoPeca);
+    }
+
+    /**
+     * Verifica se o conteúdo recebido corresponde ao hash esperado da peça.
+     *
+     * @param peca índice da peça.
+     * @param dados buffer com o conteúdo da peça.
+     * @param tamanho quantidade de bytes válidos no buffer.
+     * @return true se o hash do conteúdo é o esperado.
+     */
+    public boolean verificarPeca(int peca, byte[] dados, int tamanho) {
+        MessageDigest digest = novoDigest();
+        digest.update(dados, 0, tamanho);
+        byte[] hashCalculado = digest.digest();
+        int inicio = peca * TAMANHO_HASH;
+
+        return Arrays.equals(hashCalculado, 0, TAMANHO_HASH, hashesPecas, inicio, inicio + TAMANHO_HASH);
+    }
+
+    /**
+     * Obtém os metadados do vídeo, lendo o arquivo auxiliar quando ainda válido ou calculando os hashes e gravando-o caso contrário.
+     *
+     * @param video arquivo de vídeo.
+     * @param tamanhoPeca tamanho das peças.
+     * @return metadados do vídeo.
+     * @throws IOException caso o vídeo não possa ser lido.
+     */
+    public static MetadadosArquivo obter(File video, int tamanhoPeca) throws IOException {
+        File arquivoMetadados = arquivoMetadados(video);
+        long tamanho = video.length();
+        long modificacao = video.lastModified();
+
+        MetadadosArquivo metadados = carregar(arquivoMetadados, tamanho, modificacao, tamanhoPeca);
+        if (metadados != null) {
+            return metadados;
+        }
+
+        metadados = calcular(video, tamanhoPeca);
+        salvar(video, metadados);
+        return metadados;
+    }
+
+    /**
+     * Grava os metadados no arquivo auxiliar do vídeo, usado tanto após o cálculo local quanto após um download verificado.
+     *
+     * @param video arquivo de vídeo.
+     * @param metadados metadados a serem gravados.
+     */
+    public static void salvar(File video, MetadadosArquivo metadados) {
+        ByteBuffer conteudo = ByteBuffer.allocate(TAMANHO_CABECALHO + metadados.hashesPecas.length);
+        conteudo.putInt(MAGICO).putLong(metadados.tamanhoArquivo).putLong(video.lastModified())
+            .putInt(metadados.tamanhoPeca).putInt(metadados.getQuantidadePecas()).put(metadados.hashesPecas);
+
+        try {
+            Files.write(arquivoMetadados(video).toPath(), conteudo.array());
+        } catch (IOException e) {
+            System.err.println("Não foi possível gravar os hashes de " + video.getName() + ", serão recalculados na próxima vez.");
+        }
+    }
+
+    private static File arquivoMetadados(File video) {
+        return new File(video.getParentFile(), video.getName() + EXTENSAO);
+    }
+
+    private static MetadadosArquivo carregar(File arquivoMetadados, long tamanho, long modificacao, int tamanhoPeca) {
+        if (!arquivoMetadados.isFile()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer conteudo = ByteBuffer.wrap(Files.readAllBytes(arquivoMetadados.toPath()));
+            int quantidadePecas = quantidadePecas(tamanho, tamanhoPeca);
+
+            if (conteudo.remaining() != TAMANHO_CABECALHO + quantidadePecas * TAMANHO_HASH || conteudo.getInt() != MAGICO
+                || conteudo.getLong() != tamanho || conteudo.getLong() != modificacao || conteudo.getInt() != tamanhoPeca
+                || conteudo.getInt() != quantidadePecas) {
+                return null;
+            }
+
+            byte[] hashes = new byte[quantidadePecas * TAMANHO_HASH];
+            conteudo.get(hashes);
+            return new MetadadosArquivo(tamanho, tamanhoPeca, hashes);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static MetadadosArquivo calcular(File video, int tamanhoPeca) throws IOException {
+        try (FileChannel canal = FileChannel.open(video.toPath(), StandardOpenOption.READ)) {
+            long tamanho = canal.size();
+            int quantidadePecas = quantidadePecas(tamanho, tamanhoPeca);
+            byte[] hashes = new byte[quantidadePecas * TAMANHO_HASH];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(tamanhoPeca);
+            MessageDigest digest = novoDigest();
+
+            for (int peca = 0; peca < quantidadePecas; peca++) {
+                long inicio = (long) peca * tamanhoPeca;
+                buffer.clear().limit((int) Math.min(tamanhoPeca, tamanho - inicio));
+
+                while (buffer.hasRemaining() && canal.read(buffer, inicio + buffer.position()) != -1) {
+                    // lê até completar a peça
+                }
+
+                buffer.flip();
+                digest.update(buffer);
+                System.arraycopy(digest.digest(), 0, hashes, peca * TAMANHO_HASH, TAMANHO_HASH);
+            }
+            return new MetadadosArquivo(tamanho, tamanhoPeca, hashes);
+        }
+    }
+
+    private static MessageDigest novoDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITMO_HASH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponível na JVM", e);
+        }
+    }
+}
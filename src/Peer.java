@@ -1,8 +1,19 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -28,21 +39,141 @@ public class Peer implements AutoCloseable {
      */
     public static final int TAMANHO_PACOTES_TRANSFERENCIA = 1024 * 8;
 
+    /**
+     *  Define se os uploads usam FileChannel.transferTo (sendfile), podendo ser desativado pela propriedade p2p.upload.zerocopia.
+     */
+    private static final boolean IS_UPLOAD_ZERO_COPIA = Boolean.parseBoolean(System.getProperty("p2p.upload.zerocopia", "true"));
+
+    private static final int MAXIMO_CONEXOES_OCIOSAS_POR_PEER = 4;
+
+    /**
+     *  Define se o servidor de arquivos usa o ServidorArquivosNIO (poucas threads de I/O para todas as conexões) em vez de uma
+     *  thread por conexão, pela propriedade p2p.upload.nio. O número de threads de I/O é definido pela propriedade p2p.upload.threads.
+     */
+    private static final boolean IS_SERVIDOR_UPLOAD_NIO = Boolean.parseBoolean(System.getProperty("p2p.upload.nio", "false"));
+    private static final int THREADS_SERVIDOR_UPLOAD_NIO = Integer.getInteger("p2p.upload.threads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     *  Vagas de upload simultâneo, tamanho da fila de Peers aguardando vaga e política de escolha do próximo da fila, definidos
+     *  pelas propriedades p2p.upload.slots, p2p.upload.fila e p2p.upload.politica (ORDEM_CHEGADA, PARTILHA_JUSTA ou OLHO_POR_OLHO).
+     */
+    private static final int SLOTS_UPLOAD = Integer.getInteger("p2p.upload.slots", 4);
+    private static final int TAMANHO_FILA_UPLOAD = Integer.getInteger("p2p.upload.fila", 32);
+    private static final AgendadorUploads.Politica POLITICA_UPLOAD =
+        AgendadorUploads.Politica.valueOf(System.getProperty("p2p.upload.politica", "ORDEM_CHEGADA"));
+
+    /**
+     *  Limites de banda em bytes por segundo (zero para não limitar), definidos inicialmente pelas propriedades
+     *  p2p.banda.upload.global, p2p.banda.upload.peer e p2p.banda.upload.transferencia, e equivalentes p2p.banda.download.*,
+     *  e ajustáveis durante a execução pela opção BANDA do menu.
+     */
+    private final LimitadorBanda limitadorUpload = criarLimitadorBanda("upload");
+    private final LimitadorBanda limitadorDownload = criarLimitadorBanda("download");
+
+    private ResolvedorRequisicoesArquivos resolvedorRequisicoes;
+    private ServidorArquivosNIO servidorArquivosNIO;
+
+    /**
+     *  Conexões mantidas abertas com outros Peers, reaproveitadas entre peças e entre downloads do mesmo Peer.
+     */
+    private final PoolConexoesPeers poolConexoesPeers;
+
     private Set<String> peersComUltimoArquivoPesquisado;
     private String ultimoArquivoPesquisado;
 
-    private static int TEMPO_ESPERA_RESPOSTA_UDP = (int)TimeUnit.SECONDS.toMillis(2);
-    private static int NUMERO_MAXIMO_REQUISICOES_AO_SERVIDOR = 5;
+    /**
+     *  Resultado da última pesquisa de vários arquivos (SEARCH_LOTE), do qual o arquivo a ser baixado é escolhido no DOWNLOAD.
+     */
+    private Map<String, Set<String>> resultadosUltimaPesquisaEmLote;
+
+    /**
+     *  Downloads concluídos ainda não anunciados ao servidor, quando a pasta não está sendo monitorada. Os anúncios são agrupados por
+     *  TEMPO_AGRUPAMENTO_UPDATES, de modo que downloads concluídos em sequência sejam anunciados em uma única requisição DELTA.
+     */
+    private final Set<String> arquivosAguardandoUpdate = new LinkedHashSet<>();
+    private static final long TEMPO_AGRUPAMENTO_UPDATES = 500;
+
+    /**
+     *  Executa em segundo plano as mensagens ao servidor que não dependem do usuário, como os DELTA agrupados e os JOIN refeitos, uma
+     *  de cada vez e aguardando as respostas.
+     */
+    private final ScheduledExecutorService agendadorTarefasServidor = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+        Thread thread = new Thread(tarefa, "tarefas-servidor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     *  Envia os sinais de vida em uma thread própria, já que um anúncio a um shard que não responde bloqueia as tarefas do servidor
+     *  durante todas as retransmissões, por mais tempo que o prazo de expiração do servidor.
+     */
+    private final ScheduledExecutorService agendadorSinalDeVida = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+        Thread thread = new Thread(tarefa, "sinal-de-vida");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     *  Intervalo entre os sinais de vida (ALIVE) enviados ao servidor enquanto o Peer compartilha arquivos, definido pela propriedade
+     *  p2p.peer.alive.intervalo em milissegundos. Deve ser menor que o prazo de expiração configurado no servidor.
+     */
+    private static final long INTERVALO_SINAL_DE_VIDA = Long.getLong("p2p.peer.alive.intervalo", 10_000);
+    private ScheduledFuture<?> tarefaSinalDeVida;
+
+    /**
+     *  Encaminha cada requisição ao shard do grupo de rastreadores responsável pelos seus arquivos, com um socket por shard e as
+     *  respostas associadas às requisições pelo id_requisicao. Os rastreadores consultados para obter o anel de shards são definidos
+     *  pela propriedade p2p.peer.rastreador no formato host:porta, separados por vírgula e tentados em ordem quando um deles não
+     *  responde (o Servidor padrão caso ausente). Em shards replicados, as requisições passam ao próximo membro da mesma forma.
+     */
+    private final RoteadorRastreadores roteadorRastreadores;
+
+    /**
+     *  Shards aos quais o Peer enviou JOIN ou UPDATE, e que recebem os seus sinais de vida e o LEAVE. Um shard que não registrou o Peer
+     *  responde ao sinal de vida com ALIVE_NEGADO, e o JOIN é refeito somente nele.
+     */
+    private final Set<String> shardsRegistrados = ConcurrentHashMap.newKeySet();
+
+    /**
+     *  Versão do manifesto (lista de arquivos) do Peer confirmada por cada shard. Um JOIN define uma versão nova, maior que as
+     *  anteriores mesmo após reiniciar o Peer, e as alterações seguintes são anunciadas com DELTA, cada um com a versão seguinte.
+     *  Quando o shard não confirma um DELTA, ou responde RESYNC, a versão é descartada e o manifesto completo do shard é reenviado
+     *  em um JOIN.
+     */
+    private final Map<String, Long> versoesManifestos = new ConcurrentHashMap<>();
+
+    /**
+     *  Manifesto dos vídeos da pasta, que passa a ser monitorada no JOIN. Os vídeos copiados para a pasta ou removidos dela, assim
+     *  como os downloads concluídos, são agrupados por TEMPO_AGRUPAMENTO_UPDATES e anunciados aos shards com DELTA.
+     */
+    private final BibliotecaVideos bibliotecaVideos;
     
 
     public Peer() throws IOException {
         this.leitorInputTeclado = System.console();
         this.isCompartilhandoArquivos = false;
         configurarPeer();
+        this.bibliotecaVideos = new BibliotecaVideos(new File(this.caminhoAbsolutoPastaCliente), TEMPO_AGRUPAMENTO_UPDATES,
+            this::tratarAlteracaoBiblioteca);
+        this.poolConexoesPeers = new PoolConexoesPeers(MAXIMO_CONEXOES_OCIOSAS_POR_PEER, this.enderecoOuvinteRequisicoesTCP);
+        this.roteadorRastreadores = new RoteadorRastreadores(System.getProperty("p2p.peer.rastreador",
+            Servidor.ENDERECO_SERVIDOR + ":" + Servidor.PORTA_SOCKET_RECEPTOR));
+        this.roteadorRastreadores.setOuvinteNaoSolicitadas(this::tratarMensagemNaoSolicitada);
     }
 
     @Override
     public void close() throws IOException {
+        this.bibliotecaVideos.close();
+        this.agendadorTarefasServidor.shutdown();
+        pararSinalDeVida();
+        this.agendadorSinalDeVida.shutdown();
+        this.roteadorRastreadores.close();
+        this.poolConexoesPeers.close();
+
+        if (this.servidorArquivosNIO != null) {
+            this.servidorArquivosNIO.close();
+        }
+
         if (this.servidor != null) {
             this.servidor.close();
         }        
@@ -69,57 +200,182 @@ public class Peer implements AutoCloseable {
     }
 
     /**
-     * Efetua requisição JOIN ao servidor e caso receba JOIN_OK inicializa a thread para a atuação do Peer como um servidor de compartilhamento
-     * de arquivos.
+     * Efetua requisições JOIN em paralelo aos shards responsáveis pelos arquivos do Peer, cada uma somente com os arquivos do seu shard,
+     * e caso algum shard responda JOIN_OK inicializa a thread para a atuação do Peer como um servidor de compartilhamento de arquivos.
      */
     private void joinServidor() {
-        Mensagem mensagemJoin = new Mensagem("JOIN");
-        mensagemJoin.adicionarMensagem("arquivos", this.arquivosDisponiveis);
-        mensagemJoin.adicionarMensagem("endereco", this.enderecoOuvinteRequisicoesTCP);
+        Map<String, List<String>> arquivosPorShard = agruparPorShard(this.arquivosDisponiveis);
+        List<String> shardsSemConfirmacao = enviarJoin(arquivosPorShard);
+
+        if (shardsSemConfirmacao.size() == arquivosPorShard.size()) {
+            System.out.println("Não se obteve sucesso durante as requisições ao servidor, tente novamente mais tarde.");
+            return;
+        }
+
+        if (!shardsSemConfirmacao.isEmpty()) {
+            System.out.println(String.format("Os servidores %s não confirmaram o JOIN, que será refeito após o próximo sinal de vida.", shardsSemConfirmacao));
+        }
+        System.out.println(String.format("Sou o peer %s com os arquivos: \n%s", this.enderecoOuvinteRequisicoesTCP, this.arquivosDisponiveis));
+        this.isCompartilhandoArquivos = true;
+        iniciarServidorOuvinteDeCompartilhamento();
+        iniciarSinalDeVida();
+    }
+
+    /**
+     * @return arquivos de cada shard, ou o primeiro shard com uma lista vazia caso não haja arquivos, para que o Peer seja registrado.
+     */
+    private Map<String, List<String>> agruparPorShard(List<String> arquivos) {
+        AnelShards anel = this.roteadorRastreadores.getAnel();
+        Map<String, List<String>> arquivosPorShard = anel.agruparPorShard(arquivos);
 
-        try (DatagramSocket socketUDP = new DatagramSocket()){
-            socketUDP.setSoTimeout(Peer.TEMPO_ESPERA_RESPOSTA_UDP);
+        if (arquivosPorShard.isEmpty()) {
+            arquivosPorShard.put(anel.getShards().get(0), new ArrayList<>());
+        }
+        return arquivosPorShard;
+    }
 
-            Mensagem respostaServidor = controlarRecebimentoMensagemUDP(mensagemJoin, socketUDP);
+    /**
+     * Envia todos os JOIN antes de aguardar as respostas, cada um dividido em partes que cabem em um único datagrama e numerado com
+     * uma nova versão do manifesto do shard. O shard só confirma o JOIN quando responde JOIN_OK a todas as partes e informa, na
+     * resposta à parte que completou o manifesto, que ele foi aplicado (completo); somente então a versão é guardada para os DELTA
+     * seguintes. Os shards passam a receber os sinais de vida mesmo sem confirmar o JOIN, de modo que o ALIVE_NEGADO deles faça o
+     * JOIN ser refeito.
+     *
+     * @param arquivosPorShard arquivos anunciados a cada shard.
+     * @return shards que não confirmaram o JOIN.
+     */
+    private List<String> enviarJoin(Map<String, List<String>> arquivosPorShard) {
+        Map<String, List<CompletableFuture<Mensagem>>> emAndamento = new LinkedHashMap<>();
+        Map<String, Long> versoes = new HashMap<>();
 
-            if (respostaServidor == null) {
-                System.out.println("Não se obteve sucesso durante as requisições ao servidor, tente novamente mais tarde.");
-                return;
+        arquivosPorShard.forEach((shard, arquivos) -> {
+            long versao = Math.max(this.versoesManifestos.getOrDefault(shard, 0L) + 1, System.currentTimeMillis());
+            List<CompletableFuture<Mensagem>> partes = new ArrayList<>();
+
+            this.versoesManifestos.remove(shard);
+            versoes.put(shard, versao);
+            try {
+                for (Mensagem parte : mensagensJoin(arquivos, versao)) {
+                    partes.add(this.roteadorRastreadores.enviar(shard, parte));
+                }
+            } catch (IOException e) {
+                partes.add(RoteadorRastreadores.falha(e));
+            }
+            emAndamento.put(shard, partes);
+        });
+        this.shardsRegistrados.addAll(arquivosPorShard.keySet());
+
+        List<String> shardsSemConfirmacao = new ArrayList<>();
+        emAndamento.forEach((shard, partes) -> {
+            boolean isConfirmado = true;
+            boolean isCompleto = false;
+            for (CompletableFuture<Mensagem> parte : partes) {
+                Mensagem resposta = aguardar(parte);
+                isConfirmado &= resposta != null && resposta.getTitulo().equals("JOIN_OK");
+                isCompleto |= resposta != null && Boolean.TRUE.equals(resposta.getMensagens().get("completo"));
             }
 
-            if (respostaServidor.getTitulo().equals("JOIN_OK")) {
-                System.out.println(String.format("Sou o peer %s com os arquivos: \n%s", this.enderecoOuvinteRequisicoesTCP, this.arquivosDisponiveis));
-                this.isCompartilhandoArquivos = true;
-                iniciarServidorOuvinteDeCompartilhamento();
-            } 
-        } catch (SocketException e) {
-            e.printStackTrace();            
+            if (isConfirmado && isCompleto) {
+                this.versoesManifestos.put(shard, versoes.get(shard));
+            } else {
+                shardsSemConfirmacao.add(shard);
+            }
+        });
+        return shardsSemConfirmacao;
+    }
+
+    /**
+     * @param arquivos arquivos de um mesmo shard.
+     * @param versao versão do manifesto, igual em todas as partes.
+     * @return requisições JOIN que cabem em um único datagrama cada.
+     */
+    private List<Mensagem> mensagensJoin(List<String> arquivos, long versao) throws IOException {
+        return Mensagem.dividirEmPartes(arquivos, arquivosParte -> {
+            Mensagem mensagemJoin = new Mensagem("JOIN");
+            mensagemJoin.adicionarMensagem("arquivos", arquivosParte);
+            mensagemJoin.adicionarMensagem("endereco", this.enderecoOuvinteRequisicoesTCP);
+            mensagemJoin.adicionarMensagem("carga", getCargaUpload());
+            mensagemJoin.adicionarMensagem("versao", versao);
+            return mensagemJoin;
+        }, Mensagem.FORMATO_PADRAO, Mensagem.TAMANHO_MAXIMO_PARTE);
+    }
+
+    /**
+     * Agenda o envio periódico de sinais de vida ao servidor, para que o Peer não seja removido por inatividade enquanto compartilha arquivos.
+     */
+    private void iniciarSinalDeVida() {
+        this.tarefaSinalDeVida = this.agendadorSinalDeVida.scheduleWithFixedDelay(this::enviarSinalDeVida, INTERVALO_SINAL_DE_VIDA,
+            INTERVALO_SINAL_DE_VIDA, TimeUnit.MILLISECONDS);
+    }
+
+    private void pararSinalDeVida() {
+        if (this.tarefaSinalDeVida != null) {
+            this.tarefaSinalDeVida.cancel(false);
+            this.tarefaSinalDeVida = null;
         }
     }
 
     /**
-     * Método para realização do item 5.g, em que se requere o envio contínuo de mensagens enquanto o servidor não responder.
-     * Faz 5 tentativas de comunicação com o servidor, enviando mensagens UDP em um intervalo de 1 segundo entre cada uma delas.
-     * 
-     * @param mensagem mensgem que se deseja encaminhar.
-     * @param socketUDP socket com a configuração do destinatário.
-     * @return mensagem resposta do servidor ou nulo caso nenhuma resposta seja obtiva.
+     * Envia um sinal de vida (ALIVE) a cada shard em que o Peer está registrado, sem aguardar resposta. O shard só responde, com
+     * ALIVE_NEGADO, caso tenha removido o Peer por inatividade ou nunca o tenha registrado.
      */
-    public Mensagem controlarRecebimentoMensagemUDP(Mensagem mensagem, DatagramSocket socketUDP) {
-        Mensagem respostaServidor = null;
-        int contadorRequisicoes = 0;
+    private void enviarSinalDeVida() {
+        Mensagem alive = new Mensagem("ALIVE");
+        alive.adicionarMensagem("endereco", this.enderecoOuvinteRequisicoesTCP);
+        alive.adicionarMensagem("carga", getCargaUpload());
 
-        while (respostaServidor == null && contadorRequisicoes != NUMERO_MAXIMO_REQUISICOES_AO_SERVIDOR) {
-            Mensagem.enviarMensagemUDP(mensagem, Servidor.ENDERECO_SERVIDOR, Servidor.PORTA_SOCKET_RECEPTOR, socketUDP);                
-            respostaServidor = Mensagem.receberMensagemUDP(socketUDP);                
-            contadorRequisicoes++;
+        for (String shard : this.shardsRegistrados) {
+            try {
+                this.roteadorRastreadores.enviarSemResposta(shard, alive);
+            } catch (Exception e) {
+                System.err.println("Não foi possível enviar o sinal de vida ao servidor " + shard);
+            }
         }
+    }
 
-        if (respostaServidor == null && contadorRequisicoes == NUMERO_MAXIMO_REQUISICOES_AO_SERVIDOR) {
-            return null;
+    /**
+     * Trata as mensagens dos shards que não respondem a uma requisição: ao receber ALIVE_NEGADO o JOIN é refeito no shard com os
+     * arquivos atuais da pasta, fora da thread de leitura do cliente.
+     */
+    private void tratarMensagemNaoSolicitada(String shard, Mensagem mensagem) {
+        if (mensagem.getTitulo().equals("ALIVE_NEGADO") && this.isCompartilhandoArquivos) {
+            this.agendadorTarefasServidor.execute(() -> {
+                if (ressincronizar(shard)) {
+                    System.out.println(String.format("O servidor %s não possuía o registro deste Peer, JOIN refeito.", shard));
+                }
+            });
         }
+    }
+
+    /**
+     * Reenvia ao shard, em um JOIN, o manifesto completo com os arquivos atuais da pasta que pertencem a ele.
+     *
+     * @return se o shard confirmou o JOIN.
+     */
+    private boolean ressincronizar(String shard) {
+        this.arquivosDisponiveis = this.bibliotecaVideos.isMonitorando() ? this.bibliotecaVideos.getNomes()
+            : getListaNomesArquivosDeVideo(new File(caminhoAbsolutoPastaCliente));
+        List<String> arquivosDoShard = this.roteadorRastreadores.getAnel().agruparPorShard(this.arquivosDisponiveis)
+            .getOrDefault(shard, new ArrayList<>());
 
-        return respostaServidor;
+        return enviarJoin(Collections.singletonMap(shard, arquivosDoShard)).isEmpty();
+    }
+
+    /**
+     * Bloqueia até a resposta de uma requisição enviada pelo RoteadorRastreadores, usado pelas operações do menu. As retransmissões,
+     * até ClienteRastreador.NUMERO_MAXIMO_TENTATIVAS, são feitas pelo cliente com tempo de espera adaptativo.
+     *
+     * @return resultado da requisição, ou nulo caso ela tenha falhado.
+     */
+    private static <T> T aguardar(CompletableFuture<T> requisicao) {
+        try {
+            return requisicao.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
     }
     
     /**
@@ -144,10 +400,22 @@ public class Peer implements AutoCloseable {
      */
     private void iniciarServidorOuvinteDeCompartilhamento() {
         try {
+            if (this.resolvedorRequisicoes == null) {
+                AgendadorUploads agendadorUploads = new AgendadorUploads(SLOTS_UPLOAD, TAMANHO_FILA_UPLOAD, POLITICA_UPLOAD,
+                    this.poolConexoesPeers::getBytesRecebidos);
+                this.resolvedorRequisicoes = new ResolvedorRequisicoesArquivos(this.caminhoAbsolutoPastaCliente, agendadorUploads, this.limitadorUpload,
+                    this.bibliotecaVideos);
+            }
             if (this.servidor == null || this.servidor.isClosed()) {
-                this.servidor = new ServerSocket(this.porta);
+                this.servidor = ServerSocketChannel.open().bind(new InetSocketAddress(this.porta)).socket();
+            }
+
+            if (IS_SERVIDOR_UPLOAD_NIO) {
+                this.servidorArquivosNIO = new ServidorArquivosNIO(this.servidor.getChannel(), this.resolvedorRequisicoes, THREADS_SERVIDOR_UPLOAD_NIO);
+                this.servidorArquivosNIO.iniciar();
+            } else {
+                new ServidorCompartilhamentOuvinte().start();
             }
-            new ServidorCompartilhamentOuvinte().start();
         } catch (IOException e) {
             System.err.println("Não foi possível inicializar o servidor ouvinte");
         }
@@ -163,26 +431,43 @@ public class Peer implements AutoCloseable {
      }
     
 
+    /**
+     * Lista os vídeos da pasta, ignorando aqueles com download ainda em andamento (com arquivo de progresso).
+     */
     private List<String> getListaNomesArquivosDeVideo(File clientFile) {
-        return Arrays.stream(clientFile.list()).filter(fileName -> fileName.endsWith(".mp4")).collect(Collectors.toList());
+        return Arrays.stream(clientFile.list())
+            .filter(fileName -> fileName.endsWith(".mp4"))
+            .filter(fileName -> !new File(clientFile, fileName + ProgressoDownload.EXTENSAO).exists())
+            .collect(Collectors.toList());
     }
     
+    private static List<String> separarNomesArquivos(String entrada) {
+        return Arrays.stream(entrada.split(","))
+            .map(String::trim)
+            .filter(nomeArquivo -> !nomeArquivo.isEmpty())
+            .distinct()
+            .collect(Collectors.toList());
+    }
+
     private void criarPastaSeNaoExistir(File clienteFile) {
         clienteFile.mkdirs();
     }
 
-    private String getNomeArquivoAlvo() {
-        System.out.println("Digite o nome do arquivo que está procurando:");
+    /**
+     * @return nomes dos arquivos procurados, separados por vírgula na entrada, ou nulo caso a leitura falhe.
+     */
+    private List<String> getNomesArquivosAlvo() {
+        System.out.println("Digite o nome do arquivo que está procurando, ou vários nomes separados por vírgula:");
                         
         try {
-            String nomeArquivo =  this.leitorInputTeclado.readLine();
+            List<String> nomesArquivos = separarNomesArquivos(this.leitorInputTeclado.readLine());
             
-            while (!nomeArquivo.endsWith(".mp4")) {
+            while (nomesArquivos.isEmpty() || !nomesArquivos.stream().allMatch(nomeArquivo -> nomeArquivo.endsWith(".mp4"))) {
                 System.out.println("Somente são aceitos arquivos de extensão .mp4");
-                nomeArquivo = this.leitorInputTeclado.readLine();
+                nomesArquivos = separarNomesArquivos(this.leitorInputTeclado.readLine());
             }
             
-            return nomeArquivo;
+            return nomesArquivos;
         } catch (IOError e1) {
             System.out.println("Ocorreu um erro durante a leitura, tente novamente!");
             return null;
@@ -191,24 +476,115 @@ public class Peer implements AutoCloseable {
        
     /**
      * Orquestra a requisição SEARCH com o servidor, criando um socket UDP para o envio da mensagem e posteriormente
-     * esperando pela resposta do servidor pelo conjunto de Peers com o arquivo.
+     * esperando pela resposta do servidor pelo conjunto de Peers com o arquivo. Respostas com muitos Peers chegam em várias partes,
+     * já ordenadas por carga pelo servidor; caso somente a primeira chegue a tempo, ela é usada sem novas tentativas.
      * 
      * @TODO: Lida com edge cases, como quando o servidor não responde
      * 
      * @param arquivoAlvo
-     * @return conjunto de endereço dos Peers com o arquivo requerido ou nulo caso o servidor não responda.
+     * @return conjunto de endereço dos Peers com o arquivo requerido, os mais próximos primeiro, ou nulo caso o servidor não responda.
      */
     private Set<String> getPeersComArquivo(String arquivoAlvo) {
-        try (DatagramSocket socketUDP = new DatagramSocket()){
-            socketUDP.setSoTimeout(Peer.TEMPO_ESPERA_RESPOSTA_UDP);
+        Mensagem mensagemSearch = mensagemSearchPorPeers(arquivoAlvo);
+        List<Mensagem> partesPeersComOArquivo = aguardar(this.roteadorRastreadores.enviarComPartes(
+            this.roteadorRastreadores.getShard(arquivoAlvo), mensagemSearch, true));
 
-            Mensagem mensagemSearch = mensagemSearchPorPeers(arquivoAlvo, socketUDP);
-            Mensagem mensagemPeersComOArquivo = controlarRecebimentoMensagemUDP(mensagemSearch, socketUDP);
-    
-            return mensagemPeersComOArquivo == null ? null : getDadosPeer(mensagemPeersComOArquivo);
-        } catch (SocketException e) {
-            return new HashSet<>();
+        if (partesPeersComOArquivo == null) {
+            return null;
         }
+
+        List<String> peersComArquivo = new ArrayList<>();
+        partesPeersComOArquivo.forEach(parte -> peersComArquivo.addAll(getDadosPeer(parte)));
+        return ordenarPorProximidade(peersComArquivo);
+    }
+
+    /**
+     * Orquestra a requisição SEARCH_LOTE, pesquisando os arquivos de cada shard em uma única troca de mensagens com ele. Listas que
+     * não cabem em um único datagrama são divididas em várias requisições, e as requisições de todos os shards são enviadas de uma vez.
+     *
+     * @param arquivosAlvo nomes dos arquivos pesquisados.
+     * @return conjunto de endereços dos Peers de cada arquivo, na ordem pesquisada, ou nulo caso algum shard não responda.
+     */
+    private Map<String, Set<String>> getPeersPorArquivo(List<String> arquivosAlvo) {
+        try {
+            Map<String, Set<String>> peersPorArquivo = new HashMap<>();
+            List<CompletableFuture<List<Mensagem>>> emAndamento = new ArrayList<>();
+
+            for (Map.Entry<String, List<String>> arquivosDoShard : this.roteadorRastreadores.getAnel().agruparPorShard(arquivosAlvo).entrySet()) {
+                List<Mensagem> requisicoes = Mensagem.dividirEmPartes(arquivosDoShard.getValue(), arquivos -> {
+                    Mensagem searchLote = new Mensagem("SEARCH_LOTE");
+                    searchLote.adicionarMensagem("arquivos", arquivos);
+                    searchLote.adicionarMensagem("endereco", enderecoOuvinteRequisicoesTCP);
+                    return searchLote;
+                }, Mensagem.FORMATO_PADRAO, Mensagem.TAMANHO_MAXIMO_PARTE);
+
+                for (Mensagem requisicao : requisicoes) {
+                    emAndamento.add(this.roteadorRastreadores.enviarComPartes(arquivosDoShard.getKey(), requisicao, false));
+                }
+            }
+
+            for (CompletableFuture<List<Mensagem>> requisicao : emAndamento) {
+                List<Mensagem> respostas = aguardar(requisicao);
+                if (respostas == null) {
+                    return null;
+                }
+
+                for (Mensagem resposta : respostas) {
+                    if (resposta.getMensagens().get("resultados") instanceof Map<?, ?>) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, Set<String>> resultados = (Map<String, Set<String>>) resposta.getMensagens().get("resultados");
+                        resultados.forEach((arquivo, peers) -> peersPorArquivo.put(arquivo, ordenarPorProximidade(peers)));
+                    }
+                }
+            }
+
+            Map<String, Set<String>> peersNaOrdemPesquisada = new LinkedHashMap<>();
+            for (String arquivo : arquivosAlvo) {
+                if (peersPorArquivo.containsKey(arquivo)) {
+                    peersNaOrdemPesquisada.put(arquivo, peersPorArquivo.get(arquivo));
+                }
+            }
+            return peersNaOrdemPesquisada;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reordena os Peers recebidos do servidor, mantendo a ordem por carga dentro de cada grupo: primeiro os Peers na mesma
+     * máquina, depois os da mesma sub-rede /24 e por fim os demais. A proximidade depende de quem pergunta, por isso é aplicada
+     * aqui e não no servidor, cujas respostas são compartilhadas por todos os Peers.
+     *
+     * @param peers endereços no formato ip:porta, na ordem recebida.
+     * @return endereços ordenados por proximidade.
+     */
+    private Set<String> ordenarPorProximidade(Collection<String> peers) {
+        String ipLocal = getIp(this.enderecoOuvinteRequisicoesTCP);
+        String subRedeLocal = getSubRede(ipLocal);
+        List<String> ordenados = new ArrayList<>(peers);
+
+        ordenados.sort(Comparator.comparingInt(peer -> {
+            String ip = getIp(peer);
+            return ip.equals(ipLocal) ? 0 : getSubRede(ip).equals(subRedeLocal) ? 1 : 2;
+        }));
+        return new LinkedHashSet<>(ordenados);
+    }
+
+    private static String getIp(String endereco) {
+        int separador = endereco.lastIndexOf(':');
+        return separador == -1 ? endereco : endereco.substring(0, separador);
+    }
+
+    private static String getSubRede(String ip) {
+        int separador = ip.lastIndexOf('.');
+        return separador == -1 ? ip : ip.substring(0, separador);
+    }
+
+    /**
+     * @return ocupação dos slots de upload em porcentagem, informada ao servidor para que os Peers menos carregados sejam sugeridos primeiro.
+     */
+    private int getCargaUpload() {
+        return this.resolvedorRequisicoes == null ? 0 : this.resolvedorRequisicoes.getAgendadorUploads().getCarga();
     }
 
     /**
@@ -216,7 +592,7 @@ public class Peer implements AutoCloseable {
      * @param arquivoAlvo nome do arquivo de vídeo que será requisitado ao servidor
      * @param socketUDP instância de um socket UDP para envio da mensagem
      */
-    private Mensagem mensagemSearchPorPeers(String arquivoAlvo, DatagramSocket socketUDP) {
+    private Mensagem mensagemSearchPorPeers(String arquivoAlvo) {
         Mensagem requisicaoPeers = new Mensagem("SEARCH");
         requisicaoPeers.adicionarMensagem("arquivo_requistado", arquivoAlvo);
         requisicaoPeers.adicionarMensagem("endereco", enderecoOuvinteRequisicoesTCP);
@@ -247,6 +623,11 @@ public class Peer implements AutoCloseable {
      * a execução da transferência de fato.
      */
     class ServidorArquivosThread extends Thread {
+        /**
+         * Tempo máximo que uma conexão mantida aberta (keep-alive) pode ficar sem requisições antes de ser encerrada.
+         */
+        private static final int TEMPO_LIMITE_OCIOSO = 30_000;
+
         private Socket socket;
         private OutputStream outputStream;
         private InputStream inputStream;
@@ -258,254 +639,340 @@ public class Peer implements AutoCloseable {
         public ServidorArquivosThread(Socket socket) throws IOException {
             this.socket = socket;
             this.outputStream = socket.getOutputStream();
-            this.inputStream = socket.getInputStream();
+            this.inputStream = new BufferedInputStream(socket.getInputStream());
         }
 
         /**
          * Controla o fluxo de execução da thread. Iniciando pela espera de uma mensagem TCP para fazer um 
-         * hand-shake de qual arquivo o cliente deseja, após o recebimento da mensagem, decide se nega o DOWNLOAD ou não 
-         * de forma aleatória, caso o download seja aceito, inicia a transferência.
+         * hand-shake de qual arquivo o cliente deseja, cuja resposta é decidida pelo ResolvedorRequisicoesArquivos, e caso seja um
+         * download aceito, inicia a transferência do intervalo de bytes solicitado após o cabeçalho DOWNLOAD_OK.
+         * 
+         * Enquanto as requisições pedirem para manter a conexão (manter_conexao), a conexão continua aberta aguardando a próxima
+         * requisição, o que permite ao cliente enviar várias requisições em sequência (pipelining) sem novos handshakes TCP.
          */
         @Override
         public void run() {
             try {
-                Mensagem mensagem = Mensagem.receberMensagemTCP(this.inputStream);
-                Map<String, Object> mensagens = mensagem.getMensagens();
-                String titulo = mensagem.getTitulo();
-                
-                if (Math.random() > 0.5) {
-                    negarDownload();
-                    return;
-                }
-                
-                if (titulo.equals("DOWNLOAD") && mensagens.get("arquivo_solicitado") instanceof String) {
-                    String nomeArquivo = (String) mensagens.get("arquivo_solicitado");
-                    File caminhoArquivoRequisitado = new File(caminhoAbsolutoPastaCliente, nomeArquivo);
-                    transferirArquivo(caminhoArquivoRequisitado); 
+                this.socket.setSoTimeout(TEMPO_LIMITE_OCIOSO);
+                Mensagem mensagem;
+
+                while ((mensagem = Mensagem.receberMensagemTCP(this.inputStream)) != null && tratarRequisicao(mensagem)) {
+                    // continua atendendo a mesma conexão
                 }
+            } catch (SocketException e) {
+                System.err.println("Não foi possível configurar a conexão com o Peer cliente.");
             } finally {
                 Peer.fecharConexao(this.socket);
             }
         }
 
         /**
-         * Responsável por ler o arquivo em disco, e efetuar a transferência em pacotes de bytes via canal estabelecido.
+         * @param mensagem requisição recebida.
+         * @return true se a conexão deve ser mantida aberta para a próxima requisição.
+         */
+        private boolean tratarRequisicao(Mensagem mensagem) {
+            ResolvedorRequisicoesArquivos.RespostaArquivo resposta = resolvedorRequisicoes.resolver(mensagem, socket.getInetAddress().getHostAddress());
+            if (resposta == null) {
+                return false;
+            }
+
+            boolean isTransferido = false;
+            try {
+                Mensagem.enviarMensagemTCP(outputStream, resposta.getCabecalho(), resposta.getFormato());
+                isTransferido = !resposta.isTransferencia()
+                    || transferirArquivo(resposta.getArquivo(), resposta.getInicio(), resposta.getTamanho(), resposta.getLimite());
+            } finally {
+                resposta.concluir(isTransferido ? resposta.getTamanho() : 0);
+            }
+            return isTransferido && resposta.isManterConexao();
+        }
+
+        /**
+         * Responsável por ler o arquivo em disco, e efetuar a transferência via canal estabelecido. Quando o socket possui um
+         * SocketChannel a transferência é feita sem cópias pelo espaço de usuário (FileChannel.transferTo), caso contrário
+         * recorre à cópia em pacotes de bytes.
          * 
          * @param caminhoArquivoRequisitado
+         * @param inicio posição do primeiro byte a ser enviado.
+         * @param tamanho quantidade de bytes a serem enviados.
+         * @param limite limite de banda respeitado a cada fatia enviada.
+         * @return true se todos os bytes foram enviados e a conexão pode continuar sendo usada.
          */
-        private void transferirArquivo(File caminhoArquivoRequisitado) {
-            try (BufferedOutputStream escritorStream = new BufferedOutputStream(outputStream);
-                BufferedInputStream leitorArquivo = new BufferedInputStream(new FileInputStream(caminhoArquivoRequisitado));){
+        private boolean transferirArquivo(File caminhoArquivoRequisitado, long inicio, long tamanho, LimitadorBanda.Limite limite) {
+            long instanteInicio = System.nanoTime();
+            long bytesEnviados;
+
+            try {
+                SocketChannel canalSocket = socket.getChannel();
+
+                if (IS_UPLOAD_ZERO_COPIA && canalSocket != null) {
+                    bytesEnviados = transferirArquivoZeroCopia(caminhoArquivoRequisitado, canalSocket, inicio, tamanho, limite);
+                } else {
+                    bytesEnviados = transferirArquivoPorStream(caminhoArquivoRequisitado, inicio, tamanho, limite);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            ResolvedorRequisicoesArquivos.reportarVazao(caminhoArquivoRequisitado.getName(), bytesEnviados, System.nanoTime() - instanteInicio);
+            return bytesEnviados == tamanho;
+        }
+
+        private long transferirArquivoZeroCopia(File caminhoArquivoRequisitado, SocketChannel canalSocket, long inicio, long tamanho,
+            LimitadorBanda.Limite limite) throws IOException, InterruptedException {
+            try (FileChannel canalArquivo = FileChannel.open(caminhoArquivoRequisitado.toPath(), StandardOpenOption.READ)) {
+                long bytesEnviados = 0;
+
+                while (bytesEnviados < tamanho) {
+                    long enviados = canalArquivo.transferTo(inicio + bytesEnviados, limite.fatia(tamanho - bytesEnviados), canalSocket);
+                    if (enviados == 0 && inicio + bytesEnviados >= canalArquivo.size()) {
+                        throw new IOException("Arquivo " + caminhoArquivoRequisitado.getName() + " encolheu durante o upload");
+                    }
+                    bytesEnviados += enviados;
+                    limite.aguardar(enviados);
+                }
+                return bytesEnviados;
+            }
+        }
+
+        private long transferirArquivoPorStream(File caminhoArquivoRequisitado, long inicio, long tamanho, LimitadorBanda.Limite limite)
+            throws IOException, InterruptedException {
+            long bytesEnviados = 0;
+
+            BufferedOutputStream escritorStream = new BufferedOutputStream(outputStream);
+
+            try (FileInputStream arquivoStream = new FileInputStream(caminhoArquivoRequisitado);
+                BufferedInputStream leitorArquivo = new BufferedInputStream(arquivoStream);){
+                arquivoStream.getChannel().position(inicio);
                 byte[] packet = new byte[TAMANHO_PACOTES_TRANSFERENCIA];
                 int quantidadeBytesNoBuffer = 0;                
 
-                while ( (quantidadeBytesNoBuffer = leitorArquivo.read(packet)) != -1) {
+                while (bytesEnviados < tamanho && (quantidadeBytesNoBuffer = leitorArquivo.read(packet, 0, (int) Math.min(packet.length, limite.fatia(tamanho - bytesEnviados)))) != -1) {
                     escritorStream.write(packet, 0, quantidadeBytesNoBuffer);
+                    bytesEnviados += quantidadeBytesNoBuffer;
+
+                    if (limite.isLimitado()) {
+                        escritorStream.flush();
+                        limite.aguardar(quantidadeBytesNoBuffer);
+                    }
                 }
 
                 escritorStream.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
-        }
-
-        private void negarDownload() {
-            Mensagem downloadNegado = new Mensagem("DOWNLOAD_NEGADO");
-            Mensagem.enviarMensagemTCP(outputStream, downloadNegado);
+            return bytesEnviados;
         }
     }
 
     /**
-     * Thread responsável pelo recebimento e escrita em disco de um arquivo vindo de outro Peer.
+     * Thread responsável pelo recebimento e escrita em disco de um arquivo vindo de outros Peers.
+     * O arquivo é dividido em peças buscadas de forma concorrente em todos os Peers que o possuem.
      */
     class ClienteArquivosThread extends Thread {
-        private Socket socket;
-        private InputStream inputStream;
-        private OutputStream outputStream;
         private String arquivoAlvo;
         private List<String> listaPeersComArquivoAlvo;
-        private final int REQUISICOES_POR_PEER = 4;
-        private final int TOTAL_REQUISICOES;
 
         public ClienteArquivosThread(String arquivoAlvo, Set<String> peersComAOrquivoAlvo, String enderecoPeerPrioritario) {
             this.arquivoAlvo = arquivoAlvo;
             this.listaPeersComArquivoAlvo = new ArrayList<>(peersComAOrquivoAlvo);
-
-            if (!listaPeersComArquivoAlvo.get(0).equals(enderecoPeerPrioritario)) {
-                listaPeersComArquivoAlvo.add(0, enderecoPeerPrioritario);
-            }
-
-            this.TOTAL_REQUISICOES = REQUISICOES_POR_PEER * peersComAOrquivoAlvo.size();
+            this.listaPeersComArquivoAlvo.remove(enderecoPeerPrioritario);
+            this.listaPeersComArquivoAlvo.add(0, enderecoPeerPrioritario);
         }
 
         /**
          * Controla o fluxo de execução da thread.
-         * Para cada um dos Peers, faz uma requisição de DOWNLOAD, se aceito, da prosseguimento a transferência, senão, refaz a requisição
-         * a outro Peer em um intervalo de 5 segundos entre um Peer e outro.
+         * Consulta o tamanho e os hashes das peças do arquivo, começando pelo Peer prioritário, e então baixa as peças do arquivo de todos
+         * os Peers em paralelo. O UPDATE só é enviado ao servidor quando todas as peças foram verificadas.
          */
         @Override
         public void run() {
             boolean isDownloadBemSucedido = false;
             
             try {
-                for (int i = 0, totalRequisicoes = 0; !isDownloadBemSucedido && totalRequisicoes < TOTAL_REQUISICOES ; i++, totalRequisicoes++) {
-                    i = i % this.listaPeersComArquivoAlvo.size();
-                    
-                    String enderecoPeerAlvo = listaPeersComArquivoAlvo.get(i);
-                    System.out.println(String.format("Pedindo agora para o peer %s.", enderecoPeerAlvo));
-
-                    estabelecerConexao(enderecoPeerAlvo);
-                    combinarArquivoParaDownload();            
-                    isDownloadBemSucedido = downloadArquivo();
-
-                    if(!isDownloadBemSucedido) {
-                        desligarSocket();
-                        pausarExecucao();
-                            
-                        System.out.print(String.format("Peer %s negou o download. ", enderecoPeerAlvo));
-                    }            
-                }   
+                MetadadosArquivo metadados = DownloadMultiFonte.consultarMetadados(this.arquivoAlvo, this.listaPeersComArquivoAlvo, poolConexoesPeers);
+
+                if (metadados != null) {
+                    File arquivoDestino = new File(caminhoAbsolutoPastaCliente, this.arquivoAlvo);
+                    DownloadMultiFonte download = new DownloadMultiFonte(this.arquivoAlvo, arquivoDestino, metadados, this.listaPeersComArquivoAlvo,
+                        poolConexoesPeers, limitadorDownload);
+                    isDownloadBemSucedido = download.executar();
+                }
             } catch (InterruptedException | IOException e) {
                 System.out.println("Ocorreu um erro durante o download, finalizando execução do Downloader.");
-            } finally {
-                Peer.fecharConexao(this.socket);               
             }
             
             if (isDownloadBemSucedido) {
                 System.out.println(String.format("Arquivo %s baixado com sucesso na pasta %s", this.arquivoAlvo, caminhoAbsolutoPastaCliente));
+                agendarUpdate(this.arquivoAlvo);
             } else {
                 System.out.println("\nO download falhou, tente novamente mais tarde.");
             }
         }
-        
-        private void pausarExecucao() throws InterruptedException {
-            TimeUnit.SECONDS.sleep(5);
-        }
+    }
 
-        private void desligarSocket() throws IOException  {
-            if (this.socket != null && this.socket.isConnected()) {
-                this.socket.close();                
-            }
+    /**
+     * Agenda o anúncio ao servidor de um download concluído, agrupando-o aos demais concluídos dentro de TEMPO_AGRUPAMENTO_UPDATES.
+     * Quando a pasta está sendo monitorada, o download concluído é anunciado pela BibliotecaVideos.
+     *
+     * @param arquivo arquivo que passou a ser compartilhado.
+     */
+    private void agendarUpdate(String arquivo) {
+        if (this.bibliotecaVideos.isMonitorando()) {
+            return;
         }
 
-        /**
-         * Estabelece conexão TCP com um Peer e instancia os streams necessários para a transferência de dados.        
-         */
-        private void estabelecerConexao(String enderecoPeer) {
-            try {
-                String[] peerInfo = enderecoPeer.split(":");
-                int porta = Integer.parseInt(peerInfo[1]);
+        synchronized (this.arquivosAguardandoUpdate) {
+            boolean isPrimeiroAguardando = this.arquivosAguardandoUpdate.isEmpty();
+            this.arquivosAguardandoUpdate.add(arquivo);
 
-                this.socket = new Socket("localhost", porta);
-                this.inputStream = socket.getInputStream();
-                this.outputStream = socket.getOutputStream();
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (isPrimeiroAguardando) {
+                this.agendadorTarefasServidor.schedule(this::enviarRequisicaoUpdate, TEMPO_AGRUPAMENTO_UPDATES, TimeUnit.MILLISECONDS);
             }
         }
+    }
 
-        /**
-         * Faz uma requisição TCP para o Peer cuja a conexão TCP foi estabelecida.
-         */
-        private void combinarArquivoParaDownload() {
-            Mensagem arquivoRequerido = new Mensagem("DOWNLOAD");
-            arquivoRequerido.adicionarMensagem("arquivo_solicitado", this.arquivoAlvo);
-            Mensagem.enviarMensagemTCP(outputStream, arquivoRequerido);
-        }
-
-         /**
-          * Orquestra o DOWNLOAD do arquivo, primeiro checa se o download foi negado tentando converter o pacote recebido em uma instância
-          * de Mensagem e caso o download não tenha sido negado prossegue com o download.
-          *
-          * @return se o download foi efetuado ou não.
-          */
-        private boolean downloadArquivo() {        
-            boolean isTransferenciaBemSucedida = false;
-
-            try (BufferedInputStream entradaStream = new BufferedInputStream(inputStream);){                
-                byte[] data = new byte[TAMANHO_PACOTES_TRANSFERENCIA];                
-                int quantidadeBytesLido = entradaStream.read(data);
-                
-                if (isDownloadNegado(data)) {
-                    return false;
-                }
-
-                isTransferenciaBemSucedida = receberTransferenciaArquivo(entradaStream, data, quantidadeBytesLido);                
-                enviarRequisicaoUpdate();
-            } catch (IOException e) {
-                System.out.println("Não foi possível efetuar o download, tente novamente");                
-            } 
+    /**
+     * Anuncia ao servidor os downloads concluídos e aguardando o anúncio, se estiver atuando como compartilhador de arquivos.
+     */
+    private void enviarRequisicaoUpdate() {
+        List<String> arquivos;
+        synchronized (this.arquivosAguardandoUpdate) {
+            arquivos = new ArrayList<>(this.arquivosAguardandoUpdate);
+            this.arquivosAguardandoUpdate.clear();
+        }
 
-            return isTransferenciaBemSucedida;
+        if (isCompartilhandoArquivos && !arquivos.isEmpty()) {
+            anunciarAlteracoes(arquivos, Collections.emptyList());
         }
+    }
 
-        /**
-         * Executa a transferência de fato, escrevendo o arquivo em disco.
-         * 
-         * @param arquivoLeitor stream estabelecida com o Peer provedor do arquivo.
-         * @param data pacote de bytes inicial que foi utilizado decidir se o download foi negado ou não.
-         * @return true se o download foi bem sucedido e false caso contrário.
-         */
-        private boolean receberTransferenciaArquivo(BufferedInputStream arquivoLeitor, byte[] data, int quantidadeBytesLido) {
-            File file = new File(caminhoAbsolutoPastaCliente,  this.arquivoAlvo);
+    /**
+     * Anuncia as alterações da pasta entregues pela BibliotecaVideos, na thread das tarefas do servidor, para que não se sobreponham
+     * aos demais anúncios e ressincronizações.
+     */
+    private void tratarAlteracaoBiblioteca(Set<String> adicionados, Set<String> removidos) {
+        this.agendadorTarefasServidor.execute(() -> {
+            if (this.isCompartilhandoArquivos) {
+                System.out.println(String.format("Alterações na pasta anunciadas ao servidor: %d vídeos adicionados e %d removidos.",
+                    adicionados.size(), removidos.size()));
+                anunciarAlteracoes(adicionados, removidos);
+            }
+        });
+    }
 
-            try(BufferedOutputStream escritorStream = new BufferedOutputStream(new FileOutputStream(file))) {
+    /**
+     * Anuncia ao shard de cada arquivo os arquivos que passaram a ser compartilhados e os que deixaram de ser, com requisições DELTA
+     * que levam somente as diferenças a partir da versão do manifesto confirmada pelo shard. Os DELTA de um mesmo shard são enviados
+     * um após o outro, já que cada um parte da versão do anterior, enquanto os shards são atendidos em paralelo. Um shard sem versão
+     * confirmada, que responde RESYNC ou que não responde recebe o manifesto completo em um JOIN.
+     *
+     * @param adicionados arquivos que passaram a ser compartilhados.
+     * @param removidos arquivos que deixaram de ser compartilhados.
+     */
+    private void anunciarAlteracoes(Collection<String> adicionados, Collection<String> removidos) {
+        AnelShards anel = this.roteadorRastreadores.getAnel();
+        Map<String, List<String>> adicionadosPorShard = anel.agruparPorShard(adicionados);
+        Map<String, List<String>> removidosPorShard = anel.agruparPorShard(removidos);
+        Set<String> shards = new LinkedHashSet<>(adicionadosPorShard.keySet());
+        shards.addAll(removidosPorShard.keySet());
+
+        Map<String, CompletableFuture<Boolean>> emAndamento = new LinkedHashMap<>();
+        for (String shard : shards) {
+            this.shardsRegistrados.add(shard);
+            Long versao = this.versoesManifestos.get(shard);
 
-                do {
-                    escritorStream.write(data, 0, quantidadeBytesLido);
-                    
-                } while ( (quantidadeBytesLido = arquivoLeitor.read(data)) != -1);
-                escritorStream.flush();
-                
-                return true;
-            } catch(IOException e) {
-                System.out.println("Ocorreu um erro durante o recebimento do arquivo.");
+            try {
+                emAndamento.put(shard, versao == null ? CompletableFuture.completedFuture(false) : enviarDeltas(shard,
+                    mensagensDelta(adicionadosPorShard.getOrDefault(shard, Collections.emptyList()),
+                        removidosPorShard.getOrDefault(shard, Collections.emptyList())), versao, 0));
+            } catch (IOException e) {
+                emAndamento.put(shard, CompletableFuture.completedFuture(false));
             }
-            return false;
         }
 
-        /**
-         *  Decide se o download foi negado, tenta converter o pacote recebido para uma instância de Mensagem e se mal sucedido já
-         * retorna falso.
-         * 
-         * @param data pacote de bytes recebido.
-         * @return true se o download foi negado e false caso contrário.
-         */
-        private boolean isDownloadNegado(byte[] data) {
-            if (data.length == 0) {
-                return true;
+        emAndamento.forEach((shard, requisicao) -> {
+            if (!Boolean.TRUE.equals(aguardar(requisicao)) && !ressincronizar(shard)) {
+                System.out.println(String.format("Não foi possível anunciar ao servidor %s as alterações nos arquivos compartilhados.", shard));
             }
+        });
+    }
 
-            Mensagem mensagem;
+    /**
+     * Envia os DELTA a partir do índice informado, cada um após a confirmação do anterior.
+     *
+     * @param versao versão do manifesto confirmada pelo shard antes do DELTA do índice informado.
+     * @return se o shard confirmou todos os DELTA.
+     */
+    private CompletableFuture<Boolean> enviarDeltas(String shard, List<Mensagem> deltas, long versao, int indice) {
+        if (indice == deltas.size()) {
+            return CompletableFuture.completedFuture(true);
+        }
 
-            try {
-                mensagem = Mensagem.deserializarBytes(data);
-            } catch (Exception e) {
-                return false;
+        Mensagem delta = deltas.get(indice);
+        delta.adicionarMensagem("versao", versao + 1);
+        return this.roteadorRastreadores.enviar(shard, delta).handle((resposta, falha) -> {
+            if (resposta == null || !resposta.getTitulo().equals("DELTA_OK")) {
+                this.versoesManifestos.remove(shard);
+                return CompletableFuture.completedFuture(false);
             }
+            this.versoesManifestos.put(shard, versao + 1);
+            return enviarDeltas(shard, deltas, versao + 1, indice + 1);
+        }).thenCompose(Function.identity());
+    }
 
-            return mensagem.getTitulo().equals("DOWNLOAD_NEGADO");
+    /**
+     * @param adicionados arquivos adicionados de um mesmo shard.
+     * @param removidos arquivos removidos do mesmo shard.
+     * @return um único DELTA com as duas listas, ou os DELTA das remoções seguidos dos das adições, que cabem em um único datagrama
+     * cada, sem a versão.
+     */
+    private List<Mensagem> mensagensDelta(List<String> adicionados, List<String> removidos) throws IOException {
+        Mensagem delta = mensagemDelta(adicionados, removidos);
+        if (Mensagem.serializar(delta, Mensagem.FORMATO_PADRAO).length <= Mensagem.TAMANHO_MAXIMO_PARTE) {
+            return Collections.singletonList(delta);
         }
 
-        /**
-         * Faz uma requisição UPDATE ao servidor se estiver atuando como compartilhador de arquivos, visando atualizar os arquivos que possuí e está disposto a compartilhar.
-         */
-        private void enviarRequisicaoUpdate() {
-            if (isCompartilhandoArquivos) {
-                try (DatagramSocket socketUDP = new DatagramSocket()){
-                    socketUDP.setSoTimeout(Peer.TEMPO_ESPERA_RESPOSTA_UDP);
-                    Mensagem update = new Mensagem("UPDATE");
-                    update.adicionarMensagem("arquivo", arquivoAlvo);
-                    update.adicionarMensagem("endereco", enderecoOuvinteRequisicoesTCP);                    
-                    Mensagem updateOk = controlarRecebimentoMensagemUDP(update, socketUDP);
-                    if (updateOk == null) {
-                        System.out.println("Não foi recebida resposta do servidor em relação a requisição UPDATE.");
-                    }                    
-                } catch (Exception e) {
-                    System.err.println("Não foi possível enviar a requisição UPDATE ao servidor!");
-                }
-            }
+        List<Mensagem> deltas = new ArrayList<>();
+        if (!removidos.isEmpty()) {
+            deltas.addAll(Mensagem.dividirEmPartes(removidos, removidosParte -> mensagemDelta(Collections.emptyList(), removidosParte),
+                Mensagem.FORMATO_PADRAO, Mensagem.TAMANHO_MAXIMO_PARTE));
         }
+        if (!adicionados.isEmpty()) {
+            deltas.addAll(Mensagem.dividirEmPartes(adicionados, adicionadosParte -> mensagemDelta(adicionadosParte, Collections.emptyList()),
+                Mensagem.FORMATO_PADRAO, Mensagem.TAMANHO_MAXIMO_PARTE));
+        }
+        return deltas;
+    }
+
+    private Mensagem mensagemDelta(List<String> adicionados, List<String> removidos) {
+        Mensagem delta = new Mensagem("DELTA");
+        delta.adicionarMensagem("endereco", this.enderecoOuvinteRequisicoesTCP);
+        delta.adicionarMensagem("carga", getCargaUpload());
+        delta.adicionarMensagem("versao", 0L);
+        if (!adicionados.isEmpty()) {
+            delta.adicionarMensagem("adicionados", adicionados);
+        }
+        if (!removidos.isEmpty()) {
+            delta.adicionarMensagem("removidos", removidos);
+        }
+        return delta;
+    }
+
+    /**
+     * Estabelece conexão TCP com um Peer a partir do seu endereço no formato ip:porta.
+     * 
+     * @param enderecoPeer endereço do Peer.
+     * @return socket conectado ao Peer.
+     * @throws IOException caso a conexão não seja estabelecida.
+     */
+    static Socket conectarAoPeer(String enderecoPeer) throws IOException {
+        String[] peerInfo = enderecoPeer.split(":");
+        int porta = Integer.parseInt(peerInfo[1]);
+
+        return new Socket("localhost", porta);
     }
 
     /**
@@ -546,6 +1013,12 @@ public class Peer implements AutoCloseable {
     }
 
     private void pararCompartilhamentoDeArquivos() {
+        pararSinalDeVida();
+        this.bibliotecaVideos.parar();
+        if (this.servidorArquivosNIO != null) {
+            this.servidorArquivosNIO.close();
+            this.servidorArquivosNIO = null;
+        }
         boolean isConexaoFechada = fecharConexao(this.servidor);
         if (isConexaoFechada) {
             this.isCompartilhandoArquivos = false;
@@ -553,12 +1026,17 @@ public class Peer implements AutoCloseable {
     }
 
     /**
-     * Orquestra a requisição JOIN ao servidor.
+     * Orquestra a requisição JOIN ao servidor, com os vídeos da pasta obtidos ao iniciar o seu monitoramento. Caso a pasta não possa ser
+     * monitorada, os vídeos são listados uma única vez, e somente os downloads concluídos são anunciados depois.
      */
     private void tratarRequisicaoJoin() {
         if (!this.isCompartilhandoArquivos) {
-            File clienteFile = new File(caminhoAbsolutoPastaCliente);
-            this.arquivosDisponiveis = getListaNomesArquivosDeVideo(clienteFile);             
+            try {
+                this.arquivosDisponiveis = this.bibliotecaVideos.iniciar();
+            } catch (IOException e) {
+                System.err.println("Não foi possível monitorar a pasta, as alterações feitas nela não serão anunciadas: " + e.getMessage());
+                this.arquivosDisponiveis = getListaNomesArquivosDeVideo(new File(caminhoAbsolutoPastaCliente));
+            }
             joinServidor();
         } else {
             System.out.println("Já foi efetuado o JOIN ao servidor anteriormente!");
@@ -570,7 +1048,17 @@ public class Peer implements AutoCloseable {
      * para então atualizar o conjunto a nível do Peer.
      */
     private void tratarRequisicaoSearch() {
-        String arquivoAlvo = getNomeArquivoAlvo();        
+        List<String> arquivosAlvo = getNomesArquivosAlvo();
+        if (arquivosAlvo == null) {
+            return;
+        }
+        if (arquivosAlvo.size() > 1) {
+            tratarRequisicaoSearchEmLote(arquivosAlvo);
+            return;
+        }
+
+        String arquivoAlvo = arquivosAlvo.get(0);
+        this.resultadosUltimaPesquisaEmLote = null;
         this.ultimoArquivoPesquisado = arquivoAlvo;
         Set<String> peersComArquivo = getPeersComArquivo(arquivoAlvo);
 
@@ -587,11 +1075,53 @@ public class Peer implements AutoCloseable {
         }
     }
 
+    /**
+     * Orquestra a pesquisa de vários arquivos de uma só vez, exibindo os Peers de cada um deles.
+     */
+    private void tratarRequisicaoSearchEmLote(List<String> arquivosAlvo) {
+        Map<String, Set<String>> peersPorArquivo = getPeersPorArquivo(arquivosAlvo);
+
+        if (peersPorArquivo == null) {
+            System.out.println("Não se obteve resposta do servidor, tente novamente mais tarde.");
+            return;
+        }
+
+        this.resultadosUltimaPesquisaEmLote = peersPorArquivo;
+        for (String arquivoAlvo : arquivosAlvo) {
+            Set<String> peersComArquivo = peersPorArquivo.getOrDefault(arquivoAlvo, Collections.emptySet());
+
+            if (peersComArquivo.isEmpty()) {
+                System.out.println(String.format("Nenhum Peer foi encotrado com o arquivo %s", arquivoAlvo));
+            } else {
+                System.out.println(String.format("Peers com o arquivo %s: \n%s", arquivoAlvo, peersComArquivo));
+            }
+        }
+    }
+
+    /**
+     * Após uma pesquisa de vários arquivos, pergunta qual deles será baixado.
+     */
+    private void escolherArquivoDaPesquisaEmLote() {
+        String arquivo;
+
+        do {
+            System.out.println(String.format("Digite o nome do arquivo que deseja baixar, dentre os pesquisados: %s", this.resultadosUltimaPesquisaEmLote.keySet()));
+            arquivo = this.leitorInputTeclado.readLine().trim();
+        } while (!this.resultadosUltimaPesquisaEmLote.containsKey(arquivo));
+
+        this.ultimoArquivoPesquisado = arquivo;
+        this.peersComUltimoArquivoPesquisado = this.resultadosUltimaPesquisaEmLote.get(arquivo);
+    }
+
     /**
      * Orquestra requisições DOWNLOAD, fazendo as validações necessárias.
      */
     private void tratarRequisicaoDownload() {        
         try {
+            if (this.resultadosUltimaPesquisaEmLote != null && !this.resultadosUltimaPesquisaEmLote.isEmpty()) {
+                escolherArquivoDaPesquisaEmLote();
+            }
+
             if (this.ultimoArquivoPesquisado == null) {
                 System.out.println("É necessário fazer uma requisição SEARCH antes de efetuar um DOWNLOAD");
                 return;
@@ -610,8 +1140,8 @@ public class Peer implements AutoCloseable {
     }
 
     /**
-     * Orquestra a requisição LEAVE, enviando a mensagem UDP ao servidor e desligando o compartilhamento caso
-     * bem sucedido.
+     * Orquestra a requisição LEAVE, enviando a mensagem UDP em paralelo a todos os shards em que o Peer está registrado e desligando
+     * o compartilhamento caso todos confirmem. Os shards que não confirmarem recebem o LEAVE novamente na próxima tentativa.
      */
     private void tratarRequisicaoLeave() {
         if (!this.isCompartilhandoArquivos) {
@@ -619,25 +1149,67 @@ public class Peer implements AutoCloseable {
             return;
         }
 
-        try (DatagramSocket socketUDP = new DatagramSocket()) {
-            socketUDP.setSoTimeout(Peer.TEMPO_ESPERA_RESPOSTA_UDP);
-            
+        Map<String, CompletableFuture<Mensagem>> emAndamento = new LinkedHashMap<>();
+        for (String shard : this.shardsRegistrados) {
             Mensagem mensagemLeave = new Mensagem("LEAVE");
             mensagemLeave.adicionarMensagem("endereco", this.enderecoOuvinteRequisicoesTCP);
+            emAndamento.put(shard, this.roteadorRastreadores.enviar(shard, mensagemLeave));
+        }
 
-            Mensagem respostaServidor = controlarRecebimentoMensagemUDP(mensagemLeave, socketUDP);
-            
-            if (respostaServidor == null) {
-                System.out.println("Não foi obtida resposta do servidor, tente novamente mais tarde.");
-                return;
-            }
-            
-            if (respostaServidor.getTitulo().equals("LEAVE_OK")) {                       
-                pararCompartilhamentoDeArquivos();
+        emAndamento.forEach((shard, requisicao) -> {
+            Mensagem respostaServidor = aguardar(requisicao);
+            if (respostaServidor != null && respostaServidor.getTitulo().equals("LEAVE_OK")) {
+                this.shardsRegistrados.remove(shard);
+                this.versoesManifestos.remove(shard);
             }
-        } catch (SocketException e) {
-            System.err.println("Não foi possível executar a requisição LEAVE, tente novamente.");            
+        });
+        
+        if (!this.shardsRegistrados.isEmpty()) {
+            System.out.println(String.format("Não foi obtida resposta dos servidores %s, tente novamente mais tarde.", this.shardsRegistrados));
+            return;
         }
+        pararCompartilhamentoDeArquivos();
+    }
+
+    /**
+     * Ajusta os limites de banda de upload ou download durante a execução, inclusive das transferências em andamento.
+     */
+    private void tratarConfiguracaoBanda() {
+        System.out.println("Digite o sentido do limite (UPLOAD ou DOWNLOAD):");
+        String sentido = this.leitorInputTeclado.readLine().trim().toUpperCase();
+        LimitadorBanda limitador = sentido.equals("UPLOAD") ? this.limitadorUpload : sentido.equals("DOWNLOAD") ? this.limitadorDownload : null;
+
+        if (limitador == null) {
+            System.out.println("Sentido inválido");
+            return;
+        }
+
+        System.out.println("Limites em bytes por segundo, 0 para não limitar ou vazio para manter o atual.");
+        limitador.setBytesPorSegundoGlobal(lerTaxa("Limite global", limitador.getBytesPorSegundoGlobal()));
+        limitador.setBytesPorSegundoPorPeer(lerTaxa("Limite por peer", limitador.getBytesPorSegundoPorPeer()));
+        limitador.setBytesPorSegundoPorTransferencia(lerTaxa("Limite por transferência", limitador.getBytesPorSegundoPorTransferencia()));
+    }
+
+    private long lerTaxa(String descricao, long taxaAtual) {
+        System.out.println(String.format("%s (atual %d):", descricao, taxaAtual));
+        String entrada = this.leitorInputTeclado.readLine().trim();
+
+        if (entrada.isEmpty()) {
+            return taxaAtual;
+        }
+        try {
+            return Math.max(0, Long.parseLong(entrada));
+        } catch (NumberFormatException e) {
+            System.out.println("Valor inválido, mantendo o limite atual.");
+            return taxaAtual;
+        }
+    }
+
+    private static LimitadorBanda criarLimitadorBanda(String sentido) {
+        return new LimitadorBanda(Relogio.SISTEMA,
+            Long.getLong("p2p.banda." + sentido + ".global", 0),
+            Long.getLong("p2p.banda." + sentido + ".peer", 0),
+            Long.getLong("p2p.banda." + sentido + ".transferencia", 0));
     }
 
     /**
@@ -658,6 +1230,9 @@ public class Peer implements AutoCloseable {
             case "LEAVE":
                 tratarRequisicaoLeave();
                 break;
+            case "BANDA":
+                tratarConfiguracaoBanda();
+                break;
             default:
                 System.out.println("Opção não disponível");
                 break;
@@ -668,7 +1243,7 @@ public class Peer implements AutoCloseable {
         while (true) {
             System.out.println("Escolha uma das opções:");
             String opcaoServidor = this.isCompartilhandoArquivos ? "LEAVE" : "JOIN" ;
-            System.out.println(String.format("%s\tSEARCH\tDOWNLOAD", opcaoServidor));
+            System.out.println(String.format("%s\tSEARCH\tDOWNLOAD\tBANDA", opcaoServidor));
 
             try {
                 String escolhaUsuario = leitorInputTeclado.readLine();
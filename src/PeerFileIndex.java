@@ -0,0 +1,343 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Índice bidirecional peer -> arquivos e arquivo -> peers, mantendo os dois sentidos consistentes sob acesso concorrente.
+ *
+ * Nomes de arquivos e endereços de peers são internados como identificadores inteiros densos, e cada sentido do índice guarda
+ * apenas conjuntos primitivos de inteiros, de modo que cada nome é armazenado uma única vez.
+ *
+ * As operações sobre um mesmo peer são serializadas por listras de travas (lock striping) sobre o endereço do peer, e o conjunto
+ * de peers de cada arquivo é protegido por listras sobre o nome do arquivo. As travas são sempre adquiridas na ordem peer -> arquivo,
+ * evitando deadlocks. Assim JOIN, UPDATE e LEAVE de peers diferentes executam em paralelo, e as leituras devolvem cópias (snapshots)
+ * que podem ser usadas livremente pelo chamador.
+ *
+ * Ouvintes registrados são notificados a cada alteração do conjunto de peers de um arquivo, ainda com a trava do arquivo adquirida,
+ * de modo que uma notificação nunca seja entregue antes da alteração correspondente ficar visível às leituras. Da mesma forma, o
+ * registro de mutações (como o DiarioIndice) recebe as alterações de cada peer com a trava do peer adquirida, na ordem em que ocorrem.
+ *
+ * @author Maik Henrique
+ */
+public class PeerFileIndex {
+
+    private static final int QUANTIDADE_LISTRAS = 64;
+
+    private final InternadorIds<ConjuntoInteiros> peers;
+    private final InternadorIds<ConjuntoInteiros> arquivos;
+    private final Object[] listrasPeers;
+    private final Object[] listrasArquivos;
+    private final List<OuvinteIndice> ouvintes;
+    private final List<RegistroMutacoes> registrosMutacoes;
+
+    /**
+     * Recebe as alterações do mapeamento arquivo -> peers.
+     */
+    public interface OuvinteIndice {
+        /**
+         * Chamado com a trava do arquivo adquirida, não devendo consultar o índice nem bloquear.
+         *
+         * @param arquivo arquivo cujo conjunto de peers mudou.
+         */
+        void arquivoAlterado(String arquivo);
+    }
+
+    /**
+     * Recebe as alterações dos arquivos de cada peer, para que possam ser persistidas e reaplicadas na mesma ordem. Os métodos são
+     * chamados após a alteração, com a trava do peer adquirida, não devendo consultar o índice nem bloquear.
+     */
+    public interface RegistroMutacoes {
+        void arquivosDefinidos(String peer, Collection<String> arquivos);
+
+        void arquivoAdicionado(String peer, String arquivo);
+
+        void arquivoRemovido(String peer, String arquivo);
+
+        void peerRemovido(String peer);
+    }
+
+    public PeerFileIndex() {
+        this.peers = new InternadorIds<>();
+        this.arquivos = new InternadorIds<>();
+        this.listrasPeers = criarListras();
+        this.listrasArquivos = criarListras();
+        this.ouvintes = new CopyOnWriteArrayList<>();
+        this.registrosMutacoes = new CopyOnWriteArrayList<>();
+    }
+
+    public void adicionarOuvinte(OuvinteIndice ouvinte) {
+        ouvintes.add(ouvinte);
+    }
+
+    /**
+     * @param registro registro que passa a receber as alterações dos peers, após os registros já adicionados.
+     */
+    public void adicionarRegistroMutacoes(RegistroMutacoes registro) {
+        registrosMutacoes.add(registro);
+    }
+
+    public void removerRegistroMutacoes(RegistroMutacoes registro) {
+        registrosMutacoes.remove(registro);
+    }
+
+    private void notificarAlteracao(String arquivo) {
+        for (OuvinteIndice ouvinte : ouvintes) {
+            ouvinte.arquivoAlterado(arquivo);
+        }
+    }
+
+    private static Object[] criarListras() {
+        Object[] listras = new Object[QUANTIDADE_LISTRAS];
+        for (int i = 0; i < QUANTIDADE_LISTRAS; i++) {
+            listras[i] = new Object();
+        }
+        return listras;
+    }
+
+    private static Object listra(Object[] listras, String nome) {
+        int hash = nome.hashCode();
+        return listras[(hash ^ (hash >>> 16)) & (QUANTIDADE_LISTRAS - 1)];
+    }
+
+    /**
+     * Substitui o conjunto de arquivos do peer, usado em requisições JOIN. Somente as diferenças alteram o mapeamento
+     * arquivo -> peers: os arquivos que o peer já possuía não são vinculados novamente, e os que deixaram de ser anunciados
+     * são desvinculados.
+     *
+     * @param peer endereço do peer.
+     * @param nomesArquivos arquivos que o peer compartilha.
+     */
+    public void definirArquivosPeer(String peer, Collection<String> nomesArquivos) {
+        synchronized (listra(listrasPeers, peer)) {
+            int idPeer = peers.internar(peer);
+            ConjuntoInteiros arquivosAnteriores = peers.getValor(idPeer);
+            ConjuntoInteiros novosArquivos = new ConjuntoInteiros(nomesArquivos.size());
+
+            for (String arquivo : nomesArquivos) {
+                int idArquivo = arquivosAnteriores == null ? -1 : arquivos.getId(arquivo);
+                novosArquivos.adicionar(idArquivo != -1 && arquivosAnteriores.contem(idArquivo) ? idArquivo : vincularPeerAoArquivo(arquivo, idPeer));
+            }
+
+            if (arquivosAnteriores != null) {
+                arquivosAnteriores.paraCada(idArquivo -> {
+                    if (!novosArquivos.contem(idArquivo)) {
+                        desvincularPeerDoArquivo(idArquivo, idPeer);
+                    }
+                });
+            }
+
+            peers.setValor(idPeer, novosArquivos);
+
+            for (RegistroMutacoes registro : registrosMutacoes) {
+                registro.arquivosDefinidos(peer, nomesArquivos);
+            }
+        }
+    }
+
+    /**
+     * Adiciona um arquivo ao peer, usado em requisições UPDATE.
+     *
+     * @param peer endereço do peer.
+     * @param arquivo arquivo que passou a ser compartilhado.
+     * @return true se o arquivo ainda não estava associado ao peer.
+     */
+    public boolean adicionarArquivo(String peer, String arquivo) {
+        synchronized (listra(listrasPeers, peer)) {
+            int idPeer = peers.internar(peer);
+            ConjuntoInteiros arquivosDoPeer = peers.getValor(idPeer);
+
+            if (arquivosDoPeer == null) {
+                arquivosDoPeer = new ConjuntoInteiros();
+                peers.setValor(idPeer, arquivosDoPeer);
+            }
+
+            if (!arquivosDoPeer.adicionar(vincularPeerAoArquivo(arquivo, idPeer))) {
+                return false;
+            }
+
+            for (RegistroMutacoes registro : registrosMutacoes) {
+                registro.arquivoAdicionado(peer, arquivo);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remove um arquivo do peer, usado nas alterações incrementais (DELTA).
+     *
+     * @param peer endereço do peer.
+     * @param arquivo arquivo que deixou de ser compartilhado.
+     * @return true se o arquivo estava associado ao peer.
+     */
+    public boolean removerArquivo(String peer, String arquivo) {
+        synchronized (listra(listrasPeers, peer)) {
+            int idPeer = peers.getId(peer);
+            int idArquivo = arquivos.getId(arquivo);
+            ConjuntoInteiros arquivosDoPeer = idPeer == -1 ? null : peers.getValor(idPeer);
+
+            if (arquivosDoPeer == null || idArquivo == -1 || !arquivosDoPeer.remover(idArquivo)) {
+                return false;
+            }
+            desvincularPeerDoArquivo(idArquivo, idPeer);
+
+            for (RegistroMutacoes registro : registrosMutacoes) {
+                registro.arquivoRemovido(peer, arquivo);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remove o peer e todos os seus arquivos dos dois mapeamentos, usado em requisições LEAVE.
+     *
+     * @param peer endereço do peer.
+     * @return arquivos que estavam associados ao peer, vazio caso o peer não fosse conhecido.
+     */
+    public Set<String> removerPeer(String peer) {
+        synchronized (listra(listrasPeers, peer)) {
+            int idPeer = peers.getId(peer);
+            if (idPeer == -1) {
+                return Collections.emptySet();
+            }
+
+            Set<String> arquivosRemovidos = new HashSet<>();
+            ConjuntoInteiros arquivosDoPeer = peers.getValor(idPeer);
+
+            if (arquivosDoPeer != null) {
+                arquivosDoPeer.paraCada(idArquivo -> arquivosRemovidos.add(desvincularPeerDoArquivo(idArquivo, idPeer)));
+            }
+
+            peers.liberar(idPeer);
+
+            for (RegistroMutacoes registro : registrosMutacoes) {
+                registro.peerRemovido(peer);
+            }
+            return arquivosRemovidos;
+        }
+    }
+
+    /**
+     * @param arquivo nome do arquivo.
+     * @return cópia do conjunto de peers que possuem o arquivo.
+     */
+    public Set<String> getPeersComArquivo(String arquivo) {
+        synchronized (listra(listrasArquivos, arquivo)) {
+            int idArquivo = arquivos.getId(arquivo);
+            if (idArquivo == -1) {
+                return new HashSet<>();
+            }
+
+            ConjuntoInteiros peersDoArquivo = arquivos.getValor(idArquivo);
+            Set<String> copia = new LinkedHashSet<>(peersDoArquivo.tamanho() * 2);
+            peersDoArquivo.paraCada(idPeer -> copia.add(peers.getNome(idPeer)));
+            return copia;
+        }
+    }
+
+    /**
+     * @param peer endereço do peer.
+     * @return cópia do conjunto de arquivos do peer.
+     */
+    public Set<String> getArquivosDoPeer(String peer) {
+        synchronized (listra(listrasPeers, peer)) {
+            int idPeer = peers.getId(peer);
+            ConjuntoInteiros arquivosDoPeer = idPeer == -1 ? null : peers.getValor(idPeer);
+
+            if (arquivosDoPeer == null) {
+                return new HashSet<>();
+            }
+
+            Set<String> copia = new HashSet<>(arquivosDoPeer.tamanho() * 2);
+            arquivosDoPeer.paraCada(idArquivo -> copia.add(arquivos.getNome(idArquivo)));
+            return copia;
+        }
+    }
+
+    /**
+     * Percorre os peers do índice sem bloquear as alterações concorrentes: os arquivos de cada peer são copiados com a trava do peer
+     * adquirida, mas peers incluídos ou removidos durante o percurso podem ou não ser visitados.
+     *
+     * @param consumidor recebe cada peer com uma cópia dos seus arquivos, sem nenhuma trava adquirida.
+     */
+    public void paraCadaPeer(BiConsumer<String, List<String>> consumidor) {
+        for (String peer : peers.getNomes()) {
+            List<String> arquivosDoPeer;
+
+            synchronized (listra(listrasPeers, peer)) {
+                int idPeer = peers.getId(peer);
+                ConjuntoInteiros idsArquivos = idPeer == -1 ? null : peers.getValor(idPeer);
+                if (idsArquivos == null) {
+                    continue;
+                }
+
+                arquivosDoPeer = new ArrayList<>(idsArquivos.tamanho());
+                idsArquivos.paraCada(idArquivo -> arquivosDoPeer.add(arquivos.getNome(idArquivo)));
+            }
+            consumidor.accept(peer, arquivosDoPeer);
+        }
+    }
+
+    /**
+     * @return cópia dos endereços dos peers do índice.
+     */
+    public Set<String> getPeers() {
+        return new HashSet<>(peers.getNomes());
+    }
+
+    public int getQuantidadePeers() {
+        return peers.getQuantidade();
+    }
+
+    public int getQuantidadeArquivos() {
+        return arquivos.getQuantidade();
+    }
+
+    /**
+     * Deve ser chamado com a trava do peer adquirida.
+     *
+     * @return identificador do arquivo.
+     */
+    private int vincularPeerAoArquivo(String arquivo, int idPeer) {
+        synchronized (listra(listrasArquivos, arquivo)) {
+            int idArquivo = arquivos.internar(arquivo);
+            ConjuntoInteiros peersDoArquivo = arquivos.getValor(idArquivo);
+
+            if (peersDoArquivo == null) {
+                peersDoArquivo = new ConjuntoInteiros();
+                arquivos.setValor(idArquivo, peersDoArquivo);
+            }
+
+            if (peersDoArquivo.adicionar(idPeer)) {
+                notificarAlteracao(arquivo);
+            }
+            return idArquivo;
+        }
+    }
+
+    /**
+     * Deve ser chamado com a trava do peer adquirida. Libera o identificador do arquivo quando nenhum peer o possui mais.
+     *
+     * @return nome do arquivo desvinculado.
+     */
+    private String desvincularPeerDoArquivo(int idArquivo, int idPeer) {
+        String arquivo = arquivos.getNome(idArquivo);
+
+        synchronized (listra(listrasArquivos, arquivo)) {
+            ConjuntoInteiros peersDoArquivo = arquivos.getValor(idArquivo);
+            if (peersDoArquivo.remover(idPeer)) {
+                notificarAlteracao(arquivo);
+            }
+
+            if (peersDoArquivo.isVazio()) {
+                arquivos.liberar(idArquivo);
+            }
+        }
+        return arquivo;
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool de arrays de bytes reutilizáveis para o recebimento de pacotes, evitando a alocação de um novo buffer a cada datagrama.
+ * Caso o pool esteja vazio um novo buffer é alocado, e buffers devolvidos com o pool cheio são descartados.
+ *
+ * @author Maik Henrique
+ */
+public class PoolBuffers {
+
+    private final BlockingQueue<byte[]> buffersLivres;
+    private final int tamanhoBuffer;
+
+    public PoolBuffers(int quantidadeMaxima, int tamanhoBuffer) {
+        this.buffersLivres = new ArrayBlockingQueue<>(quantidadeMaxima);
+        this.tamanhoBuffer = tamanhoBuffer;
+    }
+
+    public byte[] obter() {
+        byte[] buffer = buffersLivres.poll();
+        return buffer != null ? buffer : new byte[tamanhoBuffer];
+    }
+
+    public void devolver(byte[] buffer) {
+        if (buffer != null && buffer.length == tamanhoBuffer) {
+            buffersLivres.offer(buffer);
+        }
+    }
+
+    public int getQuantidadeLivres() {
+        return buffersLivres.size();
+    }
+}
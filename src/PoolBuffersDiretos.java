@@ -0,0 +1,44 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool de buffers diretos reutilizáveis para o envio de respostas, compartilhado por todas as threads que tratam requisições. Buffers
+ * diretos são caros de alocar e só são liberados pelo coletor de lixo, de modo que alocar um por thread é inviável quando cada
+ * requisição é tratada em uma nova thread virtual. Caso o pool esteja vazio um novo buffer é alocado, e buffers devolvidos com o
+ * pool cheio são descartados.
+ *
+ * @author Maik Henrique
+ */
+public class PoolBuffersDiretos {
+
+    private final BlockingQueue<ByteBuffer> buffersLivres;
+    private final int tamanhoBuffer;
+
+    public PoolBuffersDiretos(int quantidadeMaxima, int tamanhoBuffer) {
+        this.buffersLivres = new ArrayBlockingQueue<>(quantidadeMaxima);
+        this.tamanhoBuffer = tamanhoBuffer;
+    }
+
+    /**
+     * @return buffer vazio, pronto para escrita.
+     */
+    public ByteBuffer obter() {
+        ByteBuffer buffer = buffersLivres.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(tamanhoBuffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void devolver(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && buffer.capacity() == tamanhoBuffer) {
+            buffersLivres.offer(buffer);
+        }
+    }
+
+    public int getQuantidadeLivres() {
+        return buffersLivres.size();
+    }
+}
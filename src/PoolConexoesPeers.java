@@ -0,0 +1,219 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool de conexões TCP mantidas abertas (keep-alive) com outros Peers, separado por Peer remoto.
+ *
+ * Uma conexão obtida do pool é de uso exclusivo de quem a obteve até ser devolvida ou descartada. Conexões devolvidas ficam
+ * ociosas por um tempo menor que o limite do Peer remoto, evitando novos handshakes TCP e a fase de slow-start a cada peça
+ * ou arquivo baixado do mesmo Peer.
+ *
+ * O pool também identifica o Peer local nas requisições e contabiliza os bytes recebidos de cada Peer remoto, usados pela
+ * política olho por olho do AgendadorUploads.
+ *
+ * @author Maik Henrique
+ */
+public class PoolConexoesPeers implements AutoCloseable {
+
+    private static final int TEMPO_LEITURA_PADRAO = (int) TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Menor que o tempo limite ocioso do servidor de arquivos, de modo que o pool descarte a conexão antes do Peer remoto encerrá-la.
+     */
+    private static final long TEMPO_MAXIMO_OCIOSO_NANOS = TimeUnit.SECONDS.toNanos(20);
+
+    private final int maximoOciosasPorPeer;
+    private final String enderecoLocal;
+    private final Map<String, Deque<Conexao>> conexoesOciosas;
+    private final Map<String, LongAdder> bytesRecebidosPorPeer;
+    private volatile boolean isFechado;
+
+    /**
+     * @param maximoOciosasPorPeer número máximo de conexões ociosas mantidas com cada Peer remoto.
+     * @param enderecoLocal endereço em que o Peer local atende requisições, usado para identificá-lo aos Peers remotos.
+     */
+    public PoolConexoesPeers(int maximoOciosasPorPeer, String enderecoLocal) {
+        this.maximoOciosasPorPeer = maximoOciosasPorPeer;
+        this.enderecoLocal = enderecoLocal;
+        this.conexoesOciosas = new ConcurrentHashMap<>();
+        this.bytesRecebidosPorPeer = new ConcurrentHashMap<>();
+    }
+
+    public String getEnderecoLocal() {
+        return enderecoLocal;
+    }
+
+    /**
+     * @param peer endereço do Peer remoto.
+     * @return total de bytes recebidos do Peer pelas conexões do pool.
+     */
+    public long getBytesRecebidos(String peer) {
+        LongAdder bytesRecebidos = bytesRecebidosPorPeer.get(peer);
+        return bytesRecebidos == null ? 0 : bytesRecebidos.sum();
+    }
+
+    /**
+     * Obtém uma conexão ociosa com o Peer ou abre uma nova caso não exista nenhuma válida.
+     *
+     * @param peer endereço do Peer remoto.
+     * @return conexão de uso exclusivo do chamador.
+     * @throws IOException caso não seja possível conectar ao Peer.
+     */
+    public Conexao obter(String peer) throws IOException {
+        Deque<Conexao> ociosas = conexoesOciosas.get(peer);
+
+        if (ociosas != null) {
+            long agora = System.nanoTime();
+            Conexao conexao;
+
+            while ((conexao = retirar(ociosas)) != null) {
+                if (agora - conexao.instanteDevolucao < TEMPO_MAXIMO_OCIOSO_NANOS && !conexao.socket.isClosed()) {
+                    return conexao;
+                }
+                conexao.fechar();
+            }
+        }
+        return new Conexao(peer, Peer.conectarAoPeer(peer), bytesRecebidosPorPeer.computeIfAbsent(peer, p -> new LongAdder()));
+    }
+
+    private Conexao retirar(Deque<Conexao> ociosas) {
+        synchronized (ociosas) {
+            return ociosas.pollFirst();
+        }
+    }
+
+    /**
+     * Devolve a conexão para ser reutilizada. Conexões inválidas ou excedentes são fechadas.
+     *
+     * @param conexao conexão obtida pelo método obter.
+     */
+    public void devolver(Conexao conexao) {
+        if (isFechado || !conexao.isValida()) {
+            conexao.fechar();
+            return;
+        }
+
+        Deque<Conexao> ociosas = conexoesOciosas.computeIfAbsent(conexao.peer, peer -> new ArrayDeque<>());
+        conexao.instanteDevolucao = System.nanoTime();
+
+        synchronized (ociosas) {
+            if (ociosas.size() < maximoOciosasPorPeer) {
+                ociosas.addFirst(conexao);
+                return;
+            }
+        }
+        conexao.fechar();
+    }
+
+    @Override
+    public void close() {
+        isFechado = true;
+
+        for (Deque<Conexao> ociosas : conexoesOciosas.values()) {
+            Conexao conexao;
+            while ((conexao = retirar(ociosas)) != null) {
+                conexao.fechar();
+            }
+        }
+    }
+
+    /**
+     * Stream que acumula a quantidade de bytes lidos no contador do Peer remoto.
+     */
+    private static class ContadorBytesRecebidos extends FilterInputStream {
+        private final LongAdder bytesRecebidos;
+
+        ContadorBytesRecebidos(InputStream entrada, LongAdder bytesRecebidos) {
+            super(entrada);
+            this.bytesRecebidos = bytesRecebidos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int lido = super.read();
+            if (lido != -1) {
+                bytesRecebidos.increment();
+            }
+            return lido;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int lidos = super.read(b, off, len);
+            if (lidos > 0) {
+                bytesRecebidos.add(lidos);
+            }
+            return lidos;
+        }
+    }
+
+    /**
+     * Conexão com um Peer remoto e seus streams bufferizados. Depois que uma leitura ou escrita falha, ou uma resposta não é lida
+     * por completo, a conexão deve ser invalidada para não ser devolvida ao pool com bytes pendentes.
+     */
+    public static class Conexao {
+        private final String peer;
+        private final Socket socket;
+        private final InputStream entrada;
+        private final OutputStream saida;
+        private long instanteDevolucao;
+        private boolean isValida;
+
+        private Conexao(String peer, Socket socket, LongAdder bytesRecebidos) throws IOException {
+            this.peer = peer;
+            this.socket = socket;
+            this.isValida = true;
+
+            try {
+                socket.setSoTimeout(TEMPO_LEITURA_PADRAO);
+                socket.setTcpNoDelay(true);
+                this.entrada = new BufferedInputStream(new ContadorBytesRecebidos(socket.getInputStream(), bytesRecebidos));
+                this.saida = new BufferedOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        public InputStream getEntrada() {
+            return entrada;
+        }
+
+        public OutputStream getSaida() {
+            return saida;
+        }
+
+        public boolean isValida() {
+            return isValida;
+        }
+
+        public void invalidar() {
+            this.isValida = false;
+        }
+
+        public void fechar() {
+            invalidar();
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Não foi possível fechar a conexão com o peer " + peer);
+            }
+        }
+    }
+}
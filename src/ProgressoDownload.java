@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Arquivo auxiliar (sidecar) que registra quais peças de um download já foram escritas em disco, permitindo que um download
+ * interrompido seja retomado após reiniciar o Peer.
+ *
+ * O formato é um cabeçalho [mágico 4B][tamanho do arquivo 8B][tamanho da peça 4B][quantidade de peças 4B] seguido de um byte
+ * por peça, de modo que marcar uma peça é uma única escrita posicional.
+ *
+ * @author Maik Henrique
+ */
+public class ProgressoDownload implements AutoCloseable {
+
+    public static final String EXTENSAO = ".progresso";
+
+    private static final int MAGICO = 0x50524F47;
+    private static final int TAMANHO_CABECALHO = 20;
+    private static final byte PECA_CONCLUIDA = 1;
+
+    private final File arquivoProgresso;
+    private final FileChannel canal;
+    private final boolean[] pecasConcluidas;
+    private final boolean isRetomado;
+
+    private ProgressoDownload(File arquivoProgresso, FileChannel canal, boolean[] pecasConcluidas, boolean isRetomado) {
+        this.arquivoProgresso = arquivoProgresso;
+        this.canal = canal;
+        this.pecasConcluidas = pecasConcluidas;
+        this.isRetomado = isRetomado;
+    }
+
+    /**
+     * Abre o progresso do download do arquivo de destino. Caso exista um progresso anterior compatível com o tamanho do arquivo
+     * e das peças, as peças já concluídas são carregadas, caso contrário um novo progresso é iniciado.
+     *
+     * @param destino arquivo sendo baixado.
+     * @param tamanhoArquivo tamanho total do arquivo.
+     * @param tamanhoPeca tamanho de cada peça.
+     * @param quantidadePecas quantidade de peças do arquivo.
+     * @return progresso aberto.
+     * @throws IOException caso o arquivo de progresso não possa ser lido ou escrito.
+     */
+    public static ProgressoDownload abrir(File destino, long tamanhoArquivo, int tamanhoPeca, int quantidadePecas) throws IOException {
+        File arquivoProgresso = new File(destino.getParentFile(), destino.getName() + EXTENSAO);
+        boolean[] pecasConcluidas = new boolean[quantidadePecas];
+        FileChannel canal = FileChannel.open(arquivoProgresso.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            boolean isRetomado = destino.isFile() && carregar(canal, tamanhoArquivo, tamanhoPeca, pecasConcluidas);
+
+            if (!isRetomado) {
+                iniciar(canal, tamanhoArquivo, tamanhoPeca, quantidadePecas);
+            }
+            return new ProgressoDownload(arquivoProgresso, canal, pecasConcluidas, isRetomado);
+        } catch (IOException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    private static boolean carregar(FileChannel canal, long tamanhoArquivo, int tamanhoPeca, boolean[] pecasConcluidas) throws IOException {
+        if (canal.size() != TAMANHO_CABECALHO + pecasConcluidas.length) {
+            return false;
+        }
+
+        ByteBuffer conteudo = ByteBuffer.allocate((int) canal.size());
+        while (conteudo.hasRemaining() && canal.read(conteudo, conteudo.position()) != -1) {
+            // lê até preencher o buffer
+        }
+        conteudo.flip();
+
+        if (conteudo.getInt() != MAGICO || conteudo.getLong() != tamanhoArquivo || conteudo.getInt() != tamanhoPeca
+            || conteudo.getInt() != pecasConcluidas.length) {
+            return false;
+        }
+
+        for (int peca = 0; peca < pecasConcluidas.length; peca++) {
+            pecasConcluidas[peca] = conteudo.get() == PECA_CONCLUIDA;
+        }
+        return true;
+    }
+
+    private static void iniciar(FileChannel canal, long tamanhoArquivo, int tamanhoPeca, int quantidadePecas) throws IOException {
+        canal.truncate(0);
+
+        ByteBuffer conteudo = ByteBuffer.allocate(TAMANHO_CABECALHO + quantidadePecas);
+        conteudo.putInt(MAGICO).putLong(tamanhoArquivo).putInt(tamanhoPeca).putInt(quantidadePecas);
+        conteudo.position(conteudo.limit());
+        conteudo.flip();
+
+        while (conteudo.hasRemaining()) {
+            canal.write(conteudo, conteudo.position());
+        }
+        canal.force(true);
+    }
+
+    /**
+     * @return true se o progresso foi carregado de um download anterior.
+     */
+    public boolean isRetomado() {
+        return isRetomado;
+    }
+
+    public synchronized boolean isPecaConcluida(int peca) {
+        return pecasConcluidas[peca];
+    }
+
+    public synchronized int getQuantidadePecasConcluidas() {
+        int quantidade = 0;
+        for (boolean isConcluida : pecasConcluidas) {
+            if (isConcluida) {
+                quantidade++;
+            }
+        }
+        return quantidade;
+    }
+
+    /**
+     * Registra a peça como concluída. Deve ser chamado somente após os dados da peça estarem persistidos no arquivo de destino.
+     *
+     * @param peca índice da peça.
+     * @throws IOException caso o registro não possa ser escrito.
+     */
+    public synchronized void marcarConcluida(int peca) throws IOException {
+        if (pecasConcluidas[peca]) {
+            return;
+        }
+
+        canal.write(ByteBuffer.wrap(new byte[] { PECA_CONCLUIDA }), TAMANHO_CABECALHO + peca);
+        pecasConcluidas[peca] = true;
+    }
+
+    /**
+     * Fecha e apaga o arquivo de progresso, usado quando o download é concluído.
+     *
+     * @throws IOException caso o arquivo não possa ser apagado.
+     */
+    public void descartar() throws IOException {
+        close();
+        Files.deleteIfExists(arquivoProgresso.toPath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+}
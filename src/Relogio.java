@@ -0,0 +1,38 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fonte de tempo usada pelos limitadores e temporizadores, separada de System.nanoTime para que o tempo possa ser controlado
+ * quando for necessário reproduzir um cenário de forma determinística.
+ *
+ * @author Maik Henrique
+ */
+public interface Relogio {
+
+    /**
+     * Relógio do sistema, baseado em System.nanoTime e Thread.sleep.
+     */
+    Relogio SISTEMA = new Relogio() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void dormir(long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    };
+
+    /**
+     * @return instante atual em nanossegundos, com origem arbitrária.
+     */
+    long nanoTime();
+
+    /**
+     * Bloqueia a thread atual pelo tempo informado.
+     *
+     * @param nanos tempo de espera em nanossegundos.
+     * @throws InterruptedException caso a thread seja interrompida durante a espera.
+     */
+    void dormir(long nanos) throws InterruptedException;
+}
@@ -0,0 +1,694 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Replicação primário/réplica do índice do servidor, com o envio contínuo das suas alterações via TCP. O primário guarda as
+ * alterações recentes em um log circular numerado, e cada réplica conectada recebe um instantâneo do índice seguido das alterações
+ * posteriores a ele, aplicando-as no próprio índice, a partir do qual atende as buscas. As réplicas confirmam a última alteração
+ * aplicada, de onde o primário mede o atraso da replicação.
+ *
+ * Os membros do grupo são definidos em ordem de prioridade. Ao iniciar, ou ao perder o primário, o membro procura entre os demais
+ * o que atua como primário e passa a segui-lo. Caso nenhum seja encontrado dentro de um prazo proporcional à sua posição na lista,
+ * ele é promovido, de modo que o membro ativo de maior prioridade seja promovido primeiro e os demais passem a segui-lo.
+ *
+ * A replicação é assíncrona: alterações confirmadas pelo primário pouco antes de uma falha podem não chegar às réplicas, e são
+ * recompostas pelo JOIN que o peer refaz ao receber ALIVE_NEGADO do novo primário. Não há quórum, então uma partição de rede entre
+ * os membros pode resultar em dois primários.
+ *
+ * @author Maik Henrique
+ */
+public class ReplicacaoIndice implements PeerFileIndex.RegistroMutacoes, AutoCloseable {
+
+    private static final byte PRIMARIO = 1;
+    private static final byte NAO_PRIMARIO = 0;
+
+    private static final byte DEFINIR_ARQUIVOS = 1;
+    private static final byte ADICIONAR_ARQUIVO = 2;
+    private static final byte REMOVER_PEER = 3;
+    private static final byte PEER_INSTANTANEO = 4;
+    private static final byte FIM_INSTANTANEO = 5;
+    private static final byte BATIMENTO = 6;
+    private static final byte REMOVER_ARQUIVO = 7;
+
+    private static final int TAMANHO_BUFFER_SOCKET = 64 * 1024;
+    private static final int TAMANHO_MAXIMO_LOTE = 1024;
+    private static final int TEMPO_LIMITE_CONEXAO = 500;
+
+    private final PeerFileIndex indice;
+    private final List<String> membros;
+    private final String enderecoProprio;
+    private final int posicao;
+    private final long tempoPromocaoMilissegundos;
+    private final long intervaloBatimentoMilissegundos;
+    private final Runnable aoPromover;
+    private final ServerSocket servidorReplicacao;
+    private final Thread ouvinte;
+    private final Thread seguidor;
+    private final List<Conexao> conexoes;
+
+    private final ReentrantLock trava;
+    private final Condition haRegistros;
+    private final Registro[] log;
+    private long proximaSequencia;
+
+    private volatile boolean isPrimario;
+    private volatile boolean isFechado;
+    private volatile Socket socketPrimario;
+    private volatile String primarioSeguido;
+    private volatile long atrasoAplicacaoMilissegundos;
+    private volatile long instanteUltimaMensagemNanos;
+
+    private final LongAdder registros;
+    private final LongAdder registrosAplicados;
+    private final LongAdder instantaneosRecebidos;
+    private final LongAdder promocoes;
+
+    /**
+     * Abre a replicação de acordo com as propriedades p2p.servidor.replicacao.membros (endereços host:porta TCP de replicação de
+     * todos os membros do grupo, separados por vírgula e em ordem de prioridade, a mesma em todos eles; vazia desativa),
+     * p2p.servidor.replicacao.endereco (endereço deste membro, um dos anteriores), p2p.servidor.replicacao.promocao (silêncio do
+     * primário, em milissegundos, após o qual ele é dado como perdido; 3000 por padrão) e p2p.servidor.replicacao.log.registros
+     * (alterações guardadas para as réplicas atrasadas, que recebem um novo instantâneo quando ficam além delas; 262144 por padrão).
+     *
+     * @param indice índice do servidor, substituído pelo do primário enquanto este membro for uma réplica.
+     * @param aoPromover chamado quando este membro passa a ser o primário.
+     * @return replicação aberta, ou nulo caso esteja desativada.
+     * @throws IOException caso as propriedades sejam inválidas ou a porta de replicação não possa ser aberta.
+     */
+    public static ReplicacaoIndice abrirPorPropriedades(PeerFileIndex indice, Runnable aoPromover) throws IOException {
+        List<String> membros = new ArrayList<>();
+        for (String membro : System.getProperty("p2p.servidor.replicacao.membros", "").split(",")) {
+            if (!membro.trim().isEmpty() && !membros.contains(membro.trim())) {
+                membros.add(membro.trim());
+            }
+        }
+        if (membros.isEmpty()) {
+            return null;
+        }
+
+        String endereco = System.getProperty("p2p.servidor.replicacao.endereco", "").trim();
+        if (!membros.contains(endereco)) {
+            throw new IOException(String.format("p2p.servidor.replicacao.endereco (%s) deve ser um dos membros %s", endereco, membros));
+        }
+
+        return new ReplicacaoIndice(indice, membros, endereco, Long.getLong("p2p.servidor.replicacao.promocao", 3000),
+            Integer.getInteger("p2p.servidor.replicacao.log.registros", 1 << 18), aoPromover);
+    }
+
+    /**
+     * @param indice índice do servidor, substituído pelo do primário enquanto este membro for uma réplica.
+     * @param membros endereços host:porta de replicação dos membros do grupo, em ordem de prioridade.
+     * @param enderecoProprio endereço deste membro, um dos membros.
+     * @param tempoPromocaoMilissegundos silêncio do primário após o qual ele é dado como perdido.
+     * @param capacidadeLog alterações guardadas para as réplicas atrasadas.
+     * @param aoPromover chamado quando este membro passa a ser o primário.
+     * @throws IOException caso a porta de replicação não possa ser aberta.
+     */
+    public ReplicacaoIndice(PeerFileIndex indice, List<String> membros, String enderecoProprio, long tempoPromocaoMilissegundos,
+        int capacidadeLog, Runnable aoPromover) throws IOException {
+        this.indice = indice;
+        this.membros = Collections.unmodifiableList(new ArrayList<>(membros));
+        this.enderecoProprio = enderecoProprio;
+        this.posicao = membros.indexOf(enderecoProprio);
+        this.tempoPromocaoMilissegundos = Math.max(100, tempoPromocaoMilissegundos);
+        this.intervaloBatimentoMilissegundos = Math.max(25, this.tempoPromocaoMilissegundos / 4);
+        this.aoPromover = aoPromover;
+        this.conexoes = new CopyOnWriteArrayList<>();
+        this.trava = new ReentrantLock();
+        this.haRegistros = trava.newCondition();
+        this.log = new Registro[Math.max(TAMANHO_MAXIMO_LOTE, capacidadeLog)];
+        this.registros = new LongAdder();
+        this.registrosAplicados = new LongAdder();
+        this.instantaneosRecebidos = new LongAdder();
+        this.promocoes = new LongAdder();
+
+        this.servidorReplicacao = new ServerSocket(lerEndereco(enderecoProprio).getPort());
+        indice.adicionarRegistroMutacoes(this);
+
+        this.ouvinte = new Thread(this::aceitarConexoes, "replicacao-ouvinte");
+        this.ouvinte.setDaemon(true);
+        this.ouvinte.start();
+        this.seguidor = new Thread(this::seguirPrimario, "replicacao-seguidor");
+        this.seguidor.setDaemon(true);
+        this.seguidor.start();
+    }
+
+    @Override
+    public void arquivosDefinidos(String peer, Collection<String> arquivos) {
+        if (isPrimario) {
+            acrescentar(new Registro(DEFINIR_ARQUIVOS, peer, new ArrayList<>(arquivos)));
+        }
+    }
+
+    @Override
+    public void arquivoAdicionado(String peer, String arquivo) {
+        if (isPrimario) {
+            acrescentar(new Registro(ADICIONAR_ARQUIVO, peer, arquivo));
+        }
+    }
+
+    @Override
+    public void arquivoRemovido(String peer, String arquivo) {
+        if (isPrimario) {
+            acrescentar(new Registro(REMOVER_ARQUIVO, peer, arquivo));
+        }
+    }
+
+    @Override
+    public void peerRemovido(String peer) {
+        if (isPrimario) {
+            acrescentar(new Registro(REMOVER_PEER, peer, null));
+        }
+    }
+
+    /**
+     * @return se este membro atende as requisições que alteram o índice.
+     */
+    public boolean isPrimario() {
+        return isPrimario;
+    }
+
+    /**
+     * @return endereço de replicação do primário seguido, ou nulo caso este membro seja o primário ou ainda o procure.
+     */
+    public String getPrimarioSeguido() {
+        return primarioSeguido;
+    }
+
+    public List<String> getMembros() {
+        return membros;
+    }
+
+    public int getReplicasConectadas() {
+        return conexoes.size();
+    }
+
+    /**
+     * @return no primário, maior quantidade de alterações ainda não confirmadas por uma réplica; em uma réplica, zero.
+     */
+    public long getRegistrosPendentes() {
+        long proxima = getProximaSequencia();
+        long pendentes = 0;
+        for (Conexao conexao : conexoes) {
+            pendentes = Math.max(pendentes, proxima - conexao.proximaSequenciaConfirmada);
+        }
+        return pendentes;
+    }
+
+    /**
+     * @return no primário, há quanto tempo foi feita a alteração não confirmada mais antiga entre as réplicas; em uma réplica, o tempo
+     * entre a alteração no primário e a sua aplicação, medido na última alteração aplicada, ou zero caso a réplica esteja em dia.
+     */
+    public long getAtrasoMilissegundos() {
+        if (!isPrimario) {
+            return atrasoAplicacaoMilissegundos;
+        }
+
+        long atraso = 0;
+        long agora = System.currentTimeMillis();
+        trava.lock();
+        try {
+            for (Conexao conexao : conexoes) {
+                long sequencia = conexao.proximaSequenciaConfirmada;
+                if (sequencia < proximaSequencia && proximaSequencia - sequencia <= log.length) {
+                    atraso = Math.max(atraso, agora - log[indiceLog(sequencia)].instante);
+                }
+            }
+        } finally {
+            trava.unlock();
+        }
+        return atraso;
+    }
+
+    /**
+     * @return tempo desde a última mensagem recebida do primário, ou -1 caso este membro não siga um primário.
+     */
+    public long getSilencioPrimarioMilissegundos() {
+        return primarioSeguido == null ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - instanteUltimaMensagemNanos);
+    }
+
+    public long getRegistros() {
+        return registros.sum();
+    }
+
+    public long getRegistrosAplicados() {
+        return registrosAplicados.sum();
+    }
+
+    public long getPromocoes() {
+        return promocoes.sum();
+    }
+
+    @Override
+    public String toString() {
+        if (isPrimario) {
+            return String.format("%s [primário %s, registros=%d, réplicas=%d, pendentes=%d, atraso=%d ms, promoções=%d]",
+                getClass().getSimpleName(), enderecoProprio, getRegistros(), getReplicasConectadas(), getRegistrosPendentes(),
+                getAtrasoMilissegundos(), getPromocoes());
+        }
+        return String.format("%s [réplica %s de %s, registros aplicados=%d, instantâneos=%d, atraso=%d ms, silêncio do primário=%d ms]",
+            getClass().getSimpleName(), enderecoProprio, primarioSeguido, getRegistrosAplicados(), instantaneosRecebidos.sum(),
+            getAtrasoMilissegundos(), getSilencioPrimarioMilissegundos());
+    }
+
+    /**
+     * Deixa de registrar as alterações do índice e encerra as conexões com o primário e com as réplicas.
+     */
+    @Override
+    public void close() {
+        indice.removerRegistroMutacoes(this);
+        isFechado = true;
+
+        trava.lock();
+        try {
+            haRegistros.signalAll();
+        } finally {
+            trava.unlock();
+        }
+
+        fecharSilenciosamente(servidorReplicacao);
+        fecharSilenciosamente(socketPrimario);
+        conexoes.forEach(conexao -> fecharSilenciosamente(conexao.socket));
+        seguidor.interrupt();
+    }
+
+    private void acrescentar(Registro registro) {
+        trava.lock();
+        try {
+            registro.sequencia = proximaSequencia;
+            log[indiceLog(proximaSequencia)] = registro;
+            proximaSequencia++;
+            haRegistros.signalAll();
+        } finally {
+            trava.unlock();
+        }
+        registros.increment();
+    }
+
+    private long getProximaSequencia() {
+        trava.lock();
+        try {
+            return proximaSequencia;
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    private int indiceLog(long sequencia) {
+        return (int) (sequencia % log.length);
+    }
+
+    /**
+     * Copia para o lote as alterações a partir da sequência informada, aguardando até o intervalo de batimento caso não haja nenhuma.
+     *
+     * @return sequência seguinte à última copiada.
+     * @throws IOException caso as alterações da sequência já tenham saído do log.
+     */
+    private long obterLote(long sequencia, List<Registro> lote) throws IOException {
+        trava.lock();
+        try {
+            if (sequencia == proximaSequencia && !isFechado) {
+                haRegistros.await(intervaloBatimentoMilissegundos, TimeUnit.MILLISECONDS);
+            }
+            if (proximaSequencia - sequencia > log.length) {
+                throw new IOException(String.format("Réplica ficou mais de %d alterações atrás do primário", log.length));
+            }
+
+            while (sequencia < proximaSequencia && lote.size() < TAMANHO_MAXIMO_LOTE) {
+                lote.add(log[indiceLog(sequencia++)]);
+            }
+            return sequencia;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrompido enquanto aguardava alterações do índice");
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    /**
+     * Aceita as conexões dos demais membros, que só são seguidas enquanto este membro é o primário.
+     */
+    private void aceitarConexoes() {
+        while (!isFechado) {
+            try {
+                Socket socket = servidorReplicacao.accept();
+
+                if (!isPrimario) {
+                    socket.getOutputStream().write(NAO_PRIMARIO);
+                    socket.close();
+                    continue;
+                }
+
+                Conexao conexao = new Conexao(socket);
+                conexoes.add(conexao);
+                Thread thread = new Thread(conexao, "replicacao-envio-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!isFechado) {
+                    System.err.println("Falha ao aceitar conexão de replicação: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Procura o primário entre os demais membros e o segue enquanto ele responder. Sem primário, este membro é promovido após
+     * o prazo da sua posição: imediatamente para o primeiro membro ao iniciar, e tempoPromocao vezes a posição (ao menos uma) nos
+     * demais casos, de modo que os membros de maior prioridade tenham a chance de ser promovidos antes.
+     */
+    private void seguirPrimario() {
+        long inicioSemPrimario = System.nanoTime();
+        boolean isInicio = true;
+
+        while (!isFechado) {
+            boolean isPrimarioEncontrado = false;
+
+            for (String membro : membros) {
+                Socket socket = membro.equals(enderecoProprio) ? null : conectarPrimario(membro);
+                if (socket != null) {
+                    seguir(membro, socket);
+                    isPrimarioEncontrado = true;
+                    break;
+                }
+            }
+
+            if (isPrimarioEncontrado) {
+                inicioSemPrimario = System.nanoTime();
+                isInicio = false;
+                continue;
+            }
+
+            long prazo = isInicio && posicao == 0 ? 0 : Math.max(1, posicao) * tempoPromocaoMilissegundos;
+            if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicioSemPrimario) >= prazo && !isFechado) {
+                promover();
+                return;
+            }
+
+            try {
+                Thread.sleep(intervaloBatimentoMilissegundos);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return conexão com o membro caso ele seja o primário, ou nulo.
+     */
+    private Socket conectarPrimario(String membro) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(lerEndereco(membro), TEMPO_LIMITE_CONEXAO);
+            socket.setSoTimeout((int) tempoPromocaoMilissegundos);
+            socket.setTcpNoDelay(true);
+            if (socket.getInputStream().read() == PRIMARIO) {
+                return socket;
+            }
+        } catch (IOException e) {
+            // membro inativo, tratado como não primário
+        }
+        fecharSilenciosamente(socket);
+        return null;
+    }
+
+    /**
+     * Substitui o índice pelo instantâneo do primário, removendo os peers que não estão nele, e aplica as alterações seguintes até
+     * que a conexão seja perdida ou o primário fique em silêncio por mais de tempoPromocao.
+     */
+    private void seguir(String membro, Socket socket) {
+        this.socketPrimario = socket;
+        this.primarioSeguido = membro;
+        this.instanteUltimaMensagemNanos = System.nanoTime();
+
+        try (Socket conexao = socket) {
+            DataInputStream entrada = new DataInputStream(new BufferedInputStream(conexao.getInputStream(), TAMANHO_BUFFER_SOCKET));
+            DataOutputStream saida = new DataOutputStream(new BufferedOutputStream(conexao.getOutputStream()));
+            byte[] bufferNome = new byte[4096];
+
+            Set<String> peersInstantaneo = new HashSet<>();
+            byte tipo;
+            while ((tipo = entrada.readByte()) == PEER_INSTANTANEO) {
+                String peer = lerNome(entrada, bufferNome);
+                indice.definirArquivosPeer(peer, lerNomes(entrada, bufferNome));
+                peersInstantaneo.add(peer);
+            }
+            if (tipo != FIM_INSTANTANEO) {
+                throw new IOException("Instantâneo de replicação inválido");
+            }
+            long proximaSequencia = entrada.readLong();
+            for (String peer : indice.getPeers()) {
+                if (!peersInstantaneo.contains(peer)) {
+                    indice.removerPeer(peer);
+                }
+            }
+            instantaneosRecebidos.increment();
+            System.out.println(String.format("Réplica do primário %s com %d peers", membro, peersInstantaneo.size()));
+
+            int aplicadosNoLote = 0;
+            while (!isFechado) {
+                tipo = entrada.readByte();
+                this.instanteUltimaMensagemNanos = System.nanoTime();
+
+                if (tipo != BATIMENTO) {
+                    proximaSequencia = entrada.readLong() + 1;
+                    long instante = entrada.readLong();
+                    aplicar(tipo, entrada, bufferNome);
+                    registrosAplicados.increment();
+                    this.atrasoAplicacaoMilissegundos = Math.max(0, System.currentTimeMillis() - instante);
+                    aplicadosNoLote++;
+                    continue;
+                }
+
+                entrada.readLong();
+                if (aplicadosNoLote == 0) {
+                    this.atrasoAplicacaoMilissegundos = 0;
+                }
+                aplicadosNoLote = 0;
+                saida.writeLong(proximaSequencia);
+                saida.flush();
+            }
+        } catch (IOException e) {
+            if (!isFechado) {
+                System.err.println(String.format("Conexão com o primário %s perdida: %s", membro,
+                    e instanceof EOFException ? "conexão encerrada" : e.getMessage()));
+            }
+        } finally {
+            this.socketPrimario = null;
+            this.primarioSeguido = null;
+        }
+    }
+
+    private void aplicar(byte tipo, DataInputStream entrada, byte[] bufferNome) throws IOException {
+        String peer = lerNome(entrada, bufferNome);
+
+        switch (tipo) {
+            case DEFINIR_ARQUIVOS:
+                indice.definirArquivosPeer(peer, lerNomes(entrada, bufferNome));
+                break;
+            case ADICIONAR_ARQUIVO:
+                indice.adicionarArquivo(peer, lerNome(entrada, bufferNome));
+                break;
+            case REMOVER_ARQUIVO:
+                indice.removerArquivo(peer, lerNome(entrada, bufferNome));
+                break;
+            case REMOVER_PEER:
+                indice.removerPeer(peer);
+                break;
+            default:
+                throw new IOException("Tipo de registro de replicação desconhecido: " + tipo);
+        }
+    }
+
+    private void promover() {
+        trava.lock();
+        try {
+            isPrimario = true;
+        } finally {
+            trava.unlock();
+        }
+
+        promocoes.increment();
+        System.out.println(String.format("Membro %s promovido a primário do grupo %s", enderecoProprio, membros));
+        aoPromover.run();
+    }
+
+    /**
+     * Conexão de uma réplica com este primário, em uma thread dedicada que envia o instantâneo e em seguida as alterações em lotes,
+     * cada um terminado por um batimento, enviado sozinho quando não há alterações no intervalo. A réplica confirma cada batimento
+     * com a sequência seguinte à última alteração aplicada, e as confirmações são lidas entre os envios.
+     */
+    private class Conexao implements Runnable {
+        private final Socket socket;
+        private volatile long proximaSequenciaConfirmada;
+
+        Conexao(Socket socket) {
+            this.socket = socket;
+            this.proximaSequenciaConfirmada = getProximaSequencia();
+        }
+
+        @Override
+        public void run() {
+            try (Socket conexao = socket) {
+                conexao.setTcpNoDelay(true);
+                DataOutputStream saida = new DataOutputStream(new BufferedOutputStream(conexao.getOutputStream(), TAMANHO_BUFFER_SOCKET));
+                DataInputStream entrada = new DataInputStream(new BufferedInputStream(conexao.getInputStream()));
+
+                saida.writeByte(PRIMARIO);
+                long sequencia = enviarInstantaneo(saida);
+                this.proximaSequenciaConfirmada = sequencia;
+                List<Registro> lote = new ArrayList<>(TAMANHO_MAXIMO_LOTE);
+
+                while (!isFechado) {
+                    sequencia = obterLote(sequencia, lote);
+                    for (Registro registro : lote) {
+                        registro.escrever(saida);
+                    }
+                    saida.writeByte(BATIMENTO);
+                    saida.writeLong(System.currentTimeMillis());
+                    saida.flush();
+                    lote.clear();
+
+                    while (entrada.available() >= Long.BYTES) {
+                        this.proximaSequenciaConfirmada = entrada.readLong();
+                    }
+                }
+            } catch (IOException e) {
+                if (!isFechado) {
+                    System.err.println(String.format("Réplica %s desconectada: %s", socket.getRemoteSocketAddress(), e.getMessage()));
+                }
+            } finally {
+                conexoes.remove(this);
+            }
+        }
+
+        /**
+         * Envia os arquivos de cada peer. Como no instantâneo do DiarioIndice, as alterações concorrentes podem ou não estar incluídas,
+         * e são reenviadas em seguida a partir da sequência anterior ao instantâneo, o que não altera o resultado.
+         *
+         * @return sequência da primeira alteração posterior ao início do instantâneo.
+         */
+        private long enviarInstantaneo(DataOutputStream saida) throws IOException {
+            long sequencia = getProximaSequencia();
+            IOException[] falhaEscrita = new IOException[1];
+
+            indice.paraCadaPeer((peer, arquivos) -> {
+                if (falhaEscrita[0] != null) {
+                    return;
+                }
+                try {
+                    saida.writeByte(PEER_INSTANTANEO);
+                    escreverNome(saida, peer);
+                    escreverNomes(saida, arquivos);
+                } catch (IOException e) {
+                    falhaEscrita[0] = e;
+                }
+            });
+            if (falhaEscrita[0] != null) {
+                throw falhaEscrita[0];
+            }
+
+            saida.writeByte(FIM_INSTANTANEO);
+            saida.writeLong(sequencia);
+            return sequencia;
+        }
+    }
+
+    /**
+     * Alteração do índice guardada no log, com o instante em que foi feita no primário.
+     */
+    private static class Registro {
+        private final byte tipo;
+        private final String peer;
+        private final Object dados;
+        private final long instante;
+        private long sequencia;
+
+        Registro(byte tipo, String peer, Object dados) {
+            this.tipo = tipo;
+            this.peer = peer;
+            this.dados = dados;
+            this.instante = System.currentTimeMillis();
+        }
+
+        @SuppressWarnings("unchecked")
+        void escrever(DataOutputStream saida) throws IOException {
+            saida.writeByte(tipo);
+            saida.writeLong(sequencia);
+            saida.writeLong(instante);
+            escreverNome(saida, peer);
+
+            if (tipo == DEFINIR_ARQUIVOS) {
+                escreverNomes(saida, (List<String>) dados);
+            } else if (tipo == ADICIONAR_ARQUIVO || tipo == REMOVER_ARQUIVO) {
+                escreverNome(saida, (String) dados);
+            }
+        }
+    }
+
+    private static InetSocketAddress lerEndereco(String endereco) {
+        int separador = endereco.lastIndexOf(':');
+        return new InetSocketAddress(endereco.substring(0, separador), Integer.parseInt(endereco.substring(separador + 1)));
+    }
+
+    private static void escreverNome(DataOutputStream saida, String nome) throws IOException {
+        byte[] bytes = nome.getBytes(StandardCharsets.UTF_8);
+        saida.writeInt(bytes.length);
+        saida.write(bytes);
+    }
+
+    private static void escreverNomes(DataOutputStream saida, Collection<String> nomes) throws IOException {
+        saida.writeInt(nomes.size());
+        for (String nome : nomes) {
+            escreverNome(saida, nome);
+        }
+    }
+
+    private static String lerNome(DataInputStream entrada, byte[] buffer) throws IOException {
+        int tamanho = entrada.readInt();
+        byte[] bytes = tamanho <= buffer.length ? buffer : new byte[tamanho];
+        entrada.readFully(bytes, 0, tamanho);
+        return new String(bytes, 0, tamanho, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> lerNomes(DataInputStream entrada, byte[] buffer) throws IOException {
+        int quantidade = entrada.readInt();
+        List<String> nomes = new ArrayList<>(quantidade);
+        for (int i = 0; i < quantidade; i++) {
+            nomes.add(lerNome(entrada, buffer));
+        }
+        return nomes;
+    }
+
+    private static void fecharSilenciosamente(AutoCloseable recurso) {
+        if (recurso == null) {
+            return;
+        }
+        try {
+            recurso.close();
+        } catch (Exception e) {
+            // recurso já encerrado
+        }
+    }
+}
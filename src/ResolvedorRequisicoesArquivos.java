@@ -0,0 +1,230 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Decide a resposta das requisições INFO_ARQUIVO e DOWNLOAD feitas ao servidor de arquivos do Peer, independente de como a conexão
+ * é atendida, de modo que o servidor bloqueante (uma thread por conexão) e o servidor NIO tenham exatamente a mesma semântica.
+ *
+ * Downloads só são aceitos quando o AgendadorUploads concede uma vaga de upload, que é devolvida pelo servidor ao fim da transferência
+ * (RespostaArquivo.concluir). Quando não há vaga, a resposta DOWNLOAD_NEGADO informa a espera estimada em milissegundos. Cada
+ * download aceito também recebe o limite de banda de upload do Peer remoto, que o servidor deve respeitar durante a transferência.
+ *
+ * @author Maik Henrique
+ */
+public class ResolvedorRequisicoesArquivos {
+
+    private final String caminhoPastaArquivos;
+    private final AgendadorUploads agendadorUploads;
+    private final LimitadorBanda limitadorUpload;
+
+    /**
+     * Manifesto dos arquivos compartilhados, que guarda os metadados (tamanho e hashes das peças) de cada arquivo a partir da
+     * primeira requisição INFO_ARQUIVO.
+     */
+    private final BibliotecaVideos bibliotecaVideos;
+
+    public ResolvedorRequisicoesArquivos(String caminhoPastaArquivos, AgendadorUploads agendadorUploads, LimitadorBanda limitadorUpload,
+        BibliotecaVideos bibliotecaVideos) {
+        this.caminhoPastaArquivos = caminhoPastaArquivos;
+        this.agendadorUploads = agendadorUploads;
+        this.limitadorUpload = limitadorUpload;
+        this.bibliotecaVideos = bibliotecaVideos;
+    }
+
+    public AgendadorUploads getAgendadorUploads() {
+        return agendadorUploads;
+    }
+
+    /**
+     * Requisições INFO_ARQUIVO são respondidas com o tamanho e os hashes das peças do arquivo, enquanto requisições DOWNLOAD
+     * são aceitas conforme a disponibilidade de vagas de upload, respondendo com o cabeçalho DOWNLOAD_OK e o intervalo de bytes
+     * que deve ser transferido em seguida.
+     *
+     * @param requisicao requisição recebida.
+     * @param enderecoRemoto endereço de origem da conexão, usado para identificar o Peer quando a requisição não informa o seu endereço.
+     * @return resposta a ser enviada, ou nulo caso a requisição seja inválida e a conexão deva ser encerrada.
+     */
+    public RespostaArquivo resolver(Mensagem requisicao, String enderecoRemoto) {
+        Map<String, Object> campos = requisicao.getMensagens();
+        if (!(campos.get("arquivo_solicitado") instanceof String)) {
+            return null;
+        }
+
+        File arquivo = new File(caminhoPastaArquivos, (String) campos.get("arquivo_solicitado"));
+        boolean isManterConexao = Boolean.TRUE.equals(campos.get("manter_conexao"));
+
+        switch (requisicao.getTitulo()) {
+            case "INFO_ARQUIVO":
+                return resolverInfoArquivo(arquivo, requisicao.getFormatoOrigem(), isManterConexao);
+            case "DOWNLOAD":
+                Object enderecoPeer = campos.get("endereco");
+                return resolverDownload(requisicao, arquivo, enderecoPeer instanceof String ? (String) enderecoPeer : enderecoRemoto, isManterConexao);
+            default:
+                System.err.println("Requisição não suportada: " + requisicao.getTitulo());
+                return null;
+        }
+    }
+
+    private RespostaArquivo resolverInfoArquivo(File arquivo, Mensagem.Formato formato, boolean isManterConexao) {
+        if (!arquivo.isFile()) {
+            return negar(formato, isManterConexao);
+        }
+
+        MetadadosArquivo metadados;
+        try {
+            metadados = getMetadadosArquivo(arquivo);
+        } catch (IOException e) {
+            return negar(formato, isManterConexao);
+        }
+
+        Mensagem infoArquivo = new Mensagem("INFO_ARQUIVO_OK");
+        infoArquivo.adicionarMensagem("tamanho", metadados.getTamanhoArquivo());
+        infoArquivo.adicionarMensagem("tamanho_peca", metadados.getTamanhoPeca());
+        infoArquivo.adicionarMensagem("hashes_pecas", metadados.getHashesPecas());
+        return new RespostaArquivo(infoArquivo, formato, isManterConexao);
+    }
+
+    /**
+     * O cabeçalho DOWNLOAD_OK informa o intervalo exato que será transferido e a peça a que ele pertence, de modo que o cliente
+     * leia o conteúdo direto para o destino sem precisar inspecioná-lo.
+     */
+    private RespostaArquivo resolverDownload(Mensagem requisicao, File arquivo, String peer, boolean isManterConexao) {
+        Mensagem.Formato formato = requisicao.getFormatoOrigem();
+        if (!arquivo.isFile()) {
+            return negar(formato, isManterConexao);
+        }
+
+        AgendadorUploads.Admissao admissao = agendadorUploads.solicitar(peer);
+        if (!admissao.isAceita()) {
+            Mensagem downloadNegado = new Mensagem("DOWNLOAD_NEGADO");
+            downloadNegado.adicionarMensagem("espera_estimada", admissao.getEsperaEstimadaMilissegundos());
+            return new RespostaArquivo(downloadNegado, formato, isManterConexao);
+        }
+
+        long tamanhoArquivo = arquivo.length();
+        long inicio = Math.min(getLong(requisicao, "inicio", 0), tamanhoArquivo);
+        long tamanho = Math.min(getLong(requisicao, "tamanho", tamanhoArquivo - inicio), tamanhoArquivo - inicio);
+
+        Mensagem downloadAceito = new Mensagem("DOWNLOAD_OK");
+        downloadAceito.adicionarMensagem("inicio", inicio);
+        downloadAceito.adicionarMensagem("tamanho", tamanho);
+        downloadAceito.adicionarMensagem("peca", (int) (inicio / DownloadMultiFonte.TAMANHO_PECA));
+        return new RespostaArquivo(downloadAceito, formato, isManterConexao, arquivo, inicio, tamanho, agendadorUploads, admissao.getReserva(),
+            limitadorUpload.iniciarTransferencia(peer));
+    }
+
+    /**
+     * @param formato formato da requisição, usado também na resposta.
+     * @param isManterConexao se a conexão continua aberta após a resposta.
+     * @return resposta DOWNLOAD_NEGADO.
+     */
+    private RespostaArquivo negar(Mensagem.Formato formato, boolean isManterConexao) {
+        return new RespostaArquivo(new Mensagem("DOWNLOAD_NEGADO"), formato, isManterConexao);
+    }
+
+    private long getLong(Mensagem mensagem, String chave, long valorPadrao) {
+        Object valor = mensagem.getMensagens().get(chave);
+        return valor instanceof Long ? Math.max(0, (Long) valor) : valorPadrao;
+    }
+
+    /**
+     * Os metadados ficam em memória no manifesto enquanto o tamanho e a data de modificação do arquivo não mudarem, e em disco no
+     * arquivo auxiliar de hashes.
+     */
+    private MetadadosArquivo getMetadadosArquivo(File arquivo) throws IOException {
+        return bibliotecaVideos.getMetadados(arquivo, DownloadMultiFonte.TAMANHO_PECA);
+    }
+
+    static void reportarVazao(String nomeArquivo, long bytesEnviados, long duracaoNanos) {
+        double segundos = Math.max(duracaoNanos, 1) / 1e9;
+        System.out.println(String.format("Upload de %s concluído: %d bytes em %.3f s (%.2f MB/s)",
+            nomeArquivo, bytesEnviados, segundos, bytesEnviados / segundos / (1024 * 1024)));
+    }
+
+    /**
+     * Resposta a uma requisição: a mensagem de cabeçalho e, para downloads aceitos, o intervalo do arquivo que a segue, a vaga
+     * de upload ocupada até a transferência ser concluída e o limite de banda da transferência.
+     */
+    public static class RespostaArquivo {
+        private final Mensagem cabecalho;
+        private final Mensagem.Formato formato;
+        private final boolean isManterConexao;
+        private final File arquivo;
+        private final long inicio;
+        private final long tamanho;
+        private final AgendadorUploads agendadorUploads;
+        private final AgendadorUploads.Reserva reserva;
+        private final LimitadorBanda.Limite limite;
+
+        RespostaArquivo(Mensagem cabecalho, Mensagem.Formato formato, boolean isManterConexao) {
+            this(cabecalho, formato, isManterConexao, null, 0, 0, null, null, null);
+        }
+
+        RespostaArquivo(Mensagem cabecalho, Mensagem.Formato formato, boolean isManterConexao, File arquivo, long inicio, long tamanho,
+            AgendadorUploads agendadorUploads, AgendadorUploads.Reserva reserva, LimitadorBanda.Limite limite) {
+            this.cabecalho = cabecalho;
+            this.formato = formato;
+            this.isManterConexao = isManterConexao;
+            this.arquivo = arquivo;
+            this.inicio = inicio;
+            this.tamanho = tamanho;
+            this.agendadorUploads = agendadorUploads;
+            this.reserva = reserva;
+            this.limite = limite;
+        }
+
+        /**
+         * Devolve a vaga de upload e encerra o limite de banda ao fim da transferência, com sucesso ou não. Deve ser chamado por todo servidor que envia
+         * uma resposta com transferência, e chamadas repetidas são ignoradas.
+         *
+         * @param bytesEnviados bytes efetivamente enviados.
+         */
+        public void concluir(long bytesEnviados) {
+            if (reserva != null) {
+                agendadorUploads.liberar(reserva, bytesEnviados);
+            }
+            if (limite != null) {
+                limite.encerrar();
+            }
+        }
+
+        public Mensagem getCabecalho() {
+            return cabecalho;
+        }
+
+        public Mensagem.Formato getFormato() {
+            return formato;
+        }
+
+        public boolean isManterConexao() {
+            return isManterConexao;
+        }
+
+        /**
+         * @return true se o cabeçalho é seguido pelos bytes de um intervalo do arquivo.
+         */
+        public boolean isTransferencia() {
+            return arquivo != null;
+        }
+
+        public File getArquivo() {
+            return arquivo;
+        }
+
+        public long getInicio() {
+            return inicio;
+        }
+
+        public long getTamanho() {
+            return tamanho;
+        }
+
+        /**
+         * @return limite de banda a ser respeitado durante a transferência.
+         */
+        public LimitadorBanda.Limite getLimite() {
+            return limite;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Roda de temporizadores (hashed timer wheel) para prazos de expiração de um grande número de chaves, como o último sinal de vida
+ * de cada peer. O tempo é dividido em ticks de duração fixa, e cada chave fica em uma lista duplamente encadeada no slot do tick
+ * em que expira, módulo a quantidade de slots. Agendar, reagendar e cancelar custam O(1), e avançar a roda visita somente os slots
+ * dos ticks decorridos, de modo que cada chave é visitada uma vez por volta da roda.
+ *
+ * A precisão dos prazos é de um tick: uma chave expira no primeiro avanço após o fim do tick que contém o seu prazo. Com prazos
+ * menores que uma volta da roda, cada chave é visitada somente quando expira.
+ *
+ * @author Maik Henrique
+ */
+public class RodaTemporizadores<K> {
+
+    private final Relogio relogio;
+    private final long origem;
+    private final long duracaoTickNanos;
+    private final Temporizador<K>[] slots;
+    private final int mascara;
+    private final Map<K, Temporizador<K>> temporizadores;
+    private long tickAtual;
+
+    /**
+     * @param relogio fonte de tempo dos prazos.
+     * @param duracaoTickNanos precisão dos prazos.
+     * @param quantidadeSlots quantidade de slots, arredondada para a próxima potência de dois.
+     */
+    @SuppressWarnings("unchecked")
+    public RodaTemporizadores(Relogio relogio, long duracaoTickNanos, int quantidadeSlots) {
+        this.relogio = relogio;
+        this.origem = relogio.nanoTime();
+        this.duracaoTickNanos = Math.max(1, duracaoTickNanos);
+        this.slots = (Temporizador<K>[]) new Temporizador<?>[Integer.highestOneBit(Math.max(1, quantidadeSlots - 1)) << 1];
+        this.mascara = slots.length - 1;
+        this.temporizadores = new HashMap<>();
+    }
+
+    /**
+     * Agenda a expiração da chave, substituindo o prazo anterior caso já estivesse agendada.
+     *
+     * @param chave chave a expirar.
+     * @param atrasoNanos tempo até a expiração.
+     */
+    public synchronized void agendar(K chave, long atrasoNanos) {
+        Temporizador<K> temporizador = temporizadores.get(chave);
+
+        if (temporizador == null) {
+            temporizador = new Temporizador<>(chave);
+            temporizadores.put(chave, temporizador);
+        } else {
+            desencadear(temporizador);
+        }
+        encadear(temporizador, atrasoNanos);
+    }
+
+    /**
+     * Adia a expiração de uma chave já agendada.
+     *
+     * @param chave chave a expirar.
+     * @param atrasoNanos tempo até a expiração.
+     * @return false caso a chave não esteja agendada, seja porque nunca foi ou porque já expirou.
+     */
+    public synchronized boolean reagendar(K chave, long atrasoNanos) {
+        Temporizador<K> temporizador = temporizadores.get(chave);
+        if (temporizador == null) {
+            return false;
+        }
+
+        desencadear(temporizador);
+        encadear(temporizador, atrasoNanos);
+        return true;
+    }
+
+    /**
+     * @param chave chave agendada.
+     * @return false caso a chave não estivesse agendada.
+     */
+    public synchronized boolean cancelar(K chave) {
+        Temporizador<K> temporizador = temporizadores.remove(chave);
+        if (temporizador == null) {
+            return false;
+        }
+
+        desencadear(temporizador);
+        return true;
+    }
+
+    public synchronized boolean isAgendada(K chave) {
+        return temporizadores.containsKey(chave);
+    }
+
+    public synchronized int getQuantidade() {
+        return temporizadores.size();
+    }
+
+    /**
+     * Avança a roda até o instante atual do relógio, removendo as chaves expiradas. A ação é executada com a trava da roda adquirida,
+     * de modo que uma chave reagendada concorrentemente nunca é tratada como expirada.
+     *
+     * @param aoExpirar ação executada para cada chave expirada.
+     * @return quantidade de chaves expiradas.
+     */
+    public synchronized int avancar(Consumer<K> aoExpirar) {
+        long tickAlvo = (relogio.nanoTime() - origem) / duracaoTickNanos;
+        int expiradas = 0;
+
+        if (tickAlvo - tickAtual > slots.length) {
+            tickAtual = tickAlvo - slots.length;
+        }
+
+        while (tickAtual < tickAlvo) {
+            tickAtual++;
+            Temporizador<K> temporizador = slots[(int) (tickAtual & mascara)];
+
+            while (temporizador != null) {
+                Temporizador<K> proximo = temporizador.proximo;
+
+                if (temporizador.tickExpiracao <= tickAlvo) {
+                    desencadear(temporizador);
+                    temporizadores.remove(temporizador.chave);
+                    aoExpirar.accept(temporizador.chave);
+                    expiradas++;
+                }
+                temporizador = proximo;
+            }
+        }
+        return expiradas;
+    }
+
+    /**
+     * Coloca o temporizador no slot do tick que termina após o prazo, e nunca em um tick já processado.
+     */
+    private void encadear(Temporizador<K> temporizador, long atrasoNanos) {
+        long decorrido = relogio.nanoTime() - origem + Math.max(0, atrasoNanos);
+        long tickExpiracao = Math.max(tickAtual + 1, (decorrido + duracaoTickNanos - 1) / duracaoTickNanos);
+        int slot = (int) (tickExpiracao & mascara);
+
+        temporizador.tickExpiracao = tickExpiracao;
+        temporizador.slot = slot;
+        temporizador.anterior = null;
+        temporizador.proximo = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].anterior = temporizador;
+        }
+        slots[slot] = temporizador;
+    }
+
+    private void desencadear(Temporizador<K> temporizador) {
+        if (temporizador.anterior != null) {
+            temporizador.anterior.proximo = temporizador.proximo;
+        } else {
+            slots[temporizador.slot] = temporizador.proximo;
+        }
+        if (temporizador.proximo != null) {
+            temporizador.proximo.anterior = temporizador.anterior;
+        }
+        temporizador.anterior = null;
+        temporizador.proximo = null;
+    }
+
+    /**
+     * Nó da lista de um slot, com o tick absoluto em que a chave expira.
+     */
+    private static class Temporizador<K> {
+        private final K chave;
+        private long tickExpiracao;
+        private int slot;
+        private Temporizador<K> anterior;
+        private Temporizador<K> proximo;
+
+        Temporizador(K chave) {
+            this.chave = chave;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Encaminha as requisições do Peer ao grupo de rastreadores (shards). O anel de hashing consistente é obtido com SHARD_MAP do
+ * rastreador inicial no primeiro uso, e cada membro de shard possui o seu próprio ClienteRastreador, criado quando é usado pela
+ * primeira vez. Enquanto o anel não é obtido, o rastreador inicial é tratado como o único shard, e uma nova tentativa é feita no
+ * próximo uso.
+ *
+ * Em um shard replicado, as requisições que alteram o índice são enviadas ao membro que respondeu como primário da última vez, e as
+ * buscas são alternadas entre os membros. Quando um membro não responde, ou responde NAO_PRIMARIO, a requisição é repetida no
+ * próximo membro, com menos tentativas em cada um, até que todos tenham sido tentados.
+ *
+ * @author Maik Henrique
+ */
+public class RoteadorRastreadores implements AutoCloseable {
+
+    private static final int TENTATIVAS_POR_MEMBRO = 2;
+    private static final Set<String> REQUISICOES_DE_LEITURA = new HashSet<>(Arrays.asList("SEARCH", "SEARCH_LOTE", "SHARD_MAP"));
+
+    private final String shardInicial;
+    private final Map<String, ClienteRastreador> clientes;
+    private final Map<String, EstadoShard> estadosShards;
+    private final Object travaMapa;
+    private volatile AnelShards anel;
+    private volatile boolean isMapaObtido;
+    private volatile boolean isFechado;
+    private volatile BiConsumer<String, Mensagem> ouvinteNaoSolicitadas;
+
+    /**
+     * @param enderecosIniciais endereços host:porta, separados por vírgula, dos rastreadores consultados em ordem para obter o anel
+     * de shards.
+     */
+    public RoteadorRastreadores(String enderecosIniciais) {
+        this.shardInicial = String.join(AnelShards.SEPARADOR_MEMBROS, AnelShards.getMembros(enderecosIniciais.replace(",", AnelShards.SEPARADOR_MEMBROS)));
+        this.clientes = new ConcurrentHashMap<>();
+        this.estadosShards = new ConcurrentHashMap<>();
+        this.travaMapa = new Object();
+        this.anel = new AnelShards(Collections.singletonList(shardInicial), AnelShards.NOS_VIRTUAIS_PADRAO);
+    }
+
+    /**
+     * @param ouvinte recebe o shard e as mensagens dos seus membros que não respondem a uma requisição em andamento, como ALIVE_NEGADO.
+     */
+    public void setOuvinteNaoSolicitadas(BiConsumer<String, Mensagem> ouvinte) {
+        this.ouvinteNaoSolicitadas = ouvinte;
+    }
+
+    /**
+     * @return anel de shards, obtido do rastreador inicial caso ainda não tenha sido.
+     */
+    public AnelShards getAnel() {
+        if (!isMapaObtido) {
+            obterMapa();
+        }
+        return anel;
+    }
+
+    /**
+     * @param arquivo nome do arquivo.
+     * @return shard responsável pelo arquivo.
+     */
+    public String getShard(String arquivo) {
+        return getAnel().getShard(arquivo);
+    }
+
+    /**
+     * Envia uma requisição com uma única resposta ao shard, como em ClienteRastreador.enviar.
+     */
+    public CompletableFuture<Mensagem> enviar(String shard, Mensagem requisicao) {
+        return enviarComPartes(shard, requisicao, false).thenApply(partes -> partes.get(0));
+    }
+
+    /**
+     * Envia uma requisição cuja resposta pode ser dividida em várias partes ao shard, como em ClienteRastreador.enviarComPartes,
+     * passando aos demais membros do shard quando o membro tentado não responde ou não é o primário.
+     */
+    public CompletableFuture<List<Mensagem>> enviarComPartes(String shard, Mensagem requisicao, boolean isParcialAceita) {
+        EstadoShard estado = getEstado(shard);
+        boolean isLeitura = REQUISICOES_DE_LEITURA.contains(requisicao.getTitulo());
+        int membroInicial = isLeitura ? Math.floorMod(estado.proximaLeitura.getAndIncrement(), estado.membros.size()) : estado.primario;
+
+        return tentar(shard, estado, requisicao, isParcialAceita, isLeitura, membroInicial, 1);
+    }
+
+    /**
+     * Envia a todos os membros do shard uma mensagem sem resposta esperada, como os sinais de vida, já que somente o primário acompanha
+     * os prazos dos peers e as réplicas usam a carga informada.
+     *
+     * @throws IOException caso a mensagem não possa ser enviada a nenhum membro.
+     */
+    public void enviarSemResposta(String shard, Mensagem mensagem) throws IOException {
+        IOException falha = null;
+        int enviadas = 0;
+
+        for (String membro : getEstado(shard).membros) {
+            try {
+                getCliente(shard, membro).enviarSemResposta(mensagem);
+                enviadas++;
+            } catch (IOException e) {
+                falha = e;
+            }
+        }
+        if (enviadas == 0 && falha != null) {
+            throw falha;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        isFechado = true;
+        clientes.values().forEach(ClienteRastreador::close);
+        clientes.clear();
+    }
+
+    private CompletableFuture<List<Mensagem>> tentar(String shard, EstadoShard estado, Mensagem requisicao, boolean isParcialAceita,
+        boolean isLeitura, int membro, int membrosTentados) {
+        int quantidadeMembros = estado.membros.size();
+        CompletableFuture<List<Mensagem>> resposta;
+
+        try {
+            resposta = getCliente(shard, estado.membros.get(membro)).enviarComPartes(requisicao, isParcialAceita,
+                quantidadeMembros > 1 ? TENTATIVAS_POR_MEMBRO : ClienteRastreador.NUMERO_MAXIMO_TENTATIVAS);
+        } catch (SocketException e) {
+            resposta = falha(e);
+        }
+
+        return resposta.handle((partes, falha) -> {
+            boolean isRecusada = partes != null && partes.get(0).getTitulo().equals("NAO_PRIMARIO");
+
+            if (partes != null && !isRecusada) {
+                if (!isLeitura) {
+                    estado.primario = membro;
+                }
+                return CompletableFuture.completedFuture(partes);
+            }
+            if (membrosTentados >= quantidadeMembros || isFechado) {
+                return RoteadorRastreadores.<List<Mensagem>>falha(isRecusada
+                    ? new SocketException("Nenhum membro do shard " + shard + " atua como primário") : falha);
+            }
+            return tentar(shard, estado, requisicao, isParcialAceita, isLeitura, (membro + 1) % quantidadeMembros, membrosTentados + 1);
+        }).thenCompose(Function.identity());
+    }
+
+    static <T> CompletableFuture<T> falha(Throwable causa) {
+        CompletableFuture<T> falha = new CompletableFuture<>();
+        falha.completeExceptionally(causa);
+        return falha;
+    }
+
+    private void obterMapa() {
+        synchronized (travaMapa) {
+            if (isMapaObtido) {
+                return;
+            }
+
+            try {
+                Mensagem resposta = enviar(shardInicial, new Mensagem("SHARD_MAP")).get();
+                Object shards = resposta.getMensagens().get("shards");
+                Object nosVirtuais = resposta.getMensagens().get("nos_virtuais");
+
+                if (resposta.getTitulo().equals("SHARD_MAP_OK") && shards instanceof List<?> && !((List<?>) shards).isEmpty()
+                    && nosVirtuais instanceof Integer) {
+                    @SuppressWarnings("unchecked")
+                    List<String> enderecosShards = (List<String>) shards;
+                    this.anel = new AnelShards(enderecosShards, (Integer) nosVirtuais);
+                    this.isMapaObtido = true;
+                }
+            } catch (ExecutionException e) {
+                // sem resposta do rastreador inicial, que continua sendo tratado como o único shard
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private EstadoShard getEstado(String shard) {
+        return estadosShards.computeIfAbsent(shard, EstadoShard::new);
+    }
+
+    private synchronized ClienteRastreador getCliente(String shard, String membro) throws SocketException {
+        if (isFechado) {
+            throw new SocketException("Roteador de rastreadores encerrado");
+        }
+
+        ClienteRastreador cliente = clientes.get(membro);
+
+        if (cliente == null) {
+            int separador = membro.lastIndexOf(':');
+            cliente = new ClienteRastreador(membro.substring(0, separador), Integer.parseInt(membro.substring(separador + 1)));
+            cliente.setOuvinteNaoSolicitadas(mensagem -> {
+                BiConsumer<String, Mensagem> ouvinte = this.ouvinteNaoSolicitadas;
+                if (ouvinte != null) {
+                    ouvinte.accept(shard, mensagem);
+                }
+            });
+            clientes.put(membro, cliente);
+        }
+        return cliente;
+    }
+
+    @Override
+    public String toString() {
+        List<String> primarios = new ArrayList<>();
+        estadosShards.values().forEach(estado -> primarios.add(estado.membros.get(estado.primario)));
+        return String.format("%s [%s, mapa obtido=%b, primários=%s]", getClass().getSimpleName(), anel, isMapaObtido, primarios);
+    }
+
+    /**
+     * Membros de um shard, com o último que respondeu como primário e a vez das buscas.
+     */
+    private static class EstadoShard {
+        private final List<String> membros;
+        private final AtomicInteger proximaLeitura;
+        private volatile int primario;
+
+        EstadoShard(String shard) {
+            this.membros = AnelShards.getMembros(shard);
+            this.proximaLeitura = new AtomicInteger();
+        }
+    }
+}
@@ -1,7 +1,16 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.nio.charset.Charset;
 
@@ -12,59 +21,639 @@ import java.nio.charset.Charset;
  */
 public class Servidor implements AutoCloseable {
 
-    private final DatagramSocket socketUDP;
     public static final int PORTA_SOCKET_RECEPTOR = 10098;
     public static final String ENDERECO_SERVIDOR = "localhost";
     public final String ENDERECO_SERVIDOR_FICTICIO;
-    private final Map<String, Set<String>> mapaEnderecoPeersParaArquivos;
-    private final Map<String, Set<String>> mapaArquivosParaEnderecoPeers;
+    private final PeerFileIndex indicePeersArquivos;
+
+    /**
+     *  Porta UDP do servidor, definida pela propriedade p2p.servidor.porta (PORTA_SOCKET_RECEPTOR por padrão), permitindo
+     *  executar vários servidores na mesma máquina.
+     */
+    private final int porta;
+
+    /**
+     *  Anel de hashing consistente do grupo de rastreadores, definido pela propriedade p2p.servidor.shards com os endereços host:porta
+     *  de todos os servidores do grupo separados por vírgula, a mesma em todos eles. Cada servidor guarda somente os arquivos do seu
+     *  shard, e os peers obtêm o anel com SHARD_MAP para enviar cada requisição ao shard responsável. Um shard replicado é informado
+     *  pelos endereços UDP dos seus membros separados por AnelShards.SEPARADOR_MEMBROS, entre os quais o peer alterna. Sem a
+     *  propriedade, o servidor é o único shard.
+     */
+    private final AnelShards anelShards;
+
+    /**
+     *  Diário das alterações do índice, reaplicado ao iniciar o servidor para reconstruir o índice anterior. Configurado pelas
+     *  propriedades p2p.servidor.diario.* (ver DiarioIndice), ou nulo caso desativado. As requisições que alteram o índice só são
+     *  confirmadas após a gravação das suas alterações.
+     */
+    private final DiarioIndice diarioIndice;
+
+    /**
+     *  Replicação do índice entre os membros de um grupo primário/réplica, configurada pelas propriedades p2p.servidor.replicacao.*
+     *  (ver ReplicacaoIndice), ou nula caso desativada. Somente o primário atende as requisições que alteram o índice e remove os peers
+     *  inativos; as réplicas atendem as buscas e respondem NAO_PRIMARIO às demais requisições, para que o peer tente o próximo membro.
+     */
+    private final ReplicacaoIndice replicacaoIndice;
+    private static final Set<String> REQUISICOES_DO_PRIMARIO = new HashSet<>(Arrays.asList("JOIN", "UPDATE", "UPDATE_LOTE", "LEAVE", "DELTA"));
+
+    /**
+     *  Versão do manifesto (lista de arquivos) de cada peer que anuncia alterações incrementais (DELTA). Um JOIN com versao define a
+     *  versão, e cada DELTA só é aplicado sobre a versão imediatamente anterior à sua; caso contrário, o servidor responde RESYNC
+     *  e o peer reenvia o manifesto completo em um JOIN. As versões não são gravadas no diário nem replicadas, de modo que após
+     *  reiniciar ou trocar de primário o primeiro DELTA de cada peer resulta em RESYNC.
+     */
+    private final Map<String, Long> versoesManifestos;
+
+    /**
+     *  Manifestos enviados em um JOIN dividido em várias partes (parte e total_partes), ainda sem todas as partes recebidas. O
+     *  manifesto só substitui os arquivos do peer no índice quando completo, e é descartado caso o peer saia ou expire antes disso.
+     */
+    private final Map<String, ManifestoParcial> manifestosEmConstrucao;
+
+    /**
+     *  Maior total_partes aceito em um JOIN. Cada parte leva ao menos um arquivo em um datagrama de até Mensagem.TAMANHO_MAXIMO_PARTE
+     *  bytes, então o limite comporta manifestos de centenas de milhares de arquivos, e impede que um total forjado faça o servidor
+     *  reservar memória para partes que nunca chegarão.
+     */
+    private static final int MAXIMO_PARTES_MANIFESTO = 4096;
+
+    /**
+     *  Respostas SEARCH_OK já serializadas, limitadas pela propriedade p2p.servidor.cache.bytes (16 MiB por padrão, 0 desativa).
+     */
+    private final CacheRespostasBusca cacheRespostasBusca;
+
+    /**
+     *  Faixa de carga de upload informada por cada peer (chave carga, em porcentagem dos slots de upload), usada para ordenar os peers
+     *  das respostas SEARCH_OK dos menos para os mais carregados. Peers que não informam a carga ficam na faixa dos menos carregados.
+     */
+    private final Map<String, Integer> faixasCargaPeers;
+    private static final int TAMANHO_FAIXA_CARGA = 25;
+    private static final int TAMANHO_BUFFER_ENVIO_UDP = 1024 * 1024;
+
+    /**
+     *  Prazo para que um peer dê sinal de vida (ALIVE, JOIN, UPDATE ou UPDATE_LOTE) antes de ser removido do índice, definido pela
+     *  propriedade p2p.servidor.peer.expiracao em milissegundos. Os prazos ficam em uma roda de temporizadores com ticks de
+     *  1/QUANTIDADE_TICKS_EXPIRACAO do prazo, avançada a cada tick por uma thread dedicada.
+     */
+    private static final long TEMPO_EXPIRACAO_PEER_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("p2p.servidor.peer.expiracao", 30_000));
+    private static final int QUANTIDADE_TICKS_EXPIRACAO = 32;
+    private final RodaTemporizadores<String> expiracaoPeers;
+    private final ScheduledExecutorService agendadorExpiracao;
+
+    /**
+     *  Requisições que alteram o índice já atendidas, para que as retransmissões dos peers (mesma origem e id_requisicao) recebam
+     *  as respostas originais sem alterar o índice novamente. A capacidade é definida pela propriedade p2p.servidor.dedup.entradas
+     *  (65536 por padrão, 0 desativa), e a validade cobre todas as tentativas do ClienteRastreador.
+     */
+    private final JanelaDeduplicacao janelaDeduplicacao;
+    private static final long VALIDADE_DEDUPLICACAO_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final Set<String> REQUISICOES_COM_DEDUPLICACAO = new HashSet<>(Arrays.asList("JOIN", "UPDATE", "UPDATE_LOTE", "LEAVE", "DELTA"));
     private static final int TAMANHO_PACOTES_TRANSFERENCIA = 8 * 1024;
+    private static final int TAMANHO_MAXIMO_DATAGRAMA = 64 * 1024;
+    private static final int QUANTIDADE_MAXIMA_BUFFERS_LIVRES = 4096;
+    private static final int QUANTIDADE_MAXIMA_BUFFERS_RESPOSTA_LIVRES = 256;
+
+    private final List<LacoEventosUDP> lacosEventos;
+    private final DespachanteRequisicoes despachante;
+    private final PoolBuffers poolBuffers;
+
+    /**
+     *  Buffers diretos usados para escrever as respostas diretamente no canal, sem cópias intermediárias, compartilhados pelas threads
+     *  do despachante. Cada requisição obtém um buffer na primeira resposta e o devolve ao terminar.
+     */
+    private final PoolBuffersDiretos poolBuffersResposta;
     
     public Servidor(String enderecoServidor) throws IOException {
-        this.socketUDP = new DatagramSocket(PORTA_SOCKET_RECEPTOR);
-        this.mapaEnderecoPeersParaArquivos = new ConcurrentHashMap<>();
-        this.mapaArquivosParaEnderecoPeers = new ConcurrentHashMap<>();
+        this(enderecoServidor, Integer.getInteger("p2p.servidor.canais", Runtime.getRuntime().availableProcessors()), DespachanteRequisicoes.criarPorPropriedades());
+    }
+
+    public Servidor(String enderecoServidor, int quantidadeCanais, DespachanteRequisicoes despachante) throws IOException {
+        this(enderecoServidor, Integer.getInteger("p2p.servidor.porta", PORTA_SOCKET_RECEPTOR), quantidadeCanais, despachante);
+    }
+
+    /**
+     * @param enderecoServidor endereço do servidor.
+     * @param porta porta UDP do servidor.
+     * @param quantidadeCanais quantidade de canais UDP na mesma porta, cada um com seu laço de eventos. Caso o sistema não suporte 
+     * SO_REUSEPORT, somente um canal é aberto.
+     * @param despachante define em qual thread as requisições lidas pelos laços de eventos são tratadas.
+     * @throws IOException caso não seja possível abrir os canais.
+     */
+    public Servidor(String enderecoServidor, int porta, int quantidadeCanais, DespachanteRequisicoes despachante) throws IOException {
+        this.porta = porta;
+        this.anelShards = AnelShards.deLista(System.getProperty("p2p.servidor.shards", ENDERECO_SERVIDOR + ":" + porta));
+        this.indicePeersArquivos = new PeerFileIndex();
+        this.faixasCargaPeers = new ConcurrentHashMap<>();
+        this.versoesManifestos = new ConcurrentHashMap<>();
+        this.manifestosEmConstrucao = new ConcurrentHashMap<>();
+        this.expiracaoPeers = new RodaTemporizadores<>(Relogio.SISTEMA, TEMPO_EXPIRACAO_PEER_NANOS / QUANTIDADE_TICKS_EXPIRACAO,
+            2 * QUANTIDADE_TICKS_EXPIRACAO);
+        int capacidadeDeduplicacao = Integer.getInteger("p2p.servidor.dedup.entradas", 65536);
+        this.janelaDeduplicacao = capacidadeDeduplicacao > 0
+            ? new JanelaDeduplicacao(Relogio.SISTEMA, capacidadeDeduplicacao, VALIDADE_DEDUPLICACAO_NANOS) : null;
+        this.agendadorExpiracao = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "expiracao-peers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.diarioIndice = DiarioIndice.abrirPorPropriedades(indicePeersArquivos, porta);
+        if (diarioIndice != null) {
+            indicePeersArquivos.getPeers().forEach(this::renovarPrazoPeer);
+            System.out.println("Índice recuperado do diário: " + diarioIndice);
+        }
+        try {
+            this.replicacaoIndice = ReplicacaoIndice.abrirPorPropriedades(indicePeersArquivos, this::assumirComoPrimario);
+        } catch (IOException e) {
+            if (diarioIndice != null) {
+                diarioIndice.close();
+            }
+            throw e;
+        }
+        long tamanhoCacheBusca = Long.getLong("p2p.servidor.cache.bytes", 16L * 1024 * 1024);
+        this.cacheRespostasBusca = tamanhoCacheBusca > 0 ? new CacheRespostasBusca(tamanhoCacheBusca) : null;
+        if (cacheRespostasBusca != null) {
+            indicePeersArquivos.adicionarOuvinte(cacheRespostasBusca);
+        }
         this.ENDERECO_SERVIDOR_FICTICIO = enderecoServidor;
+        this.despachante = despachante;
+        this.poolBuffers = new PoolBuffers(QUANTIDADE_MAXIMA_BUFFERS_LIVRES, TAMANHO_PACOTES_TRANSFERENCIA);
+        this.poolBuffersResposta = new PoolBuffersDiretos(QUANTIDADE_MAXIMA_BUFFERS_RESPOSTA_LIVRES, TAMANHO_MAXIMO_DATAGRAMA);
+        try {
+            this.lacosEventos = abrirLacosEventos(porta, quantidadeCanais);
+        } catch (IOException e) {
+            if (replicacaoIndice != null) {
+                replicacaoIndice.close();
+            }
+            if (diarioIndice != null) {
+                diarioIndice.close();
+            }
+            throw e;
+        }
+    }
+
+    private List<LacoEventosUDP> abrirLacosEventos(int porta, int quantidadeCanais) throws IOException {
+        boolean isReusoPortaSuportado = isReusoPortaSuportado();
+        int quantidadeEfetiva = isReusoPortaSuportado ? Math.max(1, quantidadeCanais) : 1;
+        List<LacoEventosUDP> lacos = new ArrayList<>(quantidadeEfetiva);
+
+        try {
+            for (int i = 0; i < quantidadeEfetiva; i++) {
+                lacos.add(new LacoEventosUDP(porta, quantidadeEfetiva > 1));
+            }
+        } catch (IOException e) {
+            lacos.forEach(LacoEventosUDP::close);
+            throw e;
+        }
+        return lacos;
+    }
+
+    private static boolean isReusoPortaSuportado() {
+        try (DatagramChannel canal = DatagramChannel.open()) {
+            return canal.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
-     * Método usado como um listener do servidor, ou seja, em estado block aguardando o recebimento de mensagens via UDP.
-     * Assim a cada mensagem recebida inicializa-se uma thread (RequisicaoClienteThread) que será responsável por lidar com a requisição,
-     * possibilitando assim que o servidor lide com várias requisições de forma simultânea.
+     * Método usado como um listener do servidor, bloqueando enquanto os laços de eventos aguardam mensagens via UDP.
+     * Cada canal possui seu próprio laço, em uma thread dedicada, e as requisições lidas são entregues ao despachante,
+     * que decide em qual thread a requisição (RequisicaoCliente) será tratada. Também inicia a remoção periódica dos peers
+     * que deixaram de dar sinal de vida.
      * 
      * @throws IOException
      * @throws ClassNotFoundException
      */
     public void ligarServidor() throws IOException, ClassNotFoundException {
-        while (true) {
-            byte[] bytesRecebidos = new byte[TAMANHO_PACOTES_TRANSFERENCIA];
-            DatagramPacket pacote = new DatagramPacket(bytesRecebidos, bytesRecebidos.length);
-            socketUDP.receive(pacote);
-            new RequisicaoClienteThread(pacote).start();
+        long tickExpiracao = Math.max(1, TEMPO_EXPIRACAO_PEER_NANOS / QUANTIDADE_TICKS_EXPIRACAO);
+        agendadorExpiracao.scheduleAtFixedRate(this::expirarPeers, tickExpiracao, tickExpiracao, TimeUnit.NANOSECONDS);
+
+        for (int i = 1; i < lacosEventos.size(); i++) {
+            Thread thread = new Thread(lacosEventos.get(i), "laco-eventos-udp-" + i);
+            thread.setDaemon(true);
+            thread.start();
         }
+        lacosEventos.get(0).run();
+    }
+
+    public DespachanteRequisicoes getDespachante() {
+        return despachante;
+    }
+
+    /**
+     * @return janela de deduplicação de requisições, ou nulo caso esteja desativada.
+     */
+    public JanelaDeduplicacao getJanelaDeduplicacao() {
+        return janelaDeduplicacao;
+    }
+
+    public int getPorta() {
+        return porta;
+    }
+
+    public PeerFileIndex getIndicePeersArquivos() {
+        return indicePeersArquivos;
+    }
+
+    public AnelShards getAnelShards() {
+        return anelShards;
+    }
+
+    /**
+     * @return diário das alterações do índice, ou nulo caso esteja desativado.
+     */
+    public DiarioIndice getDiarioIndice() {
+        return diarioIndice;
+    }
+
+    /**
+     * @return replicação do índice, ou nulo caso esteja desativada.
+     */
+    public ReplicacaoIndice getReplicacaoIndice() {
+        return replicacaoIndice;
+    }
+
+    /**
+     * @return se o servidor atende as requisições que alteram o índice, sempre verdadeiro sem replicação.
+     */
+    public boolean isPrimario() {
+        return replicacaoIndice == null || replicacaoIndice.isPrimario();
+    }
+
+    /**
+     * Chamado quando o servidor é promovido a primário do grupo de replicação. Os peers do índice replicado passam a ter prazo de
+     * sinal de vida a partir da promoção, já que as réplicas não acompanham os prazos.
+     */
+    private void assumirComoPrimario() {
+        indicePeersArquivos.getPeers().forEach(this::renovarPrazoPeer);
+    }
+
+    /**
+     * @return cache de respostas SEARCH_OK, ou nulo caso esteja desativado.
+     */
+    public CacheRespostasBusca getCacheRespostasBusca() {
+        return cacheRespostasBusca;
+    }
+
+    /**
+     * Remove do índice os peers cujo prazo de sinal de vida expirou, como os que foram encerrados sem enviar LEAVE.
+     * A remoção ocorre com a trava da roda adquirida, de modo que um peer que dê sinal de vida enquanto isso nunca é removido.
+     * Réplicas não removem peers, recebendo as remoções do primário.
+     */
+    void expirarPeers() {
+        expiracaoPeers.avancar(peer -> {
+            if (!isPrimario()) {
+                return;
+            }
+            indicePeersArquivos.removerPeer(peer);
+            esquecerPeer(peer);
+            System.out.println(String.format("Peer %s removido por inatividade", peer));
+        });
+    }
+
+    /**
+     * Descarta a carga, a versão do manifesto e o manifesto em construção de um peer removido do índice.
+     */
+    private void esquecerPeer(String peer) {
+        faixasCargaPeers.remove(peer);
+        versoesManifestos.remove(peer);
+        manifestosEmConstrucao.remove(peer);
+    }
+
+    /**
+     * Renova o prazo de sinal de vida do peer. Deve ser chamado antes de alterar os arquivos do peer no índice, para que uma
+     * expiração concorrente não remova as alterações recém feitas.
+     */
+    private void renovarPrazoPeer(String endereco) {
+        expiracaoPeers.agendar(endereco, TEMPO_EXPIRACAO_PEER_NANOS);
+    }
+
+    /**
+     * Aguarda que as alterações já feitas no índice estejam gravadas no diário, antes de confirmá-las ao peer.
+     *
+     * @return false caso o diário não possa ser gravado, situação em que a requisição não deve ser confirmada.
+     */
+    private boolean aguardarDiario() {
+        if (diarioIndice == null) {
+            return true;
+        }
+
+        try {
+            diarioIndice.aguardarGravacao();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Alteração do índice não confirmada: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return quantidade de peers com prazo de sinal de vida em andamento.
+     */
+    public int getQuantidadePeersMonitorados() {
+        return expiracaoPeers.getQuantidade();
+    }
+
+    /**
+     * Registra a carga informada pelo peer. Quando a faixa de carga muda, as respostas de busca guardadas para os arquivos do peer
+     * são invalidadas, pois a ordem dos peers nelas deixou de valer.
+     *
+     * @param endereco endereço do peer.
+     * @param carga carga de upload em porcentagem, ou nulo caso a mensagem não a informe.
+     */
+    private void registrarCarga(String endereco, Object carga) {
+        if (!(carga instanceof Integer)) {
+            return;
+        }
+
+        int faixa = Math.max(0, Math.min(100, (Integer) carga)) / TAMANHO_FAIXA_CARGA;
+        Integer faixaAnterior = faixasCargaPeers.put(endereco, faixa);
+
+        if (cacheRespostasBusca != null && faixa != (faixaAnterior == null ? 0 : faixaAnterior)) {
+            indicePeersArquivos.getArquivosDoPeer(endereco).forEach(cacheRespostasBusca::arquivoAlterado);
+        }
+    }
+
+    /**
+     * @param peers peers que possuem um arquivo.
+     * @return peers ordenados dos menos para os mais carregados, mantendo a ordem do índice dentro de uma mesma faixa de carga.
+     */
+    private List<String> ordenarPorCarga(Set<String> peers) {
+        List<String> ordenados = new ArrayList<>(peers);
+        ordenados.sort(Comparator.comparingInt(peer -> faixasCargaPeers.getOrDefault(peer, 0)));
+        return ordenados;
+    }
+
+    /**
+     * Monta a resposta SEARCH_OK de um arquivo com os peers ordenados por carga, dividida em partes que cabem em um único datagrama.
+     * Os primeiros peers, os menos carregados, ficam sempre na primeira parte, de modo que ela sozinha já seja uma resposta útil.
+     */
+    private List<Mensagem> montarRespostaBusca(String arquivo, Mensagem.Formato formato) throws IOException {
+        return Mensagem.dividirEmPartes(ordenarPorCarga(indicePeersArquivos.getPeersComArquivo(arquivo)), peers -> {
+            Mensagem searchOK = new Mensagem("SEARCH_OK");
+            searchOK.adicionarMensagem("lista_peers", new LinkedHashSet<>(peers));
+            return searchOK;
+        }, formato, Mensagem.TAMANHO_MAXIMO_PARTE);
     }
 
     @Override
     public void close() throws Exception {
-        socketUDP.close();        
+        agendadorExpiracao.shutdownNow();
+        lacosEventos.forEach(LacoEventosUDP::close);
+        despachante.close();
+        System.out.println("Despachante finalizado: " + despachante);
+        if (replicacaoIndice != null) {
+            replicacaoIndice.close();
+            System.out.println("Replicação do índice: " + replicacaoIndice);
+        }
+        if (diarioIndice != null) {
+            diarioIndice.close();
+            System.out.println("Diário do índice: " + diarioIndice);
+        }
+        if (cacheRespostasBusca != null) {
+            System.out.println("Cache de buscas: " + cacheRespostasBusca);
+        }
+        if (janelaDeduplicacao != null) {
+            System.out.println("Deduplicação: " + janelaDeduplicacao);
+        }
+    }
+
+    /**
+     * Laço de eventos não bloqueante sobre um DatagramChannel. A cada seleção, esvazia todos os datagramas disponíveis no canal,
+     * copiando-os para buffers do pool antes de entregá-los ao despachante.
+     */
+    class LacoEventosUDP implements Runnable, AutoCloseable {
+        private final DatagramChannel canal;
+        private final Selector seletor;
+        private final ByteBuffer bufferRecebimento;
+
+        LacoEventosUDP(int porta, boolean isReusoPorta) throws IOException {
+            this.canal = DatagramChannel.open();
+            try {
+                if (isReusoPorta) {
+                    canal.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                canal.setOption(StandardSocketOptions.SO_SNDBUF, TAMANHO_BUFFER_ENVIO_UDP);
+                canal.bind(new InetSocketAddress(porta));
+                canal.configureBlocking(false);
+                this.seletor = Selector.open();
+                canal.register(seletor, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                canal.close();
+                throw e;
+            }
+            this.bufferRecebimento = ByteBuffer.allocateDirect(TAMANHO_MAXIMO_DATAGRAMA);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (seletor.isOpen()) {
+                    seletor.select();
+                    seletor.selectedKeys().clear();
+                    lerDatagramasDisponiveis();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (canal.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void lerDatagramasDisponiveis() throws IOException {
+            bufferRecebimento.clear();
+            SocketAddress origem;
+
+            while ((origem = canal.receive(bufferRecebimento)) != null) {
+                bufferRecebimento.flip();
+                int tamanho = bufferRecebimento.remaining();
+                byte[] bytesRecebidos = tamanho <= TAMANHO_PACOTES_TRANSFERENCIA ? poolBuffers.obter() : new byte[tamanho];
+                bufferRecebimento.get(bytesRecebidos, 0, tamanho);
+                bufferRecebimento.clear();
+
+                if (!despachante.despachar(new RequisicaoCliente(canal, origem, bytesRecebidos, tamanho))) {
+                    poolBuffers.devolver(bytesRecebidos);
+                }
+            }
+        }
+
+        /**
+         * O canal é fechado antes do selector para que o laço, ao ser acordado, não trate o fechamento como falha.
+         */
+        @Override
+        public void close() {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                seletor.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
-     * Classe de suporte, usada para atuar como uma thread lidando com requições do cliente.
-     * Assim possui o pacote recebido via UDP e faz modificações concorrentes no estado do servidor,
+     * Classe de suporte, usada para lidar com requições do cliente em uma das threads do despachante.
+     * Assim possui o datagrama recebido e faz modificações concorrentes no estado do servidor,
      * adicionando, removendo e atualizando os peers e arquivos disponíveis.
      */
-    class RequisicaoClienteThread extends Thread {
-        private DatagramPacket pacoteRecebido;
+    class RequisicaoCliente implements Runnable {
+        private final DatagramChannel canal;
+        private final SocketAddress origem;
+        private final byte[] bytesRecebidos;
+        private final int tamanho;
 
-        public RequisicaoClienteThread(DatagramPacket pacoteRecebido) {
-            this.pacoteRecebido = pacoteRecebido;
+        /**
+         * Cópias das respostas enviadas, guardadas na janela de deduplicação ao fim de requisições que alteram o índice.
+         */
+        private List<byte[]> respostasGravadas;
+
+        /**
+         * Buffer do pool de respostas, obtido na primeira resposta e devolvido ao fim da requisição.
+         */
+        private ByteBuffer bufferResposta;
+
+        public RequisicaoCliente(DatagramChannel canal, SocketAddress origem, byte[] bytesRecebidos, int tamanho) {
+            this.canal = canal;
+            this.origem = origem;
+            this.bytesRecebidos = bytesRecebidos;
+            this.tamanho = tamanho;
         }
 
         @Override
         public void run() {
-            Mensagem mensageDoCliente = lerMensagemDoCliente();
-            tratarRequisicao(mensageDoCliente);            
+            try {
+                Mensagem mensageDoCliente = lerMensagemDoCliente();
+                if (mensageDoCliente == null) {
+                    return;
+                }
+
+                Object idRequisicao = mensageDoCliente.getMensagens().get("id_requisicao");
+                if (janelaDeduplicacao != null && idRequisicao instanceof Long && REQUISICOES_COM_DEDUPLICACAO.contains(mensageDoCliente.getTitulo())) {
+                    tratarRequisicaoSemRepeticao(mensageDoCliente, (Long) idRequisicao);
+                } else {
+                    tratarRequisicao(mensageDoCliente);
+                }
+            } finally {
+                poolBuffers.devolver(bytesRecebidos);
+                poolBuffersResposta.devolver(bufferResposta);
+            }
+        }
+
+        private ByteBuffer getBufferResposta() {
+            if (bufferResposta == null) {
+                bufferResposta = poolBuffersResposta.obter();
+            }
+            bufferResposta.clear();
+            return bufferResposta;
+        }
+
+        /**
+         * Executa a requisição somente se ela ainda não foi recebida; caso seja uma retransmissão, reenvia as respostas originais.
+         * Uma requisição que termina sem resposta, como quando o diário não pode ser gravado, é esquecida para que a sua retransmissão
+         * seja executada novamente.
+         *
+         * @param mensagem mensagem de requisição recebida do cliente
+         * @param idRequisicao id_requisicao da mensagem
+         */
+        private void tratarRequisicaoSemRepeticao(Mensagem mensagem, long idRequisicao) {
+            List<byte[]> respostasAnteriores = janelaDeduplicacao.verificar(origem, idRequisicao);
+
+            if (respostasAnteriores != null) {
+                respostasAnteriores.forEach(this::reenviar);
+                return;
+            }
+
+            this.respostasGravadas = new ArrayList<>(1);
+            boolean isConcluida = false;
+            try {
+                tratarRequisicao(mensagem);
+                isConcluida = true;
+            } finally {
+                if (isConcluida && !respostasGravadas.isEmpty()) {
+                    janelaDeduplicacao.concluir(origem, idRequisicao, respostasGravadas);
+                } else {
+                    janelaDeduplicacao.descartar(origem, idRequisicao);
+                }
+            }
+        }
+
+        private void reenviar(byte[] resposta) {
+            ByteBuffer buffer = getBufferResposta();
+            buffer.put(resposta);
+            buffer.flip();
+            enviar(buffer);
+        }
+
+        /**
+         * Envia o datagrama ao remetente da requisição, gravando uma cópia quando as respostas são guardadas para deduplicação.
+         */
+        private void enviar(ByteBuffer buffer) {
+            try {
+                if (respostasGravadas != null) {
+                    byte[] copia = new byte[buffer.remaining()];
+                    buffer.duplicate().get(copia);
+                    respostasGravadas.add(copia);
+                }
+                canal.send(buffer, origem);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Escreve a resposta em um buffer direto e a envia ao remetente da requisição, no mesmo formato em que a requisição foi recebida.
+         * Caso o buffer de envio do socket esteja cheio o datagrama é descartado, contando com a retransmissão do cliente. O buffer de
+         * envio é ampliado para comportar as rajadas de respostas divididas em várias partes.
+         * 
+         * O id_requisicao da requisição, quando presente, é repetido na resposta para que o cliente a associe à requisição.
+         *
+         * @param resposta mensagem de resposta.
+         * @param requisicao mensagem de requisição que originou a resposta.
+         */
+        private void responder(Mensagem resposta, Mensagem requisicao) {
+            ByteBuffer buffer = getBufferResposta();
+
+            try {
+                Object idRequisicao = requisicao.getMensagens().get("id_requisicao");
+                if (idRequisicao != null) {
+                    resposta.adicionarMensagem("id_requisicao", idRequisicao);
+                }
+                Mensagem.serializar(resposta, requisicao.getFormatoOrigem(), buffer);
+                buffer.flip();
+                enviar(buffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Envia uma resposta já serializada, como as guardadas no cache de buscas, acrescentando o id_requisicao da requisição
+         * quando presente.
+         *
+         * @param respostaSerializada bytes da resposta.
+         * @param requisicao mensagem de requisição que originou a resposta.
+         */
+        private void responder(byte[] respostaSerializada, Mensagem requisicao) {
+            ByteBuffer buffer = getBufferResposta();
+
+            try {
+                Object idRequisicao = requisicao.getMensagens().get("id_requisicao");
+                if (idRequisicao != null) {
+                    Mensagem.serializarComCampo(respostaSerializada, "id_requisicao", idRequisicao, buffer);
+                } else if (respostaSerializada.length > buffer.capacity()) {
+                    throw new IOException("Mensagem excede o tamanho do buffer de " + buffer.capacity() + " bytes");
+                } else {
+                    buffer.put(respostaSerializada);
+                }
+                buffer.flip();
+                enviar(buffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
         /**
@@ -75,6 +664,11 @@ public class Servidor implements AutoCloseable {
         public void tratarRequisicao(Mensagem mensagem) {
             String requisicao = mensagem.getTitulo();   
 
+            if (REQUISICOES_DO_PRIMARIO.contains(requisicao) && !isPrimario()) {
+                responder(new Mensagem("NAO_PRIMARIO"), mensagem);
+                return;
+            }
+
             switch (requisicao) {
                 case "JOIN":
                     adicionarPeer(mensagem);
@@ -88,15 +682,31 @@ public class Servidor implements AutoCloseable {
                 case "UPDATE":
                     atualizarPeer(mensagem);
                     break;
-                case "ALIVE_OK":                    
-                    break;    
+                case "SEARCH_LOTE":
+                    procurarArquivos(mensagem);
+                    break;
+                case "UPDATE_LOTE":
+                    atualizarPeerEmLote(mensagem);
+                    break;
+                case "ALIVE":
+                case "ALIVE_OK":
+                    registrarSinalDeVida(mensagem);
+                    break;
+                case "SHARD_MAP":
+                    informarMapaShards(mensagem);
+                    break;
+                case "DELTA":
+                    aplicarDelta(mensagem);
+                    break;
                 default:
                     System.err.println("NOT AVAILABLE" + requisicao);
             }
         }
 
         /**
-         *  Lida com requisições JOIN, adicionando aos mapas peer -> arquivos e arquivo -> peers.
+         *  Lida com requisições JOIN, adicionando aos mapas peer -> arquivos e arquivo -> peers. Um manifesto dividido em várias
+         *  partes (parte e total_partes, com a mesma versao) só substitui os arquivos do peer quando todas as partes forem recebidas,
+         *  e cada parte é confirmada com JOIN_OK. O JOIN com versao passa a ser a base dos DELTA seguintes do peer.
          * 
          * @param mensagem mensagem recebida na requisição JOIN
          */
@@ -107,18 +717,117 @@ public class Servidor implements AutoCloseable {
             Set<String> videos = getVideosPeer(mensagem);
             
             if ( videos != null && identidadePeer != null ) {
-                mapaEnderecoPeersParaArquivos.put(identidadePeer, videos);
-                mapearVideoParaPeer(identidadePeer, videos);
+                Object versao = mensagens.get("versao");
+                Object totalPartes = mensagens.get("total_partes");
+                if (totalPartes instanceof Integer && (Integer) totalPartes > MAXIMO_PARTES_MANIFESTO) {
+                    System.err.println(String.format("JOIN de %s ignorado: %d partes excedem o limite de %d", identidadePeer, totalPartes,
+                        MAXIMO_PARTES_MANIFESTO));
+                    return;
+                }
+
+                renovarPrazoPeer(identidadePeer);
+                Collection<String> manifesto = versao instanceof Long && totalPartes instanceof Integer && (Integer) totalPartes > 1
+                    ? juntarParteManifesto(identidadePeer, videos, (Long) versao, mensagens.get("parte"), (Integer) totalPartes) : videos;
 
-                System.out.println(String.format("Peer %s adicionado com os arquivos: \n%s", identidadePeer, videos));
+                if (manifesto != null) {
+                    indicePeersArquivos.definirArquivosPeer(identidadePeer, manifesto);
+                    if (versao instanceof Long) {
+                        versoesManifestos.put(identidadePeer, (Long) versao);
+                    } else {
+                        versoesManifestos.remove(identidadePeer);
+                    }
+                }
+                registrarCarga(identidadePeer, mensagens.get("carga"));
+                if (!aguardarDiario()) {
+                    return;
+                }
+
+                if (manifesto == videos) {
+                    System.out.println(String.format("Peer %s adicionado com os arquivos: \n%s", identidadePeer, videos));
+                } else if (manifesto != null) {
+                    System.out.println(String.format("Peer %s adicionado com %d arquivos em %s partes", identidadePeer, manifesto.size(), totalPartes));
+                }
 
                 Mensagem mensagemResposta = new Mensagem("JOIN_OK");
-                Mensagem.enviarMensagemUDP(mensagemResposta, "localhost", pacoteRecebido.getPort(), socketUDP);
+                mensagemResposta.adicionarMensagem("completo", !(versao instanceof Long) || versao.equals(versoesManifestos.get(identidadePeer)));
+                responder(mensagemResposta, mensagem);
             }
         }
 
         /**
-         * Lida com requisições SEARCH, encontrando a lista de peers que possuem o arquivo e os envia para o cliente
+         * Acrescenta uma parte ao manifesto em construção do peer, iniciando um novo manifesto quando a versão é mais recente que a
+         * do manifesto em construção. Partes de versões anteriores, como retransmissões atrasadas, são ignoradas.
+         *
+         * @return manifesto completo, caso esta seja a última parte que faltava, ou nulo.
+         */
+        private Collection<String> juntarParteManifesto(String peer, Set<String> arquivos, long versao, Object parte, int totalPartes) {
+            Long versaoAtual = versoesManifestos.get(peer);
+            if (!(parte instanceof Integer) || (versaoAtual != null && versao <= versaoAtual)) {
+                return null;
+            }
+
+            ManifestoParcial[] completo = new ManifestoParcial[1];
+            manifestosEmConstrucao.compute(peer, (chave, atual) -> {
+                if (atual != null && versao < atual.versao) {
+                    return atual;
+                }
+                ManifestoParcial manifesto = atual == null || versao > atual.versao ? new ManifestoParcial(versao, totalPartes) : atual;
+
+                if (manifesto.adicionarParte((Integer) parte, arquivos)) {
+                    completo[0] = manifesto;
+                    return null;
+                }
+                return manifesto;
+            });
+            return completo[0] == null ? null : completo[0].arquivos;
+        }
+
+        /**
+         * Lida com requisições DELTA, que adicionam e removem arquivos do peer (adicionados e removidos) a partir da versão anterior
+         * do seu manifesto. Caso a versão do servidor não seja a anterior à do DELTA, como após uma resposta perdida ou um reinício do
+         * servidor, nada é alterado e o servidor responde RESYNC, para que o peer reenvie o manifesto completo.
+         *
+         * @param mensagem mensagem recebida na requisição DELTA
+         */
+        private void aplicarDelta(Mensagem mensagem) {
+            Object versao = mensagem.getMensagens().get("versao");
+            String endereco = (String) mensagem.getMensagens().get("endereco");
+            List<String> adicionados = getListaArquivos(mensagem, "adicionados");
+            List<String> removidos = getListaArquivos(mensagem, "removidos");
+
+            if (!(versao instanceof Long) || endereco == null) {
+                return;
+            }
+
+            long novaVersao = (Long) versao;
+            renovarPrazoPeer(endereco);
+            // a versão é reservada antes de alterar o índice, fora do mapa de versões, cujas travas não devem cobrir o índice e o diário
+            if (!versoesManifestos.replace(endereco, novaVersao - 1, novaVersao)) {
+                responder(new Mensagem("RESYNC"), mensagem);
+                return;
+            }
+
+            if (removidos != null) {
+                removidos.forEach(arquivo -> indicePeersArquivos.removerArquivo(endereco, arquivo));
+            }
+            if (adicionados != null) {
+                adicionados.stream().filter(arquivo -> arquivo.endsWith(".mp4"))
+                    .forEach(arquivo -> indicePeersArquivos.adicionarArquivo(endereco, arquivo));
+            }
+            registrarCarga(endereco, mensagem.getMensagens().get("carga"));
+            if (!aguardarDiario()) {
+                return;
+            }
+
+            Mensagem deltaOK = new Mensagem("DELTA_OK");
+            deltaOK.adicionarMensagem("versao", novaVersao);
+            responder(deltaOK, mensagem);
+        }
+
+        /**
+         * Lida com requisições SEARCH, encontrando a lista de peers que possuem o arquivo e os envia para o cliente, ordenados por carga
+         * e divididos em várias mensagens SEARCH_OK numeradas quando não cabem em um único datagrama.
+         * Com o cache ativo, a resposta serializada é reaproveitada enquanto os peers do arquivo e as suas cargas não mudarem.
          * 
          * @param mensagem mensagem recebida na requisição JOIN
          */
@@ -129,14 +838,22 @@ public class Servidor implements AutoCloseable {
                 String arquivoRequisitado = (String) mensagens.get("arquivo_requistado");
                 String enderecoEscutaPeer = (String) mensagens.get("endereco");
                 
-                Set<String> peersPorArquivoRequisitado = mapaArquivosParaEnderecoPeers.getOrDefault(arquivoRequisitado,  new HashSet<>());
-                
                 System.out.println(String.format("Peer %s solicitou o arquivo %s", enderecoEscutaPeer, arquivoRequisitado));
 
-                Mensagem mensagemResposta = new Mensagem("SEARCH_OK");
+                try {
+                    if (cacheRespostasBusca != null) {
+                        for (byte[] parte : cacheRespostasBusca.obter(arquivoRequisitado, mensagem.getFormatoOrigem(), Servidor.this::montarRespostaBusca)) {
+                            responder(parte, mensagem);
+                        }
+                        return;
+                    }
 
-                mensagemResposta.adicionarMensagem("lista_peers", peersPorArquivoRequisitado);
-                Mensagem.enviarMensagemUDP(mensagemResposta, "localhost", pacoteRecebido.getPort(), socketUDP);
+                    for (Mensagem parte : montarRespostaBusca(arquivoRequisitado, mensagem.getFormatoOrigem())) {
+                        responder(parte, mensagem);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
 
@@ -152,30 +869,16 @@ public class Servidor implements AutoCloseable {
             if (mensagens.get("endereco") instanceof String) {
                 String endereco = (String) mensagens.get("endereco");
                 
-                removerArquivosDoPeer(endereco);                
-                mapaEnderecoPeersParaArquivos.remove(endereco);
+                expiracaoPeers.cancelar(endereco);
+                indicePeersArquivos.removerPeer(endereco);
+                esquecerPeer(endereco);
+                if (!aguardarDiario()) {
+                    return;
+                }
 
                 Mensagem leaveOK = new Mensagem("LEAVE_OK");
-                Mensagem.enviarMensagemUDP(leaveOK, "localhost", pacoteRecebido.getPort(), socketUDP);
-            }
-        }
-
-        private void removerArquivosDoPeer(String endereco) {
-            Set<String> arquivosDoPeer = mapaEnderecoPeersParaArquivos.get(endereco);
-            if (arquivosDoPeer == null){
-                return;
+                responder(leaveOK, mensagem);
             }
-
-            arquivosDoPeer.parallelStream().forEach(arquivoDoPeer -> {
-                Set<String> enderecosPorArquivo = mapaArquivosParaEnderecoPeers.get(arquivoDoPeer);
-                enderecosPorArquivo.remove(endereco);
-
-                if (enderecosPorArquivo.size() == 0) {
-                    mapaArquivosParaEnderecoPeers.remove(arquivoDoPeer);
-                } else {
-                    mapaArquivosParaEnderecoPeers.put(arquivoDoPeer, enderecosPorArquivo);
-                }
-            });            
         }
 
         /**
@@ -189,43 +892,149 @@ public class Servidor implements AutoCloseable {
             String arquivo = (String) mensagens.get("arquivo");
             String endereco = (String) mensagens.get("endereco");
 
-            adicionarMapeamentoPeerParaArquivos(arquivo, endereco);
-            adicionarMapeamentoArquivoParaPeers(arquivo, endereco);
+            if (arquivo != null && endereco != null) {
+                renovarPrazoPeer(endereco);
+                indicePeersArquivos.adicionarArquivo(endereco, arquivo);
+                registrarCarga(endereco, mensagens.get("carga"));
+                if (!aguardarDiario()) {
+                    return;
+                }
+            }
 
             Mensagem updateOK = new Mensagem("UPDATE_OK");
-            Mensagem.enviarMensagemUDP(updateOK, "localhost", pacoteRecebido.getPort(), socketUDP);
+            responder(updateOK, mensagem);
         }
 
-        private Mensagem lerMensagemDoCliente() {
-            byte[] receivedData = this.pacoteRecebido.getData();
-                        
-            try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(receivedData);
-                ObjectInputStream inputObject = new ObjectInputStream(new BufferedInputStream(byteArrayInputStream));
-            ) {                
-                return (Mensagem) inputObject.readObject();
-            } catch (ClassNotFoundException | IOException e) {
+        /**
+         * Lida com os sinais de vida enviados periodicamente pelos peers (ALIVE), que não possuem resposta e também atualizam a carga
+         * do peer. Caso o peer já tenha sido removido por inatividade, responde com ALIVE_NEGADO para que ele refaça o JOIN. As réplicas,
+         * que também recebem os sinais de vida, somente atualizam a carga usada na ordem das suas respostas de busca.
+         *
+         * @param mensagem mensagem ALIVE, ou ALIVE_OK de peers antigos
+         */
+        private void registrarSinalDeVida(Mensagem mensagem) {
+            if (!(mensagem.getMensagens().get("endereco") instanceof String)) {
+                return;
+            }
+
+            String endereco = (String) mensagem.getMensagens().get("endereco");
+            if (!isPrimario()) {
+                registrarCarga(endereco, mensagem.getMensagens().get("carga"));
+            } else if (expiracaoPeers.reagendar(endereco, TEMPO_EXPIRACAO_PEER_NANOS)) {
+                registrarCarga(endereco, mensagem.getMensagens().get("carga"));
+            } else if (mensagem.getTitulo().equals("ALIVE")) {
+                responder(new Mensagem("ALIVE_NEGADO"), mensagem);
+            }
+        }
+
+        /**
+         * Lida com requisições SHARD_MAP, informando os shards do grupo de rastreadores e a quantidade de nós virtuais de cada um,
+         * a partir dos quais o peer calcula o mesmo anel de hashing consistente dos servidores.
+         *
+         * @param mensagem mensagem recebida na requisição SHARD_MAP
+         */
+        private void informarMapaShards(Mensagem mensagem) {
+            Mensagem shardMapOK = new Mensagem("SHARD_MAP_OK");
+            shardMapOK.adicionarMensagem("shards", new ArrayList<>(anelShards.getShards()));
+            shardMapOK.adicionarMensagem("nos_virtuais", anelShards.getNosVirtuais());
+            responder(shardMapOK, mensagem);
+        }
+
+        /**
+         * Lida com requisições SEARCH_LOTE, respondendo com os peers de cada um dos arquivos pesquisados, ordenados por carga.
+         * A resposta é dividida em várias mensagens SEARCH_LOTE_OK quando não cabe em um único datagrama.
+         *
+         * @param mensagem mensagem recebida na requisição SEARCH_LOTE
+         */
+        private void procurarArquivos(Mensagem mensagem) {
+            List<String> arquivosRequisitados = getListaArquivos(mensagem);
+            if (arquivosRequisitados == null) {
+                return;
+            }
+
+            Map<String, Set<String>> peersPorArquivo = new LinkedHashMap<>();
+            for (String arquivo : arquivosRequisitados) {
+                peersPorArquivo.computeIfAbsent(arquivo, a -> new LinkedHashSet<>(ordenarPorCarga(indicePeersArquivos.getPeersComArquivo(a))));
+            }
+
+            System.out.println(String.format("Peer %s solicitou %d arquivos", mensagem.getMensagens().get("endereco"), peersPorArquivo.size()));
+
+            responderEmPartes(new ArrayList<>(peersPorArquivo.keySet()), arquivos -> {
+                Map<String, Set<String>> resultados = new LinkedHashMap<>();
+                arquivos.forEach(arquivo -> resultados.put(arquivo, peersPorArquivo.get(arquivo)));
+
+                Mensagem searchLoteOK = new Mensagem("SEARCH_LOTE_OK");
+                searchLoteOK.adicionarMensagem("resultados", resultados);
+                return searchLoteOK;
+            }, mensagem);
+        }
+
+        /**
+         * Lida com requisições UPDATE_LOTE, equivalentes a uma requisição UPDATE para cada arquivo, confirmando na resposta os
+         * arquivos registrados.
+         *
+         * @param mensagem mensagem recebida na requisição UPDATE_LOTE
+         */
+        private void atualizarPeerEmLote(Mensagem mensagem) {
+            List<String> arquivos = getListaArquivos(mensagem);
+            String endereco = (String) mensagem.getMensagens().get("endereco");
+
+            if (arquivos == null || endereco == null) {
+                return;
+            }
+
+            renovarPrazoPeer(endereco);
+            for (String arquivo : arquivos) {
+                indicePeersArquivos.adicionarArquivo(endereco, arquivo);
+            }
+            registrarCarga(endereco, mensagem.getMensagens().get("carga"));
+            if (!aguardarDiario()) {
+                return;
+            }
+
+            responderEmPartes(arquivos, arquivosConfirmados -> {
+                Mensagem updateLoteOK = new Mensagem("UPDATE_LOTE_OK");
+                updateLoteOK.adicionarMensagem("arquivos", arquivosConfirmados);
+                return updateLoteOK;
+            }, mensagem);
+        }
+
+        /**
+         * Envia a resposta dividida em partes que cabem em um único datagrama sem fragmentação IP.
+         */
+        private void responderEmPartes(List<String> itens, Function<List<String>, Mensagem> construtor, Mensagem requisicao) {
+            try {
+                for (Mensagem parte : Mensagem.dividirEmPartes(itens, construtor, requisicao.getFormatoOrigem(), Mensagem.TAMANHO_MAXIMO_PARTE)) {
+                    responder(parte, requisicao);
+                }
+            } catch (IOException e) {
                 e.printStackTrace();
             }
-            
-            return null;
         }
 
-        private void adicionarMapeamentoPeerParaArquivos(String arquivo, String endereco) {
-            Set<String> arquivosPorPeer = mapaEnderecoPeersParaArquivos.getOrDefault(endereco, new HashSet<>());
-            arquivosPorPeer.add(arquivo);
-            mapaEnderecoPeersParaArquivos.put(endereco, arquivosPorPeer);
+        private List<String> getListaArquivos(Mensagem mensagem) {
+            return getListaArquivos(mensagem, "arquivos");
         }
 
-        private void adicionarMapeamentoArquivoParaPeers(String arquivo, String endereco) {
-            Set<String> peersPorArquivo = mapaArquivosParaEnderecoPeers.getOrDefault(arquivo, new HashSet<>());
-            peersPorArquivo.add(endereco);
-            mapaArquivosParaEnderecoPeers.put(arquivo, peersPorArquivo);
+        private List<String> getListaArquivos(Mensagem mensagem, String chave) {
+            Object arquivos = mensagem.getMensagens().get(chave);
+
+            if (arquivos instanceof List<?> && ((List<?>) arquivos).stream().allMatch(arquivo -> arquivo instanceof String)) {
+                @SuppressWarnings("unchecked")
+                List<String> nomesArquivos = (List<String>) arquivos;
+                return nomesArquivos;
+            }
+            return null;
         }
 
-        private void mapearVideoParaPeer(String endereco, Set<String> videos) {
-            videos.parallelStream().forEach(video -> {
-                    adicionarMapeamentoArquivoParaPeers(video, endereco);
-            });
+        private Mensagem lerMensagemDoCliente() {
+            try {
+                return Mensagem.desserializar(bytesRecebidos, 0, tamanho);
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+            
+            return null;
         }
 
         private Set<String> getVideosPeer(Mensagem mensagem) {
@@ -234,7 +1043,7 @@ public class Servidor implements AutoCloseable {
             if ( mensagens.get("arquivos") instanceof List<?>) {
                 @SuppressWarnings("unchecked")
                 List<String> nomeArquivos = (List<String>) mensagens.get("arquivos");
-                Set<String> videos = nomeArquivos.parallelStream().filter(arquivo -> arquivo.endsWith(".mp4")).collect(Collectors.toSet());
+                Set<String> videos = nomeArquivos.stream().filter(arquivo -> arquivo.endsWith(".mp4")).collect(Collectors.toSet());
                 return videos;
             }
             return null;
@@ -242,6 +1051,34 @@ public class Servidor implements AutoCloseable {
     }
 
 
+    /**
+     * Manifesto de um JOIN em várias partes, com as partes já recebidas.
+     */
+    private static class ManifestoParcial {
+        private final long versao;
+        private final int totalPartes;
+        private final BitSet partesRecebidas;
+        private final Set<String> arquivos;
+
+        ManifestoParcial(long versao, int totalPartes) {
+            this.versao = versao;
+            this.totalPartes = totalPartes;
+            this.partesRecebidas = new BitSet(totalPartes);
+            this.arquivos = new HashSet<>();
+        }
+
+        /**
+         * @return se todas as partes foram recebidas.
+         */
+        boolean adicionarParte(int parte, Collection<String> arquivosParte) {
+            if (parte >= 1 && parte <= totalPartes && !partesRecebidas.get(parte - 1)) {
+                partesRecebidas.set(parte - 1);
+                arquivos.addAll(arquivosParte);
+            }
+            return partesRecebidas.cardinality() == totalPartes;
+        }
+    }
+
     private static String lerEnderecoServidor() {
         System.out.println("IP do servidor:");        
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, Charset.defaultCharset()));){
@@ -255,6 +1092,7 @@ public class Servidor implements AutoCloseable {
         String enderecoServidor = lerEnderecoServidor();
         
         try (Servidor servidor = new Servidor(enderecoServidor)){            
+            System.out.println(String.format("Servidor na porta %d, %s", servidor.getPorta(), servidor.getAnelShards()));
             servidor.ligarServidor();
         } catch (Exception e) {
             e.printStackTrace();
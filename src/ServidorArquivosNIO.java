@@ -0,0 +1,582 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servidor de arquivos não bloqueante, alternativo ao ServidorArquivosThread, que atende todas as conexões de outros Peers com um
+ * número fixo de threads de I/O, cada uma com o seu próprio Selector. Conexões aceitas são distribuídas entre as threads em
+ * rodízio e permanecem na mesma thread até serem encerradas.
+ *
+ * Cada conexão possui uma fila de escrita com o cabeçalho da resposta e o intervalo do arquivo a ser enviado, escrito via
+ * FileChannel.transferTo conforme o socket aceita mais bytes. Enquanto a fila não se esvazia a conexão não lê novas requisições,
+ * de modo que requisições enviadas em sequência (pipelining) sejam respondidas na ordem e sem acumular memória. As respostas são
+ * decididas pelo mesmo ResolvedorRequisicoesArquivos do servidor bloqueante, inclusive o limite de uploads simultâneos do
+ * AgendadorUploads, cuja vaga é devolvida quando o intervalo termina de ser escrito ou a conexão é encerrada.
+ *
+ * Quando o limite de banda da transferência é atingido a conexão deixa de ser observada pelo Selector até o instante em que o
+ * limite permite a próxima escrita, sem bloquear a thread de I/O.
+ *
+ * Requisições INFO_ARQUIVO podem exigir o cálculo dos hashes de todas as peças do arquivo, então são resolvidas por um pool de
+ * threads separado. Enquanto a resolução não termina a conexão não lê novas requisições, e a resposta pronta é devolvida à thread
+ * de I/O da conexão, a única que escreve no socket.
+ *
+ * @author Maik Henrique
+ */
+public class ServidorArquivosNIO implements AutoCloseable {
+
+    private static final int TAMANHO_BUFFER_LEITURA = 64 * 1024;
+    private static final long INTERVALO_SELECAO_MILISSEGUNDOS = 1000;
+
+    /**
+     * O cálculo dos hashes é limitado pelo disco e pela CPU, e não pelo número de threads de I/O.
+     */
+    private static final int THREADS_RESOLUCAO_METADADOS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Mesmo tempo limite ocioso do servidor bloqueante, maior que o tempo que o PoolConexoesPeers mantém uma conexão ociosa.
+     */
+    private static final long TEMPO_LIMITE_OCIOSO_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final ServerSocketChannel canalServidor;
+    private final ResolvedorRequisicoesArquivos resolvedor;
+    private final List<LacoIO> lacos;
+    private final ExecutorService resolvedoresMetadados;
+    private final AtomicInteger proximoLaco;
+    private volatile boolean isAtivo;
+
+    /**
+     * @param canalServidor canal já vinculado à porta do Peer.
+     * @param resolvedor responsável por decidir as respostas das requisições.
+     * @param quantidadeThreads número de threads de I/O.
+     * @throws IOException caso não seja possível criar os selectors.
+     */
+    public ServidorArquivosNIO(ServerSocketChannel canalServidor, ResolvedorRequisicoesArquivos resolvedor, int quantidadeThreads) throws IOException {
+        this.canalServidor = canalServidor;
+        this.resolvedor = resolvedor;
+        this.lacos = new ArrayList<>();
+        this.proximoLaco = new AtomicInteger();
+        AtomicInteger contadorThreads = new AtomicInteger();
+        this.resolvedoresMetadados = Executors.newFixedThreadPool(THREADS_RESOLUCAO_METADADOS, tarefa -> {
+            Thread thread = new Thread(tarefa, "servidor-arquivos-metadados-" + contadorThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (int i = 0; i < Math.max(1, quantidadeThreads); i++) {
+                lacos.add(new LacoIO());
+            }
+            canalServidor.configureBlocking(false);
+            canalServidor.register(lacos.get(0).seletor, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Inicia as threads de I/O, retornando imediatamente.
+     */
+    public void iniciar() {
+        this.isAtivo = true;
+
+        for (int i = 0; i < lacos.size(); i++) {
+            Thread thread = new Thread(lacos.get(i), "servidor-arquivos-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        System.out.println(String.format("Servidor de arquivos NIO com %d threads de I/O", lacos.size()));
+    }
+
+    @Override
+    public void close() {
+        this.isAtivo = false;
+        resolvedoresMetadados.shutdownNow();
+
+        for (LacoIO laco : lacos) {
+            laco.seletor.wakeup();
+        }
+    }
+
+    private void aceitarConexoes() throws IOException {
+        SocketChannel canal;
+
+        while ((canal = canalServidor.accept()) != null) {
+            canal.configureBlocking(false);
+            canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            lacos.get(Math.floorMod(proximoLaco.getAndIncrement(), lacos.size())).adicionarConexao(canal);
+        }
+    }
+
+    /**
+     * Thread de I/O responsável pelas conexões registradas no seu Selector.
+     */
+    class LacoIO implements Runnable {
+        private final Selector seletor;
+        private final Queue<SocketChannel> novasConexoes;
+        private final Queue<Runnable> resolucoesConcluidas;
+        private final List<ConexaoNIO> conexoesPausadas;
+        private long ultimaVerificacaoOciosas;
+
+        LacoIO() throws IOException {
+            this.seletor = Selector.open();
+            this.novasConexoes = new ConcurrentLinkedQueue<>();
+            this.resolucoesConcluidas = new ConcurrentLinkedQueue<>();
+            this.conexoesPausadas = new ArrayList<>();
+        }
+
+        void adicionarConexao(SocketChannel canal) {
+            novasConexoes.add(canal);
+            seletor.wakeup();
+        }
+
+        /**
+         * Chamado pelo pool de resolução: a resposta é entregue à conexão pela própria thread de I/O.
+         */
+        void entregarResolucao(ConexaoNIO conexao, ResolvedorRequisicoesArquivos.RespostaArquivo resposta) {
+            resolucoesConcluidas.add(() -> conexao.concluirResolucao(resposta));
+            seletor.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isAtivo) {
+                    seletor.select(tempoSelecaoMilissegundos());
+                    registrarNovasConexoes();
+                    entregarResolucoesConcluidas();
+                    retomarConexoesPausadas();
+
+                    Iterator<SelectionKey> chaves = seletor.selectedKeys().iterator();
+                    while (chaves.hasNext()) {
+                        SelectionKey chave = chaves.next();
+                        chaves.remove();
+                        tratarEvento(chave);
+                    }
+
+                    encerrarConexoesOciosas();
+                }
+            } catch (IOException e) {
+                System.err.println("Falha no laço de eventos do servidor de arquivos: " + e.getMessage());
+            } finally {
+                encerrarTodas();
+            }
+        }
+
+        /**
+         * Conexão cuja escrita aguarda o limite de banda, retomada pelo laço no instante informado.
+         */
+        void pausar(ConexaoNIO conexao) {
+            conexao.chave.interestOps(0);
+            conexoesPausadas.add(conexao);
+        }
+
+        private long tempoSelecaoMilissegundos() {
+            long tempo = INTERVALO_SELECAO_MILISSEGUNDOS;
+            long agora = System.nanoTime();
+
+            for (ConexaoNIO conexao : conexoesPausadas) {
+                tempo = Math.min(tempo, TimeUnit.NANOSECONDS.toMillis(conexao.instanteRetomada - agora));
+            }
+            return Math.max(1, tempo);
+        }
+
+        /**
+         * As conexões retomadas são separadas antes de serem atendidas, pois podem voltar a ser pausadas.
+         */
+        private void retomarConexoesPausadas() {
+            long agora = System.nanoTime();
+            List<ConexaoNIO> retomadas = new ArrayList<>();
+            Iterator<ConexaoNIO> pausadas = conexoesPausadas.iterator();
+
+            while (pausadas.hasNext()) {
+                ConexaoNIO conexao = pausadas.next();
+                if (!conexao.chave.isValid() || agora - conexao.instanteRetomada >= 0) {
+                    pausadas.remove();
+                    retomadas.add(conexao);
+                }
+            }
+
+            for (ConexaoNIO conexao : retomadas) {
+                try {
+                    if (conexao.chave.isValid()) {
+                        conexao.atender();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    conexao.encerrar();
+                }
+            }
+        }
+
+        private void registrarNovasConexoes() {
+            SocketChannel canal;
+
+            while ((canal = novasConexoes.poll()) != null) {
+                try {
+                    SelectionKey chave = canal.register(seletor, SelectionKey.OP_READ);
+                    chave.attach(new ConexaoNIO(this, canal, chave));
+                } catch (IOException e) {
+                    fecharCanal(canal);
+                }
+            }
+        }
+
+        private void entregarResolucoesConcluidas() {
+            Runnable entrega;
+
+            while ((entrega = resolucoesConcluidas.poll()) != null) {
+                entrega.run();
+            }
+        }
+
+        private void tratarEvento(SelectionKey chave) {
+            if (!chave.isValid()) {
+                return;
+            }
+
+            if (chave.isAcceptable()) {
+                try {
+                    aceitarConexoes();
+                } catch (IOException e) {
+                    System.err.println("Não foi possível aceitar conexão: " + e.getMessage());
+                }
+                return;
+            }
+
+            ConexaoNIO conexao = (ConexaoNIO) chave.attachment();
+            try {
+                if (chave.isReadable()) {
+                    conexao.ler();
+                } else if (chave.isWritable()) {
+                    conexao.atender();
+                }
+            } catch (IOException | RuntimeException e) {
+                conexao.encerrar();
+            }
+        }
+
+        private void encerrarConexoesOciosas() {
+            long agora = System.nanoTime();
+            if (agora - ultimaVerificacaoOciosas < TimeUnit.MILLISECONDS.toNanos(INTERVALO_SELECAO_MILISSEGUNDOS)) {
+                return;
+            }
+            ultimaVerificacaoOciosas = agora;
+
+            for (SelectionKey chave : seletor.keys()) {
+                if (chave.attachment() instanceof ConexaoNIO) {
+                    ConexaoNIO conexao = (ConexaoNIO) chave.attachment();
+                    if (conexao.filaEscrita.isEmpty() && !conexao.isAguardandoResolucao && agora - conexao.ultimaAtividade > TEMPO_LIMITE_OCIOSO_NANOS) {
+                        conexao.encerrar();
+                    }
+                }
+            }
+        }
+
+        private void encerrarTodas() {
+            try {
+                for (SelectionKey chave : seletor.keys()) {
+                    if (chave.attachment() instanceof ConexaoNIO) {
+                        ((ConexaoNIO) chave.attachment()).encerrar();
+                    }
+                }
+                seletor.close();
+            } catch (IOException e) {
+                System.err.println("Não foi possível fechar o selector do servidor de arquivos");
+            }
+        }
+    }
+
+    /**
+     * Estado de uma conexão: requisições recebidas ainda não processadas e a fila de escritas pendentes.
+     */
+    class ConexaoNIO {
+        private final LacoIO laco;
+        private final SocketChannel canal;
+        private final SelectionKey chave;
+        private final String enderecoRemoto;
+        private final ByteBuffer leitura;
+        private final Queue<Escrita> filaEscrita;
+        private boolean isEncerrarAposEscrita;
+        private boolean isAguardandoResolucao;
+        private long ultimaAtividade;
+        private long instanteRetomada;
+
+        ConexaoNIO(LacoIO laco, SocketChannel canal, SelectionKey chave) throws IOException {
+            this.laco = laco;
+            this.canal = canal;
+            this.chave = chave;
+            this.enderecoRemoto = ((InetSocketAddress) canal.getRemoteAddress()).getAddress().getHostAddress();
+            this.leitura = ByteBuffer.allocate(TAMANHO_BUFFER_LEITURA);
+            this.filaEscrita = new ArrayDeque<>();
+            this.ultimaAtividade = System.nanoTime();
+        }
+
+        void ler() throws IOException {
+            if (canal.read(leitura) == -1) {
+                encerrar();
+                return;
+            }
+            ultimaAtividade = System.nanoTime();
+            atender();
+        }
+
+        /**
+         * Escreve o que estiver pendente e, com a fila vazia, processa a próxima requisição já recebida, até que o socket não aceite
+         * mais bytes, não haja requisição completa ou a requisição atual esteja sendo resolvida pelo pool.
+         */
+        void atender() throws IOException {
+            while (true) {
+                if (!escreverPendentes()) {
+                    long pausa = filaEscrita.peek().getPausaNanos();
+                    if (pausa > 0) {
+                        instanteRetomada = System.nanoTime() + pausa;
+                        laco.pausar(this);
+                    } else {
+                        chave.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+                if (isEncerrarAposEscrita) {
+                    encerrar();
+                    return;
+                }
+                if (isAguardandoResolucao) {
+                    chave.interestOps(0);
+                    return;
+                }
+
+                Mensagem requisicao = proximaRequisicao();
+                if (requisicao == null) {
+                    chave.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                responder(requisicao);
+            }
+        }
+
+        private Mensagem proximaRequisicao() throws IOException {
+            Mensagem requisicao;
+            leitura.flip();
+            try {
+                requisicao = Mensagem.desserializarSeCompleta(leitura);
+            } finally {
+                leitura.compact();
+            }
+
+            if (requisicao == null && !leitura.hasRemaining()) {
+                throw new IOException("Requisição excede " + TAMANHO_BUFFER_LEITURA + " bytes");
+            }
+            return requisicao;
+        }
+
+        private void responder(Mensagem requisicao) throws IOException {
+            if ("INFO_ARQUIVO".equals(requisicao.getTitulo())) {
+                isAguardandoResolucao = true;
+                resolvedoresMetadados.execute(() -> laco.entregarResolucao(this, resolverSemFalhar(requisicao)));
+                return;
+            }
+            enfileirarResposta(resolvedor.resolver(requisicao, enderecoRemoto));
+        }
+
+        private ResolvedorRequisicoesArquivos.RespostaArquivo resolverSemFalhar(Mensagem requisicao) {
+            try {
+                return resolvedor.resolver(requisicao, enderecoRemoto);
+            } catch (RuntimeException e) {
+                System.err.println("Falha ao resolver a requisição " + requisicao.getTitulo() + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Retoma a conexão com a resposta resolvida pelo pool, descartando-a caso a conexão tenha sido encerrada nesse intervalo.
+         */
+        void concluirResolucao(ResolvedorRequisicoesArquivos.RespostaArquivo resposta) {
+            isAguardandoResolucao = false;
+            if (!chave.isValid()) {
+                if (resposta != null) {
+                    resposta.concluir(0);
+                }
+                return;
+            }
+
+            try {
+                enfileirarResposta(resposta);
+                atender();
+            } catch (IOException | RuntimeException e) {
+                encerrar();
+            }
+        }
+
+        private void enfileirarResposta(ResolvedorRequisicoesArquivos.RespostaArquivo resposta) throws IOException {
+            if (resposta == null) {
+                isEncerrarAposEscrita = true;
+                return;
+            }
+
+            filaEscrita.add(new EscritaBuffer(ByteBuffer.wrap(Mensagem.serializar(resposta.getCabecalho(), resposta.getFormato()))));
+            if (resposta.isTransferencia()) {
+                filaEscrita.add(new EscritaArquivo(resposta));
+            }
+            isEncerrarAposEscrita = !resposta.isManterConexao();
+        }
+
+        /**
+         * @return true se todas as escritas pendentes foram concluídas.
+         */
+        private boolean escreverPendentes() throws IOException {
+            Escrita escrita;
+
+            while ((escrita = filaEscrita.peek()) != null) {
+                if (!escrita.escrever(canal)) {
+                    return false;
+                }
+                ultimaAtividade = System.nanoTime();
+                filaEscrita.poll();
+                escrita.concluir();
+            }
+            return true;
+        }
+
+        void encerrar() {
+            chave.cancel();
+            fecharCanal(canal);
+
+            Escrita escrita;
+            while ((escrita = filaEscrita.poll()) != null) {
+                escrita.descartar();
+            }
+        }
+    }
+
+    /**
+     * Item da fila de escrita de uma conexão.
+     */
+    abstract static class Escrita {
+        /**
+         * @return true se a escrita foi concluída, ou false caso o socket não aceite mais bytes no momento ou a escrita esteja pausada.
+         */
+        abstract boolean escrever(SocketChannel canal) throws IOException;
+
+        /**
+         * @return tempo em nanossegundos até que a escrita possa continuar, ou zero caso ela só dependa do socket.
+         */
+        long getPausaNanos() {
+            return 0;
+        }
+
+        void concluir() {
+        }
+
+        void descartar() {
+        }
+    }
+
+    static class EscritaBuffer extends Escrita {
+        private final ByteBuffer conteudo;
+
+        EscritaBuffer(ByteBuffer conteudo) {
+            this.conteudo = conteudo;
+        }
+
+        @Override
+        boolean escrever(SocketChannel canal) throws IOException {
+            canal.write(conteudo);
+            return !conteudo.hasRemaining();
+        }
+    }
+
+    /**
+     * Intervalo de um arquivo enviado sem cópias pelo espaço de usuário, ocupando uma vaga de upload até ser concluído ou descartado.
+     * Cada fatia enviada é registrada no limite de banda da transferência, que pode pausar a escrita.
+     */
+    static class EscritaArquivo extends Escrita {
+        private final ResolvedorRequisicoesArquivos.RespostaArquivo resposta;
+        private FileChannel canalArquivo;
+        private long posicao;
+        private long restante;
+        private long instanteInicio;
+        private long pausaNanos;
+
+        EscritaArquivo(ResolvedorRequisicoesArquivos.RespostaArquivo resposta) {
+            this.resposta = resposta;
+            this.posicao = resposta.getInicio();
+            this.restante = resposta.getTamanho();
+        }
+
+        @Override
+        boolean escrever(SocketChannel canal) throws IOException {
+            if (canalArquivo == null) {
+                canalArquivo = FileChannel.open(resposta.getArquivo().toPath(), StandardOpenOption.READ);
+                instanteInicio = System.nanoTime();
+            }
+
+            pausaNanos = 0;
+            while (restante > 0) {
+                long enviados = canalArquivo.transferTo(posicao, resposta.getLimite().fatia(restante), canal);
+
+                if (enviados == 0) {
+                    if (posicao >= canalArquivo.size()) {
+                        throw new IOException("Arquivo " + resposta.getArquivo().getName() + " encolheu durante o upload");
+                    }
+                    return false;
+                }
+                posicao += enviados;
+                restante -= enviados;
+
+                pausaNanos = resposta.getLimite().registrar(enviados);
+                if (pausaNanos > 0 && restante > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        long getPausaNanos() {
+            return pausaNanos;
+        }
+
+        @Override
+        void concluir() {
+            descartar();
+            ResolvedorRequisicoesArquivos.reportarVazao(resposta.getArquivo().getName(), resposta.getTamanho(), System.nanoTime() - instanteInicio);
+        }
+
+        @Override
+        void descartar() {
+            resposta.concluir(resposta.getTamanho() - restante);
+            if (canalArquivo != null) {
+                try {
+                    canalArquivo.close();
+                } catch (IOException e) {
+                    System.err.println("Não foi possível fechar o arquivo " + resposta.getArquivo().getName());
+                }
+            }
+        }
+    }
+
+    private static void fecharCanal(SocketChannel canal) {
+        try {
+            canal.close();
+        } catch (IOException e) {
+            System.err.println("Não foi possível fechar a conexão com o Peer cliente");
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Benchmark do CodecMensagem frente à serialização Java (Formato.JAVA) mantida como alternativa: bytes por mensagem e tempo de
+ * serialização e desserialização por mensagem, para um JOIN, um SEARCH_OK e um DOWNLOAD como os enviados pelo Peer e pelo Servidor.
+ * Antes de medir, confere que as mensagens desserializadas nos dois formatos são iguais às originais.
+ *
+ * Argumentos opcionais: quantidade de operações medidas por mensagem e formato (padrão 200.000), precedidas de metade dessa
+ * quantidade para aquecimento.
+ *
+ * @author Maik Henrique
+ */
+public class BenchmarkCodecMensagem {
+
+    /**
+     * Acumula o resultado das operações medidas, para que não sejam descartadas pelo compilador.
+     */
+    private static long descarte;
+
+    public static void main(String[] args) throws Exception {
+        int operacoes = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Map<String, Mensagem> mensagens = new LinkedHashMap<>();
+        mensagens.put("JOIN", mensagemJoin());
+        mensagens.put("SEARCH_OK", mensagemSearchOk());
+        mensagens.put("DOWNLOAD", mensagemDownload());
+
+        System.out.println(String.format("%d operações por mensagem e formato:", operacoes));
+        System.out.println(String.format("  %-10s %-8s %8s %14s %14s", "mensagem", "formato", "bytes", "serializar", "desserializar"));
+        for (Map.Entry<String, Mensagem> mensagem : mensagens.entrySet()) {
+            for (Mensagem.Formato formato : Mensagem.Formato.values()) {
+                medir(mensagem.getKey(), mensagem.getValue(), formato, operacoes);
+            }
+        }
+    }
+
+    private static void medir(String nome, Mensagem mensagem, Mensagem.Formato formato, int operacoes) throws Exception {
+        byte[] serializada = Mensagem.serializar(mensagem, formato);
+        Mensagem desserializada = Mensagem.desserializar(serializada, 0, serializada.length);
+        Verificacao.verificarIgual(mensagem.getTitulo(), desserializada.getTitulo(), nome + " " + formato + ": título");
+        Verificacao.verificarIgual(mensagem.getMensagens(), desserializada.getMensagens(), nome + " " + formato + ": campos");
+
+        serializar(mensagem, formato, operacoes / 2);
+        desserializar(serializada, operacoes / 2);
+
+        long inicio = System.nanoTime();
+        serializar(mensagem, formato, operacoes);
+        double nanosSerializar = (double) (System.nanoTime() - inicio) / operacoes;
+
+        inicio = System.nanoTime();
+        desserializar(serializada, operacoes);
+        double nanosDesserializar = (double) (System.nanoTime() - inicio) / operacoes;
+
+        System.out.println(String.format("  %-10s %-8s %8d %,11.0f ns %,11.0f ns", nome, formato, serializada.length, nanosSerializar,
+            nanosDesserializar));
+    }
+
+    private static void serializar(Mensagem mensagem, Mensagem.Formato formato, int operacoes) throws IOException {
+        for (int i = 0; i < operacoes; i++) {
+            descarte += Mensagem.serializar(mensagem, formato).length;
+        }
+    }
+
+    private static void desserializar(byte[] serializada, int operacoes) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < operacoes; i++) {
+            descarte += Mensagem.desserializar(serializada, 0, serializada.length).getMensagens().size();
+        }
+    }
+
+    /**
+     * JOIN de uma parte com 20 vídeos, como os divididos pelo Peer em datagramas.
+     */
+    private static Mensagem mensagemJoin() {
+        List<String> arquivos = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            arquivos.add("video-" + i + ".mp4");
+        }
+
+        Mensagem join = new Mensagem("JOIN");
+        join.adicionarMensagem("arquivos", arquivos);
+        join.adicionarMensagem("endereco", "192.168.0.10:5001");
+        join.adicionarMensagem("carga", 3);
+        join.adicionarMensagem("versao", System.currentTimeMillis());
+        join.adicionarMensagem("id_requisicao", 123456L);
+        join.adicionarMensagem("parte", 1);
+        join.adicionarMensagem("total_partes", 1);
+        return join;
+    }
+
+    /**
+     * SEARCH_OK com 30 peers, ordenados por carga como no Servidor.
+     */
+    private static Mensagem mensagemSearchOk() {
+        Set<String> peers = new LinkedHashSet<>();
+        for (int i = 0; i < 30; i++) {
+            peers.add("10.0.0." + i + ":" + (5000 + i));
+        }
+
+        Mensagem searchOK = new Mensagem("SEARCH_OK");
+        searchOK.adicionarMensagem("lista_peers", peers);
+        searchOK.adicionarMensagem("id_requisicao", 123456L);
+        return searchOK;
+    }
+
+    /**
+     * Requisição de uma peça enviada pelo DownloadMultiFonte em uma conexão mantida aberta.
+     */
+    private static Mensagem mensagemDownload() {
+        Mensagem download = new Mensagem("DOWNLOAD");
+        download.adicionarMensagem("arquivo_solicitado", "video-7.mp4");
+        download.adicionarMensagem("inicio", 42L * DownloadMultiFonte.TAMANHO_PECA);
+        download.adicionarMensagem("tamanho", (long) DownloadMultiFonte.TAMANHO_PECA);
+        download.adicionarMensagem("manter_conexao", true);
+        download.adicionarMensagem("endereco", "192.168.0.11:5001");
+        return download;
+    }
+}
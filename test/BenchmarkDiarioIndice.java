@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark do DiarioIndice: vazão de alterações do índice sem diário, com gravação assíncrona e com gravação síncrona (cada
+ * alteração aguarda a confirmação em disco, como as requisições do Servidor), e tempo de recuperação do índice ao reabrir o diário,
+ * somente a partir dos segmentos e a partir de um instantâneo seguido dos segmentos posteriores.
+ *
+ * Argumentos opcionais: quantidade de peers da recuperação, threads escritoras e alterações por thread (padrão 200.000, 16 e
+ * 20.000). O diário é gravado em uma pasta temporária, apagada ao final.
+ *
+ * @author Maik Henrique
+ */
+public class BenchmarkDiarioIndice {
+
+    private static final int TAMANHO_SEGMENTO = 64 * 1024 * 1024;
+    private static final long LIMITE_COMPACTACAO = 8 * 1024 * 1024;
+    private static final int ARQUIVOS_POR_PEER = 5;
+
+    public static void main(String[] args) throws Exception {
+        int quantidadePeers = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int alteracoesPorThread = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        Path pasta = Files.createTempDirectory("benchmark-diario");
+
+        try {
+            System.out.println(String.format("Vazão com %d threads, %d alterações por thread:", threads, alteracoesPorThread));
+            medirVazao(pasta.toFile(), null, threads, alteracoesPorThread);
+            medirVazao(pasta.toFile(), false, threads, alteracoesPorThread);
+            medirVazao(pasta.toFile(), true, threads, alteracoesPorThread);
+
+            System.out.println(String.format("Recuperação de %d peers com %d arquivos cada:", quantidadePeers, ARQUIVOS_POR_PEER));
+            medirRecuperacao(pasta.toFile(), quantidadePeers, Long.MAX_VALUE, "somente segmentos");
+            medirRecuperacao(pasta.toFile(), quantidadePeers, LIMITE_COMPACTACAO, "instantâneo e segmentos");
+        } finally {
+            apagar(pasta);
+        }
+    }
+
+    /**
+     * Cada thread altera os seus próprios peers: 30% JOIN com 10 arquivos, 60% UPDATE e 10% LEAVE.
+     *
+     * @param isSincrono modo de gravação do diário, ou nulo para medir o índice sem diário.
+     */
+    private static void medirVazao(File pasta, Boolean isSincrono, int threads, int alteracoesPorThread) throws Exception {
+        apagar(pasta.toPath());
+        PeerFileIndex indice = new PeerFileIndex();
+        DiarioIndice diario = isSincrono == null ? null : DiarioIndice.abrir(pasta, indice, TAMANHO_SEGMENTO, Long.MAX_VALUE, isSincrono);
+        AtomicReference<IOException> falha = new AtomicReference<>();
+        CountDownLatch inicio = new CountDownLatch(1);
+        List<Thread> escritoras = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            int escritora = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    inicio.await();
+                    for (int alteracao = 0; alteracao < alteracoesPorThread; alteracao++) {
+                        alterar(indice, escritora, alteracao);
+                        if (diario != null) {
+                            diario.aguardarGravacao();
+                        }
+                    }
+                } catch (IOException e) {
+                    falha.compareAndSet(null, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            escritoras.add(thread);
+        }
+
+        long instanteInicio = System.nanoTime();
+        inicio.countDown();
+        for (Thread thread : escritoras) {
+            thread.join();
+        }
+        double segundos = (System.nanoTime() - instanteInicio) / 1e9;
+        if (falha.get() != null) {
+            throw falha.get();
+        }
+
+        String modo = isSincrono == null ? "sem diário" : isSincrono ? "síncrono" : "assíncrono";
+        System.out.println(String.format("  %-10s %,12.0f alterações/s%s", modo, (double) threads * alteracoesPorThread / segundos,
+            diario == null ? "" : String.format(" (%.1f registros por gravação)", (double) diario.getRegistros() / Math.max(1, diario.getGravacoes()))));
+        if (diario != null) {
+            diario.close();
+        }
+    }
+
+    private static void alterar(PeerFileIndex indice, int escritora, int alteracao) {
+        String peer = "10.0." + escritora + "." + (alteracao % 250) + ":5000";
+
+        switch (alteracao % 10) {
+            case 0:
+            case 1:
+            case 2:
+                List<String> arquivos = new ArrayList<>(10);
+                for (int i = 0; i < 10; i++) {
+                    arquivos.add("video-" + (alteracao + i) % 5000 + ".mp4");
+                }
+                indice.definirArquivosPeer(peer, arquivos);
+                break;
+            case 9:
+                indice.removerPeer(peer);
+                break;
+            default:
+                indice.adicionarArquivo(peer, "novo-" + alteracao + ".mp4");
+        }
+    }
+
+    /**
+     * Grava o índice de quantidadePeers peers, com saídas e novos arquivos de uma parte deles, e reabre o diário em um índice vazio,
+     * que deve resultar no mesmo índice.
+     *
+     * @param limiteCompactacao bytes de segmentos que disparam um novo instantâneo.
+     */
+    private static void medirRecuperacao(File pasta, int quantidadePeers, long limiteCompactacao, String descricao) throws IOException {
+        apagar(pasta.toPath());
+        PeerFileIndex indice = new PeerFileIndex();
+        DiarioIndice diario = DiarioIndice.abrir(pasta, indice, TAMANHO_SEGMENTO, limiteCompactacao, false);
+
+        for (int peer = 0; peer < quantidadePeers; peer++) {
+            List<String> arquivos = new ArrayList<>(ARQUIVOS_POR_PEER);
+            for (int i = 0; i < ARQUIVOS_POR_PEER; i++) {
+                arquivos.add("video-" + (peer * 7 + i * 131) % 200_000 + ".mp4");
+            }
+            indice.definirArquivosPeer(nomePeer(peer), arquivos);
+        }
+        for (int peer = 0; peer < quantidadePeers; peer += 10) {
+            indice.removerPeer(nomePeer(peer));
+            indice.adicionarArquivo(nomePeer(peer + 1), "extra-" + peer + ".mp4");
+        }
+        diario.aguardarGravacao();
+        Map<String, Set<String>> esperado = copiar(indice);
+        diario.close();
+
+        PeerFileIndex recuperado = new PeerFileIndex();
+        DiarioIndice diarioRecuperado = DiarioIndice.abrir(pasta, recuperado, TAMANHO_SEGMENTO, Long.MAX_VALUE, false);
+        System.out.println(String.format("  %-24s %,6d ms para %,d peers (%,d registros gravados, %d compactações)", descricao,
+            diarioRecuperado.getTempoRecuperacaoMilissegundos(), diarioRecuperado.getPeersRecuperados(), diario.getRegistros(),
+            diario.getCompactacoes()));
+        Verificacao.verificarIgual(esperado, copiar(recuperado), "índice recuperado");
+        diarioRecuperado.close();
+    }
+
+    private static Map<String, Set<String>> copiar(PeerFileIndex indice) {
+        Map<String, Set<String>> copia = new HashMap<>();
+        indice.paraCadaPeer((peer, arquivos) -> copia.put(peer, new HashSet<>(arquivos)));
+        return copia;
+    }
+
+    private static String nomePeer(int peer) {
+        return "10." + (peer >> 16) + "." + ((peer >> 8) & 0xFF) + "." + (peer & 0xFF) + ":5000";
+    }
+
+    private static void apagar(Path pasta) throws IOException {
+        if (!Files.exists(pasta)) {
+            return;
+        }
+        try (Stream<Path> caminhos = Files.walk(pasta)) {
+            for (Path caminho : (Iterable<Path>) caminhos.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(caminho);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmark do consumo de memória do PeerFileIndex (nomes internados como identificadores inteiros e conjuntos primitivos) frente
+ * aos mapas String -> HashSet<String> nos dois sentidos usados antes dele, com os nomes recebidos em cada requisição guardados como
+ * instâncias distintas, como acontece ao desserializar as mensagens.
+ *
+ * Argumentos opcionais: quantidade de arquivos, de peers e de arquivos por peer (padrão 1.000.000, 50.000 e 40). Os valores padrão
+ * precisam de cerca de 3 GB de heap para a comparação (-Xmx3g).
+ *
+ * @author Maik Henrique
+ */
+public class BenchmarkMemoriaIndice {
+
+    public static void main(String[] args) {
+        int quantidadeArquivos = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int quantidadePeers = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int arquivosPorPeer = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+
+        long base = memoriaUsada();
+        long inicio = System.nanoTime();
+        PeerFileIndex indice = new PeerFileIndex();
+        Random aleatorio = new Random(1);
+        for (int peer = 0; peer < quantidadePeers; peer++) {
+            indice.definirArquivosPeer(nomePeer(peer), arquivosDoPeer(aleatorio, quantidadeArquivos, arquivosPorPeer));
+        }
+        long duracaoIndiceMs = (System.nanoTime() - inicio) / 1_000_000;
+        long memoriaIndice = memoriaUsada() - base;
+        int arquivosIndexados = indice.getQuantidadeArquivos();
+        indice = null;
+
+        base = memoriaUsada();
+        inicio = System.nanoTime();
+        Map<String, Set<String>> arquivosPorPeerIngenuo = new HashMap<>();
+        Map<String, Set<String>> peersPorArquivo = new HashMap<>();
+        aleatorio = new Random(1);
+        for (int peer = 0; peer < quantidadePeers; peer++) {
+            Set<String> arquivos = arquivosDoPeer(aleatorio, quantidadeArquivos, arquivosPorPeer);
+            arquivosPorPeerIngenuo.put(nomePeer(peer), arquivos);
+            for (String arquivo : arquivos) {
+                peersPorArquivo.computeIfAbsent(new String(arquivo), chave -> new HashSet<>()).add(nomePeer(peer));
+            }
+        }
+        long duracaoIngenuoMs = (System.nanoTime() - inicio) / 1_000_000;
+        long memoriaIngenuo = memoriaUsada() - base;
+        Verificacao.verificarIgual(arquivosIndexados, peersPorArquivo.size(), "arquivos distintos nas duas estruturas");
+
+        long vinculos = (long) quantidadePeers * arquivosPorPeer;
+        System.out.println(String.format("%d peers, %d arquivos distintos, até %d vínculos", quantidadePeers, arquivosIndexados, vinculos));
+        System.out.println(String.format("PeerFileIndex:      %,d MB (%.1f bytes por vínculo), construído em %d ms",
+            memoriaIndice >> 20, (double) memoriaIndice / vinculos, duracaoIndiceMs));
+        System.out.println(String.format("HashMap<String,Set>: %,d MB (%.1f bytes por vínculo), construído em %d ms",
+            memoriaIngenuo >> 20, (double) memoriaIngenuo / vinculos, duracaoIngenuoMs));
+        System.out.println(String.format("Redução: %.1fx", (double) memoriaIngenuo / memoriaIndice));
+        Verificacao.verificar(arquivosPorPeerIngenuo.size() == quantidadePeers, "mapa ingênuo mantido até a medição");
+    }
+
+    private static Set<String> arquivosDoPeer(Random aleatorio, int quantidadeArquivos, int arquivosPorPeer) {
+        Set<String> arquivos = new HashSet<>(arquivosPorPeer * 2);
+        for (int i = 0; i < arquivosPorPeer; i++) {
+            arquivos.add("video-" + aleatorio.nextInt(quantidadeArquivos) + ".mp4");
+        }
+        return arquivos;
+    }
+
+    private static String nomePeer(int peer) {
+        return "10." + (peer >> 16) + "." + ((peer >> 8) & 0xFF) + "." + (peer & 0xFF) + ":5000";
+    }
+
+    private static long memoriaUsada() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
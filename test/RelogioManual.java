@@ -0,0 +1,26 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relógio controlado pelo teste: o tempo só avança com avancar, e dormir avança o tempo em vez de bloquear a thread, de modo que
+ * cenários que dependem de tempo sejam reproduzidos de forma determinística e sem esperas reais.
+ *
+ * @author Maik Henrique
+ */
+public class RelogioManual implements Relogio {
+
+    private final AtomicLong agora = new AtomicLong();
+
+    @Override
+    public long nanoTime() {
+        return agora.get();
+    }
+
+    @Override
+    public void dormir(long nanos) {
+        avancar(nanos);
+    }
+
+    public void avancar(long nanos) {
+        agora.addAndGet(nanos);
+    }
+}
@@ -0,0 +1,188 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Teste do ClienteRastreador contra um servidor falso em um DatagramSocket local, que responde manualmente às requisições recebidas:
+ * respostas fora de ordem são associadas às requisições pelo id_requisicao, requisições sem resposta são retransmitidas com o mesmo
+ * id_requisicao até o limite de tentativas, as partes de uma resposta são entregues em ordem, e partes fora de 1..total_partes,
+ * com total_partes diferente do da primeira parte ou enviadas por outra origem que não o servidor são descartadas.
+ *
+ * @author Maik Henrique
+ */
+public class TesteClienteRastreador {
+
+    private static final int TEMPO_MAXIMO_SEGUNDOS = 10;
+
+    public static void main(String[] args) throws Exception {
+        DatagramSocket servidor = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        servidor.setSoTimeout(TEMPO_MAXIMO_SEGUNDOS * 1000);
+        ClienteRastreador cliente = new ClienteRastreador(InetAddress.getLoopbackAddress().getHostAddress(), servidor.getLocalPort());
+
+        try {
+            verificarAssociacaoPorId(servidor, cliente);
+            verificarRetransmissao(servidor, cliente);
+            verificarPartes(servidor, cliente);
+            verificarOrigem(servidor, cliente);
+            verificarNaoSolicitadas(servidor, cliente);
+        } finally {
+            cliente.close();
+            servidor.close();
+        }
+        System.out.println("TesteClienteRastreador concluído");
+    }
+
+    /**
+     * Duas requisições em andamento ao mesmo tempo, respondidas na ordem inversa.
+     */
+    private static void verificarAssociacaoPorId(DatagramSocket servidor, ClienteRastreador cliente) throws Exception {
+        CompletableFuture<Mensagem> primeira = cliente.enviar(requisicao("a.mp4"));
+        CompletableFuture<Mensagem> segunda = cliente.enviar(requisicao("b.mp4"));
+        Recebida requisicaoA = receber(servidor);
+        Recebida requisicaoB = receber(servidor);
+
+        responder(servidor, requisicaoB, resposta(requisicaoB, 1, 1));
+        responder(servidor, requisicaoA, resposta(requisicaoA, 1, 1));
+
+        Verificacao.verificarIgual("a.mp4", aguardar(primeira).getMensagens().get("arquivo"), "resposta da primeira requisição");
+        Verificacao.verificarIgual("b.mp4", aguardar(segunda).getMensagens().get("arquivo"), "resposta da segunda requisição");
+        Verificacao.verificarIgual(0, cliente.getQuantidadePendentes(), "requisições pendentes após as respostas");
+    }
+
+    /**
+     * A primeira transmissão é ignorada e a retransmissão, com o mesmo id_requisicao, é respondida. Uma requisição nunca respondida
+     * termina com SocketTimeoutException após o limite de tentativas.
+     */
+    private static void verificarRetransmissao(DatagramSocket servidor, ClienteRastreador cliente) throws Exception {
+        CompletableFuture<Mensagem> respondida = cliente.enviar(requisicao("c.mp4"));
+        Recebida primeiraTransmissao = receber(servidor);
+        Recebida retransmissao = receber(servidor);
+        Verificacao.verificarIgual(primeiraTransmissao.mensagem.getMensagens().get("id_requisicao"),
+            retransmissao.mensagem.getMensagens().get("id_requisicao"), "id_requisicao da retransmissão");
+
+        responder(servidor, retransmissao, resposta(retransmissao, 1, 1));
+        Verificacao.verificarIgual("c.mp4", aguardar(respondida).getMensagens().get("arquivo"), "resposta da retransmissão");
+
+        CompletableFuture<List<Mensagem>> semResposta = cliente.enviarComPartes(requisicao("d.mp4"), false, 2);
+        receber(servidor);
+        receber(servidor);
+        try {
+            semResposta.get(TEMPO_MAXIMO_SEGUNDOS, TimeUnit.SECONDS);
+            throw new AssertionError("requisição sem resposta foi concluída");
+        } catch (ExecutionException e) {
+            Verificacao.verificar(e.getCause() instanceof SocketTimeoutException, "falha da requisição sem resposta: " + e.getCause());
+        }
+        Verificacao.verificarIgual(0, cliente.getQuantidadePendentes(), "requisições pendentes após o limite de tentativas");
+    }
+
+    /**
+     * Partes recebidas fora de ordem são entregues em ordem, e as partes inválidas não contam para completar a resposta.
+     */
+    private static void verificarPartes(DatagramSocket servidor, ClienteRastreador cliente) throws Exception {
+        CompletableFuture<List<Mensagem>> partes = cliente.enviarComPartes(requisicao("e.mp4"), false);
+        Recebida recebida = receber(servidor);
+
+        responder(servidor, recebida, resposta(recebida, 2, 2));
+        responder(servidor, recebida, resposta(recebida, 3, 2));
+        responder(servidor, recebida, resposta(recebida, 0, 2));
+        responder(servidor, recebida, resposta(recebida, 1, 3));
+        responder(servidor, recebida, resposta(recebida, 1, 2));
+
+        List<Mensagem> resposta = partes.get(TEMPO_MAXIMO_SEGUNDOS, TimeUnit.SECONDS);
+        Verificacao.verificarIgual(2, resposta.size(), "quantidade de partes");
+        Verificacao.verificarIgual(1, resposta.get(0).getMensagens().get("parte"), "primeira parte");
+        Verificacao.verificarIgual(2, resposta.get(1).getMensagens().get("parte"), "segunda parte");
+        Verificacao.verificarIgual(2, resposta.get(0).getMensagens().get("total_partes"), "total_partes da primeira parte");
+    }
+
+    /**
+     * Uma resposta com o id_requisicao correto enviada por outro socket é ignorada, e a requisição aguarda a do servidor.
+     */
+    private static void verificarOrigem(DatagramSocket servidor, ClienteRastreador cliente) throws Exception {
+        CompletableFuture<Mensagem> requisicao = cliente.enviar(requisicao("f.mp4"));
+        Recebida recebida = receber(servidor);
+
+        try (DatagramSocket intruso = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            Mensagem falsa = resposta(recebida, 1, 1);
+            falsa.adicionarMensagem("arquivo", "falso.mp4");
+            responder(intruso, recebida, falsa);
+        }
+        TimeUnit.MILLISECONDS.sleep(100);
+        Verificacao.verificar(!requisicao.isDone(), "resposta de outra origem foi aceita");
+
+        responder(servidor, recebida, resposta(recebida, 1, 1));
+        Verificacao.verificarIgual("f.mp4", aguardar(requisicao).getMensagens().get("arquivo"), "resposta do servidor");
+    }
+
+    /**
+     * Mensagens do servidor sem id_requisicao, como ALIVE_NEGADO, vão para o ouvinte de mensagens não solicitadas.
+     */
+    private static void verificarNaoSolicitadas(DatagramSocket servidor, ClienteRastreador cliente) throws Exception {
+        LinkedBlockingQueue<Mensagem> naoSolicitadas = new LinkedBlockingQueue<>();
+        cliente.setOuvinteNaoSolicitadas(naoSolicitadas::add);
+
+        cliente.enviarSemResposta(new Mensagem("ALIVE"));
+        Recebida alive;
+        // descarta retransmissões atrasadas das verificações anteriores
+        do {
+            alive = receber(servidor);
+        } while (!alive.mensagem.getTitulo().equals("ALIVE"));
+        responder(servidor, alive, new Mensagem("ALIVE_NEGADO"));
+
+        Mensagem mensagem = naoSolicitadas.poll(TEMPO_MAXIMO_SEGUNDOS, TimeUnit.SECONDS);
+        Verificacao.verificar(mensagem != null, "ALIVE_NEGADO não foi entregue ao ouvinte");
+        Verificacao.verificarIgual("ALIVE_NEGADO", mensagem.getTitulo(), "mensagem não solicitada");
+    }
+
+    private static Mensagem requisicao(String arquivo) {
+        Mensagem search = new Mensagem("SEARCH");
+        search.adicionarMensagem("arquivo", arquivo);
+        return search;
+    }
+
+    private static Mensagem resposta(Recebida requisicao, int parte, int totalPartes) {
+        Mensagem resposta = new Mensagem("SEARCH_OK");
+        resposta.adicionarMensagem("arquivo", requisicao.mensagem.getMensagens().get("arquivo"));
+        resposta.adicionarMensagem("id_requisicao", requisicao.mensagem.getMensagens().get("id_requisicao"));
+        resposta.adicionarMensagem("parte", parte);
+        resposta.adicionarMensagem("total_partes", totalPartes);
+        return resposta;
+    }
+
+    private static Mensagem aguardar(CompletableFuture<Mensagem> requisicao) throws Exception {
+        return requisicao.get(TEMPO_MAXIMO_SEGUNDOS, TimeUnit.SECONDS);
+    }
+
+    private static Recebida receber(DatagramSocket servidor) throws Exception {
+        byte[] bytes = new byte[Mensagem.TAMANHO_MAXIMO_DATAGRAMA];
+        DatagramPacket pacote = new DatagramPacket(bytes, bytes.length);
+        servidor.receive(pacote);
+        return new Recebida(Mensagem.desserializar(bytes, 0, pacote.getLength()), pacote.getSocketAddress());
+    }
+
+    private static void responder(DatagramSocket socket, Recebida requisicao, Mensagem resposta) throws Exception {
+        byte[] bytes = Mensagem.serializar(resposta, Mensagem.FORMATO_PADRAO);
+        socket.send(new DatagramPacket(bytes, bytes.length, (InetSocketAddress) requisicao.origem));
+    }
+
+    /**
+     * Requisição recebida pelo servidor falso e o endereço do cliente que a enviou.
+     */
+    private static class Recebida {
+        private final Mensagem mensagem;
+        private final SocketAddress origem;
+
+        Recebida(Mensagem mensagem, SocketAddress origem) {
+            this.mensagem = mensagem;
+            this.origem = origem;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Teste da deduplicação de requisições: JOIN, UPDATE e LEAVE com o mesmo (origem, id_requisicao) são repetidos através do
+ * Servidor.RequisicaoCliente, como retransmissões do ClienteRastreador, e cada requisição deve alterar o índice uma única vez,
+ * com todas as repetições recebendo a resposta original. A validade das entradas da JanelaDeduplicacao é verificada com um
+ * RelogioManual.
+ *
+ * @author Maik Henrique
+ */
+public class TesteDeduplicacao {
+
+    private static final int REPETICOES = 5;
+
+    public static void main(String[] args) throws Exception {
+        verificarRetransmissoes();
+        verificarValidade();
+        System.out.println("TesteDeduplicacao concluído");
+    }
+
+    /**
+     * O diário fica desativado para que cada execução comece com o índice vazio.
+     */
+    private static void verificarRetransmissoes() throws Exception {
+        System.setProperty("p2p.servidor.diario.pasta", "");
+        Servidor servidor = new Servidor("127.0.0.1", 0, 1, DespachanteRequisicoes.criarPorPropriedades());
+
+        try (DatagramChannel canalServidor = abrirCanal();
+            DatagramChannel clienteA = abrirCanal();
+            DatagramChannel clienteB = abrirCanal()) {
+            ContadorEscritas escritas = new ContadorEscritas();
+            servidor.getIndicePeersArquivos().adicionarRegistroMutacoes(escritas);
+
+            Mensagem join = new Mensagem("JOIN");
+            join.adicionarMensagem("arquivos", new ArrayList<>(Arrays.asList("a.mp4", "b.mp4")));
+            join.adicionarMensagem("endereco", "peer1");
+            join.adicionarMensagem("id_requisicao", 1L);
+            List<byte[]> respostas = repetir(servidor, canalServidor, clienteA, join);
+            Verificacao.verificarIgual(1, escritas.get(), "escritas do JOIN repetido");
+            verificarRespostasIguais(respostas, "JOIN_OK");
+
+            Mensagem update = new Mensagem("UPDATE");
+            update.adicionarMensagem("arquivo", "c.mp4");
+            update.adicionarMensagem("endereco", "peer1");
+            update.adicionarMensagem("id_requisicao", 2L);
+            respostas = repetir(servidor, canalServidor, clienteA, update);
+            Verificacao.verificarIgual(2, escritas.get(), "escritas após o UPDATE repetido");
+            verificarRespostasIguais(respostas, "UPDATE_OK");
+
+            Mensagem updateOutraOrigem = new Mensagem("UPDATE");
+            updateOutraOrigem.adicionarMensagem("arquivo", "c.mp4");
+            updateOutraOrigem.adicionarMensagem("endereco", "peer2");
+            updateOutraOrigem.adicionarMensagem("id_requisicao", 2L);
+            repetir(servidor, canalServidor, clienteB, updateOutraOrigem);
+            Verificacao.verificarIgual(3, escritas.get(), "mesmo id_requisicao de outra origem é uma nova requisição");
+
+            Mensagem leave = new Mensagem("LEAVE");
+            leave.adicionarMensagem("endereco", "peer1");
+            leave.adicionarMensagem("id_requisicao", 3L);
+            repetir(servidor, canalServidor, clienteA, leave);
+            Verificacao.verificarIgual(4, escritas.get(), "escritas após o LEAVE repetido");
+
+            repetir(servidor, canalServidor, clienteA, join);
+            Verificacao.verificarIgual(4, escritas.get(), "JOIN retransmitido após o LEAVE não altera o índice");
+            Verificacao.verificarIgual(Collections.singleton("peer2"), servidor.getIndicePeersArquivos().getPeers(), "peers no índice");
+
+            JanelaDeduplicacao janela = servidor.getJanelaDeduplicacao();
+            Verificacao.verificarIgual(4L, janela.getNovas(), "requisições novas na janela");
+            Verificacao.verificarIgual(4L * (REPETICOES - 1) + REPETICOES, janela.getDuplicadas(), "duplicatas respondidas pela janela");
+        } finally {
+            servidor.close();
+        }
+    }
+
+    /**
+     * Entradas em andamento recebem uma resposta vazia, entradas concluídas as respostas gravadas, e entradas vencidas são esquecidas.
+     */
+    private static void verificarValidade() {
+        RelogioManual relogio = new RelogioManual();
+        JanelaDeduplicacao janela = new JanelaDeduplicacao(relogio, 1024, TimeUnit.SECONDS.toNanos(60));
+        SocketAddress origem = new InetSocketAddress("127.0.0.1", 5000);
+        List<byte[]> respostas = Collections.singletonList(new byte[] { 1, 2, 3 });
+
+        Verificacao.verificar(janela.verificar(origem, 7) == null, "primeira recepção é nova");
+        Verificacao.verificar(janela.verificar(origem, 7).isEmpty(), "duplicata em andamento não tem resposta");
+        janela.concluir(origem, 7, respostas);
+
+        relogio.avancar(TimeUnit.SECONDS.toNanos(59));
+        Verificacao.verificarIgual(respostas, janela.verificar(origem, 7), "duplicata dentro da validade recebe a resposta original");
+
+        relogio.avancar(TimeUnit.SECONDS.toNanos(2));
+        Verificacao.verificar(janela.verificar(origem, 7) == null, "requisição vencida é tratada como nova");
+    }
+
+    /**
+     * Executa a mesma requisição REPETICOES vezes, como se cada retransmissão tivesse chegado ao canal do servidor.
+     *
+     * @return respostas recebidas pelo cliente.
+     */
+    private static List<byte[]> repetir(Servidor servidor, DatagramChannel canalServidor, DatagramChannel cliente, Mensagem requisicao)
+        throws Exception {
+        byte[] bytes = Mensagem.serializar(requisicao, Mensagem.Formato.BINARIO);
+        SocketAddress origem = cliente.getLocalAddress();
+
+        for (int i = 0; i < REPETICOES; i++) {
+            servidor.new RequisicaoCliente(canalServidor, origem, Arrays.copyOf(bytes, bytes.length), bytes.length).run();
+        }
+        return receberTodas(cliente);
+    }
+
+    private static List<byte[]> receberTodas(DatagramChannel cliente) throws Exception {
+        List<byte[]> respostas = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+        while (respostas.size() < REPETICOES && System.nanoTime() < limite) {
+            buffer.clear();
+            if (cliente.receive(buffer) == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            buffer.flip();
+            byte[] resposta = new byte[buffer.remaining()];
+            buffer.get(resposta);
+            respostas.add(resposta);
+        }
+        return respostas;
+    }
+
+    private static void verificarRespostasIguais(List<byte[]> respostas, String titulo) throws Exception {
+        Verificacao.verificarIgual(REPETICOES, respostas.size(), "respostas recebidas");
+        Mensagem original = Mensagem.desserializar(respostas.get(0), 0, respostas.get(0).length);
+        Verificacao.verificarIgual(titulo, original.getTitulo(), "título da resposta");
+        for (byte[] resposta : respostas) {
+            Verificacao.verificar(Arrays.equals(respostas.get(0), resposta), "repetição recebe a resposta original");
+        }
+    }
+
+    private static DatagramChannel abrirCanal() throws Exception {
+        DatagramChannel canal = DatagramChannel.open();
+        canal.bind(new InetSocketAddress("127.0.0.1", 0));
+        canal.configureBlocking(false);
+        return canal;
+    }
+
+    /**
+     * Conta as escritas no índice, isto é, as alterações recebidas pelo registro de mutações.
+     */
+    private static class ContadorEscritas implements PeerFileIndex.RegistroMutacoes {
+        private final AtomicInteger escritas = new AtomicInteger();
+
+        int get() {
+            return escritas.get();
+        }
+
+        @Override
+        public void arquivosDefinidos(String peer, Collection<String> arquivos) {
+            escritas.incrementAndGet();
+        }
+
+        @Override
+        public void arquivoAdicionado(String peer, String arquivo) {
+            escritas.incrementAndGet();
+        }
+
+        @Override
+        public void arquivoRemovido(String peer, String arquivo) {
+            escritas.incrementAndGet();
+        }
+
+        @Override
+        public void peerRemovido(String peer) {
+            escritas.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Teste determinístico do BaldeTokens e do LimitadorBanda com um RelogioManual: as esperas informadas pelos baldes são conferidas
+ * com os valores exatos esperados para cada taxa, e as transferências simuladas devem levar o tempo correspondente à taxa limite.
+ *
+ * @author Maik Henrique
+ */
+public class TesteLimitadorBanda {
+
+    private static final long UM_SEGUNDO = TimeUnit.SECONDS.toNanos(1);
+    private static final long UM_MILISSEGUNDO = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static void main(String[] args) throws Exception {
+        verificarBalde();
+        verificarLimitesCombinados();
+        verificarTransferenciaSimulada();
+        verificarAlteracaoDeTaxa();
+        System.out.println("TesteLimitadorBanda concluído");
+    }
+
+    /**
+     * A 1000 bytes/s o balde acumula no máximo 100 bytes de rajada, e cada byte além do saldo custa 1 ms de espera.
+     */
+    private static void verificarBalde() {
+        RelogioManual relogio = new RelogioManual();
+        BaldeTokens balde = new BaldeTokens(relogio, 1000);
+
+        Verificacao.verificarIgual(0L, balde.registrar(100), "rajada inicial dentro da capacidade");
+        Verificacao.verificarIgual(50 * UM_MILISSEGUNDO, balde.registrar(50), "espera pelos bytes além do saldo");
+
+        relogio.avancar(50 * UM_MILISSEGUNDO);
+        Verificacao.verificarIgual(0L, balde.registrar(0), "saldo reposto após a espera");
+
+        relogio.avancar(10 * UM_SEGUNDO);
+        Verificacao.verificarIgual(50 * UM_MILISSEGUNDO, balde.registrar(150), "saldo ocioso limitado à capacidade de rajada");
+
+        Verificacao.verificarIgual(0L, new BaldeTokens(relogio, 0).registrar(Long.MAX_VALUE / 2), "taxa zero não limita");
+    }
+
+    /**
+     * Duas transferências com o mesmo Peer: cada uma cabe no seu balde de 1000 bytes/s, mas juntas esgotam o balde de 1500 bytes/s
+     * do Peer, e a espera passa a ser a do balde mais restritivo.
+     */
+    private static void verificarLimitesCombinados() {
+        RelogioManual relogio = new RelogioManual();
+        LimitadorBanda limitador = new LimitadorBanda(relogio, 0, 1500, 1000);
+        LimitadorBanda.Limite primeira = limitador.iniciarTransferencia("peer");
+        LimitadorBanda.Limite segunda = limitador.iniciarTransferencia("peer");
+
+        Verificacao.verificar(primeira.isLimitado(), "transferência limitada");
+        Verificacao.verificarIgual(1024L, primeira.fatia(1_000_000), "fatia mínima para taxas baixas");
+        Verificacao.verificarIgual(10L, primeira.fatia(10), "fatia limitada ao restante");
+
+        Verificacao.verificarIgual(0L, primeira.registrar(100), "primeira transferência dentro dos saldos");
+        Verificacao.verificarIgual((long) Math.ceil(50.0 * UM_SEGUNDO / 1500), segunda.registrar(100), "espera pelo balde do Peer");
+
+        relogio.avancar(UM_SEGUNDO);
+        Verificacao.verificarIgual(100 * UM_MILISSEGUNDO, primeira.registrar(200), "espera pelo balde da transferência");
+
+        LimitadorBanda.Limite outroPeer = limitador.iniciarTransferencia("outro");
+        Verificacao.verificarIgual(0L, outroPeer.registrar(100), "outro Peer tem o seu próprio balde");
+
+        primeira.encerrar();
+        segunda.encerrar();
+        outroPeer.encerrar();
+    }
+
+    /**
+     * Transferência de 30000 bytes a 1000 bytes/s em fatias, esperando pelo relógio a cada fatia: o tempo total é o dos bytes
+     * além da rajada inicial de 100 bytes, a menos do arredondamento das esperas.
+     */
+    private static void verificarTransferenciaSimulada() throws InterruptedException {
+        RelogioManual relogio = new RelogioManual();
+        LimitadorBanda limitador = new LimitadorBanda(relogio, 1000, 0, 0);
+        LimitadorBanda.Limite limite = limitador.iniciarTransferencia(null);
+
+        long restante = 30_000;
+        while (restante > 0) {
+            long fatia = limite.fatia(restante);
+            limite.aguardar(fatia);
+            restante -= fatia;
+        }
+        limite.encerrar();
+
+        long esperado = TimeUnit.MILLISECONDS.toNanos(29_900);
+        long decorrido = relogio.nanoTime();
+        Verificacao.verificar(decorrido >= esperado && decorrido - esperado < UM_MILISSEGUNDO,
+            String.format("30000 bytes a 1000 bytes/s levaram %d ns, esperava %d ns", decorrido, esperado));
+    }
+
+    /**
+     * Alterações de taxa valem para as transferências em andamento, e o saldo acumulado não ultrapassa a nova capacidade.
+     */
+    private static void verificarAlteracaoDeTaxa() {
+        RelogioManual relogio = new RelogioManual();
+        LimitadorBanda limitador = new LimitadorBanda(relogio, 0, 0, 10_000);
+        LimitadorBanda.Limite limite = limitador.iniciarTransferencia("peer");
+
+        limitador.setBytesPorSegundoPorTransferencia(1000);
+        Verificacao.verificarIgual(1000L, limitador.getBytesPorSegundoPorTransferencia(), "nova taxa por transferência");
+        Verificacao.verificarIgual(100 * UM_MILISSEGUNDO, limite.registrar(200), "saldo reduzido à nova capacidade");
+
+        limitador.setBytesPorSegundoPorTransferencia(0);
+        Verificacao.verificar(!limite.isLimitado(), "taxa zero remove o limite");
+        Verificacao.verificarIgual(0L, limite.registrar(1_000_000), "sem espera após remover o limite");
+        limite.encerrar();
+    }
+}
@@ -0,0 +1,289 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Teste da divisão de mensagens em partes que cabem em um único datagrama: Mensagem.dividirEmPartes numera as partes de 1 a
+ * total_partes, cada uma com no máximo Mensagem.TAMANHO_MAXIMO_PARTE bytes nos dois formatos, cobrindo todos os itens na
+ * ordem original. Em seguida, um UPDATE_LOTE e um SEARCH_LOTE com centenas de arquivos são enviados ao Servidor divididos como no
+ * Peer, e as respostas UPDATE_LOTE_OK e SEARCH_LOTE_OK também devem chegar em partes numeradas que juntas cobrem todos os
+ * arquivos. Por fim, o SEARCH_OK de um arquivo com muitos peers chega em partes com os peers ordenados das menores para as
+ * maiores faixas de carga, inclusive depois que um peer muda de faixa e a resposta guardada no cache é invalidada.
+ *
+ * As requisições são executadas diretamente através do Servidor.RequisicaoCliente, sem id_requisicao para que não passem pela
+ * deduplicação.
+ *
+ * @author Maik Henrique
+ */
+public class TestePartesMensagem {
+
+    private static final String PEER = "10.0.0.1:5000";
+    private static final int ARQUIVOS = 300;
+    private static final int PEERS_ARQUIVO_POPULAR = 160;
+    /**
+     *  Mesmo tamanho de faixa de carga usado pelo Servidor para ordenar os peers.
+     */
+    private static final int TAMANHO_FAIXA_CARGA = 25;
+
+    public static void main(String[] args) throws Exception {
+        verificarDivisao();
+
+        System.setProperty("p2p.servidor.diario.pasta", "");
+        Servidor servidor = new Servidor("127.0.0.1", 0, 1, DespachanteRequisicoes.criarPorPropriedades());
+
+        try (DatagramChannel canalServidor = abrirCanal();
+            DatagramChannel cliente = abrirCanal()) {
+            Requisitante requisitante = new Requisitante(servidor, canalServidor, cliente);
+            List<String> arquivos = nomesArquivos(ARQUIVOS);
+
+            verificarUpdateLote(requisitante, servidor.getIndicePeersArquivos(), arquivos);
+            verificarSearchLote(requisitante, arquivos);
+            verificarSearchOrdenadoPorCarga(requisitante);
+        } finally {
+            servidor.close();
+        }
+        System.out.println("TestePartesMensagem concluído");
+    }
+
+    private static void verificarDivisao() throws Exception {
+        List<String> arquivos = nomesArquivos(ARQUIVOS);
+
+        for (Mensagem.Formato formato : Mensagem.Formato.values()) {
+            List<Mensagem> partes = dividir(arquivos, formato);
+            Verificacao.verificar(partes.size() > 1, formato + ": lista grande dividida em mais de uma parte");
+
+            List<String> juntados = new ArrayList<>();
+            for (int i = 0; i < partes.size(); i++) {
+                Mensagem parte = partes.get(i);
+                int tamanho = Mensagem.serializar(parte, formato).length;
+                Verificacao.verificar(tamanho <= Mensagem.TAMANHO_MAXIMO_PARTE,
+                    formato + ": parte " + (i + 1) + " com " + tamanho + " bytes");
+                Verificacao.verificarIgual(i + 1, parte.getMensagens().get("parte"), formato + ": número da parte");
+                Verificacao.verificarIgual(partes.size(), parte.getMensagens().get("total_partes"), formato + ": total_partes");
+                juntados.addAll(getArquivos(parte, "arquivos"));
+            }
+            Verificacao.verificarIgual(arquivos, juntados, formato + ": itens das partes juntadas");
+        }
+
+        List<Mensagem> vazia = dividir(Collections.emptyList(), Mensagem.FORMATO_PADRAO);
+        Verificacao.verificarIgual(1, vazia.size(), "partes de uma lista vazia");
+        Verificacao.verificarIgual(1, vazia.get(0).getMensagens().get("total_partes"), "total_partes de uma lista vazia");
+
+        String nomeGrande = String.join("", Collections.nCopies(Mensagem.TAMANHO_MAXIMO_PARTE, "x")) + ".mp4";
+        List<String> comItemGrande = new ArrayList<>(nomesArquivos(3));
+        comItemGrande.add(1, nomeGrande);
+        boolean isItemGrandeSozinho = dividir(comItemGrande, Mensagem.FORMATO_PADRAO).stream()
+            .anyMatch(parte -> getArquivos(parte, "arquivos").equals(Collections.singletonList(nomeGrande)));
+        Verificacao.verificar(isItemGrandeSozinho, "item maior que o limite forma uma parte própria");
+    }
+
+    /**
+     * O UPDATE_LOTE é enviado em partes como no Peer, e cada parte é confirmada por UPDATE_LOTE_OK em uma ou mais partes.
+     */
+    private static void verificarUpdateLote(Requisitante requisitante, PeerFileIndex indice, List<String> arquivos)
+        throws Exception {
+        List<Mensagem> requisicoes = Mensagem.dividirEmPartes(arquivos, arquivosParte -> {
+            Mensagem updateLote = mensagemArquivos("UPDATE_LOTE", arquivosParte);
+            updateLote.adicionarMensagem("endereco", PEER);
+            return updateLote;
+        }, Mensagem.FORMATO_PADRAO, Mensagem.TAMANHO_MAXIMO_PARTE);
+        Verificacao.verificar(requisicoes.size() > 1, "UPDATE_LOTE dividido em partes");
+
+        List<String> confirmados = new ArrayList<>();
+        for (Mensagem requisicao : requisicoes) {
+            for (Mensagem resposta : requisitante.executar(requisicao)) {
+                Verificacao.verificarIgual("UPDATE_LOTE_OK", resposta.getTitulo(), "resposta do UPDATE_LOTE");
+                confirmados.addAll(getArquivos(resposta, "arquivos"));
+            }
+        }
+        Verificacao.verificarIgual(arquivos, confirmados, "arquivos confirmados pelo UPDATE_LOTE_OK");
+        Verificacao.verificarIgual(new HashSet<>(arquivos), indice.getArquivosDoPeer(PEER), "arquivos do peer no índice");
+    }
+
+    /**
+     * Um único SEARCH_LOTE com todos os arquivos, além de um inexistente, é respondido com várias partes SEARCH_LOTE_OK.
+     */
+    private static void verificarSearchLote(Requisitante requisitante, List<String> arquivos) throws Exception {
+        List<String> pesquisados = new ArrayList<>(arquivos);
+        pesquisados.add("inexistente.mp4");
+        Mensagem searchLote = mensagemArquivos("SEARCH_LOTE", pesquisados);
+        searchLote.adicionarMensagem("endereco", "10.0.0.2:5000");
+
+        List<Mensagem> respostas = requisitante.executar(searchLote);
+        Verificacao.verificar(respostas.size() > 1, "SEARCH_LOTE_OK dividido em partes");
+
+        Map<String, Object> resultados = new LinkedHashMap<>();
+        for (Mensagem resposta : respostas) {
+            Verificacao.verificarIgual("SEARCH_LOTE_OK", resposta.getTitulo(), "resposta do SEARCH_LOTE");
+            resultados.putAll(getResultados(resposta));
+        }
+        Verificacao.verificarIgual(pesquisados, new ArrayList<>(resultados.keySet()), "arquivos respondidos pelo SEARCH_LOTE_OK");
+        for (String arquivo : arquivos) {
+            Verificacao.verificarIgual(Collections.singleton(PEER), resultados.get(arquivo), "peers de " + arquivo);
+        }
+        Verificacao.verificarIgual(Collections.emptySet(), resultados.get("inexistente.mp4"), "peers de um arquivo inexistente");
+    }
+
+    private static List<Mensagem> dividir(List<String> arquivos, Mensagem.Formato formato) throws Exception {
+        return Mensagem.dividirEmPartes(arquivos, arquivosParte -> mensagemArquivos("ARQUIVOS", arquivosParte), formato,
+            Mensagem.TAMANHO_MAXIMO_PARTE);
+    }
+
+    /**
+     * Os peers do arquivo popular informam cargas em todas as faixas. O SEARCH_OK, dividido em partes, deve listar todos eles
+     * em ordem crescente de faixa, e um peer que passa da maior faixa para a menor deve ir para a primeira parte.
+     */
+    private static void verificarSearchOrdenadoPorCarga(Requisitante requisitante) throws Exception {
+        Map<String, Integer> cargas = new LinkedHashMap<>();
+        for (int i = 0; i < PEERS_ARQUIVO_POPULAR; i++) {
+            String peer = "10.1." + (i / 100) + "." + (i % 100) + ":5000";
+            cargas.put(peer, (PEERS_ARQUIVO_POPULAR - i) % 100);
+            requisitante.executar(update(peer, cargas.get(peer)));
+        }
+
+        List<Mensagem> respostas = requisitante.executar(search("popular.mp4"));
+        Verificacao.verificar(respostas.size() > 1, "SEARCH_OK dividido em partes");
+        verificarOrdenados(respostas, cargas);
+
+        String peerMaisCarregado = null;
+        for (Map.Entry<String, Integer> carga : cargas.entrySet()) {
+            if (carga.getValue() / TAMANHO_FAIXA_CARGA == 3) {
+                peerMaisCarregado = carga.getKey();
+            }
+        }
+        Verificacao.verificar(!getPeers(respostas.get(0)).contains(peerMaisCarregado),
+            "peer mais carregado fora da primeira parte");
+
+        cargas.put(peerMaisCarregado, 0);
+        requisitante.executar(update(peerMaisCarregado, 0));
+        respostas = requisitante.executar(search("popular.mp4"));
+        verificarOrdenados(respostas, cargas);
+        Verificacao.verificar(getPeers(respostas.get(0)).contains(peerMaisCarregado), "peer que ficou ocioso na primeira parte");
+    }
+
+    private static void verificarOrdenados(List<Mensagem> respostas, Map<String, Integer> cargas) {
+        List<String> peers = new ArrayList<>();
+        for (Mensagem resposta : respostas) {
+            Verificacao.verificarIgual("SEARCH_OK", resposta.getTitulo(), "resposta do SEARCH");
+            peers.addAll(getPeers(resposta));
+        }
+        Verificacao.verificarIgual(cargas.keySet(), new HashSet<>(peers), "peers do SEARCH_OK");
+        Verificacao.verificarIgual(cargas.size(), peers.size(), "quantidade de peers do SEARCH_OK");
+
+        for (int i = 1; i < peers.size(); i++) {
+            int faixaAnterior = cargas.get(peers.get(i - 1)) / TAMANHO_FAIXA_CARGA;
+            int faixa = cargas.get(peers.get(i)) / TAMANHO_FAIXA_CARGA;
+            Verificacao.verificar(faixaAnterior <= faixa,
+                "peer " + peers.get(i) + " da faixa " + faixa + " após um da faixa " + faixaAnterior);
+        }
+    }
+
+    private static Mensagem update(String peer, int carga) {
+        Mensagem update = new Mensagem("UPDATE");
+        update.adicionarMensagem("arquivo", "popular.mp4");
+        update.adicionarMensagem("endereco", peer);
+        update.adicionarMensagem("carga", carga);
+        return update;
+    }
+
+    private static Mensagem search(String arquivo) {
+        Mensagem search = new Mensagem("SEARCH");
+        search.adicionarMensagem("arquivo_requistado", arquivo);
+        search.adicionarMensagem("endereco", "10.0.0.2:5000");
+        return search;
+    }
+
+    private static Mensagem mensagemArquivos(String titulo, List<String> arquivos) {
+        Mensagem mensagem = new Mensagem(titulo);
+        mensagem.adicionarMensagem("arquivos", new ArrayList<>(arquivos));
+        return mensagem;
+    }
+
+    private static List<String> nomesArquivos(int quantidade) {
+        List<String> arquivos = new ArrayList<>();
+        for (int i = 0; i < quantidade; i++) {
+            arquivos.add("video-" + i + ".mp4");
+        }
+        return arquivos;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> getArquivos(Mensagem mensagem, String chave) {
+        return (List<String>) mensagem.getMensagens().get(chave);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<String> getPeers(Mensagem mensagem) {
+        return (Collection<String>) mensagem.getMensagens().get("lista_peers");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getResultados(Mensagem mensagem) {
+        return (Map<String, Object>) mensagem.getMensagens().get("resultados");
+    }
+
+    private static DatagramChannel abrirCanal() throws Exception {
+        DatagramChannel canal = DatagramChannel.open();
+        canal.bind(new InetSocketAddress("127.0.0.1", 0));
+        canal.configureBlocking(false);
+        return canal;
+    }
+
+    /**
+     * Executa requisições de um único cliente e lê todas as partes da resposta de cada uma, conferindo o tamanho de cada
+     * datagrama.
+     */
+    private static class Requisitante {
+        private final Servidor servidor;
+        private final DatagramChannel canalServidor;
+        private final DatagramChannel cliente;
+
+        Requisitante(Servidor servidor, DatagramChannel canalServidor, DatagramChannel cliente) {
+            this.servidor = servidor;
+            this.canalServidor = canalServidor;
+            this.cliente = cliente;
+        }
+
+        List<Mensagem> executar(Mensagem requisicao) throws Exception {
+            byte[] bytes = Mensagem.serializar(requisicao, Mensagem.FORMATO_PADRAO);
+            servidor.new RequisicaoCliente(canalServidor, cliente.getLocalAddress(), bytes, bytes.length).run();
+
+            List<Mensagem> partes = new ArrayList<>();
+            int totalPartes = 1;
+            do {
+                Mensagem parte = receber();
+                // respostas de uma única mensagem, como UPDATE_OK, não são numeradas
+                if (parte.getMensagens().containsKey("total_partes")) {
+                    Verificacao.verificarIgual(partes.size() + 1, parte.getMensagens().get("parte"), "partes recebidas em ordem");
+                    totalPartes = (Integer) parte.getMensagens().get("total_partes");
+                }
+                partes.add(parte);
+            } while (partes.size() < totalPartes);
+            return partes;
+        }
+
+        private Mensagem receber() throws Exception {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+            while (cliente.receive(buffer) == null) {
+                if (System.nanoTime() > limite) {
+                    throw new AssertionError("sem resposta do servidor");
+                }
+                Thread.sleep(1);
+            }
+            buffer.flip();
+            Verificacao.verificar(buffer.limit() <= Mensagem.TAMANHO_MAXIMO_PARTE,
+                "datagrama de resposta com " + buffer.limit() + " bytes");
+            return Mensagem.desserializar(buffer.array(), 0, buffer.limit());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Teste de estresse do PeerFileIndex: várias threads aplicam JOIN (definirArquivosPeer), UPDATE, remoção de arquivos e LEAVE sobre
+ * peers próprios, com arquivos compartilhados entre todas, enquanto outras threads leem o índice. Ao final, os dois sentidos do
+ * índice devem coincidir entre si e com o modelo mantido por cada thread escritora.
+ *
+ * @author Maik Henrique
+ */
+public class TestePeerFileIndex {
+
+    private static final int ESCRITORAS = 8;
+    private static final int LEITORAS = 4;
+    private static final int PEERS_POR_ESCRITORA = 50;
+    private static final int ARQUIVOS = 2_000;
+    private static final int OPERACOES_POR_ESCRITORA = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        PeerFileIndex indice = new PeerFileIndex();
+        List<Map<String, Set<String>>> modelos = new ArrayList<>();
+        AtomicReference<Throwable> falha = new AtomicReference<>();
+        AtomicBoolean isEscrevendo = new AtomicBoolean(true);
+        CountDownLatch inicio = new CountDownLatch(1);
+        List<Thread> escritoras = new ArrayList<>();
+        List<Thread> leitoras = new ArrayList<>();
+
+        for (int i = 0; i < ESCRITORAS; i++) {
+            int escritora = i;
+            Map<String, Set<String>> modelo = new HashMap<>();
+            modelos.add(modelo);
+            escritoras.add(iniciar(() -> escrever(indice, modelo, escritora, inicio), falha));
+        }
+        for (int i = 0; i < LEITORAS; i++) {
+            leitoras.add(iniciar(() -> ler(indice, isEscrevendo, inicio), falha));
+        }
+
+        long inicioNanos = System.nanoTime();
+        inicio.countDown();
+        for (Thread escritora : escritoras) {
+            escritora.join();
+        }
+        isEscrevendo.set(false);
+        for (Thread leitora : leitoras) {
+            leitora.join();
+        }
+        long duracaoMs = (System.nanoTime() - inicioNanos) / 1_000_000;
+
+        if (falha.get() != null) {
+            throw new AssertionError("Falha durante as operações concorrentes", falha.get());
+        }
+
+        Map<String, Set<String>> esperadoPorPeer = new HashMap<>();
+        modelos.forEach(esperadoPorPeer::putAll);
+        Map<String, Set<String>> esperadoPorArquivo = new HashMap<>();
+        esperadoPorPeer.forEach((peer, arquivos) -> arquivos.forEach(
+            arquivo -> esperadoPorArquivo.computeIfAbsent(arquivo, chave -> new HashSet<>()).add(peer)));
+
+        for (Map.Entry<String, Set<String>> peer : esperadoPorPeer.entrySet()) {
+            Verificacao.verificarIgual(peer.getValue(), indice.getArquivosDoPeer(peer.getKey()), "arquivos do peer " + peer.getKey());
+        }
+        for (int i = 0; i < ARQUIVOS; i++) {
+            String arquivo = nomeArquivo(i);
+            Verificacao.verificarIgual(esperadoPorArquivo.getOrDefault(arquivo, Collections.emptySet()),
+                indice.getPeersComArquivo(arquivo), "peers do arquivo " + arquivo);
+        }
+        Verificacao.verificarIgual(esperadoPorPeer.keySet(), indice.getPeers(), "peers do índice");
+
+        System.out.println(String.format("TestePeerFileIndex ok: %d operações em %d ms, %d peers e %d vínculos ao final",
+            ESCRITORAS * OPERACOES_POR_ESCRITORA, duracaoMs, esperadoPorPeer.size(),
+            esperadoPorPeer.values().stream().mapToInt(Set::size).sum()));
+    }
+
+    private static void escrever(PeerFileIndex indice, Map<String, Set<String>> modelo, int escritora, CountDownLatch inicio) {
+        Random aleatorio = new Random(escritora);
+        aguardar(inicio);
+
+        for (int operacao = 0; operacao < OPERACOES_POR_ESCRITORA; operacao++) {
+            String peer = "10.0." + escritora + "." + aleatorio.nextInt(PEERS_POR_ESCRITORA) + ":9000";
+            String arquivo = nomeArquivo(aleatorio.nextInt(ARQUIVOS));
+            int sorteio = aleatorio.nextInt(100);
+
+            if (sorteio < 5) {
+                Set<String> arquivos = new HashSet<>();
+                int quantidade = aleatorio.nextInt(40);
+                for (int i = 0; i < quantidade; i++) {
+                    arquivos.add(nomeArquivo(aleatorio.nextInt(ARQUIVOS)));
+                }
+                indice.definirArquivosPeer(peer, arquivos);
+                modelo.put(peer, arquivos);
+            } else if (sorteio < 7) {
+                indice.removerPeer(peer);
+                modelo.remove(peer);
+            } else if (sorteio < 60) {
+                boolean isAdicionado = indice.adicionarArquivo(peer, arquivo);
+                Verificacao.verificarIgual(modelo.computeIfAbsent(peer, chave -> new HashSet<>()).add(arquivo), isAdicionado,
+                    "adicionarArquivo de " + arquivo);
+            } else {
+                boolean isRemovido = indice.removerArquivo(peer, arquivo);
+                Set<String> arquivos = modelo.get(peer);
+                Verificacao.verificarIgual(arquivos != null && arquivos.remove(arquivo), isRemovido, "removerArquivo de " + arquivo);
+            }
+        }
+    }
+
+    private static void ler(PeerFileIndex indice, AtomicBoolean isEscrevendo, CountDownLatch inicio) {
+        Random aleatorio = new Random();
+        aguardar(inicio);
+
+        while (isEscrevendo.get()) {
+            for (String peer : indice.getPeersComArquivo(nomeArquivo(aleatorio.nextInt(ARQUIVOS)))) {
+                Verificacao.verificar(peer.endsWith(":9000"), "peer inválido " + peer);
+            }
+            indice.getArquivosDoPeer("10.0.0." + aleatorio.nextInt(PEERS_POR_ESCRITORA) + ":9000");
+            if (aleatorio.nextInt(1000) == 0) {
+                indice.paraCadaPeer((peer, arquivos) -> Verificacao.verificar(arquivos.size() == new HashSet<>(arquivos).size(),
+                    "arquivos repetidos no peer " + peer));
+            }
+        }
+    }
+
+    private static String nomeArquivo(int i) {
+        return "video-" + i + ".mp4";
+    }
+
+    private static Thread iniciar(Runnable tarefa, AtomicReference<Throwable> falha) {
+        Thread thread = new Thread(() -> {
+            try {
+                tarefa.run();
+            } catch (Throwable e) {
+                falha.compareAndSet(null, e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void aguardar(CountDownLatch inicio) {
+        try {
+            inicio.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
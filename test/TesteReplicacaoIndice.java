@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Teste de failover da ReplicacaoIndice com dois membros em portas de localhost: o primeiro membro é promovido a primário e o
+ * segundo passa a segui-lo, recebendo as alterações do índice do primário. Com a réplica travada ao aplicar uma alteração, o
+ * primário deve medir o atraso da replicação, que volta a zero quando a réplica alcança o primário. Ao fechar o primário, a réplica
+ * deve ser promovida dentro do prazo de promoção, mantendo o mesmo índice, e passar a registrar as novas alterações.
+ *
+ * Em seguida, dois Servidor formam um único shard replicado, acessado por um RoteadorRastreadores como o do Peer: uma escrita enviada
+ * primeiro à réplica, que responde NAO_PRIMARIO, deve ser repetida no primário; com o primário fechado as buscas devem continuar
+ * sendo atendidas pela réplica, e após a sua promoção as escritas devem passar a ela quando o antigo primário não responde.
+ *
+ * @author Maik Henrique
+ */
+public class TesteReplicacaoIndice {
+
+    private static final long TEMPO_PROMOCAO_MILISSEGUNDOS = 1000;
+    private static final long TEMPO_LIMITE_NANOS = TimeUnit.SECONDS.toNanos(15);
+    private static final long TRAVA_REPLICA_MILISSEGUNDOS = 300;
+    private static final int PEERS = 2_000;
+
+    public static void main(String[] args) throws Exception {
+        List<String> membros = Arrays.asList("localhost:" + portaLivre(), "localhost:" + portaLivre());
+        PeerFileIndex indicePrimario = new PeerFileIndex();
+        PeerFileIndex indiceReplica = new PeerFileIndex();
+        AtomicInteger promocoesPrimario = new AtomicInteger();
+        AtomicInteger promocoesReplica = new AtomicInteger();
+
+        ReplicacaoIndice primario = new ReplicacaoIndice(indicePrimario, membros, membros.get(0), TEMPO_PROMOCAO_MILISSEGUNDOS, 1 << 16,
+            promocoesPrimario::incrementAndGet);
+        ReplicacaoIndice replica = new ReplicacaoIndice(indiceReplica, membros, membros.get(1), TEMPO_PROMOCAO_MILISSEGUNDOS, 1 << 16,
+            promocoesReplica::incrementAndGet);
+
+        try {
+            // isPrimario passa a valer antes do aoPromover, por isso a espera também inclui a contagem de promoções
+            aguardar(() -> promocoesPrimario.get() == 1 && membros.get(0).equals(replica.getPrimarioSeguido())
+                && primario.getReplicasConectadas() == 1, "réplica seguindo o primeiro membro");
+            Verificacao.verificarIgual(1, promocoesPrimario.get(), "promoções do primeiro membro");
+            Verificacao.verificar(!replica.isPrimario(), "segundo membro é réplica");
+
+            alterar(indicePrimario, new Random(23));
+            aguardar(() -> primario.getRegistrosPendentes() == 0, "réplica em dia");
+            Verificacao.verificarIgual(copiar(indicePrimario), copiar(indiceReplica), "índice da réplica");
+
+            verificarAtraso(primario, indicePrimario, indiceReplica);
+
+            Map<String, Set<String>> indiceAntesDaFalha = copiar(indicePrimario);
+            long instanteFalha = System.nanoTime();
+            primario.close();
+            aguardar(() -> replica.isPrimario() && promocoesReplica.get() > 0, "promoção da réplica");
+            long tempoPromocao = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - instanteFalha);
+
+            Verificacao.verificarIgual(1, promocoesReplica.get(), "promoções da réplica");
+            Verificacao.verificar(tempoPromocao >= TEMPO_PROMOCAO_MILISSEGUNDOS / 2 && tempoPromocao < 5 * TEMPO_PROMOCAO_MILISSEGUNDOS,
+                "réplica promovida após " + tempoPromocao + " ms");
+            Verificacao.verificarIgual(indiceAntesDaFalha, copiar(indiceReplica), "índice da réplica promovida");
+
+            long registros = replica.getRegistros();
+            indiceReplica.adicionarArquivo("10.9.9.9:5000", "apos-failover.mp4");
+            Verificacao.verificarIgual(registros + 1, replica.getRegistros(), "novo primário registra as alterações");
+            System.out.println(String.format("Réplica promovida após %d ms: %s", tempoPromocao, replica));
+        } finally {
+            primario.close();
+            replica.close();
+        }
+
+        verificarRoteamento();
+        System.out.println("TesteReplicacaoIndice concluído");
+    }
+
+    /**
+     * O shard lista a réplica antes do primário, de modo que a primeira escrita do roteador seja recusada com NAO_PRIMARIO.
+     */
+    private static void verificarRoteamento() throws Exception {
+        List<String> membrosShard = Arrays.asList("127.0.0.1:" + portaUdpLivre(), "127.0.0.1:" + portaUdpLivre());
+        List<String> membrosReplicacao = Arrays.asList("127.0.0.1:" + portaLivre(), "127.0.0.1:" + portaLivre());
+        String shard = membrosShard.get(1) + AnelShards.SEPARADOR_MEMBROS + membrosShard.get(0);
+        System.setProperty("p2p.servidor.shards", shard);
+        System.setProperty("p2p.servidor.replicacao.membros", String.join(",", membrosReplicacao));
+        System.setProperty("p2p.servidor.replicacao.promocao", String.valueOf(TEMPO_PROMOCAO_MILISSEGUNDOS));
+        System.setProperty("p2p.servidor.diario.pasta", "");
+
+        Servidor primario = ligar(membrosShard.get(0), membrosReplicacao.get(0));
+        Servidor replica = null;
+        boolean isPrimarioFechado = false;
+        RoteadorRastreadores roteador = new RoteadorRastreadores(membrosShard.get(1) + "," + membrosShard.get(0));
+
+        try {
+            aguardar(primario::isPrimario, "promoção do primeiro servidor");
+            replica = ligar(membrosShard.get(1), membrosReplicacao.get(1));
+            ReplicacaoIndice replicacao = replica.getReplicacaoIndice();
+            aguardar(() -> membrosReplicacao.get(0).equals(replicacao.getPrimarioSeguido()), "segundo servidor seguindo o primário");
+            Verificacao.verificarIgual(shard, roteador.getShard("roteado.mp4"), "shard obtido pelo roteador");
+
+            Mensagem resposta = roteador.enviar(shard, join("10.7.0.1:5000", "roteado.mp4")).get(TEMPO_LIMITE_NANOS, TimeUnit.NANOSECONDS);
+            Verificacao.verificarIgual("JOIN_OK", resposta.getTitulo(), "JOIN recusado pela réplica e repetido no primário");
+            Verificacao.verificarIgual(Collections.singleton("10.7.0.1:5000"),
+                primario.getIndicePeersArquivos().getPeersComArquivo("roteado.mp4"), "JOIN aplicado pelo primário");
+            PeerFileIndex indiceReplica = replica.getIndicePeersArquivos();
+            aguardar(() -> indiceReplica.getPeersComArquivo("roteado.mp4").contains("10.7.0.1:5000"), "JOIN replicado");
+
+            primario.close();
+            isPrimarioFechado = true;
+            for (int i = 0; i < membrosShard.size(); i++) {
+                Mensagem busca = new Mensagem("SEARCH");
+                busca.adicionarMensagem("arquivo_requistado", "roteado.mp4");
+                busca.adicionarMensagem("endereco", "10.7.0.9:5000");
+                resposta = roteador.enviar(shard, busca).get(TEMPO_LIMITE_NANOS, TimeUnit.NANOSECONDS);
+                Verificacao.verificarIgual("SEARCH_OK", resposta.getTitulo(), "busca " + (i + 1) + " com o primário fechado");
+                Verificacao.verificarIgual(Collections.singleton("10.7.0.1:5000"), resposta.getMensagens().get("lista_peers"),
+                    "peers da busca " + (i + 1) + " com o primário fechado");
+            }
+
+            aguardar(replica::isPrimario, "promoção do segundo servidor");
+            resposta = roteador.enviar(shard, join("10.7.0.2:5000", "apos-failover.mp4")).get(TEMPO_LIMITE_NANOS, TimeUnit.NANOSECONDS);
+            Verificacao.verificarIgual("JOIN_OK", resposta.getTitulo(), "JOIN repetido no novo primário após o tempo de espera");
+            Verificacao.verificarIgual(Collections.singleton("10.7.0.2:5000"), indiceReplica.getPeersComArquivo("apos-failover.mp4"),
+                "JOIN aplicado pelo novo primário");
+            System.out.println("Roteamento após o failover: " + roteador);
+        } finally {
+            roteador.close();
+            if (!isPrimarioFechado) {
+                primario.close();
+            }
+            if (replica != null) {
+                replica.close();
+            }
+        }
+    }
+
+    /**
+     * Cria o Servidor com o endereço de replicação informado e inicia os seus laços de eventos em uma thread própria.
+     */
+    private static Servidor ligar(String enderecoUdp, String enderecoReplicacao) throws Exception {
+        System.setProperty("p2p.servidor.replicacao.endereco", enderecoReplicacao);
+        int porta = Integer.parseInt(enderecoUdp.substring(enderecoUdp.lastIndexOf(':') + 1));
+        Servidor servidor = new Servidor("127.0.0.1", porta, 1, DespachanteRequisicoes.criarPorPropriedades());
+
+        Thread laco = new Thread(() -> {
+            try {
+                servidor.ligarServidor();
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Laço de eventos do servidor " + enderecoUdp + " encerrado: " + e);
+            }
+        }, "servidor-" + enderecoUdp);
+        laco.setDaemon(true);
+        laco.start();
+        return servidor;
+    }
+
+    private static Mensagem join(String peer, String arquivo) {
+        Mensagem join = new Mensagem("JOIN");
+        join.adicionarMensagem("endereco", peer);
+        join.adicionarMensagem("arquivos", new ArrayList<>(Collections.singletonList(arquivo)));
+        return join;
+    }
+
+    /**
+     * Trava a aplicação das alterações na réplica por TRAVA_REPLICA_MILISSEGUNDOS, com um registro de mutações do índice da réplica,
+     * que é chamado pela própria thread que segue o primário.
+     */
+    private static void verificarAtraso(ReplicacaoIndice primario, PeerFileIndex indicePrimario, PeerFileIndex indiceReplica) throws Exception {
+        CountDownLatch liberacao = new CountDownLatch(1);
+        CountDownLatch travada = new CountDownLatch(1);
+        PeerFileIndex.RegistroMutacoes trava = new RegistroQueTrava(travada, liberacao);
+        indiceReplica.adicionarRegistroMutacoes(trava);
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                indicePrimario.adicionarArquivo("10.8.0." + i + ":5000", "atraso-" + i + ".mp4");
+            }
+            Verificacao.verificar(travada.await(5, TimeUnit.SECONDS), "réplica travada ao aplicar as alterações");
+            Thread.sleep(TRAVA_REPLICA_MILISSEGUNDOS);
+
+            long pendentes = primario.getRegistrosPendentes();
+            long atraso = primario.getAtrasoMilissegundos();
+            Verificacao.verificar(pendentes > 0 && pendentes <= 100, "alterações pendentes com a réplica travada: " + pendentes);
+            Verificacao.verificar(atraso >= TRAVA_REPLICA_MILISSEGUNDOS, "atraso com a réplica travada: " + atraso + " ms");
+            System.out.println(String.format("Réplica travada: %d alterações pendentes, atraso de %d ms", pendentes, atraso));
+        } finally {
+            liberacao.countDown();
+            indiceReplica.removerRegistroMutacoes(trava);
+        }
+
+        aguardar(() -> primario.getRegistrosPendentes() == 0, "réplica em dia após a trava");
+        Verificacao.verificarIgual(0L, primario.getAtrasoMilissegundos(), "atraso com a réplica em dia");
+        Verificacao.verificarIgual(copiar(indicePrimario), copiar(indiceReplica), "índice da réplica após a trava");
+    }
+
+    private static void alterar(PeerFileIndex indice, Random aleatorio) {
+        for (int peer = 0; peer < PEERS; peer++) {
+            indice.definirArquivosPeer(nomePeer(peer), Arrays.asList("video-" + aleatorio.nextInt(500) + ".mp4", "video-" + peer + ".mp4"));
+        }
+        for (int i = 0; i < PEERS; i++) {
+            String peer = nomePeer(aleatorio.nextInt(PEERS));
+            switch (aleatorio.nextInt(4)) {
+                case 0:
+                    indice.removerPeer(peer);
+                    break;
+                case 1:
+                    indice.removerArquivo(peer, "video-" + aleatorio.nextInt(500) + ".mp4");
+                    break;
+                default:
+                    indice.adicionarArquivo(peer, "extra-" + i + ".mp4");
+            }
+        }
+    }
+
+    private static void aguardar(BooleanSupplier condicao, String descricao) throws InterruptedException {
+        long limite = System.nanoTime() + TEMPO_LIMITE_NANOS;
+        while (!condicao.getAsBoolean()) {
+            Verificacao.verificar(System.nanoTime() < limite, "tempo esgotado aguardando: " + descricao);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Map<String, Set<String>> copiar(PeerFileIndex indice) {
+        Map<String, Set<String>> copia = new HashMap<>();
+        indice.paraCadaPeer((peer, arquivos) -> copia.put(peer, new HashSet<>(arquivos)));
+        return copia;
+    }
+
+    private static String nomePeer(int peer) {
+        return "10.0." + (peer >> 8) + "." + (peer & 0xFF) + ":5000";
+    }
+
+    private static int portaLivre() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static int portaUdpLivre() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Bloqueia a primeira alteração aplicada até a liberação.
+     */
+    private static class RegistroQueTrava implements PeerFileIndex.RegistroMutacoes {
+        private final CountDownLatch travada;
+        private final CountDownLatch liberacao;
+
+        RegistroQueTrava(CountDownLatch travada, CountDownLatch liberacao) {
+            this.travada = travada;
+            this.liberacao = liberacao;
+        }
+
+        private void travar() {
+            travada.countDown();
+            try {
+                liberacao.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void arquivosDefinidos(String peer, Collection<String> arquivos) {
+            travar();
+        }
+
+        @Override
+        public void arquivoAdicionado(String peer, String arquivo) {
+            travar();
+        }
+
+        @Override
+        public void arquivoRemovido(String peer, String arquivo) {
+            travar();
+        }
+
+        @Override
+        public void peerRemovido(String peer) {
+            travar();
+        }
+    }
+}
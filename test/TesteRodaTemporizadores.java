@@ -0,0 +1,99 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Teste da RodaTemporizadores com um RelogioManual: chaves são agendadas, reagendadas e canceladas com prazos de até três voltas da
+ * roda enquanto o relógio avança em passos aleatórios. A cada avanço, as chaves expiradas devem ser exatamente as que têm o
+ * prazo em um tick já encerrado, nunca antes do prazo e nunca depois do primeiro avanço em que o tick do prazo terminou.
+ *
+ * @author Maik Henrique
+ */
+public class TesteRodaTemporizadores {
+
+    private static final long DURACAO_TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int SLOTS = 64;
+    private static final int CHAVES = 10_000;
+    private static final int AVANCOS = 2_000;
+    private static final long PRAZO_MAXIMO = 3 * SLOTS * DURACAO_TICK;
+
+    public static void main(String[] args) {
+        Random aleatorio = new Random(18);
+        RelogioManual relogio = new RelogioManual();
+        relogio.avancar(TimeUnit.SECONDS.toNanos(5));
+        RodaTemporizadores<Integer> roda = new RodaTemporizadores<>(relogio, DURACAO_TICK, SLOTS);
+        long origem = relogio.nanoTime();
+        Map<Integer, Long> prazos = new HashMap<>();
+
+        for (int chave = 0; chave < CHAVES; chave++) {
+            agendar(roda, relogio, prazos, chave, 1 + (long) (aleatorio.nextDouble() * PRAZO_MAXIMO));
+        }
+        Verificacao.verificarIgual(CHAVES, roda.getQuantidade(), "chaves agendadas");
+
+        for (int i = 0; i < AVANCOS; i++) {
+            relogio.avancar((long) (aleatorio.nextDouble() * 5 * DURACAO_TICK));
+
+            for (int j = 0; j < 20; j++) {
+                int chave = aleatorio.nextInt(CHAVES);
+                long atraso = 1 + (long) (aleatorio.nextDouble() * PRAZO_MAXIMO);
+                switch (aleatorio.nextInt(3)) {
+                    case 0:
+                        agendar(roda, relogio, prazos, chave, atraso);
+                        break;
+                    case 1:
+                        boolean isReagendada = roda.reagendar(chave, atraso);
+                        Verificacao.verificarIgual(prazos.containsKey(chave), isReagendada, "reagendar somente chaves agendadas");
+                        if (isReagendada) {
+                            prazos.put(chave, relogio.nanoTime() + atraso);
+                        }
+                        break;
+                    default:
+                        Verificacao.verificarIgual(prazos.remove(chave) != null, roda.cancelar(chave), "cancelar somente chaves agendadas");
+                }
+            }
+
+            verificarAvanco(roda, relogio, origem, prazos);
+        }
+
+        relogio.avancar(10 * SLOTS * DURACAO_TICK);
+        verificarAvanco(roda, relogio, origem, prazos);
+        Verificacao.verificar(prazos.isEmpty(), "todas as chaves expiram após um salto maior que a roda");
+        Verificacao.verificarIgual(0, roda.getQuantidade(), "roda vazia");
+        System.out.println("TesteRodaTemporizadores concluído");
+    }
+
+    private static void agendar(RodaTemporizadores<Integer> roda, RelogioManual relogio, Map<Integer, Long> prazos, int chave, long atraso) {
+        roda.agendar(chave, atraso);
+        prazos.put(chave, relogio.nanoTime() + atraso);
+    }
+
+    /**
+     * Uma chave expira no primeiro avanço em que o tick que contém o seu prazo já terminou.
+     */
+    private static void verificarAvanco(RodaTemporizadores<Integer> roda, RelogioManual relogio, long origem, Map<Integer, Long> prazos) {
+        long agora = relogio.nanoTime();
+        long tickAtual = (agora - origem) / DURACAO_TICK;
+        Set<Integer> esperadas = new HashSet<>();
+
+        for (Map.Entry<Integer, Long> prazo : prazos.entrySet()) {
+            long tickPrazo = (prazo.getValue() - origem + DURACAO_TICK - 1) / DURACAO_TICK;
+            if (tickPrazo <= tickAtual) {
+                esperadas.add(prazo.getKey());
+            }
+        }
+
+        Set<Integer> expiradas = new HashSet<>();
+        int quantidade = roda.avancar(chave -> {
+            Verificacao.verificar(expiradas.add(chave), "chave " + chave + " expirou duas vezes");
+            Verificacao.verificar(prazos.get(chave) <= agora, "chave " + chave + " expirou antes do prazo");
+        });
+
+        Verificacao.verificarIgual(esperadas, expiradas, "chaves expiradas em " + (agora - origem) + " ns");
+        Verificacao.verificarIgual(esperadas.size(), quantidade, "quantidade de chaves expiradas");
+        prazos.keySet().removeAll(expiradas);
+        Verificacao.verificarIgual(prazos.size(), roda.getQuantidade(), "chaves ainda agendadas");
+    }
+}
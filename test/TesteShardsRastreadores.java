@@ -0,0 +1,159 @@
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Teste de vários rastreadores em portas de localhost formando um anel de shards: o RoteadorRastreadores obtém o anel do primeiro
+ * rastreador, o JOIN é dividido entre os shards em paralelo como faz o Peer, e cada arquivo deve ser encontrado somente no shard
+ * responsável por ele, tanto pelo roteador quanto consultando cada rastreador diretamente. Também verifica a distribuição das chaves
+ * entre os shards e que incluir um shard no anel só move chaves para o novo shard.
+ *
+ * @author Maik Henrique
+ */
+public class TesteShardsRastreadores {
+
+    private static final int RASTREADORES = 3;
+    private static final int ARQUIVOS = 60;
+    private static final int CHAVES_DISTRIBUICAO = 300_000;
+    private static final String PEER = "127.0.0.1:9400";
+
+    public static void main(String[] args) throws Exception {
+        List<String> enderecos = new ArrayList<>();
+        for (int i = 0; i < RASTREADORES; i++) {
+            enderecos.add("localhost:" + portaLivre());
+        }
+        System.setProperty("p2p.servidor.shards", String.join(",", enderecos));
+        System.setProperty("p2p.servidor.diario.pasta", "");
+
+        List<Servidor> rastreadores = new ArrayList<>();
+        try {
+            for (String endereco : enderecos) {
+                rastreadores.add(iniciarRastreador(porta(endereco)));
+            }
+            verificarRoteamento(enderecos);
+        } finally {
+            for (Servidor rastreador : rastreadores) {
+                rastreador.close();
+            }
+        }
+
+        verificarDistribuicao(enderecos);
+        System.out.println("TesteShardsRastreadores concluído");
+    }
+
+    private static void verificarRoteamento(List<String> enderecos) throws Exception {
+        try (RoteadorRastreadores roteador = new RoteadorRastreadores(enderecos.get(0))) {
+            AnelShards anel = roteador.getAnel();
+            Verificacao.verificarIgual(enderecos, anel.getShards(), "anel obtido do primeiro rastreador");
+
+            List<String> arquivos = new ArrayList<>();
+            for (int i = 0; i < ARQUIVOS; i++) {
+                arquivos.add("video-" + i + ".mp4");
+            }
+            Map<String, List<String>> arquivosPorShard = anel.agruparPorShard(arquivos);
+            Verificacao.verificarIgual(RASTREADORES, arquivosPorShard.size(), "arquivos em todos os shards");
+
+            List<CompletableFuture<Mensagem>> joins = new ArrayList<>();
+            for (Map.Entry<String, List<String>> shard : arquivosPorShard.entrySet()) {
+                Mensagem join = new Mensagem("JOIN");
+                join.adicionarMensagem("arquivos", new ArrayList<>(shard.getValue()));
+                join.adicionarMensagem("endereco", PEER);
+                joins.add(roteador.enviar(shard.getKey(), join));
+            }
+            for (CompletableFuture<Mensagem> join : joins) {
+                Verificacao.verificarIgual("JOIN_OK", join.get(5, TimeUnit.SECONDS).getTitulo(), "resposta do JOIN de cada shard");
+            }
+
+            Mensagem update = new Mensagem("UPDATE");
+            update.adicionarMensagem("arquivo", "novo.mp4");
+            update.adicionarMensagem("endereco", PEER);
+            Verificacao.verificarIgual("UPDATE_OK", roteador.enviar(roteador.getShard("novo.mp4"), update).get(5, TimeUnit.SECONDS).getTitulo(),
+                "resposta do UPDATE");
+            arquivos.add("novo.mp4");
+
+            for (String arquivo : arquivos) {
+                String dono = roteador.getShard(arquivo);
+                Verificacao.verificarIgual(Collections.singletonList(PEER), new ArrayList<>(buscar(roteador, dono, arquivo)), "busca de " + arquivo + " no seu shard");
+
+                for (String outro : enderecos) {
+                    if (!outro.equals(dono)) {
+                        Verificacao.verificar(buscar(roteador, outro, arquivo).isEmpty(), arquivo + " indexado fora do seu shard, em " + outro);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Collection<?> buscar(RoteadorRastreadores roteador, String shard, String arquivo) throws Exception {
+        Mensagem busca = new Mensagem("SEARCH");
+        busca.adicionarMensagem("arquivo_requistado", arquivo);
+        busca.adicionarMensagem("endereco", "127.0.0.1:9401");
+        Object peers = roteador.enviar(shard, busca).get(5, TimeUnit.SECONDS).getMensagens().get("lista_peers");
+        return peers instanceof Collection ? (Collection<?>) peers : Collections.emptyList();
+    }
+
+    /**
+     * Cada shard deve receber entre 25% e 42% das chaves, e um quarto shard deve receber cerca de um quarto delas, todas vindas dos
+     * shards existentes.
+     */
+    private static void verificarDistribuicao(List<String> enderecos) {
+        AnelShards anel = new AnelShards(enderecos, AnelShards.NOS_VIRTUAIS_PADRAO);
+        List<String> enderecosAmpliados = new ArrayList<>(enderecos);
+        enderecosAmpliados.add("localhost:" + (porta(enderecos.get(0)) + 10_000));
+        AnelShards anelAmpliado = new AnelShards(enderecosAmpliados, AnelShards.NOS_VIRTUAIS_PADRAO);
+        String novoShard = enderecosAmpliados.get(RASTREADORES);
+        Map<String, Integer> chavesPorShard = new HashMap<>();
+        int movidas = 0;
+
+        for (int i = 0; i < CHAVES_DISTRIBUICAO; i++) {
+            String chave = "video-" + i + ".mp4";
+            String shard = anel.getShard(chave);
+            chavesPorShard.merge(shard, 1, Integer::sum);
+
+            String shardAmpliado = anelAmpliado.getShard(chave);
+            if (!shardAmpliado.equals(shard)) {
+                Verificacao.verificarIgual(novoShard, shardAmpliado, "chave movida para um shard antigo");
+                movidas++;
+            }
+        }
+
+        for (String shard : enderecos) {
+            double fracao = (double) chavesPorShard.getOrDefault(shard, 0) / CHAVES_DISTRIBUICAO;
+            Verificacao.verificar(fracao > 0.25 && fracao < 0.42, String.format("shard %s com %.1f%% das chaves", shard, 100 * fracao));
+        }
+        double fracaoMovida = (double) movidas / CHAVES_DISTRIBUICAO;
+        Verificacao.verificar(fracaoMovida > 0.15 && fracaoMovida < 0.35, String.format("%.1f%% das chaves movidas", 100 * fracaoMovida));
+        System.out.println(String.format("Distribuição: %s; %.1f%% das chaves movidas ao incluir um shard", chavesPorShard, 100 * fracaoMovida));
+    }
+
+    private static Servidor iniciarRastreador(int porta) throws Exception {
+        Servidor rastreador = new Servidor("127.0.0.1", porta, 1, DespachanteRequisicoes.criarPorPropriedades());
+        Thread thread = new Thread(() -> {
+            try {
+                rastreador.ligarServidor();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "rastreador-" + porta);
+        thread.setDaemon(true);
+        thread.start();
+        return rastreador;
+    }
+
+    private static int portaLivre() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static int porta(String endereco) {
+        return Integer.parseInt(endereco.substring(endereco.lastIndexOf(':') + 1));
+    }
+}
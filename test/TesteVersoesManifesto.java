@@ -0,0 +1,202 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Teste das versões de manifesto do Servidor: um JOIN com versao define a base dos DELTA do peer, cada DELTA só é aplicado sobre a
+ * versão imediatamente anterior à sua, e qualquer outra versão, um peer sem JOIN com versao ou um manifesto em várias partes ainda
+ * incompleto resultam em RESYNC sem alterar o índice. DELTA concorrentes com a mesma versão são aplicados uma única vez.
+ *
+ * As requisições são executadas diretamente através do Servidor.RequisicaoCliente, sem id_requisicao para que não passem pela
+ * deduplicação.
+ *
+ * @author Maik Henrique
+ */
+public class TesteVersoesManifesto {
+
+    private static final String PEER = "peer1";
+    private static final int DELTAS_CONCORRENTES = 16;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("p2p.servidor.diario.pasta", "");
+        Servidor servidor = new Servidor("127.0.0.1", 0, 1, DespachanteRequisicoes.criarPorPropriedades());
+
+        try (DatagramChannel canalServidor = abrirCanal();
+            DatagramChannel cliente = abrirCanal()) {
+            Requisitante requisitante = new Requisitante(servidor, canalServidor, cliente);
+            PeerFileIndex indice = servidor.getIndicePeersArquivos();
+
+            Mensagem resposta = requisitante.executar(join(10L, Arrays.asList("a.mp4", "b.mp4"), null, null));
+            Verificacao.verificarIgual("JOIN_OK", resposta.getTitulo(), "resposta do JOIN");
+            Verificacao.verificarIgual(true, resposta.getMensagens().get("completo"), "JOIN de uma parte completo");
+
+            resposta = requisitante.executar(delta(11L, Arrays.asList("c.mp4"), Arrays.asList("a.mp4")));
+            Verificacao.verificarIgual("DELTA_OK", resposta.getTitulo(), "DELTA sobre a versão do JOIN");
+            Verificacao.verificarIgual(11L, resposta.getMensagens().get("versao"), "versão confirmada pelo DELTA_OK");
+            Verificacao.verificarIgual(conjunto("b.mp4", "c.mp4"), indice.getArquivosDoPeer(PEER), "arquivos após o DELTA");
+
+            resposta = requisitante.executar(delta(13L, Arrays.asList("d.mp4"), null));
+            Verificacao.verificarIgual("RESYNC", resposta.getTitulo(), "DELTA que pula uma versão");
+            resposta = requisitante.executar(delta(11L, Arrays.asList("d.mp4"), null));
+            Verificacao.verificarIgual("RESYNC", resposta.getTitulo(), "DELTA de uma versão já aplicada");
+            Verificacao.verificarIgual(conjunto("b.mp4", "c.mp4"), indice.getArquivosDoPeer(PEER), "arquivos após os RESYNC");
+
+            verificarManifestoEmPartes(requisitante, indice);
+            verificarDeltasConcorrentes(servidor, canalServidor, indice);
+
+            resposta = requisitante.executar(join(null, Arrays.asList("e.mp4"), null, null));
+            Verificacao.verificarIgual("JOIN_OK", resposta.getTitulo(), "JOIN sem versao");
+            resposta = requisitante.executar(delta(31L, Arrays.asList("f.mp4"), null));
+            Verificacao.verificarIgual("RESYNC", resposta.getTitulo(), "DELTA após um JOIN sem versao");
+
+            Mensagem deltaOutroPeer = delta(1L, Arrays.asList("g.mp4"), null);
+            deltaOutroPeer.adicionarMensagem("endereco", "peer2");
+            resposta = requisitante.executar(deltaOutroPeer);
+            Verificacao.verificarIgual("RESYNC", resposta.getTitulo(), "DELTA de um peer sem JOIN");
+            Verificacao.verificar(!indice.getPeers().contains("peer2"), "peer sem JOIN não entra no índice");
+        } finally {
+            servidor.close();
+        }
+        System.out.println("TesteVersoesManifesto concluído");
+    }
+
+    /**
+     * Enquanto o JOIN de duas partes não está completo, a versão anterior continua valendo e o DELTA da nova versão recebe RESYNC.
+     */
+    private static void verificarManifestoEmPartes(Requisitante requisitante, PeerFileIndex indice) throws Exception {
+        Mensagem resposta = requisitante.executar(join(20L, Arrays.asList("h.mp4"), 1, 2));
+        Verificacao.verificarIgual(false, resposta.getMensagens().get("completo"), "primeira parte do JOIN não completa o manifesto");
+
+        resposta = requisitante.executar(delta(21L, Arrays.asList("i.mp4"), null));
+        Verificacao.verificarIgual("RESYNC", resposta.getTitulo(), "DELTA antes do manifesto completo");
+
+        resposta = requisitante.executar(join(20L, Arrays.asList("j.mp4"), 2, 2));
+        Verificacao.verificarIgual(true, resposta.getMensagens().get("completo"), "última parte completa o manifesto");
+        Verificacao.verificarIgual(conjunto("h.mp4", "j.mp4"), indice.getArquivosDoPeer(PEER), "arquivos do manifesto em partes");
+
+        resposta = requisitante.executar(delta(21L, Arrays.asList("i.mp4"), null));
+        Verificacao.verificarIgual("DELTA_OK", resposta.getTitulo(), "DELTA após o manifesto completo");
+    }
+
+    /**
+     * Vários DELTA com a mesma versão, de origens diferentes, executados ao mesmo tempo: somente um deles altera o índice.
+     */
+    private static void verificarDeltasConcorrentes(Servidor servidor, DatagramChannel canalServidor, PeerFileIndex indice) throws Exception {
+        List<DatagramChannel> clientes = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch inicio = new CountDownLatch(1);
+
+        try {
+            for (int i = 0; i < DELTAS_CONCORRENTES; i++) {
+                DatagramChannel cliente = abrirCanal();
+                clientes.add(cliente);
+                byte[] bytes = Mensagem.serializar(delta(22L, Arrays.asList("k" + i + ".mp4"), null), Mensagem.Formato.BINARIO);
+                Thread thread = new Thread(() -> {
+                    try {
+                        inicio.await();
+                        servidor.new RequisicaoCliente(canalServidor, cliente.getLocalAddress(), bytes, bytes.length).run();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            inicio.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            int confirmados = 0;
+            for (DatagramChannel cliente : clientes) {
+                confirmados += receber(cliente).getTitulo().equals("DELTA_OK") ? 1 : 0;
+            }
+            Verificacao.verificarIgual(1, confirmados, "DELTA concorrentes confirmados");
+            Verificacao.verificarIgual(4, indice.getArquivosDoPeer(PEER).size(), "arquivos após os DELTA concorrentes");
+        } finally {
+            for (DatagramChannel cliente : clientes) {
+                cliente.close();
+            }
+        }
+    }
+
+    private static Mensagem join(Long versao, List<String> arquivos, Integer parte, Integer totalPartes) {
+        Mensagem join = new Mensagem("JOIN");
+        join.adicionarMensagem("arquivos", new ArrayList<>(arquivos));
+        join.adicionarMensagem("endereco", PEER);
+        if (versao != null) {
+            join.adicionarMensagem("versao", versao);
+        }
+        if (parte != null) {
+            join.adicionarMensagem("parte", parte);
+            join.adicionarMensagem("total_partes", totalPartes);
+        }
+        return join;
+    }
+
+    private static Mensagem delta(long versao, List<String> adicionados, List<String> removidos) {
+        Mensagem delta = new Mensagem("DELTA");
+        delta.adicionarMensagem("endereco", PEER);
+        delta.adicionarMensagem("versao", versao);
+        if (adicionados != null) {
+            delta.adicionarMensagem("adicionados", new ArrayList<>(adicionados));
+        }
+        if (removidos != null) {
+            delta.adicionarMensagem("removidos", new ArrayList<>(removidos));
+        }
+        return delta;
+    }
+
+    private static Set<String> conjunto(String... arquivos) {
+        return new HashSet<>(Arrays.asList(arquivos));
+    }
+
+    private static Mensagem receber(DatagramChannel cliente) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+        while (cliente.receive(buffer) == null) {
+            if (System.nanoTime() > limite) {
+                throw new AssertionError("sem resposta do servidor");
+            }
+            Thread.sleep(1);
+        }
+        buffer.flip();
+        return Mensagem.desserializar(buffer.array(), 0, buffer.limit());
+    }
+
+    private static DatagramChannel abrirCanal() throws Exception {
+        DatagramChannel canal = DatagramChannel.open();
+        canal.bind(new InetSocketAddress("127.0.0.1", 0));
+        canal.configureBlocking(false);
+        return canal;
+    }
+
+    /**
+     * Executa requisições de um único cliente e lê a resposta de cada uma.
+     */
+    private static class Requisitante {
+        private final Servidor servidor;
+        private final DatagramChannel canalServidor;
+        private final DatagramChannel cliente;
+
+        Requisitante(Servidor servidor, DatagramChannel canalServidor, DatagramChannel cliente) {
+            this.servidor = servidor;
+            this.canalServidor = canalServidor;
+            this.cliente = cliente;
+        }
+
+        Mensagem executar(Mensagem requisicao) throws Exception {
+            byte[] bytes = Mensagem.serializar(requisicao, Mensagem.Formato.BINARIO);
+            servidor.new RequisicaoCliente(canalServidor, cliente.getLocalAddress(), bytes, bytes.length).run();
+            return receber(cliente);
+        }
+    }
+}
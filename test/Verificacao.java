@@ -0,0 +1,26 @@
+/**
+ * Verificações usadas pelos testes executáveis desta pasta, que não dependem de framework de testes. Cada teste é uma classe com
+ * main que lança AssertionError na primeira verificação que falhar, terminando com código de saída diferente de zero.
+ *
+ * Para compilar e executar, a partir da raiz do repositório:
+ * javac -encoding UTF-8 -d out src/*.java test/*.java && java -cp out TestePeerFileIndex
+ *
+ * @author Maik Henrique
+ */
+public final class Verificacao {
+
+    private Verificacao() {
+    }
+
+    public static void verificar(boolean condicao, String descricao) {
+        if (!condicao) {
+            throw new AssertionError(descricao);
+        }
+    }
+
+    public static void verificarIgual(Object esperado, Object obtido, String descricao) {
+        if (esperado == null ? obtido != null : !esperado.equals(obtido)) {
+            throw new AssertionError(String.format("%s: esperava %s e obteve %s", descricao, esperado, obtido));
+        }
+    }
+}